@@ -24,6 +24,7 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.cert.CertificateException;
+import java.util.Locale;
 
 import org.spongycastle.openpgp.PGPException;
 
@@ -40,6 +41,7 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 
 import org.kontalk.authenticator.Authenticator;
+import org.kontalk.client.CountryCodes;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PRNGFixes;
 import org.kontalk.crypto.PersonalKey;
@@ -201,6 +203,9 @@ public class Kontalk extends Application {
         else {
             // ensure everything is cleared up
             MessagesProvider.deleteDatabase(Kontalk.this);
+
+            // registration screen will need the country list
+            CountryCodes.preload(Locale.getDefault());
         }
 
         // enable/disable components
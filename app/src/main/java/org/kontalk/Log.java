@@ -18,13 +18,70 @@
 
 package org.kontalk;
 
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 
 /**
  * isLoggable-aware wrapper around {@link android.util.Log}.
+ * Level checks are cached per tag, so they are cheap enough for hot paths;
+ * log levels changed with <code>setprop log.tag.*</code> will be picked up
+ * on next process start. Debug builds log everything.
+ * The formatting variants replace each <code>{}</code> in the message
+ * with the next argument, but only if the level is enabled: as long as
+ * arguments are not boxed by the caller, a disabled call allocates nothing.
+ * The last {@link #BUFFER_SIZE} logged messages are also kept in memory
+ * for post-mortem dumps (see {@link #dump}).
  * @author Daniele Ricci
  */
 public final class Log {
 
+    public static final int VERBOSE = android.util.Log.VERBOSE;
+    public static final int DEBUG = android.util.Log.DEBUG;
+    public static final int INFO = android.util.Log.INFO;
+    public static final int WARN = android.util.Log.WARN;
+    public static final int ERROR = android.util.Log.ERROR;
+    public static final int ASSERT = android.util.Log.ASSERT;
+
+    /** Number of messages kept in the in-memory buffer. */
+    public static final int BUFFER_SIZE = 256;
+
+    private static final String PRIORITY_CHARS = "??VDIWEA";
+
+    /** Lowest enabled level, per tag. */
+    private static final Map<String, Integer> sLevels = new ConcurrentHashMap<>();
+
+    // in-memory ring buffer
+    private static final long[] sTimes = new long[BUFFER_SIZE];
+    private static final int[] sPriorities = new int[BUFFER_SIZE];
+    private static final String[] sTags = new String[BUFFER_SIZE];
+    private static final String[] sMessages = new String[BUFFER_SIZE];
+    private static final Throwable[] sThrowables = new Throwable[BUFFER_SIZE];
+    private static int sNext;
+    private static int sBuffered;
+
+    private Log() {
+    }
+
+    /** Returns true if the given level is enabled for the given tag. */
+    public static boolean isLoggable(String tag, int level) {
+        Integer minLevel = sLevels.get(tag);
+        if (minLevel == null) {
+            int l = VERBOSE;
+            if (!BuildConfig.DEBUG) {
+                while (l < ASSERT && !android.util.Log.isLoggable(tag, l))
+                    l++;
+            }
+            minLevel = l;
+            sLevels.put(tag, minLevel);
+        }
+        return level >= minLevel;
+    }
+
     /**
      * Send a {@link #VERBOSE} log message.
      * @param tag Used to identify the source of a log message.  It usually identifies
@@ -32,8 +89,10 @@ public final class Log {
      * @param msg The message you would like logged.
      */
     public static int v(String tag, String msg) {
-        if (android.util.Log.isLoggable(tag, android.util.Log.VERBOSE))
+        if (isLoggable(tag, VERBOSE)) {
+            buffer(VERBOSE, tag, msg, null);
             return android.util.Log.v(tag, msg);
+        }
         return 0;
     }
 
@@ -45,8 +104,70 @@ public final class Log {
      * @param tr An exception to log
      */
     public static int v(String tag, String msg, Throwable tr) {
-        if (android.util.Log.isLoggable(tag, android.util.Log.VERBOSE))
+        if (isLoggable(tag, VERBOSE)) {
+            buffer(VERBOSE, tag, msg, tr);
             return android.util.Log.v(tag, msg, tr);
+        }
+        return 0;
+    }
+
+    /**
+     * Send a {@link #VERBOSE} log message, formatted with one argument.
+     * @see #format(String, int, Object, Object, Object)
+     */
+    public static int v(String tag, String format, Object arg) {
+        if (isLoggable(tag, VERBOSE))
+            return println(VERBOSE, tag, format(format, 1, arg, null, null));
+        return 0;
+    }
+
+    /**
+     * Send a {@link #VERBOSE} log message, formatted with two arguments.
+     * @see #format(String, int, Object, Object, Object)
+     */
+    public static int v(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(tag, VERBOSE))
+            return println(VERBOSE, tag, format(format, 2, arg1, arg2, null));
+        return 0;
+    }
+
+    /**
+     * Send a {@link #VERBOSE} log message, formatted with three arguments.
+     * @see #format(String, int, Object, Object, Object)
+     */
+    public static int v(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        if (isLoggable(tag, VERBOSE))
+            return println(VERBOSE, tag, format(format, 3, arg1, arg2, arg3));
+        return 0;
+    }
+
+    /**
+     * Send a {@link #VERBOSE} log message, formatted with a numeric argument.
+     * The argument is boxed only if the level is enabled.
+     */
+    public static int v(String tag, String format, long arg) {
+        if (isLoggable(tag, VERBOSE))
+            return println(VERBOSE, tag, format(format, 1, arg, null, null));
+        return 0;
+    }
+
+    /**
+     * Send a {@link #VERBOSE} log message, formatted with two numeric arguments.
+     * The arguments are boxed only if the level is enabled.
+     */
+    public static int v(String tag, String format, long arg1, long arg2) {
+        if (isLoggable(tag, VERBOSE))
+            return println(VERBOSE, tag, format(format, 2, arg1, arg2, null));
+        return 0;
+    }
+
+    /**
+     * Send a {@link #VERBOSE} log message, formatted with three numeric arguments.
+     * The arguments are boxed only if the level is enabled.
+     */
+    public static int v(String tag, String format, long arg1, long arg2, long arg3) {
+        if (isLoggable(tag, VERBOSE))
+            return println(VERBOSE, tag, format(format, 3, arg1, arg2, arg3));
         return 0;
     }
 
@@ -57,8 +178,10 @@ public final class Log {
      * @param msg The message you would like logged.
      */
     public static int d(String tag, String msg) {
-        if (android.util.Log.isLoggable(tag, android.util.Log.DEBUG))
+        if (isLoggable(tag, DEBUG)) {
+            buffer(DEBUG, tag, msg, null);
             return android.util.Log.d(tag, msg);
+        }
         return 0;
     }
 
@@ -70,8 +193,70 @@ public final class Log {
      * @param tr An exception to log
      */
     public static int d(String tag, String msg, Throwable tr) {
-        if (android.util.Log.isLoggable(tag, android.util.Log.DEBUG))
+        if (isLoggable(tag, DEBUG)) {
+            buffer(DEBUG, tag, msg, tr);
             return android.util.Log.d(tag, msg, tr);
+        }
+        return 0;
+    }
+
+    /**
+     * Send a {@link #DEBUG} log message, formatted with one argument.
+     * @see #format(String, int, Object, Object, Object)
+     */
+    public static int d(String tag, String format, Object arg) {
+        if (isLoggable(tag, DEBUG))
+            return println(DEBUG, tag, format(format, 1, arg, null, null));
+        return 0;
+    }
+
+    /**
+     * Send a {@link #DEBUG} log message, formatted with two arguments.
+     * @see #format(String, int, Object, Object, Object)
+     */
+    public static int d(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(tag, DEBUG))
+            return println(DEBUG, tag, format(format, 2, arg1, arg2, null));
+        return 0;
+    }
+
+    /**
+     * Send a {@link #DEBUG} log message, formatted with three arguments.
+     * @see #format(String, int, Object, Object, Object)
+     */
+    public static int d(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        if (isLoggable(tag, DEBUG))
+            return println(DEBUG, tag, format(format, 3, arg1, arg2, arg3));
+        return 0;
+    }
+
+    /**
+     * Send a {@link #DEBUG} log message, formatted with a numeric argument.
+     * The argument is boxed only if the level is enabled.
+     */
+    public static int d(String tag, String format, long arg) {
+        if (isLoggable(tag, DEBUG))
+            return println(DEBUG, tag, format(format, 1, arg, null, null));
+        return 0;
+    }
+
+    /**
+     * Send a {@link #DEBUG} log message, formatted with two numeric arguments.
+     * The arguments are boxed only if the level is enabled.
+     */
+    public static int d(String tag, String format, long arg1, long arg2) {
+        if (isLoggable(tag, DEBUG))
+            return println(DEBUG, tag, format(format, 2, arg1, arg2, null));
+        return 0;
+    }
+
+    /**
+     * Send a {@link #DEBUG} log message, formatted with three numeric arguments.
+     * The arguments are boxed only if the level is enabled.
+     */
+    public static int d(String tag, String format, long arg1, long arg2, long arg3) {
+        if (isLoggable(tag, DEBUG))
+            return println(DEBUG, tag, format(format, 3, arg1, arg2, arg3));
         return 0;
     }
 
@@ -82,8 +267,10 @@ public final class Log {
      * @param msg The message you would like logged.
      */
     public static int i(String tag, String msg) {
-        if (android.util.Log.isLoggable(tag, android.util.Log.INFO))
+        if (isLoggable(tag, INFO)) {
+            buffer(INFO, tag, msg, null);
             return android.util.Log.i(tag, msg);
+        }
         return 0;
     }
 
@@ -95,8 +282,70 @@ public final class Log {
      * @param tr An exception to log
      */
     public static int i(String tag, String msg, Throwable tr) {
-        if (android.util.Log.isLoggable(tag, android.util.Log.INFO))
+        if (isLoggable(tag, INFO)) {
+            buffer(INFO, tag, msg, tr);
             return android.util.Log.i(tag, msg, tr);
+        }
+        return 0;
+    }
+
+    /**
+     * Send an {@link #INFO} log message, formatted with one argument.
+     * @see #format(String, int, Object, Object, Object)
+     */
+    public static int i(String tag, String format, Object arg) {
+        if (isLoggable(tag, INFO))
+            return println(INFO, tag, format(format, 1, arg, null, null));
+        return 0;
+    }
+
+    /**
+     * Send an {@link #INFO} log message, formatted with two arguments.
+     * @see #format(String, int, Object, Object, Object)
+     */
+    public static int i(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(tag, INFO))
+            return println(INFO, tag, format(format, 2, arg1, arg2, null));
+        return 0;
+    }
+
+    /**
+     * Send an {@link #INFO} log message, formatted with three arguments.
+     * @see #format(String, int, Object, Object, Object)
+     */
+    public static int i(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        if (isLoggable(tag, INFO))
+            return println(INFO, tag, format(format, 3, arg1, arg2, arg3));
+        return 0;
+    }
+
+    /**
+     * Send an {@link #INFO} log message, formatted with a numeric argument.
+     * The argument is boxed only if the level is enabled.
+     */
+    public static int i(String tag, String format, long arg) {
+        if (isLoggable(tag, INFO))
+            return println(INFO, tag, format(format, 1, arg, null, null));
+        return 0;
+    }
+
+    /**
+     * Send an {@link #INFO} log message, formatted with two numeric arguments.
+     * The arguments are boxed only if the level is enabled.
+     */
+    public static int i(String tag, String format, long arg1, long arg2) {
+        if (isLoggable(tag, INFO))
+            return println(INFO, tag, format(format, 2, arg1, arg2, null));
+        return 0;
+    }
+
+    /**
+     * Send a {@link #INFO} log message, formatted with three numeric arguments.
+     * The arguments are boxed only if the level is enabled.
+     */
+    public static int i(String tag, String format, long arg1, long arg2, long arg3) {
+        if (isLoggable(tag, INFO))
+            return println(INFO, tag, format(format, 3, arg1, arg2, arg3));
         return 0;
     }
 
@@ -107,8 +356,10 @@ public final class Log {
      * @param msg The message you would like logged.
      */
     public static int w(String tag, String msg) {
-        if (android.util.Log.isLoggable(tag, android.util.Log.WARN))
+        if (isLoggable(tag, WARN)) {
+            buffer(WARN, tag, msg, null);
             return android.util.Log.w(tag, msg);
+        }
         return 0;
     }
 
@@ -120,8 +371,10 @@ public final class Log {
      * @param tr An exception to log
      */
     public static int w(String tag, String msg, Throwable tr) {
-        if (android.util.Log.isLoggable(tag, android.util.Log.WARN))
+        if (isLoggable(tag, WARN)) {
+            buffer(WARN, tag, msg, tr);
             return android.util.Log.w(tag, msg, tr);
+        }
         return 0;
     }
 
@@ -132,8 +385,10 @@ public final class Log {
      * @param tr An exception to log
      */
     public static int w(String tag, Throwable tr) {
-        if (android.util.Log.isLoggable(tag, android.util.Log.WARN))
+        if (isLoggable(tag, WARN)) {
+            buffer(WARN, tag, null, tr);
             return android.util.Log.w(tag, tr);
+        }
         return 0;
     }
 
@@ -144,8 +399,10 @@ public final class Log {
      * @param msg The message you would like logged.
      */
     public static int e(String tag, String msg) {
-        if (android.util.Log.isLoggable(tag, android.util.Log.ERROR))
+        if (isLoggable(tag, ERROR)) {
+            buffer(ERROR, tag, msg, null);
             return android.util.Log.e(tag, msg);
+        }
         return 0;
     }
 
@@ -157,9 +414,70 @@ public final class Log {
      * @param tr An exception to log
      */
     public static int e(String tag, String msg, Throwable tr) {
-        if (android.util.Log.isLoggable(tag, android.util.Log.ERROR))
+        if (isLoggable(tag, ERROR)) {
+            buffer(ERROR, tag, msg, tr);
             return android.util.Log.e(tag, msg, tr);
+        }
         return 0;
     }
 
+    /**
+     * Replaces each <code>{}</code> in the given string with the next of
+     * the first <code>count</code> arguments. Placeholders with no matching
+     * argument are left as they are.
+     */
+    static String format(String format, int count, Object arg1, Object arg2, Object arg3) {
+        StringBuilder out = new StringBuilder(format.length() + 32);
+        int argIndex = 0;
+        int start = 0;
+        int index;
+        while (argIndex < count && (index = format.indexOf("{}", start)) >= 0) {
+            out.append(format, start, index);
+            Object arg = (argIndex == 0) ? arg1 : (argIndex == 1) ? arg2 : arg3;
+            out.append(arg);
+            argIndex++;
+            start = index + 2;
+        }
+        out.append(format, start, format.length());
+        return out.toString();
+    }
+
+    private static int println(int priority, String tag, String msg) {
+        buffer(priority, tag, msg, null);
+        return android.util.Log.println(priority, tag, msg);
+    }
+
+    private static synchronized void buffer(int priority, String tag, String msg, Throwable tr) {
+        sTimes[sNext] = System.currentTimeMillis();
+        sPriorities[sNext] = priority;
+        sTags[sNext] = tag;
+        sMessages[sNext] = msg;
+        sThrowables[sNext] = tr;
+        sNext = (sNext + 1) % BUFFER_SIZE;
+        if (sBuffered < BUFFER_SIZE)
+            sBuffered++;
+    }
+
+    /** Writes the buffered log messages, oldest first. */
+    public static synchronized void dump(PrintWriter out) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        Date date = new Date();
+
+        out.println("Log (last " + sBuffered + " messages):");
+        int first = (sNext - sBuffered + BUFFER_SIZE) % BUFFER_SIZE;
+        for (int i = 0; i < sBuffered; i++) {
+            int index = (first + i) % BUFFER_SIZE;
+            date.setTime(sTimes[index]);
+            out.print(dateFormat.format(date));
+            out.print(' ');
+            out.print(PRIORITY_CHARS.charAt(sPriorities[index]));
+            out.print('/');
+            out.print(sTags[index]);
+            out.print(": ");
+            out.println(sMessages[index] != null ? sMessages[index] : "");
+            if (sThrowables[index] != null)
+                out.println(android.util.Log.getStackTraceString(sThrowables[index]));
+        }
+    }
+
 }
@@ -21,6 +21,7 @@ package org.kontalk.client;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
@@ -54,6 +55,7 @@ import info.guardianproject.netcipher.NetCipher;
 
 import org.kontalk.message.CompositeMessage;
 import org.kontalk.service.DownloadListener;
+import org.kontalk.util.CheckpointOutputStream;
 import org.kontalk.util.InternalTrustStore;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.Preferences;
@@ -71,6 +73,16 @@ public class ClientHTTPConnection {
     private static final Pattern CONTENT_DISPOSITION_PATTERN = Pattern
             .compile("attachment;\\s*filename\\s*=\\s*\"([^\"]*)\"");
 
+    /** Regex used to parse content-range headers */
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern
+            .compile("bytes\\s+([0-9]+)-");
+
+    /** Not defined by {@link HttpURLConnection}. */
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    /** Bytes between download checkpoints. */
+    private static final long CHECKPOINT_INTERVAL = 1024 * 1024;
+
     private final Context mContext;
 
     private final PrivateKey mPrivateKey;
@@ -190,51 +202,129 @@ public class ClientHTTPConnection {
     /**
      * Downloads to a directory represented by a {@link File} object,
      * determining the file name from the Content-Disposition header.
+     * Data is written to the given partial file first, resuming from the
+     * given offset with a range request if possible; the partial file is
+     * moved to its final destination when the download is completed.
+     * @param offset a checkpoint previously reported to the listener
      */
-    public void downloadAutofilename(String url, File defaultBase, Date timestamp, DownloadListener listener) throws IOException {
-        _download(url, defaultBase, timestamp, listener);
+    public void downloadAutofilename(String url, File defaultBase, Date timestamp,
+            File partial, long offset, DownloadListener listener) throws IOException {
+        _download(url, defaultBase, timestamp, partial, offset, listener);
     }
 
-    private void _download(String url, File defaultBase, Date timestamp, DownloadListener listener) throws IOException {
+    private void _download(String url, File defaultBase, Date timestamp,
+            File partial, long offset, DownloadListener listener) throws IOException {
         boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
         currentRequest = prepareURLDownload(url, acceptAnyCertificate);
+        // ranges refer to the transferred bytes, disable transparent compression
+        currentRequest.setRequestProperty("Accept-Encoding", "identity");
+
+        if (offset > 0 && partial.length() >= offset)
+            currentRequest.setRequestProperty("Range", "bytes=" + offset + "-");
+        else
+            offset = 0;
 
         int code = currentRequest.getResponseCode();
-        // HTTP/1.1 200 OK -- other codes should throw Exceptions
-        if (code == 200) {
-            // use a more suitable filename, taking only the extension
-            String contentType = currentRequest.getContentType();
-            File destination = null;
-            if (contentType != null) {
-                destination = CompositeMessage.getIncomingFile(contentType,
-                    timestamp != null ? timestamp : new Date());
+        if (code == HttpURLConnection.HTTP_PARTIAL) {
+            long start = parseContentRangeStart(currentRequest.getHeaderField("Content-Range"));
+            if (start != offset)
+                throw new IOException("unexpected content range: " + start);
+        }
+
+        // HTTP/1.1 200 OK -- server ignored our range request
+        else if (code == HttpURLConnection.HTTP_OK) {
+            offset = 0;
+        }
+
+        // partial data is not valid anymore -- start over
+        else if (code == HTTP_RANGE_NOT_SATISFIABLE && offset > 0) {
+            Log.d(TAG, "requested range not satisfiable, restarting download");
+            currentRequest.disconnect();
+            listener.checkpoint(url, partial, 0);
+            _download(url, defaultBase, timestamp, partial, 0, listener);
+            return;
+        }
+
+        // other codes should throw Exceptions
+        else {
+            Log.d(TAG, "invalid response: " + code);
+            listener.error(url, null, new IOException("invalid response: " + code));
+            return;
+        }
+
+        // use a more suitable filename, taking only the extension
+        String contentType = currentRequest.getContentType();
+        File destination = null;
+        if (contentType != null) {
+            destination = CompositeMessage.getIncomingFile(contentType,
+                timestamp != null ? timestamp : new Date());
+        }
+
+        // still having problems?
+        if (destination == null) {
+            String name = null;
+            String disp = currentRequest.getHeaderField("Content-Disposition");
+            if (disp != null)
+                name = parseContentDisposition(disp);
+
+            if (name == null) {
+                // very bad hack to overcome server bad behaviour
+                name = MediaStorage.UNKNOWN_FILENAME;
             }
 
-            // still having problems?
-            if (destination == null) {
-                String name = null;
-                String disp = currentRequest.getHeaderField("Content-Disposition");
-                if (disp != null)
-                    name = parseContentDisposition(disp);
+            destination = new File(defaultBase, name);
+        }
 
-                if (name == null) {
-                    // very bad hack to overcome server bad behaviour
-                    name = MediaStorage.UNKNOWN_FILENAME;
+        FileOutputStream fileOut = new FileOutputStream(partial, offset > 0);
+        // drop anything written after the last checkpoint
+        fileOut.getChannel().truncate(offset);
+
+        final String checkpointUrl = url;
+        final File checkpointFile = partial;
+        final DownloadListener checkpointListener = listener;
+        CheckpointOutputStream out = new CheckpointOutputStream(fileOut, offset,
+            CHECKPOINT_INTERVAL, new CheckpointOutputStream.CheckpointListener() {
+                @Override
+                public void checkpoint(long position) {
+                    checkpointListener.checkpoint(checkpointUrl, checkpointFile, position);
                 }
+            });
 
-                destination = new File(defaultBase, name);
+        // we need to wrap the entity to monitor the download progress
+        ProgressOutputStreamEntity entity = new ProgressOutputStreamEntity(currentRequest,
+            url, partial, offset, listener);
+        try {
+            entity.transfer(out);
+        }
+        finally {
+            try {
+                // whatever we received is good, save it for later
+                out.checkpoint();
+            }
+            catch (IOException ignored) {
             }
-
-            // we need to wrap the entity to monitor the download progress
-            ProgressOutputStreamEntity entity = new ProgressOutputStreamEntity(currentRequest, url, destination, listener);
-            FileOutputStream out = new FileOutputStream(destination);
-            entity.writeTo(out);
             out.close();
-            return;
         }
 
-        Log.d(TAG, "invalid response: " + code);
-        listener.error(url, null, new IOException("invalid response: " + code));
+        if (!partial.renameTo(destination))
+            throw new IOException("unable to move download to " + destination);
+
+        listener.completed(url, contentType, destination);
+    }
+
+    /** Returns the first byte position of a Content-Range header. */
+    static long parseContentRangeStart(String contentRange) {
+        if (contentRange != null) {
+            Matcher m = CONTENT_RANGE_PATTERN.matcher(contentRange);
+            if (m.find()) {
+                try {
+                    return Long.parseLong(m.group(1));
+                }
+                catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return -1;
     }
 
     /**
@@ -0,0 +1,156 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.client;
+
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import android.os.Process;
+
+
+/**
+ * Supported regions and their country codes. Regions come from a table
+ * generated at build time from libphonenumber metadata, so listing them
+ * doesn't require loading the metadata of every region. Localized region
+ * names and their sort order are computed lazily and cached per locale.
+ * @author Daniele Ricci
+ */
+public final class CountryCodes {
+
+    /** Localized names of all regions, in table order. */
+    private static final class LocaleNames {
+        final String[] names;
+        /** Table indexes sorted by localized name. */
+        final int[] sorted;
+
+        LocaleNames(String[] names, int[] sorted) {
+            this.names = names;
+            this.sorted = sorted;
+        }
+    }
+
+    private static final Map<Locale, LocaleNames> sNames = new HashMap<>();
+
+    private CountryCodes() {
+    }
+
+    /** Returns the number of supported regions. */
+    public static int getCount() {
+        return CountryCodeTable.COUNTRY_CODES.length;
+    }
+
+    public static String getRegionCode(int index) {
+        return CountryCodeTable.REGIONS.substring(index * 2, index * 2 + 2);
+    }
+
+    public static int getCountryCode(int index) {
+        return CountryCodeTable.COUNTRY_CODES[index];
+    }
+
+    /** Returns the country code for the given region, or 0 if not supported. */
+    public static int getCountryCode(String regionCode) {
+        int index = indexOf(regionCode);
+        return index >= 0 ? CountryCodeTable.COUNTRY_CODES[index] : 0;
+    }
+
+    /** Returns the table index of the given region, or -1 if not supported. */
+    public static int indexOf(String regionCode) {
+        if (regionCode == null || regionCode.length() != 2)
+            return -1;
+
+        final String table = CountryCodeTable.REGIONS;
+        int low = 0;
+        int high = getCount() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = table.charAt(mid * 2) - regionCode.charAt(0);
+            if (cmp == 0)
+                cmp = table.charAt(mid * 2 + 1) - regionCode.charAt(1);
+
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    /** Returns the name of the region at the given index in the given locale. */
+    public static String getRegionName(int index, Locale locale) {
+        return getNames(locale).names[index];
+    }
+
+    /** Returns the table indexes sorted by region name in the given locale. */
+    public static int[] getSortedIndexes(Locale locale) {
+        return getNames(locale).sorted.clone();
+    }
+
+    /** Computes region names for the given locale in a background thread. */
+    public static void preload(final Locale locale) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                getNames(locale);
+            }
+        }, "CountryCodes").start();
+    }
+
+    private static LocaleNames getNames(Locale locale) {
+        synchronized (sNames) {
+            LocaleNames names = sNames.get(locale);
+            if (names == null) {
+                names = loadNames(locale);
+                sNames.put(locale, names);
+            }
+            return names;
+        }
+    }
+
+    private static LocaleNames loadNames(Locale locale) {
+        int count = getCount();
+        final String[] names = new String[count];
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = NumberValidator.getRegionDisplayName(getRegionCode(i), locale);
+            order[i] = i;
+        }
+
+        final Collator collator = Collator.getInstance(locale);
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return collator.compare(names[lhs], names[rhs]);
+            }
+        });
+
+        int[] sorted = new int[count];
+        for (int i = 0; i < count; i++)
+            sorted[i] = order[i];
+        return new LocaleNames(names, sorted);
+    }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.client;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.i18n.phonenumbers.NumberParseException;
+import com.google.i18n.phonenumbers.PhoneNumberUtil;
+import com.google.i18n.phonenumbers.PhoneNumberUtil.PhoneNumberFormat;
+import com.google.i18n.phonenumbers.Phonenumber.PhoneNumber;
+
+import android.content.Context;
+import android.telephony.TelephonyManager;
+
+import org.kontalk.util.MessageUtils;
+
+
+/**
+ * A phone number normalization session for bulk operations (e.g. contacts
+ * sync). The local region is resolved only once and normalized numbers and
+ * their hashes are cached by raw input string.
+ * This class is thread safe, so a single session can be shared by several
+ * worker threads.
+ * @author Daniele Ricci
+ */
+public class NumberNormalizer {
+
+    /** A normalized phone number and its hash. */
+    public static final class Result {
+        /** The number in E.164 format. */
+        public final String number;
+        /** SHA-1 hash of the normalized number. */
+        public final String hash;
+
+        Result(String number, String hash) {
+            this.number = number;
+            this.hash = hash;
+        }
+    }
+
+    private final PhoneNumberUtil mUtil;
+    private final String mRegionCode;
+    private final String mLastResortRegionCode;
+
+    /** Marks numbers that cannot be normalized in the results cache. */
+    private static final Result INVALID = new Result(null, null);
+
+    /** Normalized numbers, or the parse exception for invalid ones. */
+    private final ConcurrentMap<String, Object> mNumbers = new ConcurrentHashMap<>();
+    /** Hashed results, or {@link #INVALID}. */
+    private final ConcurrentMap<String, Result> mResults = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new normalization session.
+     * @param regionCode default region code (e.g. from the SIM card)
+     * @param myNumber used to take the country code if not found in the number
+     * @param lastResortCc manual country code last resort
+     */
+    public NumberNormalizer(String regionCode, String myNumber, int lastResortCc) {
+        mUtil = PhoneNumberUtil.getInstance();
+
+        if (regionCode != null)
+            regionCode = regionCode.toUpperCase(Locale.US);
+        try {
+            if (myNumber != null) {
+                PhoneNumber myNum = mUtil.parse(myNumber, regionCode);
+                // use region code found in my number
+                regionCode = mUtil.getRegionCodeForNumber(myNum);
+            }
+        }
+        catch (NumberParseException e) {
+            // ehm :)
+        }
+        mRegionCode = regionCode;
+
+        mLastResortRegionCode = lastResortCc > 0 ?
+            mUtil.getRegionCodeForCountryCode(lastResortCc) : null;
+    }
+
+    /** Creates a new normalization session using the SIM card region code. */
+    public static NumberNormalizer create(Context context, String myNumber, int lastResortCc) {
+        final TelephonyManager tm = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+        return new NumberNormalizer(tm.getSimCountryIso(), myNumber, lastResortCc);
+    }
+
+    /** Returns the region code used for numbers without a country code. */
+    public String getRegionCode() {
+        return mRegionCode;
+    }
+
+    /**
+     * Converts pretty much any phone number into E.164 format.
+     * @throws NumberParseException if the number cannot be parsed
+     */
+    public String normalize(String number) throws NumberParseException {
+        Object cached = mNumbers.get(number);
+        if (cached == null) {
+            try {
+                cached = parse(number);
+            }
+            catch (NumberParseException e) {
+                cached = e;
+            }
+            mNumbers.put(number, cached);
+        }
+
+        if (cached instanceof NumberParseException)
+            throw (NumberParseException) cached;
+        return (String) cached;
+    }
+
+    /**
+     * Normalizes and hashes the given phone number.
+     * @return the result or null if the number cannot be parsed
+     */
+    public Result get(String number) {
+        Result result = mResults.get(number);
+        if (result == null) {
+            try {
+                String normalized = normalize(number);
+                result = new Result(normalized, MessageUtils.sha1(normalized));
+            }
+            catch (NumberParseException e) {
+                result = INVALID;
+            }
+            // two threads might compute the same number, it's harmless
+            mResults.put(number, result);
+        }
+        return result != INVALID ? result : null;
+    }
+
+    /**
+     * Normalizes and hashes the given phone numbers.
+     * @return an array of results in the same order of the input; invalid
+     * numbers will be null
+     */
+    public Result[] getAll(List<String> numbers) {
+        Result[] results = new Result[numbers.size()];
+        for (int i = 0; i < results.length; i++)
+            results[i] = get(numbers.get(i));
+        return results;
+    }
+
+    private String parse(String number) throws NumberParseException {
+        PhoneNumber parsedNum;
+        try {
+            parsedNum = mUtil.parse(number, mRegionCode);
+        }
+        catch (NumberParseException e) {
+            // parse failed with default region code, try last resort
+            if (mLastResortRegionCode != null)
+                parsedNum = mUtil.parse(number, mLastResortRegionCode);
+            else
+                throw e;
+        }
+
+        // a NumberParseException would have been thrown at this point
+        return mUtil.format(parsedNum, PhoneNumberFormat.E164);
+    }
+
+}
@@ -29,7 +29,6 @@ import java.util.Locale;
 
 import com.google.i18n.phonenumbers.NumberParseException;
 import com.google.i18n.phonenumbers.PhoneNumberUtil;
-import com.google.i18n.phonenumbers.PhoneNumberUtil.PhoneNumberFormat;
 import com.google.i18n.phonenumbers.Phonenumber.PhoneNumber;
 
 import org.jivesoftware.smack.AbstractXMPPConnection;
@@ -593,39 +592,8 @@ public class NumberValidator implements Runnable, ConnectionHelperListener {
     public static String fixNumber(Context context, String number, String myNumber, int lastResortCc)
             throws NumberParseException {
 
-        final TelephonyManager tm = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
-        String myRegionCode = tm.getSimCountryIso();
-        if (myRegionCode != null)
-            myRegionCode = myRegionCode.toUpperCase(Locale.US);
-
-        PhoneNumberUtil util = PhoneNumberUtil.getInstance();
-        try {
-            if (myNumber != null) {
-                PhoneNumber myNum = util.parse(myNumber, myRegionCode);
-                // use region code found in my number
-                myRegionCode = util.getRegionCodeForNumber(myNum);
-            }
-        }
-        catch (NumberParseException e) {
-            // ehm :)
-        }
-
-        PhoneNumber parsedNum;
-        try {
-            parsedNum = util.parse(number, myRegionCode);
-        }
-        catch (NumberParseException e) {
-            // parse failed with default region code, try last resort
-            if (lastResortCc > 0) {
-                myRegionCode = util.getRegionCodeForCountryCode(lastResortCc);
-                parsedNum = util.parse(number, myRegionCode);
-            }
-            else
-                throw e;
-        }
-
-        // a NumberParseException would have been thrown at this point
-        return util.format(parsedNum, PhoneNumberFormat.E164);
+        return NumberNormalizer.create(context, myNumber, lastResortCc)
+            .normalize(number);
     }
 
     /** Returns the (parsed) number stored in this device SIM card. */
@@ -57,20 +57,31 @@ public class ServerList extends ArrayList<EndpointServer> {
             get(mSeed.nextInt(size())) : null;
     }
 
-    /** A simple server provider backed by a server list. */
+    /**
+     * A simple server provider backed by a server list.
+     * If connection statistics are available, servers are returned best
+     * ranked first; otherwise they are picked randomly.
+     */
     public static class ServerListProvider implements EndpointServer.EndpointServerProvider {
         private ServerList mList;
         private List<EndpointServer> mUsed;
+        private final ServerStats mStats;
 
         public ServerListProvider(ServerList list) {
+            this(list, null);
+        }
+
+        public ServerListProvider(ServerList list, ServerStats stats) {
             mList = new ServerList(list.getDate(), list);
             mUsed = new LinkedList<EndpointServer>();
+            mStats = stats;
         }
 
         @Override
         public EndpointServer next() {
             if (mList.size() > 0) {
-                EndpointServer s = mList.random();
+                EndpointServer s = (mStats != null) ?
+                    mStats.rank(mList).get(0) : mList.random();
                 mList.remove(s);
                 mUsed.add(s);
                 return s;
@@ -0,0 +1,252 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Races connections to several servers.
+ * Connection attempts to the best ranked servers are started a little
+ * apart from each other; the first one to complete its handshake wins and
+ * all others are aborted. A failed attempt starts the next candidate
+ * immediately, so a dead server doesn't cost a full connect timeout.
+ * A racer can be used for several races until {@link #cancel()} is called.
+ * @author Daniele Ricci
+ */
+public class ServerRacer<T> {
+
+    /** Default number of servers raced at the same time. */
+    public static final int DEFAULT_MAX_PARALLEL = 3;
+    /** Default delay between connection attempts. */
+    public static final long DEFAULT_STAGGER = 500;
+
+    /** Creates, connects and aborts connections to a server. */
+    public interface Connector<T> {
+        /** Creates a connection object. Should not perform any I/O. */
+        T create(EndpointServer server) throws Exception;
+
+        /** Connects and performs the handshake. Blocking. */
+        void connect(T connection) throws Exception;
+
+        /** Closes the connection, aborting any pending {@link #connect}. */
+        void close(T connection);
+    }
+
+    /** The winner of a race. */
+    public static class Result<T> {
+        public final EndpointServer server;
+        public final T connection;
+        /** Handshake time in milliseconds. */
+        public final long rtt;
+
+        Result(EndpointServer server, T connection, long rtt) {
+            this.server = server;
+            this.connection = connection;
+            this.rtt = rtt;
+        }
+    }
+
+    private final Connector<T> mConnector;
+    private final ServerStats mStats;
+    private final int mMaxParallel;
+    private final long mStagger;
+
+    /** Connections being attempted in the current race. */
+    private final List<T> mPending = new ArrayList<>();
+    private volatile boolean mCancelled;
+
+    public ServerRacer(Connector<T> connector, ServerStats stats) {
+        this(connector, stats, DEFAULT_MAX_PARALLEL, DEFAULT_STAGGER);
+    }
+
+    public ServerRacer(Connector<T> connector, ServerStats stats, int maxParallel, long stagger) {
+        mConnector = connector;
+        mStats = stats;
+        mMaxParallel = maxParallel;
+        mStagger = stagger;
+    }
+
+    /**
+     * Races the best ranked candidates and returns the first one connected.
+     * @throws Exception the error of the last failed attempt if all of them failed
+     * @throws InterruptedException if the race was cancelled
+     */
+    public Result<T> race(List<EndpointServer> candidates) throws Exception {
+        List<EndpointServer> ranked = mStats != null ?
+            mStats.rank(candidates) : new ArrayList<>(candidates);
+        if (ranked.size() > mMaxParallel)
+            ranked = ranked.subList(0, mMaxParallel);
+
+        int count = ranked.size();
+        if (count == 0)
+            throw new IllegalArgumentException("no servers to race");
+
+        final AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(count);
+        CompletionService<Result<T>> completion = new ExecutorCompletionService<>(executor);
+        List<Future<Result<T>>> futures = new ArrayList<>(count);
+
+        try {
+            Exception lastError = null;
+            int started = 0;
+            int finished = 0;
+
+            futures.add(completion.submit(new Attempt(ranked.get(started++), done)));
+
+            while (finished < started) {
+                if (mCancelled)
+                    throw new InterruptedException("race cancelled");
+
+                Future<Result<T>> f;
+                if (started < count) {
+                    f = completion.poll(mStagger, TimeUnit.MILLISECONDS);
+                    if (f == null) {
+                        // too slow, start next attempt alongside
+                        futures.add(completion.submit(new Attempt(ranked.get(started++), done)));
+                        continue;
+                    }
+                }
+                else {
+                    f = completion.take();
+                }
+
+                finished++;
+                try {
+                    return f.get();
+                }
+                catch (ExecutionException e) {
+                    if (mCancelled)
+                        throw new InterruptedException("race cancelled");
+
+                    Throwable cause = e.getCause();
+                    lastError = (cause instanceof Exception) ?
+                        (Exception) cause : new ExecutionException(cause);
+
+                    // failed, start next attempt right away
+                    if (started < count && !done.get())
+                        futures.add(completion.submit(new Attempt(ranked.get(started++), done)));
+                }
+            }
+
+            throw lastError;
+        }
+        finally {
+            // this also prevents late winners
+            done.set(true);
+            abortPending();
+            for (Future<Result<T>> f : futures)
+                f.cancel(true);
+            executor.shutdown();
+        }
+    }
+
+    /** Aborts the current race. */
+    public void cancel() {
+        mCancelled = true;
+        abortPending();
+    }
+
+    private void abortPending() {
+        List<T> pending;
+        synchronized (mPending) {
+            pending = new ArrayList<>(mPending);
+            mPending.clear();
+        }
+        for (T conn : pending)
+            mConnector.close(conn);
+    }
+
+    private boolean addPending(T conn) {
+        synchronized (mPending) {
+            if (mCancelled)
+                return false;
+            mPending.add(conn);
+            return true;
+        }
+    }
+
+    private boolean removePending(T conn) {
+        synchronized (mPending) {
+            return mPending.remove(conn);
+        }
+    }
+
+    /** A single connection attempt. */
+    private final class Attempt implements Callable<Result<T>> {
+        private final EndpointServer mServer;
+        private final AtomicBoolean mDone;
+
+        Attempt(EndpointServer server, AtomicBoolean done) {
+            mServer = server;
+            mDone = done;
+        }
+
+        @Override
+        public Result<T> call() throws Exception {
+            T conn = mConnector.create(mServer);
+            if (!addPending(conn)) {
+                mConnector.close(conn);
+                throw new InterruptedException("race cancelled");
+            }
+
+            long start = System.nanoTime();
+            try {
+                mConnector.connect(conn);
+            }
+            catch (Exception e) {
+                // if not pending anymore, we have been aborted: don't blame the server
+                if (removePending(conn)) {
+                    if (!mDone.get() && mStats != null)
+                        mStats.recordFailure(mServer);
+                    mConnector.close(conn);
+                }
+                throw e;
+            }
+
+            long rtt = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (mStats != null)
+                mStats.recordSuccess(mServer, rtt);
+
+            if (!removePending(conn)) {
+                // aborted (and already closed)
+                throw new InterruptedException("race lost");
+            }
+            if (!mDone.compareAndSet(false, true)) {
+                // someone else won
+                mConnector.close(conn);
+                throw new InterruptedException("race lost");
+            }
+
+            return new Result<>(mServer, conn, rtt);
+        }
+    }
+
+}
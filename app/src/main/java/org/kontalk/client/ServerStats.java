@@ -0,0 +1,152 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Per-server connection statistics: handshake latency (exponentially
+ * weighted moving average) and success rate. Used to rank servers when
+ * choosing where to connect.
+ * @author Daniele Ricci
+ */
+public class ServerStats {
+    /** Latency assumed for servers we never connected to. */
+    public static final long UNKNOWN_RTT = 2000;
+
+    /** Weight of the last sample in the latency average. */
+    private static final float RTT_WEIGHT = 0.3f;
+
+    /** Statistics for a single server. */
+    public static class Entry {
+        /** Average handshake time in milliseconds (0 if unknown). */
+        public long rtt;
+        public int successes;
+        public int failures;
+
+        /** Success rate with add-one smoothing (0.5 if unknown). */
+        public float getSuccessRate() {
+            return (successes + 1f) / (successes + failures + 2f);
+        }
+
+        /** Expected connection cost: lower is better. */
+        public float getScore() {
+            return (rtt > 0 ? rtt : UNKNOWN_RTT) / getSuccessRate();
+        }
+    }
+
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    public synchronized void recordSuccess(EndpointServer server, long rtt) {
+        Entry e = getOrCreate(server);
+        e.rtt = (e.rtt > 0) ? (long) (e.rtt * (1 - RTT_WEIGHT) + rtt * RTT_WEIGHT) : rtt;
+        e.successes++;
+    }
+
+    public synchronized void recordFailure(EndpointServer server) {
+        getOrCreate(server).failures++;
+    }
+
+    /** Returns a copy of the statistics for the given server, or null. */
+    public synchronized Entry get(EndpointServer server) {
+        Entry e = mEntries.get(server.toString());
+        if (e != null) {
+            Entry copy = new Entry();
+            copy.rtt = e.rtt;
+            copy.successes = e.successes;
+            copy.failures = e.failures;
+            return copy;
+        }
+        return null;
+    }
+
+    /** Returns the given servers sorted by score, best first. */
+    public synchronized List<EndpointServer> rank(Collection<EndpointServer> servers) {
+        final Map<EndpointServer, Float> scores = new HashMap<>(servers.size());
+        for (EndpointServer s : servers) {
+            Entry e = mEntries.get(s.toString());
+            scores.put(s, e != null ? e.getScore() : new Entry().getScore());
+        }
+
+        List<EndpointServer> ranked = new ArrayList<>(servers);
+        // stable sort: servers with the same score keep their order
+        Collections.sort(ranked, new Comparator<EndpointServer>() {
+            @Override
+            public int compare(EndpointServer lhs, EndpointServer rhs) {
+                return Float.compare(scores.get(lhs), scores.get(rhs));
+            }
+        });
+        return ranked;
+    }
+
+    private Entry getOrCreate(EndpointServer server) {
+        String key = server.toString();
+        Entry e = mEntries.get(key);
+        if (e == null) {
+            e = new Entry();
+            mEntries.put(key, e);
+        }
+        return e;
+    }
+
+    /** Serializes statistics to a string suitable for {@link #fromString}. */
+    @Override
+    public synchronized String toString() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+            Entry s = e.getValue();
+            out.append(e.getKey()).append(' ')
+                .append(s.rtt).append(' ')
+                .append(s.successes).append(' ')
+                .append(s.failures).append('\n');
+        }
+        return out.toString();
+    }
+
+    /** Parses statistics serialized by {@link #toString}. Invalid lines are skipped. */
+    public static ServerStats fromString(String data) {
+        ServerStats stats = new ServerStats();
+        if (data != null) {
+            for (String line : data.split("\n")) {
+                String[] parts = line.split(" ");
+                if (parts.length == 4) {
+                    try {
+                        Entry e = new Entry();
+                        e.rtt = Long.parseLong(parts[1]);
+                        e.successes = Integer.parseInt(parts[2]);
+                        e.failures = Integer.parseInt(parts[3]);
+                        stats.mEntries.put(parts[0], e);
+                    }
+                    catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+        return stats;
+    }
+
+}
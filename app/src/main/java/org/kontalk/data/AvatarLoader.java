@@ -0,0 +1,413 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.provider.ContactsContract.Contacts;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import org.kontalk.R;
+import org.kontalk.util.BitmapPool;
+import org.kontalk.util.MessageUtils;
+
+
+/**
+ * Loads contact avatars on a small pool of background threads.
+ * Photos are decoded with sampling to a fixed target size, large enough
+ * for both lists and notifications. Scaled avatars are kept in a memory
+ * cache with its own byte budget and in a disk cache, keyed by JID and
+ * system contact photo id, so a photo change will not hit a stale file.
+ * Concurrent requests for the same JID are served by a single load.
+ * @author Daniele Ricci
+ */
+public class AvatarLoader {
+    private static final String TAG = AvatarLoader.class.getSimpleName();
+
+    /** Number of loading threads. */
+    private static final int POOL_SIZE = 2;
+
+    /** Fraction of the heap used by the memory cache. */
+    private static final int CACHE_HEAP_FRACTION = 16;
+    /** Maximum size of the memory cache in bytes. */
+    private static final int MAX_CACHE_SIZE = 4 * 1024 * 1024;
+
+    /** Disk cache directory, relative to the application cache. */
+    private static final String DISK_CACHE_DIR = "avatars";
+    /** Maximum number of avatars in the disk cache. */
+    private static final int MAX_DISK_ENTRIES = 500;
+    private static final int DISK_CACHE_QUALITY = 90;
+
+    /** Notification large icon size, the biggest avatar we use. */
+    private static final int TARGET_SIZE_DP = 64;
+
+    /** Maximum size of a contact photo we are willing to read. */
+    private static final int MAX_PHOTO_SIZE = 512 * 1024;
+
+    private static AvatarLoader sInstance;
+
+    private final Context mContext;
+    private final int mTargetSize;
+    private final File mDiskCacheDir;
+    private final LruCache<String, Bitmap> mCache;
+    private final ExecutorService mExecutor;
+    private final Handler mHandler;
+
+    /** JIDs known to have no photo, so we don't query for them again. */
+    private final Set<String> mNoPhoto = new HashSet<>();
+
+    /** Loads in progress by JID. */
+    private final Map<String, List<Pending>> mPending = new HashMap<>();
+
+    /** Receives a loaded avatar on the main thread. */
+    public interface Callback {
+        /** @param bitmap the avatar, or null if the contact has no photo */
+        void onAvatarLoaded(Contact contact, Bitmap bitmap);
+    }
+
+    private static final class Pending {
+        final Contact contact;
+        final Callback callback;
+
+        Pending(Contact contact, Callback callback) {
+            this.contact = contact;
+            this.callback = callback;
+        }
+    }
+
+    private AvatarLoader(Context context) {
+        mContext = context.getApplicationContext();
+        mTargetSize = Math.max(mContext.getResources().getDimensionPixelSize(R.dimen.avatar_size),
+            (int) (TARGET_SIZE_DP * mContext.getResources().getDisplayMetrics().density));
+        mDiskCacheDir = new File(mContext.getCacheDir(), DISK_CACHE_DIR);
+
+        int budget = (int) Math.min(Runtime.getRuntime().maxMemory() / CACHE_HEAP_FRACTION,
+            MAX_CACHE_SIZE);
+        mCache = new LruCache<String, Bitmap>(budget) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+
+        mHandler = new Handler(Looper.getMainLooper());
+        mExecutor = Executors.newFixedThreadPool(POOL_SIZE, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "AvatarLoader-" + mCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public static synchronized AvatarLoader getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new AvatarLoader(context);
+        return sInstance;
+    }
+
+    /** Returns the avatar from the memory cache, or null. */
+    public Bitmap getCached(Contact contact) {
+        return mCache.get(contact.getJID());
+    }
+
+    /**
+     * Loads an avatar asynchronously. If the same avatar is already being
+     * loaded, the callback will be called when that load completes.
+     * @param callback called on the main thread with the result
+     */
+    public void load(final Contact contact, Callback callback) {
+        final String jid = contact.getJID();
+        synchronized (mPending) {
+            List<Pending> pending = mPending.get(jid);
+            if (pending != null) {
+                pending.add(new Pending(contact, callback));
+                return;
+            }
+
+            pending = new ArrayList<>(1);
+            pending.add(new Pending(contact, callback));
+            mPending.put(jid, pending);
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap = null;
+                try {
+                    bitmap = loadSync(contact);
+                }
+                catch (Exception e) {
+                    // do not throw any exception while loading
+                    Log.w(TAG, "error while loading avatar", e);
+                }
+
+                final List<Pending> pending;
+                synchronized (mPending) {
+                    pending = mPending.remove(jid);
+                }
+
+                final Bitmap result = bitmap;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Pending p : pending)
+                            p.callback.onAvatarLoaded(p.contact, result);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Loads an avatar synchronously, using the caches if possible.
+     * Do not call from the UI thread.
+     * @return the avatar, or null if the contact has no photo
+     */
+    public Bitmap loadSync(Contact contact) {
+        String jid = contact.getJID();
+        Bitmap bitmap = mCache.get(jid);
+        if (bitmap != null)
+            return bitmap;
+
+        synchronized (mNoPhoto) {
+            if (mNoPhoto.contains(jid))
+                return null;
+        }
+
+        long photoId = getPhotoId(contact.getId());
+        if (photoId <= 0) {
+            synchronized (mNoPhoto) {
+                mNoPhoto.add(jid);
+            }
+            return null;
+        }
+
+        File cached = getDiskCacheFile(jid, photoId);
+        if (cached.isFile()) {
+            bitmap = BitmapPool.getInstance()
+                .decodeFile(cached, new BitmapFactory.Options());
+        }
+
+        if (bitmap == null) {
+            bitmap = decodePhoto(contact.getId());
+            if (bitmap != null)
+                writeDiskCache(jid, cached, bitmap);
+        }
+
+        if (bitmap != null)
+            mCache.put(jid, bitmap);
+
+        return bitmap;
+    }
+
+    /** Drops an avatar from the memory cache. */
+    public void invalidate(String jid) {
+        mCache.remove(jid);
+        synchronized (mNoPhoto) {
+            mNoPhoto.remove(jid);
+        }
+    }
+
+    /** Drops all avatars from the memory cache. */
+    public void invalidate() {
+        mCache.evictAll();
+        synchronized (mNoPhoto) {
+            mNoPhoto.clear();
+        }
+    }
+
+    private long getPhotoId(long contactId) {
+        if (contactId <= 0)
+            return 0;
+
+        Cursor c = mContext.getContentResolver().query(
+            ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId),
+            new String[] { Contacts.PHOTO_ID }, null, null, null);
+        if (c != null) {
+            try {
+                if (c.moveToFirst())
+                    return c.getLong(0);
+            }
+            finally {
+                c.close();
+            }
+        }
+
+        return 0;
+    }
+
+    /** Reads the contact photo and decodes it to the target size. */
+    private Bitmap decodePhoto(long contactId) {
+        Uri uri = ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId);
+        InputStream in = Contacts.openContactPhotoInputStream(
+            mContext.getContentResolver(), uri);
+        if (in == null)
+            return null;
+
+        byte[] data;
+        try {
+            data = MessageUtils.readFully(in, MAX_PHOTO_SIZE).toByteArray();
+        }
+        catch (IOException e) {
+            Log.e(TAG, "cannot retrieve contact avatar", e);
+            return null;
+        }
+        finally {
+            try {
+                in.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+
+        options.inSampleSize = getSampleSize(options.outWidth, options.outHeight, mTargetSize);
+
+        BitmapPool pool = BitmapPool.getInstance();
+        Bitmap decoded = pool.decodeByteArray(data, options);
+        if (decoded == null)
+            return null;
+
+        int size = Math.min(decoded.getWidth(), decoded.getHeight());
+        if (size <= mTargetSize)
+            return decoded;
+
+        int width = decoded.getWidth() * mTargetSize / size;
+        int height = decoded.getHeight() * mTargetSize / size;
+        Bitmap scaled = Bitmap.createScaledBitmap(decoded, width, height, true);
+        if (scaled != decoded)
+            pool.put(decoded);
+        return scaled;
+    }
+
+    /** Largest power of two sample size keeping the image above the target size. */
+    static int getSampleSize(int width, int height, int targetSize) {
+        int sample = 1;
+        int size = Math.min(width, height);
+        while (size / (sample * 2) >= targetSize)
+            sample *= 2;
+        return sample;
+    }
+
+    private File getDiskCacheFile(String jid, long photoId) {
+        return new File(mDiskCacheDir, MessageUtils.sha1(jid) + "-" + photoId + ".jpg");
+    }
+
+    private void writeDiskCache(String jid, File file, Bitmap bitmap) {
+        if (!mDiskCacheDir.isDirectory() && !mDiskCacheDir.mkdirs())
+            return;
+
+        // delete avatars of older photos
+        String prefix = MessageUtils.sha1(jid) + "-";
+        File[] files = mDiskCacheDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().startsWith(prefix))
+                    f.delete();
+            }
+        }
+
+        File tmp = new File(mDiskCacheDir, file.getName() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, DISK_CACHE_QUALITY, out);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file))
+                tmp.delete();
+        }
+        catch (IOException e) {
+            Log.w(TAG, "unable to cache avatar", e);
+            tmp.delete();
+        }
+        finally {
+            try {
+                if (out != null)
+                    out.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+
+        if (files != null && files.length >= MAX_DISK_ENTRIES)
+            trimDiskCache();
+    }
+
+    /** Deletes the least recently written avatars. */
+    private void trimDiskCache() {
+        File[] files = mDiskCacheDir.listFiles();
+        if (files == null || files.length <= MAX_DISK_ENTRIES)
+            return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified(), r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        for (int i = 0; i < files.length - MAX_DISK_ENTRIES; i++)
+            files[i].delete();
+    }
+
+}
@@ -18,9 +18,10 @@
 
 package org.kontalk.data;
 
-import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 
@@ -37,11 +38,11 @@ import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.PhoneLookup;
@@ -52,6 +53,8 @@ import org.kontalk.R;
 import org.kontalk.crypto.PGPLazyPublicKeyRingLoader;
 import org.kontalk.provider.MyUsers.Keys;
 import org.kontalk.provider.MyUsers.Users;
+import org.kontalk.provider.UsersProvider;
+import org.kontalk.util.MessageUtils;
 
 
 /**
@@ -101,11 +104,14 @@ public class Contact {
 
     private boolean mBlocked;
 
-    private Drawable mAvatar;
-    private byte [] mAvatarData;
+    /** Generated avatar for contacts without a photo. */
+    private Drawable mDefaultAvatar;
+    /** Bitmap of the generated avatar, for notifications. */
+    private Bitmap mDefaultAvatarBitmap;
 
     private String mFingerprint;
     private PGPLazyPublicKeyRingLoader mTrustedKeyRing;
+    private int mTrustedKeyRingSize;
 
     /** Timestamp the user was last seen. Not coming from the database. */
     private long mLastSeen;
@@ -123,67 +129,145 @@ public class Contact {
     private static final Set<ContactChangeListener> sListeners = new HashSet<>();
 
     /**
-     * Contact cache.
+     * Contact cache. Entries are budgeted by their approximate memory size.
+     * Users not found are cached too (negative entries), so unknown peers
+     * don't hit the database every time they are looked up.
      * @author Daniele Ricci
      */
-    private final static class ContactCache extends LruCache<String, Contact> {
-        private static final int MAX_ENTRIES = 20;
+    private final static class ContactCache extends LruCache<String, ContactCache.Entry> {
+        /** Fraction of the heap used by the cache. */
+        private static final int CACHE_HEAP_FRACTION = 64;
+        /** Maximum size of the cache in bytes. */
+        private static final int MAX_CACHE_SIZE = 1024 * 1024;
+        /** Negative entries are trusted for this long. */
+        private static final long NEGATIVE_TTL = 60000;
+
+        /** Serializes system contacts lookups (which insert into the users database). */
+        private final Object mLookupLock = new Object();
+
+        static final class Entry {
+            /** The contact, null for a negative entry. */
+            final Contact contact;
+            /** True if the system contacts were looked up too. */
+            final boolean lookedUp;
+            final long timestamp;
+
+            Entry(Contact contact, boolean lookedUp) {
+                this.contact = contact;
+                this.lookedUp = lookedUp;
+                this.timestamp = SystemClock.elapsedRealtime();
+            }
+
+            boolean isValid(String numberHint) {
+                return contact != null || ((numberHint == null || lookedUp) &&
+                    (SystemClock.elapsedRealtime() - timestamp) < NEGATIVE_TTL);
+            }
+        }
 
         public ContactCache() {
-            super(MAX_ENTRIES);
+            super((int) Math.min(Runtime.getRuntime().maxMemory() / CACHE_HEAP_FRACTION,
+                MAX_CACHE_SIZE));
         }
 
-        public synchronized Contact get(Context context, String userId, String numberHint) {
-            Contact c = get(userId);
-            if (c == null) {
-                c = _findByUserId(context, userId);
-                if (c != null) {
-                    // put the contact in the cache
-                    put(userId, c);
-                }
-                // try system contacts lookup
-                else if (numberHint != null) {
-                    Log.v(TAG, "contact not found, trying with system contacts (" + numberHint + ")");
-                    ContentResolver resolver = context.getContentResolver();
-                    Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(numberHint));
-                    Cursor cur = resolver.query(uri, new String[] {
-                                PhoneLookup.DISPLAY_NAME,
-                                PhoneLookup.LOOKUP_KEY,
-                                PhoneLookup._ID,
-                            }, null, null, null);
-                    if (cur.moveToFirst()) {
-                        String name = cur.getString(0);
-                        String lookupKey = cur.getString(1);
-                        long cid = cur.getLong(2);
-
-                        c = new Contact(cid, lookupKey, name, numberHint, userId, false);
-                        put(userId, c);
-
-                        // insert result into users database immediately
-                        ContentValues values = new ContentValues(6);
-                        values.put(Users.HASH, XmppStringUtils.parseLocalpart(userId));
-                        values.put(Users.NUMBER, numberHint);
-                        values.put(Users.DISPLAY_NAME, name);
-                        values.put(Users.JID, userId);
-                        values.put(Users.LOOKUP_KEY, lookupKey);
-                        values.put(Users.CONTACT_ID, cid);
-                        resolver.insert(Users.CONTENT_URI, values);
-                    }
-                    cur.close();
+        @Override
+        protected int sizeOf(String key, Entry value) {
+            int size = 48 + key.length() * 2;
+            if (value.contact != null)
+                size += value.contact.getMemorySize();
+            return size;
+        }
+
+        public Contact getContact(String userId) {
+            Entry e = get(userId);
+            return e != null ? e.contact : null;
+        }
+
+        public void putContact(String userId, Contact contact) {
+            put(userId, new Entry(contact, false));
+        }
+
+        /** Returns true if there is a valid entry (even negative) for the given user. */
+        public boolean contains(String userId) {
+            Entry e = get(userId);
+            return e != null && e.isValid(null);
+        }
+
+        public Contact get(Context context, String userId, String numberHint) {
+            Entry e = get(userId);
+            if (e != null && e.isValid(numberHint))
+                return e.contact;
+
+            Contact c = _findByUserId(context, userId);
+            if (c != null) {
+                putContact(userId, c);
+            }
+            // try system contacts lookup
+            else if (numberHint != null) {
+                synchronized (mLookupLock) {
+                    // someone might have done this already
+                    e = get(userId);
+                    if (e != null && e.isValid(numberHint))
+                        return e.contact;
+
+                    c = lookupSystemContact(context, userId, numberHint);
+                    put(userId, new Entry(c, true));
                 }
             }
+            else {
+                // negative entry
+                put(userId, new Entry(null, false));
+            }
 
             return c;
         }
+
+        private Contact lookupSystemContact(Context context, String userId, String numberHint) {
+            Log.v(TAG, "contact not found, trying with system contacts (" + numberHint + ")");
+            ContentResolver resolver = context.getContentResolver();
+            Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(numberHint));
+            Cursor cur = resolver.query(uri, new String[] {
+                        PhoneLookup.DISPLAY_NAME,
+                        PhoneLookup.LOOKUP_KEY,
+                        PhoneLookup._ID,
+                    }, null, null, null);
+            if (cur == null)
+                return null;
+
+            Contact c = null;
+            if (cur.moveToFirst()) {
+                String name = cur.getString(0);
+                String lookupKey = cur.getString(1);
+                long cid = cur.getLong(2);
+
+                c = new Contact(cid, lookupKey, name, numberHint, userId, false);
+
+                // insert result into users database immediately
+                ContentValues values = new ContentValues(6);
+                values.put(Users.HASH, XmppStringUtils.parseLocalpart(userId));
+                values.put(Users.NUMBER, numberHint);
+                values.put(Users.DISPLAY_NAME, name);
+                values.put(Users.JID, userId);
+                values.put(Users.LOOKUP_KEY, lookupKey);
+                values.put(Users.CONTACT_ID, cid);
+                resolver.insert(Users.CONTENT_URI, values);
+            }
+            cur.close();
+            return c;
+        }
     }
 
     private final static ContactCache cache = new ContactCache();
 
-    public static void init(Context context, Handler handler) {
+    /** Maximum number of users loaded by a single prefetch query. */
+    private static final int MAX_PREFETCH_ARGS = 200;
+
+    public static void init(final Context context, Handler handler) {
         context.getContentResolver().registerContentObserver(Contacts.CONTENT_URI, false,
             new ContentObserver(handler) {
                 @Override
                 public void onChange(boolean selfChange) {
+                    // photos might have changed too
+                    AvatarLoader.getInstance(context).invalidate();
                     invalidate();
                 }
             }
@@ -283,44 +367,54 @@ public class Contact {
     }
 
     public void getAvatarAsync(final Context context, final ContactCallback callback) {
-        if (mAvatar != null) {
-            callback.avatarLoaded(this, mAvatar);
+        AvatarLoader loader = AvatarLoader.getInstance(context);
+        Bitmap cached = loader.getCached(this);
+        if (cached != null) {
+            callback.avatarLoaded(this, new BitmapDrawable(context.getResources(), cached));
         }
         else {
             // start async load
-            new Thread(new Runnable() {
-                public void run() {
-                    try {
-                        Drawable avatar = getAvatar(context);
-                        callback.avatarLoaded(Contact.this, avatar);
-                    }
-                    catch (Exception e) {
-                        // do not throw any exception while loading
-                        Log.w(TAG, "error while loading avatar", e);
-                    }
+            loader.load(this, new AvatarLoader.Callback() {
+                @Override
+                public void onAvatarLoaded(Contact contact, Bitmap bitmap) {
+                    callback.avatarLoaded(contact, bitmap != null ?
+                        new BitmapDrawable(context.getResources(), bitmap) :
+                        contact.getDefaultAvatar(context));
                 }
-            }).start();
+            });
         }
     }
 
-    public synchronized Drawable getAvatar(Context context) {
-        if (mAvatar == null) {
-            if (mAvatarData == null) {
-                Uri uri = getUri();
-                if (uri != null)
-                    mAvatarData = loadAvatarData(context, uri);
-            }
+    /** Loads the avatar synchronously. Do not call from the UI thread if possible. */
+    public Drawable getAvatar(Context context) {
+        Bitmap b = AvatarLoader.getInstance(context).loadSync(this);
+        if (b != null)
+            return new BitmapDrawable(context.getResources(), b);
 
-            if (mAvatarData != null) {
-                Bitmap b = BitmapFactory.decodeByteArray(mAvatarData, 0, mAvatarData.length);
-                mAvatar = new BitmapDrawable(context.getResources(), b);
-            }
-        }
+        return getDefaultAvatar(context);
+    }
 
-        if (mAvatar == null)
-            mAvatar = generateRandomAvatar(context, this);
+    /**
+     * Loads the avatar synchronously as a bitmap, e.g. for notifications.
+     * Photos come from the {@link AvatarLoader} caches.
+     * Do not call from the UI thread if possible.
+     */
+    public Bitmap getAvatarBitmap(Context context) {
+        Bitmap b = AvatarLoader.getInstance(context).loadSync(this);
+        if (b != null)
+            return b;
+
+        synchronized (this) {
+            if (mDefaultAvatarBitmap == null)
+                mDefaultAvatarBitmap = MessageUtils.drawableToBitmap(getDefaultAvatar(context));
+            return mDefaultAvatarBitmap;
+        }
+    }
 
-        return mAvatar;
+    private synchronized Drawable getDefaultAvatar(Context context) {
+        if (mDefaultAvatar == null)
+            mDefaultAvatar = generateRandomAvatar(context, this);
+        return mDefaultAvatar;
     }
 
     private void clear() {
@@ -333,6 +427,25 @@ public class Contact {
         fireContactInvalidated(userId);
     }
 
+    /**
+     * Invalidates the given contacts, notifying listeners only once.
+     * Listeners will receive a null user ID if more than one contact was
+     * invalidated.
+     */
+    public static void invalidate(Collection<String> userIds) {
+        if (userIds.isEmpty())
+            return;
+
+        String single = null;
+        for (String userId : userIds) {
+            if (userId != null) {
+                cache.remove(userId);
+                single = userId;
+            }
+        }
+        fireContactInvalidated(userIds.size() > 1 ? null : single);
+    }
+
     public static void invalidate() {
         cache.evictAll();
         fireContactInvalidated(null);
@@ -340,10 +453,9 @@ public class Contact {
 
     /** Invalidates cached data for all contacts. Does not delete contact information. */
     public static void invalidateData() {
-        synchronized (cache) {
-            for (Contact c : cache.snapshot().values()) {
-                c.clear();
-            }
+        for (ContactCache.Entry e : cache.snapshot().values()) {
+            if (e.contact != null)
+                e.contact.clear();
         }
     }
 
@@ -374,31 +486,90 @@ public class Contact {
     public static Contact fromUsersCursor(Cursor cursor) {
         // try the cache
         String jid = cursor.getString(COLUMN_JID);
-        Contact c = cache.get(jid);
+        Contact c = cache.getContact(jid);
         if (c == null) {
             // don't let the cache fetch contact data again - we'll populate it
-            final long contactId = cursor.getLong(COLUMN_CONTACT_ID);
-            final String key = cursor.getString(COLUMN_LOOKUP_KEY);
-            final String name = cursor.getString(COLUMN_DISPLAY_NAME);
-            final String number = cursor.getString(COLUMN_NUMBER);
-            final boolean registered = (cursor.getInt(COLUMN_REGISTERED) != 0);
-            final String status = cursor.getString(COLUMN_STATUS);
-            final String fingerprint = cursor.getString(COLUMN_FINGERPRINT);
-            final boolean blocked = (cursor.getInt(COLUMN_BLOCKED) != 0);
-            final byte[] trustedKeyring = cursor.getBlob(COLUMN_TRUSTED_PUBLIC_KEY);
-
-            c = new Contact(contactId, key, name, number, jid, blocked);
-            c.mRegistered = registered;
-            c.mStatus = status;
-            c.mFingerprint = fingerprint;
-            if (trustedKeyring != null)
-                c.mTrustedKeyRing = new PGPLazyPublicKeyRingLoader(trustedKeyring);
-
-            cache.put(jid, c);
+            c = newFromUsersCursor(cursor);
+            cache.putContact(jid, c);
+        }
+        return c;
+    }
+
+    private static Contact newFromUsersCursor(Cursor cursor) {
+        final String jid = cursor.getString(COLUMN_JID);
+        final long contactId = cursor.getLong(COLUMN_CONTACT_ID);
+        final String key = cursor.getString(COLUMN_LOOKUP_KEY);
+        final String name = cursor.getString(COLUMN_DISPLAY_NAME);
+        final String number = cursor.getString(COLUMN_NUMBER);
+        final boolean registered = (cursor.getInt(COLUMN_REGISTERED) != 0);
+        final String status = cursor.getString(COLUMN_STATUS);
+        final String fingerprint = cursor.getString(COLUMN_FINGERPRINT);
+        final boolean blocked = (cursor.getInt(COLUMN_BLOCKED) != 0);
+        final byte[] trustedKeyring = cursor.getBlob(COLUMN_TRUSTED_PUBLIC_KEY);
+
+        Contact c = new Contact(contactId, key, name, number, jid, blocked);
+        c.mRegistered = registered;
+        c.mStatus = status;
+        c.mFingerprint = fingerprint;
+        if (trustedKeyring != null) {
+            c.mTrustedKeyRing = new PGPLazyPublicKeyRingLoader(trustedKeyring);
+            c.mTrustedKeyRingSize = trustedKeyring.length;
         }
         return c;
     }
 
+    /** Returns true if the given user is cached (even if not found). */
+    public static boolean isCached(String userId) {
+        return cache.contains(userId);
+    }
+
+    /**
+     * Loads all the given users not already cached with a single query.
+     * Users not found will be cached as such.
+     */
+    public static void prefetch(Context context, Collection<String> userIds) {
+        List<String> missing = new ArrayList<>(userIds.size());
+        for (String userId : userIds) {
+            if (userId != null && !cache.contains(userId) && !missing.contains(userId))
+                missing.add(userId);
+        }
+
+        for (int offset = 0; offset < missing.size(); offset += MAX_PREFETCH_ARGS) {
+            List<String> chunk = missing.subList(offset,
+                Math.min(offset + MAX_PREFETCH_ARGS, missing.size()));
+
+            // users table is joined with keys
+            StringBuilder where = new StringBuilder(UsersProvider.TABLE_USERS +
+                "." + Users.JID + " IN (?");
+            for (int i = 1; i < chunk.size(); i++)
+                where.append(",?");
+            where.append(")");
+
+            Cursor c = context.getContentResolver().query(Users.CONTENT_URI,
+                ALL_CONTACTS_PROJECTION, where.toString(),
+                chunk.toArray(new String[chunk.size()]), null);
+            if (c == null)
+                continue;
+
+            Set<String> found = new HashSet<>(chunk.size());
+            try {
+                while (c.moveToNext()) {
+                    Contact contact = newFromUsersCursor(c);
+                    cache.putContact(contact.getJID(), contact);
+                    found.add(contact.getJID());
+                }
+            }
+            finally {
+                c.close();
+            }
+
+            for (String userId : chunk) {
+                if (!found.contains(userId))
+                    cache.putContact(userId, null);
+            }
+        }
+    }
+
     public static String numberByUserId(Context context, String userId) {
         Cursor c = null;
         try {
@@ -429,74 +600,34 @@ public class Contact {
     private static Contact _findByUserId(Context context, String userId) {
         ContentResolver cres = context.getContentResolver();
         Cursor c = cres.query(Uri.withAppendedPath(Users.CONTENT_URI, userId),
-            new String[] {
-                Users.NUMBER,
-                Users.DISPLAY_NAME,
-                Users.LOOKUP_KEY,
-                Users.CONTACT_ID,
-                Users.REGISTERED,
-                Users.STATUS,
-                Users.FINGERPRINT,
-                Users.BLOCKED,
-                Keys.TRUSTED_PUBLIC_KEY,
-            }, null, null, null);
-
-        if (c.moveToFirst()) {
-            final String number = c.getString(0);
-            final String name = c.getString(1);
-            final String key = c.getString(2);
-            final long cid = c.getLong(3);
-            final boolean registered = (c.getInt(4) != 0);
-            final String status = c.getString(5);
-            final String fingerprint = c.getString(6);
-            final boolean blocked = (c.getInt(7) != 0);
-            final byte[] trustedKeyring = c.getBlob(8);
-            c.close();
-
-            Contact contact = new Contact(cid, key, name, number, userId, blocked);
-            contact.mRegistered = registered;
-            contact.mStatus = status;
-            contact.mFingerprint = fingerprint;
-            if (trustedKeyring != null)
-                contact.mTrustedKeyRing = new PGPLazyPublicKeyRingLoader(trustedKeyring);
-
-            return contact;
-        }
-        c.close();
-        return null;
-    }
-
-    private static byte[] loadAvatarData(Context context, Uri contactUri) {
-        byte[] data = null;
+            ALL_CONTACTS_PROJECTION, null, null, null);
+        if (c == null)
+            return null;
 
-        Uri uri;
         try {
-            long cid = ContentUris.parseId(contactUri);
-            uri = ContentUris.withAppendedId(ContactsContract.Contacts.CONTENT_URI, cid);
-        }
-        catch (Exception e) {
-            uri = contactUri;
+            return c.moveToFirst() ? newFromUsersCursor(c) : null;
         }
-
-        InputStream avatarDataStream = Contacts.openContactPhotoInputStream(
-                    context.getContentResolver(), uri);
-        if (avatarDataStream != null) {
-            try {
-                    data = new byte[avatarDataStream.available()];
-                    avatarDataStream.read(data, 0, data.length);
-            }
-            catch (IOException e) {
-                Log.e(TAG, "cannot retrieve contact avatar", e);
-            }
-            finally {
-                try {
-                    avatarDataStream.close();
-                }
-                catch (IOException e) {}
-            }
+        finally {
+            c.close();
         }
+    }
 
-        return data;
+    /** Approximate memory used by this object, for cache budgeting. */
+    int getMemorySize() {
+        int size = 128 + mTrustedKeyRingSize;
+        if (mNumber != null)
+            size += mNumber.length() * 2;
+        if (mName != null)
+            size += mName.length() * 2;
+        if (mJID != null)
+            size += mJID.length() * 2;
+        if (mLookupKey != null)
+            size += mLookupKey.length() * 2;
+        if (mStatus != null)
+            size += mStatus.length() * 2;
+        if (mFingerprint != null)
+            size += mFingerprint.length() * 2;
+        return size;
     }
 
     public static Cursor queryContacts(Context context) {
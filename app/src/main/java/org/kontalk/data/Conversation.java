@@ -18,6 +18,9 @@
 
 package org.kontalk.data;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.kontalk.provider.MessagesProvider;
 import org.kontalk.provider.MyMessages.Threads;
 import org.kontalk.ui.MessagingNotification;
@@ -135,6 +138,29 @@ public class Conversation {
         return cv;
     }
 
+    /**
+     * Loads the contacts of the given number of conversations around the
+     * current cursor position with a single query, so it works for
+     * scrolling in both directions. Does nothing if the contact of the
+     * current conversation is already cached.
+     * Cursor position is preserved.
+     */
+    public static void prefetchContacts(Context context, Cursor cursor, int count) {
+        if (Contact.isCached(cursor.getString(COLUMN_PEER)))
+            return;
+
+        int position = cursor.getPosition();
+        List<String> peers = new ArrayList<>(count);
+        if (cursor.moveToPosition(Math.max(0, position - count / 2))) {
+            do {
+                peers.add(cursor.getString(COLUMN_PEER));
+            } while (--count > 0 && cursor.moveToNext());
+        }
+        cursor.moveToPosition(position);
+
+        Contact.prefetch(context, peers);
+    }
+
     public static void deleteFromCursor(Context context, Cursor cursor) {
         MessagesProvider.deleteThread(context, cursor.getLong(COLUMN_ID));
     }
@@ -248,7 +274,7 @@ public class Conversation {
                 public void run() {
                     MessagesProvider.markThreadAsRead(mContext, mThreadId);
 
-                    MessagingNotification.updateMessagesNotification(mContext.getApplicationContext(), false);
+                    MessagingNotification.conversationRead(mContext, mRecipient);
                 }
             }).start();
         }
@@ -19,19 +19,12 @@
 package org.kontalk.message;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
 
-import org.kontalk.Kontalk;
 import org.kontalk.util.MediaStorage;
 
 import android.content.Context;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
-import android.util.Log;
 
 
 /**
@@ -39,8 +32,6 @@ import android.util.Log;
  * @author Daniele Ricci
  */
 public class ImageComponent extends AttachmentComponent {
-    private static final String TAG = Kontalk.TAG;
-
     private static final String[][] MIME_TYPES = {
         { "image/png", "png" },
         { "image/jpeg", "jpg" },
@@ -49,8 +40,6 @@ public class ImageComponent extends AttachmentComponent {
         { "image/jpg", "jpg" }
     };
 
-    private Bitmap mBitmap;
-
     public ImageComponent(String mime, File previewFile, Uri localUri, String fetchUrl, long length, boolean encrypted, int securityFlags) {
         super(mime, previewFile, localUri, fetchUrl, length, encrypted, securityFlags);
     }
@@ -63,23 +52,6 @@ public class ImageComponent extends AttachmentComponent {
         return false;
     }
 
-    private BitmapFactory.Options bitmapOptions() {
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inPreferredConfig = Bitmap.Config.RGB_565;
-        return options;
-    }
-
-    private void loadPreview(File previewFile) throws IOException {
-        InputStream in = new FileInputStream(previewFile);
-        BitmapFactory.Options options = bitmapOptions();
-        mBitmap = BitmapFactory.decodeStream(in, null, options);
-        in.close();
-    }
-
-    public Bitmap getBitmap() {
-        return mBitmap;
-    }
-
     /** FIXME not used yet */
     public boolean isValidMedia(Context context) {
         Uri localUri = mContent.getLocalUri();
@@ -97,42 +69,12 @@ public class ImageComponent extends AttachmentComponent {
 
     @Override
     protected void populateFromCursor(Context context, Cursor c) {
-
         /*
          * local_uri is used for referencing the original media.
          * preview_uri is used to load the media thumbnail.
-         * If preview_uri is null or cannot be found, a thumbnail is
-         * generated on the fly from local_uri - if possible.
+         * The thumbnail is decoded (or generated from local_uri if missing)
+         * asynchronously by ThumbnailLoader when the component is displayed.
          */
-
-        File previewFile = mContent.getPreviewFile();
-        Uri localUri = mContent.getLocalUri();
-        try {
-            // preview path
-            if (previewFile != null) {
-                // load from file - we know it's a file uri
-                loadPreview(previewFile);
-            }
-        }
-        catch (Exception e) {
-            Log.w(TAG, "unable to load thumbnail, generating one");
-
-            try {
-                /*
-                 * unable to load preview - generate thumbnail
-                 * Of course a thumbnail can be generated only if the image has
-                 * already been downloaded.
-                 */
-                if (localUri != null) {
-                    // FIXME using a false file extension
-                    MediaStorage.cacheThumbnail(context, localUri, previewFile, false);
-                    loadPreview(previewFile);
-                }
-            }
-            catch (Exception e1) {
-                Log.e(TAG, "unable to generate thumbnail", e1);
-            }
-        }
     }
 
     public static String buildMediaFilename(String id, String mime) {
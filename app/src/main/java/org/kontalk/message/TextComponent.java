@@ -29,10 +29,21 @@ public class TextComponent extends MessageComponent<String> {
 
     public static final String MIME_TYPE = "text/plain";
 
+    /** Text ready to be displayed, if anyone built it. */
+    private CharSequence mFormattedContent;
+
     public TextComponent(String text) {
         super(text, text.length(), false, Coder.SECURITY_CLEARTEXT);
     }
 
+    public CharSequence getFormattedContent() {
+        return mFormattedContent;
+    }
+
+    public void setFormattedContent(CharSequence formattedContent) {
+        mFormattedContent = formattedContent;
+    }
+
     public static boolean supportsMimeType(String mime) {
         return MIME_TYPE.equalsIgnoreCase(mime);
     }
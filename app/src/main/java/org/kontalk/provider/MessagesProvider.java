@@ -33,6 +33,7 @@ import org.kontalk.provider.MyMessages.Threads;
 import org.kontalk.provider.MyMessages.Messages.Fulltext;
 import org.kontalk.provider.MyMessages.Threads.Conversations;
 import org.kontalk.service.ServerListUpdater;
+import org.kontalk.util.metrics.Metrics;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
@@ -74,6 +75,12 @@ public class MessagesProvider extends ContentProvider {
     private static final int FULLTEXT_ID = 9;
     private static final int REQUESTS = 10;
 
+    /**
+     * Maximum number of updated messages notified one by one. Bigger updates
+     * will just notify the URI they were requested with.
+     */
+    private static final int MAX_MESSAGE_NOTIFICATIONS = 20;
+
     private DatabaseHelper dbHelper;
     private static final UriMatcher sUriMatcher;
     private static HashMap<String, String> messagesProjectionMap;
@@ -81,7 +88,7 @@ public class MessagesProvider extends ContentProvider {
     private static HashMap<String, String> fulltextProjectionMap;
 
     private static class DatabaseHelper extends SQLiteOpenHelper {
-        private static final int DATABASE_VERSION = 8;
+        private static final int DATABASE_VERSION = 9;
         private static final String DATABASE_NAME = "messages.db";
 
         private static final String _SCHEMA_MESSAGES = "(" +
@@ -123,7 +130,11 @@ public class MessagesProvider extends ContentProvider {
             "security_flags INTEGER NOT NULL DEFAULT 0," +
             // timestamp declared by server for incoming messages
             // timestamp of message accepted by server for outgoing messages
-            "server_timestamp INTEGER" +
+            "server_timestamp INTEGER," +
+
+            // resumable attachment transfers
+            "att_offset INTEGER NOT NULL DEFAULT 0," +
+            "att_upload_url TEXT" +
             ")";
 
         /** This table will contain all the messages .*/
@@ -254,7 +265,7 @@ public class MessagesProvider extends ContentProvider {
             "CASE WHEN mime <> 'text/plain' THEN 0 ELSE length(content) END, " +
             "CASE WHEN mime <> 'text/plain' THEN mime ELSE NULL END, preview_path, fetch_url, local_uri, length, 0, 0, 0, encrypted, " +
             "CASE WHEN encrypt_key IS NOT NULL THEN " + Coder.SECURITY_LEGACY_ENCRYPTED + " ELSE " + Coder.SECURITY_CLEARTEXT + " END, "+
-            "strftime('%s', server_timestamp)*1000" +
+            "strftime('%s', server_timestamp)*1000, 0, NULL" +
                 " FROM " + TABLE_MESSAGES + " WHERE encrypted = 0",
             // copy contents of threads table
             "INSERT INTO " + TABLE_THREADS + "_new SELECT " +
@@ -278,6 +289,11 @@ public class MessagesProvider extends ContentProvider {
             TRIGGER_THREADS_DELETE_COUNT
         };
 
+        private static final String[] SCHEMA_UPGRADE_V8 = {
+            "ALTER TABLE " + TABLE_MESSAGES + " ADD COLUMN att_offset INTEGER NOT NULL DEFAULT 0",
+            "ALTER TABLE " + TABLE_MESSAGES + " ADD COLUMN att_upload_url TEXT",
+        };
+
         private Context mContext;
 
         protected DatabaseHelper(Context context) {
@@ -322,6 +338,10 @@ public class MessagesProvider extends ContentProvider {
                     }
                 }
             }
+            else if (oldVersion == 8) {
+                for (String sql : SCHEMA_UPGRADE_V8)
+                    db.execSQL(sql);
+            }
         }
     }
 
@@ -428,6 +448,7 @@ public class MessagesProvider extends ContentProvider {
 
         ContentValues values = new ContentValues(initialValues);
 
+        long start = System.nanoTime();
         SQLiteDatabase db = dbHelper.getWritableDatabase();
         boolean success = false;
         List<Uri> notifications = new ArrayList<Uri>();
@@ -528,6 +549,7 @@ public class MessagesProvider extends ContentProvider {
         }
         finally {
             endTransaction(db, success);
+            Metrics.PROVIDER_INSERT.recordSince(start);
             ContentResolver cr = getContext().getContentResolver();
             for (Uri nuri : notifications)
                 cr.notifyChange(nuri, null);
@@ -758,7 +780,17 @@ public class MessagesProvider extends ContentProvider {
                 if (requestOnly)
                     uri = Threads.CONTENT_URI;
 
-                notifications.add(uri);
+                if (msgIdList != null && msgIdList.length <= MAX_MESSAGE_NOTIFICATIONS) {
+                    // notify every single message so observers can tell exactly what changed
+                    for (String msgId : msgIdList)
+                        notifications.add(Uri.withAppendedPath(Messages.CONTENT_URI, msgId));
+                    // server id URIs are not descendants of the message URIs
+                    if (sUriMatcher.match(uri) == MESSAGES_SERVERID)
+                        notifications.add(uri);
+                }
+                else {
+                    notifications.add(uri);
+                }
 
                 if (table.equals(TABLE_MESSAGES)) {
                     // update fulltext only if content actually changed
@@ -1250,12 +1282,60 @@ public class MessagesProvider extends ContentProvider {
     }
 
     public static void uploaded(Context context, long msgId, String fetchUrl) {
-        ContentValues values = new ContentValues(1);
+        ContentValues values = new ContentValues(3);
         values.put(Messages.ATTACHMENT_FETCH_URL, fetchUrl);
+        // upload session is not needed any more
+        values.put(Messages.ATTACHMENT_OFFSET, 0);
+        values.putNull(Messages.ATTACHMENT_UPLOAD_URL);
         context.getContentResolver().update(Messages.CONTENT_URI, values,
             Messages._ID + " = " + msgId, null);
     }
 
+    /** Returns the persisted offset of an unfinished attachment transfer. */
+    public static long getTransferOffset(Context context, long msgId) {
+        long offset = 0;
+        Cursor c = context.getContentResolver().
+            query(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
+                new String[] { Messages.ATTACHMENT_OFFSET }, null, null, null);
+        if (c != null) {
+            if (c.moveToFirst())
+                offset = c.getLong(0);
+            c.close();
+        }
+        return offset;
+    }
+
+    /** Persists the offset of an unfinished attachment transfer. */
+    public static void setTransferOffset(Context context, long msgId, long offset) {
+        ContentValues values = new ContentValues(1);
+        values.put(Messages.ATTACHMENT_OFFSET, offset);
+        context.getContentResolver().update(ContentUris
+            .withAppendedId(Messages.CONTENT_URI, msgId), values, null, null);
+    }
+
+    /** Returns the location of the resumable upload session of a message, if any. */
+    public static String getUploadUrl(Context context, long msgId) {
+        String url = null;
+        Cursor c = context.getContentResolver().
+            query(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
+                new String[] { Messages.ATTACHMENT_UPLOAD_URL }, null, null, null);
+        if (c != null) {
+            if (c.moveToFirst())
+                url = c.getString(0);
+            c.close();
+        }
+        return url;
+    }
+
+    /** Persists the state of a resumable upload. */
+    public static void setUploadState(Context context, long msgId, String uploadUrl, long offset) {
+        ContentValues values = new ContentValues(2);
+        values.put(Messages.ATTACHMENT_UPLOAD_URL, uploadUrl);
+        values.put(Messages.ATTACHMENT_OFFSET, offset);
+        context.getContentResolver().update(ContentUris
+            .withAppendedId(Messages.CONTENT_URI, msgId), values, null, null);
+    }
+
     public static boolean exists(Context context, long msgId) {
         // check if the message lives :)
         boolean b = false;
@@ -1299,6 +1379,8 @@ public class MessagesProvider extends ContentProvider {
         messagesProjectionMap.put(Messages.ATTACHMENT_COMPRESS, Messages.ATTACHMENT_COMPRESS);
         messagesProjectionMap.put(Messages.ATTACHMENT_ENCRYPTED, Messages.ATTACHMENT_ENCRYPTED);
         messagesProjectionMap.put(Messages.ATTACHMENT_SECURITY_FLAGS, Messages.ATTACHMENT_SECURITY_FLAGS);
+        messagesProjectionMap.put(Messages.ATTACHMENT_OFFSET, Messages.ATTACHMENT_OFFSET);
+        messagesProjectionMap.put(Messages.ATTACHMENT_UPLOAD_URL, Messages.ATTACHMENT_UPLOAD_URL);
 
         messagesProjectionMap.put(Messages.UNREAD, Messages.UNREAD);
         messagesProjectionMap.put(Messages.NEW, Messages.NEW);
@@ -106,6 +106,10 @@ public final class MyMessages {
         public static final String ATTACHMENT_COMPRESS = "att_compress";
         public static final String ATTACHMENT_ENCRYPTED = "att_encrypted";
         public static final String ATTACHMENT_SECURITY_FLAGS = "att_security_flags";
+        /** Bytes of the attachment transferred so far by an unfinished upload or download. */
+        public static final String ATTACHMENT_OFFSET = "att_offset";
+        /** Location of the resumable upload session of the attachment. */
+        public static final String ATTACHMENT_UPLOAD_URL = "att_upload_url";
 
         public static final String SECURITY_FLAGS = "security_flags";
 
@@ -57,7 +57,7 @@ public class MyUsers {
 
         // uri parameter for indexed cursor
         public static final String EXTRA_INDEX = "org.kontalk.provider.extra.INDEX";
-        // uri parameter for update: triggers a complete resync
+        // uri parameter for update: triggers a resync (incremental if possible)
         public static final String RESYNC = "resync";
         // uri parameter for update: used with resync, triggers a complete sync
         // only if the database is newly created
@@ -19,9 +19,18 @@
 package org.kontalk.provider;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.android.providers.contacts.ContactLocaleUtils;
 import com.android.providers.contacts.FastScrollingIndexCache;
@@ -32,10 +41,13 @@ import org.spongycastle.openpgp.PGPPublicKeyRing;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -46,10 +58,12 @@ import android.database.sqlite.SQLiteQueryBuilder;
 import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Process;
 import android.provider.BaseColumns;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.RawContacts;
+import android.text.TextUtils;
 import android.util.Log;
 
 import org.kontalk.BuildConfig;
@@ -57,7 +71,7 @@ import org.kontalk.Kontalk;
 import org.kontalk.R;
 import org.kontalk.authenticator.Authenticator;
 import org.kontalk.client.EndpointServer;
-import org.kontalk.client.NumberValidator;
+import org.kontalk.client.NumberNormalizer;
 import org.kontalk.crypto.Coder;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PGPCoder;
@@ -67,6 +81,7 @@ import org.kontalk.provider.MyUsers.Keys;
 import org.kontalk.provider.MyUsers.Users;
 import org.kontalk.sync.SyncAdapter;
 import org.kontalk.util.MessageUtils;
+import org.kontalk.util.OrderedPipeline;
 import org.kontalk.util.Preferences;
 import org.kontalk.util.XMPPUtils;
 
@@ -79,11 +94,13 @@ import org.kontalk.util.XMPPUtils;
 public class UsersProvider extends ContentProvider {
     public static final String AUTHORITY = BuildConfig.APPLICATION_ID + ".users";
 
-    private static final int DATABASE_VERSION = 8;
+    private static final int DATABASE_VERSION = 9;
     private static final String DATABASE_NAME = "users.db";
-    private static final String TABLE_USERS = "users";
+    public static final String TABLE_USERS = "users";
     private static final String TABLE_USERS_OFFLINE = "users_offline";
     private static final String TABLE_KEYS = "keys";
+    private static final String TABLE_RAW_CONTACTS = "raw_contacts";
+    private static final String TABLE_RAW_NUMBERS = "raw_numbers";
 
     private static final int USERS = 1;
     private static final int USERS_JID = 2;
@@ -92,7 +109,7 @@ public class UsersProvider extends ContentProvider {
 
     private long mLastResync;
 
-    private FastScrollingIndexCache mFastScrollingIndexCache;
+    private UsersSectionIndex mSectionIndex;
     private ContactLocaleUtils mLocaleUtils;
 
     private DatabaseHelper dbHelper;
@@ -133,11 +150,35 @@ public class UsersProvider extends ContentProvider {
         private static final String SCHEMA_KEYS =
             "CREATE TABLE " + TABLE_KEYS + " " + CREATE_TABLE_KEYS;
 
+        /** Last seen version of every system raw contact, for incremental resync. */
+        private static final String SCHEMA_RAW_CONTACTS =
+            "CREATE TABLE " + TABLE_RAW_CONTACTS + " (" +
+            "_id INTEGER PRIMARY KEY," +
+            "version INTEGER NOT NULL" +
+            ")";
+
+        /** Maps system raw contacts to the users (by hash) they generated. */
+        private static final String SCHEMA_RAW_NUMBERS =
+            "CREATE TABLE " + TABLE_RAW_NUMBERS + " (" +
+            "raw_contact_id INTEGER NOT NULL," +
+            "hash TEXT NOT NULL," +
+            "PRIMARY KEY (raw_contact_id, hash)" +
+            ")";
+
+        private static final String SCHEMA_RAW_NUMBERS_INDEX =
+            "CREATE INDEX IF NOT EXISTS raw_numbers_hash ON " + TABLE_RAW_NUMBERS + " (hash)";
+
         private static final String[] SCHEMA_UPGRADE_V7 = {
             SCHEMA_KEYS,
             "INSERT INTO " + TABLE_KEYS + " SELECT jid, public_key, fingerprint FROM " + TABLE_USERS,
         };
 
+        private static final String[] SCHEMA_UPGRADE_V8 = {
+            SCHEMA_RAW_CONTACTS,
+            SCHEMA_RAW_NUMBERS,
+            SCHEMA_RAW_NUMBERS_INDEX,
+        };
+
         // any upgrade - just replace the table
         private static final String[] SCHEMA_UPGRADE = {
             "DROP TABLE IF EXISTS " + TABLE_USERS,
@@ -146,6 +187,11 @@ public class UsersProvider extends ContentProvider {
             SCHEMA_USERS_OFFLINE,
             "DROP TABLE IF EXISTS " + TABLE_KEYS,
             SCHEMA_KEYS,
+            "DROP TABLE IF EXISTS " + TABLE_RAW_CONTACTS,
+            SCHEMA_RAW_CONTACTS,
+            "DROP TABLE IF EXISTS " + TABLE_RAW_NUMBERS,
+            SCHEMA_RAW_NUMBERS,
+            SCHEMA_RAW_NUMBERS_INDEX,
         };
 
         private Context mContext;
@@ -165,6 +211,9 @@ public class UsersProvider extends ContentProvider {
             db.execSQL(SCHEMA_USERS);
             db.execSQL(SCHEMA_USERS_OFFLINE);
             db.execSQL(SCHEMA_KEYS);
+            db.execSQL(SCHEMA_RAW_CONTACTS);
+            db.execSQL(SCHEMA_RAW_NUMBERS);
+            db.execSQL(SCHEMA_RAW_NUMBERS_INDEX);
             mNew = true;
         }
 
@@ -175,6 +224,10 @@ public class UsersProvider extends ContentProvider {
                     // create keys table and trust anyone
                     for (String sql : SCHEMA_UPGRADE_V7)
                         db.execSQL(sql);
+                case 8:
+                    // incremental resync tables
+                    for (String sql : SCHEMA_UPGRADE_V8)
+                        db.execSQL(sql);
                     break;
                 default:
                     for (String sql : SCHEMA_UPGRADE)
@@ -214,8 +267,8 @@ public class UsersProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         dbHelper = new DatabaseHelper(getContext());
-        mFastScrollingIndexCache = FastScrollingIndexCache.getInstance(getContext());
         mLocaleUtils = ContactLocaleUtils.getInstance();
+        mSectionIndex = new UsersSectionIndex(mLocaleUtils);
         return true;
     }
 
@@ -232,10 +285,6 @@ public class UsersProvider extends ContentProvider {
         }
     }
 
-    private void invalidateFastScrollingIndexCache() {
-        mFastScrollingIndexCache.invalidate();
-    }
-
     private static final class Counter {
         private int value;
 
@@ -288,42 +337,17 @@ public class UsersProvider extends ContentProvider {
     }
 
     /**
-     * Add the "fast scrolling index" bundle, generated by {@link #getFastScrollingIndexExtras},
-     * to a cursor as extras.  It first checks {@link FastScrollingIndexCache} to see if we
-     * already have a cached result.
+     * Add the "fast scrolling index" bundle to a cursor as extras. The
+     * contacts list uses the incrementally maintained {@link UsersSectionIndex},
+     * anything else gets an index generated by {@link #getFastScrollingIndexExtras}.
      */
-    private void bundleFastScrollingIndexExtras(UsersCursor cursor, Uri queryUri,
-        final SQLiteDatabase db, SQLiteQueryBuilder qb, String selection,
-        String[] selectionArgs, String sortOrder, String countExpression) {
-
+    private void bundleFastScrollingIndexExtras(UsersCursor cursor, SQLiteDatabase db,
+            boolean offline, String selection, String[] selectionArgs) {
         Bundle b;
-        // Note even though FastScrollingIndexCache is thread-safe, we really need to put the
-        // put-get pair in a single synchronized block, so that even if multiple-threads request the
-        // same index at the same time (which actually happens on the phone app) we only execute
-        // the query once.
-        //
-        // This doesn't cause deadlock, because only reader threads get here but not writer
-        // threads.  (Writer threads may call invalidateFastScrollingIndexCache(), but it doesn't
-        // synchronize on mFastScrollingIndexCache)
-        //
-        // All reader and writer threads share the single lock object internally in
-        // FastScrollingIndexCache, but the lock scope is limited within each put(), get() and
-        // invalidate() call, so it won't deadlock.
-
-        // Synchronizing on a non-static field is generally not a good idea, but nobody should
-        // modify mFastScrollingIndexCache once initialized, and it shouldn't be null at this point.
-        synchronized (mFastScrollingIndexCache) {
-            b = mFastScrollingIndexCache.get(
-                queryUri, selection, selectionArgs, sortOrder, countExpression);
-
-            if (b == null) {
-                // Not in the cache.  Generate and put.
-                b = getFastScrollingIndexExtras(cursor);
-
-                mFastScrollingIndexCache.put(queryUri, selection, selectionArgs, sortOrder,
-                    countExpression, b);
-            }
-        }
+        if (!offline && UsersSectionIndex.SELECTION.equals(selection) && selectionArgs == null)
+            b = mSectionIndex.getExtras(db);
+        else
+            b = getFastScrollingIndexExtras(cursor);
         cursor.setExtras(b);
     }
 
@@ -367,7 +391,7 @@ public class UsersProvider extends ContentProvider {
         }
         else if (Boolean.parseBoolean(uri.getQueryParameter(Users.EXTRA_INDEX))) {
             UsersCursor uc = new UsersCursor(c);
-            bundleFastScrollingIndexExtras(uc, uri, db, qb, selection, selectionArgs, sortOrder, null);
+            bundleFastScrollingIndexExtras(uc, db, offline, selection, selectionArgs);
             c = uc;
         }
 
@@ -434,17 +458,17 @@ public class UsersProvider extends ContentProvider {
 
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        try {
-            boolean isResync = Boolean.parseBoolean(uri.getQueryParameter(Users.RESYNC));
-            boolean bootstrap = Boolean.parseBoolean(uri.getQueryParameter(Users.BOOTSTRAP));
-            boolean commit = Boolean.parseBoolean(uri.getQueryParameter(Users.COMMIT));
-
-            if (isResync) {
-                // we keep this synchronized to allow for the initial resync by the
-                // registration activity
-                synchronized (this) {
-                    long diff = System.currentTimeMillis() - mLastResync;
-                    if (diff > 1000 && (!bootstrap || dbHelper.isNew())) {
+        boolean isResync = Boolean.parseBoolean(uri.getQueryParameter(Users.RESYNC));
+        boolean bootstrap = Boolean.parseBoolean(uri.getQueryParameter(Users.BOOTSTRAP));
+        boolean commit = Boolean.parseBoolean(uri.getQueryParameter(Users.COMMIT));
+
+        if (isResync) {
+            // we keep this synchronized to allow for the initial resync by the
+            // registration activity
+            synchronized (this) {
+                long diff = System.currentTimeMillis() - mLastResync;
+                if (diff > 1000 && (!bootstrap || dbHelper.isNew())) {
+                    try {
                         if (commit) {
                             commit();
                             return 0;
@@ -453,34 +477,38 @@ public class UsersProvider extends ContentProvider {
                             return resync();
                         }
                     }
-
-                    mLastResync = System.currentTimeMillis();
-                    return 0;
+                    finally {
+                        // users might have been added, removed or renamed
+                        mSectionIndex.invalidate();
+                    }
                 }
+
+                mLastResync = System.currentTimeMillis();
+                return 0;
             }
+        }
 
-            // simple update
-            int match = sUriMatcher.match(uri);
-            switch (match) {
-                case USERS:
-                case USERS_JID:
-                    return updateUser(values, Boolean.parseBoolean(uri
-                        .getQueryParameter(Users.OFFLINE)), selection, selectionArgs);
+        // simple update
+        int match = sUriMatcher.match(uri);
+        switch (match) {
+            case USERS:
+            case USERS_JID:
+                return updateUser(values, Boolean.parseBoolean(uri
+                    .getQueryParameter(Users.OFFLINE)), selection, selectionArgs);
 
-                case KEYS:
-                    return updateKey(values, selection, selectionArgs);
+            case KEYS:
+                return updateKey(values, selection, selectionArgs);
 
-                default:
-                    throw new IllegalArgumentException("Unknown URI " + uri);
-            }
-        }
-        finally {
-            invalidateFastScrollingIndexCache();
+            default:
+                throw new IllegalArgumentException("Unknown URI " + uri);
         }
     }
 
     private int updateUser(ContentValues values, boolean offline, String selection, String[] selectionArgs) {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
+        // presence updates don't need to touch the section index
+        long[] indexed = (!offline && UsersSectionIndex.isAffectedBy(values)) ?
+            queryUserIds(db, selection, selectionArgs) : null;
 
         int rc = db.update(offline ? TABLE_USERS_OFFLINE : TABLE_USERS, values, selection, selectionArgs);
         if (rc == 0) {
@@ -493,30 +521,104 @@ public class UsersProvider extends ContentProvider {
                 insertValues.put(Users.DISPLAY_NAME, getContext().getString(R.string.peer_unknown));
             insertValues.put(Users.REGISTERED, true);
 
-            db.insert(offline ? TABLE_USERS_OFFLINE : TABLE_USERS, null, insertValues);
+            long id = db.insert(offline ? TABLE_USERS_OFFLINE : TABLE_USERS, null, insertValues);
+            if (!offline && id > 0)
+                mSectionIndex.update(db, new long[] { id });
             return 1;
         }
 
+        if (indexed != null)
+            mSectionIndex.update(db, indexed);
         return rc;
     }
 
+    /** Returns the IDs of the online users matching the given selection. */
+    private static long[] queryUserIds(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        Cursor c = db.query(TABLE_USERS, new String[] { Users._ID },
+            selection, selectionArgs, null, null, null);
+        try {
+            long[] ids = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++)
+                ids[i] = c.getLong(0);
+            return ids;
+        }
+        finally {
+            c.close();
+        }
+    }
+
     private int updateKey(ContentValues values, String selection, String[] selectionArgs) {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
         return db.update(TABLE_KEYS, values, selection, selectionArgs);
     }
 
-    /** Commits the offline table to the online table. */
+    /** Columns compared by {@link #commit()} to detect changed users. */
+    private static final String[] COMMIT_COLUMNS = {
+        Users.HASH, Users.NUMBER, Users.DISPLAY_NAME, Users.JID,
+        Users.LOOKUP_KEY, Users.CONTACT_ID, Users.REGISTERED, Users.STATUS,
+        Users.LAST_SEEN, Users.PUBLIC_KEY, Users.FINGERPRINT, Users.BLOCKED,
+    };
+
+    /** Matches users rows having an identical row in the offline table. */
+    private static final String COMMIT_UNCHANGED;
+
+    static {
+        StringBuilder unchanged = new StringBuilder("EXISTS (SELECT 1 FROM ")
+            .append(TABLE_USERS_OFFLINE).append(" o WHERE ");
+        for (int i = 0; i < COMMIT_COLUMNS.length; i++) {
+            if (i > 0)
+                unchanged.append(" AND ");
+            unchanged.append("o.").append(COMMIT_COLUMNS[i])
+                .append(" IS ").append(TABLE_USERS).append('.').append(COMMIT_COLUMNS[i]);
+        }
+        COMMIT_UNCHANGED = unchanged.append(')').toString();
+    }
+
+    /** Maximum number of ids in a single IN clause. */
+    private static final int RESYNC_CHUNK_SIZE = 500;
+
+    /**
+     * Commits the offline table to the online table. Only rows that actually
+     * changed are replaced and only the related contacts are invalidated.
+     */
     private void commit() {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
+        Set<String> changed = new HashSet<String>();
 
         // begin transaction
         beginTransaction(db);
         boolean success = false;
 
         try {
-            // copy contents from offline
-            db.execSQL("DELETE FROM " + TABLE_USERS);
-            db.execSQL("INSERT INTO " + TABLE_USERS + " SELECT * FROM " + TABLE_USERS_OFFLINE);
+            String columns = TextUtils.join(",", COMMIT_COLUMNS);
+
+            // users about to be deleted or replaced
+            Cursor c = db.rawQuery("SELECT " + Users.JID + " FROM " + TABLE_USERS +
+                " WHERE NOT " + COMMIT_UNCHANGED, null);
+            try {
+                while (c.moveToNext())
+                    changed.add(c.getString(0));
+            }
+            finally {
+                c.close();
+            }
+
+            db.execSQL("DELETE FROM " + TABLE_USERS + " WHERE NOT " + COMMIT_UNCHANGED);
+
+            // users about to be inserted
+            c = db.rawQuery("SELECT " + Users.JID + " FROM " + TABLE_USERS_OFFLINE +
+                " WHERE hash NOT IN (SELECT hash FROM " + TABLE_USERS + ")", null);
+            try {
+                while (c.moveToNext())
+                    changed.add(c.getString(0));
+            }
+            finally {
+                c.close();
+            }
+
+            db.execSQL("INSERT INTO " + TABLE_USERS + " (" + columns + ") SELECT " +
+                columns + " FROM " + TABLE_USERS_OFFLINE +
+                " WHERE hash NOT IN (SELECT hash FROM " + TABLE_USERS + ")");
             success = setTransactionSuccessful(db);
         }
         catch (SQLException e) {
@@ -525,32 +627,53 @@ public class UsersProvider extends ContentProvider {
         }
         finally {
             endTransaction(db, success);
-            // time to invalidate contacts cache
+        }
+
+        // time to invalidate changed contacts
+        if (success) {
+            Log.v(SyncAdapter.TAG, "users table committed (" + changed.size() + " changes)");
+            Contact.invalidate(changed);
+        }
+        else {
             Contact.invalidate();
         }
     }
 
-    /** Triggers a complete resync of the users database. */
+    /**
+     * Returns a string identifying the settings affecting the resync. If
+     * they change, a complete resync is needed.
+     */
+    private String getResyncState(Context context) {
+        EndpointServer server = Preferences.getEndpointServer(context);
+        return Preferences.getSyncInvisibleContacts(context) + "|" +
+            Preferences.getSyncSIMContacts(context) + "|" +
+            Preferences.getDialPrefix(context) + "|" +
+            Authenticator.getDefaultAccountName(context) + "|" +
+            (server != null ? server.getNetwork() : null);
+    }
+
+    /**
+     * Triggers a resync of the users database. Only system raw contacts
+     * whose version changed since the last resync are processed, unless
+     * this is the first resync or resync settings changed.
+     */
     private int resync() {
         Context context = getContext();
         ContentResolver cr = context.getContentResolver();
         SQLiteDatabase db = dbHelper.getWritableDatabase();
 
+        String state = getResyncState(context);
+        boolean full = !state.equals(Preferences.getContactsSyncState(context)) ||
+            count(db, TABLE_RAW_CONTACTS) == 0 || count(db, TABLE_USERS_OFFLINE) == 0;
+        // contacts touched directly in the online table
+        Set<String> touched = new HashSet<String>();
+
         // begin transaction
         beginTransaction(db);
         boolean success = false;
 
         int count = 0;
 
-        // delete old users content
-        try {
-            db.execSQL("DELETE FROM " + TABLE_USERS_OFFLINE);
-        }
-        catch (SQLException e) {
-            // table might not exist - create it! (shouldn't happen since version 4)
-            db.execSQL(DatabaseHelper.SCHEMA_USERS_OFFLINE);
-        }
-
         // we are trying to be fast here
         SQLiteStatement stm = db.compileStatement("INSERT INTO " + TABLE_USERS_OFFLINE +
             " (hash, number, jid, display_name, lookup_key, contact_id, registered, public_key, fingerprint)" +
@@ -564,79 +687,150 @@ public class UsersProvider extends ContentProvider {
             " (hash, number, jid, display_name, lookup_key, contact_id, registered, public_key, fingerprint)" +
             " VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?)");
 
+        SQLiteStatement numberIns = db.compileStatement("INSERT OR IGNORE INTO " +
+            TABLE_RAW_NUMBERS + " (raw_contact_id, hash) VALUES(?, ?)");
+        SQLiteStatement versionIns = db.compileStatement("INSERT OR REPLACE INTO " +
+            TABLE_RAW_CONTACTS + " (_id, version) VALUES(?, ?)");
+
         Cursor phones = null;
         String dialPrefix = Preferences.getDialPrefix(context);
         int dialPrefixLen = dialPrefix != null ? dialPrefix.length() : 0;
+        // numbers are normalized using the same region throughout the resync
+        NumberNormalizer normalizer = NumberNormalizer.create(context,
+            Authenticator.getDefaultAccountName(context), 0);
+        // threads are started only when needed
+        ExecutorService executor = createResyncExecutor();
 
         try {
-            String where = !Preferences.getSyncInvisibleContacts(context) ?
-                ContactsContract.Contacts.IN_VISIBLE_GROUP + "=1 AND " :
-                "";
-
-            // query for phone numbers
-            phones = cr.query(Phone.CONTENT_URI,
-                new String[] { Phone.NUMBER, Phone.DISPLAY_NAME, Phone.LOOKUP_KEY, Phone.CONTACT_ID, RawContacts.ACCOUNT_TYPE },
-                where + " (" +
-                // this will filter out RawContacts from Kontalk
-                RawContacts.ACCOUNT_TYPE + " IS NULL OR " +
-                RawContacts.ACCOUNT_TYPE + " NOT IN (?, ?))",
-                new String[] {
-                    Authenticator.ACCOUNT_TYPE, Authenticator.ACCOUNT_TYPE_LEGACY
-                }, null);
-
-            if (phones != null) {
-                while (phones.moveToNext()) {
-                    String number = phones.getString(0);
-                    String name = phones.getString(1);
-
-                    // buggy provider - skip entry
-                    if (name == null || number == null)
-                        continue;
-
-                    // remove dial prefix first
-                    if (dialPrefix != null && number.startsWith(dialPrefix))
-                        number = number.substring(dialPrefixLen);
-
-                    // a phone number with less than 4 digits???
-                    if (number.length() < 4)
-                        continue;
-
-                    // fix number
-                    try {
-                        number = NumberValidator.fixNumber(context, number,
-                            Authenticator.getDefaultAccountName(context), 0);
-                    }
-                    catch (Exception e) {
-                        Log.e(SyncAdapter.TAG, "unable to normalize number: " + number + " - skipping", e);
-                        // skip number
-                        continue;
-                    }
+            // current versions of the system raw contacts
+            Map<Long, Long> versions = queryRawContactVersions(cr);
+            // raw contacts to be (re)processed
+            List<Long> changed = new ArrayList<Long>();
 
-                    try {
-                        String hash = MessageUtils.sha1(number);
-                        String lookupKey = phones.getString(2);
-                        long contactId = phones.getLong(3);
-                        String jid = XMPPUtils.createLocalJID(getContext(), hash);
-
-                        addResyncContact(db, stm, onlineUpd, onlineIns,
-                            hash, number, jid, name,
-                            lookupKey, contactId, false, null, null);
-                        count++;
-                    }
-                    catch (IllegalArgumentException iae) {
-                        Log.w(SyncAdapter.TAG, "doing sync with no server?");
+            if (full) {
+                Log.v(SyncAdapter.TAG, "complete users resync");
+
+                // delete old users content
+                try {
+                    db.execSQL("DELETE FROM " + TABLE_USERS_OFFLINE);
+                }
+                catch (SQLException e) {
+                    // table might not exist - create it! (shouldn't happen since version 4)
+                    db.execSQL(DatabaseHelper.SCHEMA_USERS_OFFLINE);
+                }
+                db.execSQL("DELETE FROM " + TABLE_RAW_CONTACTS);
+                db.execSQL("DELETE FROM " + TABLE_RAW_NUMBERS);
+
+                phones = queryPhones(cr, null, 0, 0);
+                if (phones != null) {
+                    count += addResyncPhones(db, phones, normalizer, executor, stm, onlineUpd, onlineIns,
+                        numberIns, dialPrefix, null);
+                    phones.close();
+                    phones = null;
+                }
+                else {
+                    Log.e(SyncAdapter.TAG, "query to contacts failed!");
+                }
+
+                if (versions != null)
+                    changed.addAll(versions.keySet());
+            }
+
+            else if (versions != null) {
+                List<Long> removed = new ArrayList<Long>();
+                Map<Long, Long> stored = new HashMap<Long, Long>(versions.size());
+
+                Cursor c = db.rawQuery("SELECT _id, version FROM " + TABLE_RAW_CONTACTS, null);
+                try {
+                    while (c.moveToNext())
+                        stored.put(c.getLong(0), c.getLong(1));
+                }
+                finally {
+                    c.close();
+                }
+
+                for (Map.Entry<Long, Long> e : versions.entrySet()) {
+                    if (!e.getValue().equals(stored.get(e.getKey())))
+                        changed.add(e.getKey());
+                }
+                for (Long id : stored.keySet()) {
+                    if (!versions.containsKey(id))
+                        removed.add(id);
+                }
+
+                Log.v(SyncAdapter.TAG, "incremental users resync (" + changed.size() +
+                    " changed, " + removed.size() + " removed)");
+
+                if (changed.size() > 0 || removed.size() > 0) {
+                    Set<Long> affected = new HashSet<Long>(changed);
+                    affected.addAll(removed);
+
+                    // numbers generated by the affected raw contacts
+                    Set<String> hashes = new HashSet<String>();
+                    queryColumn(db, "SELECT hash FROM " + TABLE_RAW_NUMBERS +
+                        " WHERE raw_contact_id IN ", new ArrayList<Object>(affected), hashes);
+
+                    // unchanged raw contacts sharing those numbers must be
+                    // processed again since their user rows will be deleted
+                    Set<String> siblings = new HashSet<String>();
+                    queryColumn(db, "SELECT raw_contact_id FROM " + TABLE_RAW_NUMBERS +
+                        " WHERE hash IN ", new ArrayList<Object>(hashes), siblings);
+                    for (String sibling : siblings) {
+                        Long id = Long.valueOf(sibling);
+                        if (affected.add(id))
+                            changed.add(id);
                     }
-                    catch (SQLiteConstraintException sqe) {
-                        // skip duplicate number
+
+                    List<Object> affectedArgs = new ArrayList<Object>(affected);
+                    execChunked(db, "DELETE FROM " + TABLE_RAW_NUMBERS +
+                        " WHERE raw_contact_id IN ", affectedArgs);
+                    execChunked(db, "DELETE FROM " + TABLE_RAW_CONTACTS +
+                        " WHERE _id IN ", new ArrayList<Object>(removed));
+                    execChunked(db, "DELETE FROM " + TABLE_USERS_OFFLINE +
+                        " WHERE hash IN ", new ArrayList<Object>(hashes));
+
+                    for (int i = 0; i < changed.size(); i += RESYNC_CHUNK_SIZE) {
+                        phones = queryPhones(cr, changed, i,
+                            Math.min(i + RESYNC_CHUNK_SIZE, changed.size()));
+                        if (phones != null) {
+                            count += addResyncPhones(db, phones, normalizer, executor, stm, onlineUpd, onlineIns,
+                                numberIns, dialPrefix, touched);
+                            phones.close();
+                            phones = null;
+                        }
                     }
                 }
 
-                phones.close();
+                // users not coming from system contacts will be added again below
+                db.execSQL("DELETE FROM " + TABLE_USERS_OFFLINE +
+                    " WHERE hash NOT IN (SELECT hash FROM " + TABLE_RAW_NUMBERS + ")");
+
+                // reset data coming from the server, sync will fill it again
+                EndpointServer server = Preferences.getEndpointServer(context);
+                if (server != null) {
+                    db.execSQL("UPDATE " + TABLE_USERS_OFFLINE + " SET " +
+                        "jid = hash || '@' || ?, registered = 0, status = NULL, last_seen = NULL, " +
+                        "public_key = NULL, fingerprint = NULL, blocked = 0",
+                        new Object[] { server.getNetwork() });
+                }
             }
+
             else {
                 Log.e(SyncAdapter.TAG, "query to contacts failed!");
             }
 
+            if (versions != null) {
+                for (Long id : changed) {
+                    Long version = versions.get(id);
+                    if (version != null) {
+                        versionIns.clearBindings();
+                        versionIns.bindLong(1, id);
+                        versionIns.bindLong(2, version);
+                        versionIns.executeInsert();
+                    }
+                }
+            }
+
             if (Preferences.getSyncSIMContacts(getContext())) {
                 // query for SIM contacts
                 // column selection doesn't work because of a bug in Android
@@ -677,18 +871,16 @@ public class UsersProvider extends ContentProvider {
                             continue;
 
                         // fix number
-                        try {
-                            number = NumberValidator.fixNumber(context, number,
-                                    Authenticator.getDefaultAccountName(context), 0);
-                        }
-                        catch (Exception e) {
-                            Log.e(SyncAdapter.TAG, "unable to normalize number: " + number + " - skipping", e);
+                        NumberNormalizer.Result result = normalizer.get(number);
+                        if (result == null) {
+                            Log.e(SyncAdapter.TAG, "unable to normalize number: " + number + " - skipping");
                             // skip number
                             continue;
                         }
 
                         try {
-                            String hash = MessageUtils.sha1(number);
+                            String hash = result.hash;
+                            number = result.number;
                             String jid = XMPPUtils.createLocalJID(getContext(), hash);
                             long contactId = phones.getLong(phones.getColumnIndex(BaseColumns._ID));
 
@@ -696,6 +888,7 @@ public class UsersProvider extends ContentProvider {
                                 hash, number, jid, name,
                                 null, contactId,
                                 false, null, null);
+                            touched.add(jid);
                             count++;
                         }
                         catch (IllegalArgumentException iae) {
@@ -732,6 +925,7 @@ public class UsersProvider extends ContentProvider {
                         hash, ownNumber, jid, ownName,
                         null, null,
                         true, publicKeyData, fingerprint);
+                    touched.add(jid);
                     count++;
                 }
                 catch (IllegalArgumentException iae) {
@@ -749,13 +943,289 @@ public class UsersProvider extends ContentProvider {
             if (phones != null)
                 phones.close();
             stm.close();
+            onlineUpd.close();
+            onlineIns.close();
+            numberIns.close();
+            versionIns.close();
+            executor.shutdown();
 
             // time to invalidate contacts cache (because of updates to online)
-            Contact.invalidate();
+            if (full || !success)
+                Contact.invalidate();
+            else
+                Contact.invalidate(touched);
         }
+
+        if (success)
+            Preferences.setContactsSyncState(context, state);
+
         return count;
     }
 
+    /** A phone number read from system contacts. */
+    private static final class ResyncEntry {
+        final String number;
+        final String name;
+        final String lookupKey;
+        final long contactId;
+        final long rawContactId;
+
+        ResyncEntry(String number, String name, String lookupKey, long contactId, long rawContactId) {
+            this.number = number;
+            this.name = name;
+            this.lookupKey = lookupKey;
+            this.contactId = contactId;
+            this.rawContactId = rawContactId;
+        }
+    }
+
+    /** Number of phone numbers normalized by a single resync task. */
+    private static final int RESYNC_SLICE_SIZE = 64;
+    /** Maximum number of slices waiting to be written. */
+    private static final int RESYNC_MAX_PENDING = 16;
+
+    /** Creates the pool used for normalizing and hashing phone numbers. */
+    private static ExecutorService createResyncExecutor() {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "UsersResync-" + mCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /** Writes normalized phone numbers to the offline table. */
+    private final class ResyncWriter implements OrderedPipeline.Sink<ResyncEntry, NumberNormalizer.Result> {
+        private final SQLiteDatabase mDb;
+        private final SQLiteStatement mStm;
+        private final SQLiteStatement mOnlineUpd;
+        private final SQLiteStatement mOnlineIns;
+        private final SQLiteStatement mNumberIns;
+        private final String mNetwork;
+        private final Set<String> mTouched;
+
+        int count;
+
+        ResyncWriter(SQLiteDatabase db, SQLiteStatement stm, SQLiteStatement onlineUpd,
+                SQLiteStatement onlineIns, SQLiteStatement numberIns, String network,
+                Set<String> touched) {
+            mDb = db;
+            mStm = stm;
+            mOnlineUpd = onlineUpd;
+            mOnlineIns = onlineIns;
+            mNumberIns = numberIns;
+            mNetwork = network;
+            mTouched = touched;
+        }
+
+        @Override
+        public void accept(ResyncEntry entry, NumberNormalizer.Result result) {
+            if (result == null) {
+                Log.e(SyncAdapter.TAG, "unable to normalize number: " + entry.number + " - skipping");
+                // skip number
+                return;
+            }
+
+            // remember which raw contact generated this number
+            mNumberIns.clearBindings();
+            mNumberIns.bindLong(1, entry.rawContactId);
+            mNumberIns.bindString(2, result.hash);
+            mNumberIns.executeInsert();
+
+            try {
+                String jid = XmppStringUtils.completeJidFrom(result.hash, mNetwork);
+
+                addResyncContact(mDb, mStm, mOnlineUpd, mOnlineIns,
+                    result.hash, result.number, jid, entry.name,
+                    entry.lookupKey, entry.contactId, false, null, null);
+                if (mTouched != null)
+                    mTouched.add(jid);
+                count++;
+            }
+            catch (SQLiteConstraintException sqe) {
+                // skip duplicate number
+            }
+        }
+    }
+
+    /**
+     * Adds the phone numbers in the given cursor to the offline table.
+     * Numbers are normalized and hashed in parallel on the given executor,
+     * while results are written in order by the calling thread.
+     * @param touched if not null, JIDs of processed users will be added here
+     * @return the number of processed entries
+     */
+    private int addResyncPhones(SQLiteDatabase db, Cursor phones, final NumberNormalizer normalizer,
+            ExecutorService executor, SQLiteStatement stm, SQLiteStatement onlineUpd,
+            SQLiteStatement onlineIns, SQLiteStatement numberIns, String dialPrefix,
+            Set<String> touched) {
+        EndpointServer server = Preferences.getEndpointServer(getContext());
+        if (server == null) {
+            Log.w(SyncAdapter.TAG, "doing sync with no server?");
+            return 0;
+        }
+
+        int dialPrefixLen = dialPrefix != null ? dialPrefix.length() : 0;
+
+        ResyncWriter writer = new ResyncWriter(db, stm, onlineUpd, onlineIns,
+            numberIns, server.getNetwork(), touched);
+        OrderedPipeline<ResyncEntry, NumberNormalizer.Result> pipeline =
+            new OrderedPipeline<ResyncEntry, NumberNormalizer.Result>(executor,
+                RESYNC_SLICE_SIZE, RESYNC_MAX_PENDING,
+                new OrderedPipeline.Stage<ResyncEntry, NumberNormalizer.Result>() {
+                    @Override
+                    public NumberNormalizer.Result process(ResyncEntry entry) {
+                        // fix number
+                        return normalizer.get(entry.number);
+                    }
+                }, writer);
+
+        try {
+            while (phones.moveToNext()) {
+                String number = phones.getString(0);
+                String name = phones.getString(1);
+
+                // buggy provider - skip entry
+                if (name == null || number == null)
+                    continue;
+
+                // remove dial prefix first
+                if (dialPrefix != null && number.startsWith(dialPrefix))
+                    number = number.substring(dialPrefixLen);
+
+                // a phone number with less than 4 digits???
+                if (number.length() < 4)
+                    continue;
+
+                pipeline.add(new ResyncEntry(number, name, phones.getString(2),
+                    phones.getLong(3), phones.getLong(5)));
+            }
+
+            pipeline.finish();
+        }
+        catch (RuntimeException e) {
+            pipeline.cancel();
+            throw e;
+        }
+
+        return writer.count;
+    }
+
+    /** Returns the versions of all system raw contacts, mapped by ID. */
+    private Map<Long, Long> queryRawContactVersions(ContentResolver cr) {
+        Cursor c = cr.query(RawContacts.CONTENT_URI,
+            new String[] { RawContacts._ID, RawContacts.VERSION },
+            RawContacts.DELETED + "=0 AND (" +
+            // this will filter out RawContacts from Kontalk
+            RawContacts.ACCOUNT_TYPE + " IS NULL OR " +
+            RawContacts.ACCOUNT_TYPE + " NOT IN (?, ?))",
+            new String[] {
+                Authenticator.ACCOUNT_TYPE, Authenticator.ACCOUNT_TYPE_LEGACY
+            }, null);
+
+        if (c == null)
+            return null;
+
+        try {
+            Map<Long, Long> versions = new HashMap<Long, Long>(c.getCount());
+            while (c.moveToNext())
+                versions.put(c.getLong(0), c.getLong(1));
+            return versions;
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Queries for phone numbers in system contacts.
+     * @param rawContactIds if not null, only phone numbers belonging to the
+     * raw contacts between start and end will be returned
+     */
+    private Cursor queryPhones(ContentResolver cr, List<Long> rawContactIds, int start, int end) {
+        StringBuilder where = new StringBuilder();
+        if (!Preferences.getSyncInvisibleContacts(getContext()))
+            where.append(ContactsContract.Contacts.IN_VISIBLE_GROUP + "=1 AND ");
+        if (rawContactIds != null) {
+            // IDs are numbers, no need for escaping
+            where.append(Phone.RAW_CONTACT_ID + " IN (")
+                .append(TextUtils.join(",", rawContactIds.subList(start, end)))
+                .append(") AND ");
+        }
+
+        return cr.query(Phone.CONTENT_URI,
+            new String[] { Phone.NUMBER, Phone.DISPLAY_NAME, Phone.LOOKUP_KEY, Phone.CONTACT_ID,
+                RawContacts.ACCOUNT_TYPE, Phone.RAW_CONTACT_ID },
+            where + " (" +
+            // this will filter out RawContacts from Kontalk
+            RawContacts.ACCOUNT_TYPE + " IS NULL OR " +
+            RawContacts.ACCOUNT_TYPE + " NOT IN (?, ?))",
+            new String[] {
+                Authenticator.ACCOUNT_TYPE, Authenticator.ACCOUNT_TYPE_LEGACY
+            }, null);
+    }
+
+    /** Runs a query ending with an IN clause in chunks, collecting the first column. */
+    private void queryColumn(SQLiteDatabase db, String sql, List<Object> args, Set<String> out) {
+        for (int i = 0; i < args.size(); i += RESYNC_CHUNK_SIZE) {
+            String[] chunk = toStringArray(args, i, Math.min(i + RESYNC_CHUNK_SIZE, args.size()));
+            Cursor c = db.rawQuery(sql + placeholders(chunk.length), chunk);
+            try {
+                while (c.moveToNext())
+                    out.add(c.getString(0));
+            }
+            finally {
+                c.close();
+            }
+        }
+    }
+
+    /** Executes a statement ending with an IN clause in chunks. */
+    private void execChunked(SQLiteDatabase db, String sql, List<Object> args) {
+        for (int i = 0; i < args.size(); i += RESYNC_CHUNK_SIZE) {
+            String[] chunk = toStringArray(args, i, Math.min(i + RESYNC_CHUNK_SIZE, args.size()));
+            db.execSQL(sql + placeholders(chunk.length), chunk);
+        }
+    }
+
+    private static String[] toStringArray(List<Object> list, int start, int end) {
+        String[] out = new String[end - start];
+        for (int i = start; i < end; i++)
+            out[i - start] = list.get(i).toString();
+        return out;
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder b = new StringBuilder(count * 2 + 1).append('(');
+        for (int i = 0; i < count; i++) {
+            if (i > 0)
+                b.append(',');
+            b.append('?');
+        }
+        return b.append(')').toString();
+    }
+
+    private static long count(SQLiteDatabase db, String table) {
+        SQLiteStatement stm = db.compileStatement("SELECT COUNT(*) FROM " + table);
+        try {
+            return stm.simpleQueryForLong();
+        }
+        finally {
+            stm.close();
+        }
+    }
+
     private void addResyncContact(SQLiteDatabase db, SQLiteStatement stm, SQLiteStatement onlineUpd, SQLiteStatement onlineIns,
         String hash, String number, String jid, String displayName, String lookupKey,
         Long contactId, boolean registered, byte[] publicKey, String fingerprint) {
@@ -842,26 +1312,21 @@ public class UsersProvider extends ContentProvider {
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
-        try {
-            int match = sUriMatcher.match(uri);
-            switch (match) {
-                case USERS:
-                case USERS_JID:
-                    return insertUser(values, Boolean.parseBoolean(uri
-                        .getQueryParameter(Users.OFFLINE)), Boolean.parseBoolean(uri
-                        .getQueryParameter(Users.DISCARD_NAME)));
-
-                case KEYS:
-                case KEYS_JID:
-                    return insertKey(values, Boolean.parseBoolean(uri
-                        .getQueryParameter(Keys.TRUST)));
+        int match = sUriMatcher.match(uri);
+        switch (match) {
+            case USERS:
+            case USERS_JID:
+                return insertUser(values, Boolean.parseBoolean(uri
+                    .getQueryParameter(Users.OFFLINE)), Boolean.parseBoolean(uri
+                    .getQueryParameter(Users.DISCARD_NAME)));
 
-                default:
-                    throw new IllegalArgumentException("Unknown URI " + uri);
-            }
-        }
-        finally {
-            invalidateFastScrollingIndexCache();
+            case KEYS:
+            case KEYS_JID:
+                return insertKey(values, Boolean.parseBoolean(uri
+                    .getQueryParameter(Keys.TRUST)));
+
+            default:
+                throw new IllegalArgumentException("Unknown URI " + uri);
         }
     }
 
@@ -873,6 +1338,8 @@ public class UsersProvider extends ContentProvider {
 
         try {
             id = db.insertOrThrow(table, null, values);
+            if (!offline)
+                mSectionIndex.update(db, new long[] { id });
         }
         catch (SQLException e) {
             String hash = values.getAsString(Users.HASH);
@@ -883,7 +1350,13 @@ public class UsersProvider extends ContentProvider {
                     values.remove(Users.NUMBER);
                 }
 
-                db.update(table, values, Users.HASH + "=?", new String[] { hash });
+                String[] args = new String[] { hash };
+                long[] indexed = (!offline && UsersSectionIndex.isAffectedBy(values)) ?
+                    queryUserIds(db, Users.HASH + "=?", args) : null;
+
+                db.update(table, values, Users.HASH + "=?", args);
+                if (indexed != null)
+                    mSectionIndex.update(db, indexed);
             }
         }
 
@@ -927,6 +1400,28 @@ public class UsersProvider extends ContentProvider {
         throw new SQLException("manual delete from users table not supported.");
     }
 
+    /** Applies all operations in a single transaction. */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+
+        beginTransaction(db);
+        boolean success = false;
+
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            success = setTransactionSuccessful(db);
+            return results;
+        }
+        finally {
+            endTransaction(db, success);
+            // index changes were rolled back
+            if (!success)
+                mSectionIndex.invalidate();
+        }
+    }
+
     // avoid recreating the same object over and over
     private static ContentValues registeredValues;
 
@@ -1003,6 +1498,26 @@ public class UsersProvider extends ContentProvider {
         return fingerprint;
     }
 
+    /**
+     * Queries the users table for the given JIDs in one go.
+     * Callers should keep the list below the SQLite host parameters limit.
+     */
+    public static Cursor queryUsers(Context context, String[] projection, Collection<String> jids) {
+        StringBuilder selection = new StringBuilder(TABLE_USERS)
+            .append('.')
+            .append(Users.JID)
+            .append(" IN (");
+        for (int i = 0; i < jids.size(); i++) {
+            if (i > 0)
+                selection.append(',');
+            selection.append('?');
+        }
+        selection.append(')');
+
+        return context.getContentResolver().query(Users.CONTENT_URI, projection,
+            selection.toString(), jids.toArray(new String[jids.size()]), null);
+    }
+
     /** Retrieves the last seen timestamp for a user. */
     public static long getLastSeen(Context context, String jid) {
         long timestamp = -1;
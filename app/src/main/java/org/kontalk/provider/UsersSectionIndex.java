@@ -0,0 +1,265 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.provider;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+
+import com.android.providers.contacts.ContactLocaleUtils;
+import com.android.providers.contacts.FastScrollingIndexCache;
+
+import org.kontalk.provider.MyUsers.Users;
+
+
+/**
+ * Fast scrolling index for the contacts list, i.e. registered users in the
+ * online table sorted by display name. Instead of being recomputed from
+ * scratch on every change, the index is updated only for the rows whose
+ * display name or registered status changed. Sections are sorted and case
+ * folded the same way SQLite NOCASE collation does, so that counts match
+ * cursor positions.
+ * This class is thread-safe. The database is never queried while holding
+ * the index lock, since {@link #update} is called from within write
+ * transactions.
+ * @author Daniele Ricci
+ */
+class UsersSectionIndex {
+
+    /** Selection of the users included in the index. */
+    public static final String SELECTION = Users.REGISTERED + " <> 0";
+
+    private static final class Counter {
+        int value;
+    }
+
+    private final ContactLocaleUtils mLocaleUtils;
+
+    /** Section of every indexed row, by row ID. */
+    private final Map<Long, String> mRows = new HashMap<>();
+    /** Row count for every section. */
+    private final TreeMap<String, Counter> mSections = new TreeMap<>();
+
+    /** True if the index must be reloaded from the database. */
+    private boolean mStale = true;
+    /** Last built extras, null if the index changed since. */
+    private Bundle mExtras;
+    /** Incremented on every change, to detect changes during a reload. */
+    private int mGeneration;
+
+    public UsersSectionIndex(ContactLocaleUtils localeUtils) {
+        mLocaleUtils = localeUtils;
+    }
+
+    /** Returns true if the given values affect the index. */
+    public static boolean isAffectedBy(ContentValues values) {
+        return values.containsKey(Users.DISPLAY_NAME) || values.containsKey(Users.REGISTERED);
+    }
+
+    /** Discards the whole index, it will be reloaded on next use. */
+    public synchronized void invalidate() {
+        mStale = true;
+        mExtras = null;
+        mGeneration++;
+    }
+
+    /** Updates the index for the given rows of the online users table. */
+    public void update(SQLiteDatabase db, long[] ids) {
+        if (ids.length == 0)
+            return;
+
+        synchronized (this) {
+            // a reload in progress might have read the old values
+            mGeneration++;
+            if (mStale)
+                return;
+        }
+
+        Map<Long, String> names = query(db, ids);
+
+        synchronized (this) {
+            mGeneration++;
+            if (mStale)
+                return;
+
+            for (long id : ids)
+                remove(id);
+            for (Map.Entry<Long, String> entry : names.entrySet())
+                add(mRows, mSections, entry.getKey(), entry.getValue());
+            mExtras = null;
+            mGeneration++;
+        }
+    }
+
+    /**
+     * Returns the index in the format used by
+     * {@link FastScrollingIndexCache#buildExtraBundle}.
+     */
+    public Bundle getExtras(SQLiteDatabase db) {
+        int generation;
+        synchronized (this) {
+            if (!mStale)
+                return getCachedExtras();
+            generation = mGeneration;
+        }
+
+        Map<Long, String> names = query(db, null);
+
+        synchronized (this) {
+            if (mStale && mGeneration == generation) {
+                mRows.clear();
+                mSections.clear();
+                for (Map.Entry<Long, String> entry : names.entrySet())
+                    add(mRows, mSections, entry.getKey(), entry.getValue());
+                mStale = false;
+                mExtras = null;
+            }
+
+            if (!mStale)
+                return getCachedExtras();
+
+            // index changed while loading, don't keep what we read
+            Map<Long, String> rows = new HashMap<>(names.size());
+            TreeMap<String, Counter> sections = new TreeMap<>();
+            for (Map.Entry<Long, String> entry : names.entrySet())
+                add(rows, sections, entry.getKey(), entry.getValue());
+            return buildExtras(sections);
+        }
+    }
+
+    private Bundle getCachedExtras() {
+        if (mExtras == null)
+            mExtras = buildExtras(mSections);
+        return mExtras;
+    }
+
+    private Bundle buildExtras(TreeMap<String, Counter> sections) {
+        int numLabels = sections.size();
+        String labels[] = new String[numLabels];
+        int counts[] = new int[numLabels];
+        int i = 0;
+        for (Map.Entry<String, Counter> entry : sections.entrySet()) {
+            labels[i] = toUpperAscii(entry.getKey());
+            counts[i] = entry.getValue().value;
+            i++;
+        }
+        return buildExtras(labels, counts);
+    }
+
+    /** Builds the extras bundle. Overridden by tests. */
+    Bundle buildExtras(String[] labels, int[] counts) {
+        return FastScrollingIndexCache.buildExtraBundle(labels, counts);
+    }
+
+    /** Returns the section label for a display name. Overridden by tests. */
+    String getLabel(String displayName) {
+        return mLocaleUtils.getLabel(displayName);
+    }
+
+    /**
+     * Returns display names by row ID of the indexed users among the given
+     * rows, or of all indexed users if ids is null. Must not be called with
+     * the lock held. Overridden by tests.
+     */
+    Map<Long, String> query(SQLiteDatabase db, long[] ids) {
+        String selection = SELECTION;
+        if (ids != null) {
+            // IDs are numbers, no need for escaping
+            StringBuilder where = new StringBuilder(Users._ID + " IN (");
+            for (int i = 0; i < ids.length; i++) {
+                if (i > 0)
+                    where.append(',');
+                where.append(ids[i]);
+            }
+            where.append(") AND ").append(SELECTION);
+            selection = where.toString();
+        }
+
+        Map<Long, String> names = new LinkedHashMap<>();
+        Cursor c = db.query(UsersProvider.TABLE_USERS,
+            new String[] { Users._ID, Users.DISPLAY_NAME },
+            selection, null, null, null, null);
+        try {
+            while (c.moveToNext())
+                names.put(c.getLong(0), c.getString(1));
+        }
+        finally {
+            c.close();
+        }
+        return names;
+    }
+
+    private void add(Map<Long, String> rows, TreeMap<String, Counter> sections,
+            long id, String displayName) {
+        String section = toLowerAscii(displayName != null ?
+            getLabel(displayName) : "");
+        rows.put(id, section);
+
+        Counter counter = sections.get(section);
+        if (counter == null) {
+            counter = new Counter();
+            sections.put(section, counter);
+        }
+        counter.value++;
+    }
+
+    private void remove(long id) {
+        String section = mRows.remove(id);
+        if (section != null) {
+            Counter counter = mSections.get(section);
+            if (--counter.value == 0)
+                mSections.remove(section);
+        }
+    }
+
+    /** Folds ASCII letters only, like SQLite NOCASE collation. */
+    private static String toLowerAscii(String s) {
+        char[] chars = null;
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if (ch >= 'A' && ch <= 'Z') {
+                if (chars == null)
+                    chars = s.toCharArray();
+                chars[i] = (char) (ch + ('a' - 'A'));
+            }
+        }
+        return chars != null ? new String(chars) : s;
+    }
+
+    private static String toUpperAscii(String s) {
+        char[] chars = null;
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if (ch >= 'a' && ch <= 'z') {
+                if (chars == null)
+                    chars = s.toCharArray();
+                chars[i] = (char) (ch - ('a' - 'A'));
+            }
+        }
+        return chars != null ? new String(chars) : s;
+    }
+
+}
@@ -27,7 +27,7 @@ public interface DownloadListener {
      * Called when then download is about to start.
      * @param url
      * @param destination
-     * @param length the declared Content-Length
+     * @param length the total length, including any resumed data
      */
     public void start(String url, File destination, long length);
 
@@ -39,6 +39,15 @@ public interface DownloadListener {
      */
     public void progress(String url, File destination, long bytes);
 
+    /**
+     * Called when downloaded data has been safely stored, so that an
+     * interrupted download can be resumed from the given offset.
+     * @param url
+     * @param destination
+     * @param offset how many bytes have been stored so far
+     */
+    public void checkpoint(String url, File destination, long offset);
+
     /**
      * Called when the download has been completed.
      * @param url
@@ -0,0 +1,298 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service;
+
+import java.io.File;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Scheduling state of the attachment downloads.
+ * Tasks are picked by priority first and then by enqueue order, honoring a
+ * maximum number of concurrent transfers both globally and per host. This
+ * class only keeps track of what should run: the actual transfers are
+ * carried out by {@link DownloadService}.
+ * @author Daniele Ricci
+ */
+public class DownloadQueue {
+
+    /** Default priority for background downloads. */
+    public static final int PRIORITY_NORMAL = 0;
+    /** Priority for downloads of messages visible on screen. */
+    public static final int PRIORITY_VISIBLE = 10;
+
+    public static final int STATE_QUEUED = 0;
+    public static final int STATE_RUNNING = 1;
+    public static final int STATE_PAUSED = 2;
+    public static final int STATE_CANCELED = 3;
+
+    private final int mMaxConcurrent;
+    private final int mMaxPerHost;
+
+    private final Map<String, Task> mTasks = new LinkedHashMap<>();
+    private final Map<String, Integer> mHostSlots = new HashMap<>();
+    private int mActive;
+    private long mSequence;
+
+    public DownloadQueue(int maxConcurrent, int maxPerHost) {
+        if (maxConcurrent < 1 || maxPerHost < 1)
+            throw new IllegalArgumentException("at least one transfer must be allowed");
+        mMaxConcurrent = maxConcurrent;
+        mMaxPerHost = maxPerHost;
+    }
+
+    /**
+     * Enqueues a new download.
+     * If the URL is already known, the existing task is resumed if paused
+     * and its priority is raised if needed.
+     * @return the new task, or null if the download was already queued
+     */
+    public synchronized Task add(String url, long messageId, String peer,
+            boolean encrypted, long timestamp, int priority) {
+        Task task = mTasks.get(url);
+        if (task != null) {
+            if (task.state == STATE_PAUSED)
+                task.state = STATE_QUEUED;
+            if (priority > task.priority)
+                task.priority = priority;
+            return null;
+        }
+
+        task = new Task(url, messageId, peer, encrypted, timestamp);
+        task.priority = priority;
+        task.sequence = mSequence++;
+        mTasks.put(url, task);
+        return task;
+    }
+
+    /**
+     * Picks the next task to run and marks it as running.
+     * @return the task to start, or null if nothing can run right now
+     */
+    public synchronized Task next() {
+        if (mActive >= mMaxConcurrent)
+            return null;
+
+        Task best = null;
+        for (Task task : mTasks.values()) {
+            if (task.state != STATE_QUEUED || task.active)
+                continue;
+            if (getHostSlots(task.host) >= mMaxPerHost)
+                continue;
+            if (best == null || task.priority > best.priority ||
+                    (task.priority == best.priority && task.sequence < best.sequence))
+                best = task;
+        }
+
+        if (best != null) {
+            best.state = STATE_RUNNING;
+            best.active = true;
+            mActive++;
+            mHostSlots.put(best.host, getHostSlots(best.host) + 1);
+        }
+        return best;
+    }
+
+    /**
+     * Releases the transfer slot held by a task whose worker has terminated.
+     * Completed, failed and canceled tasks are removed; paused tasks are
+     * kept so they can be resumed later.
+     */
+    public synchronized void release(Task task) {
+        if (task.active) {
+            task.active = false;
+            mActive--;
+            int slots = getHostSlots(task.host) - 1;
+            if (slots > 0)
+                mHostSlots.put(task.host, slots);
+            else
+                mHostSlots.remove(task.host);
+        }
+
+        if (task.state == STATE_RUNNING || task.state == STATE_CANCELED) {
+            if (mTasks.get(task.url) == task)
+                mTasks.remove(task.url);
+        }
+    }
+
+    /**
+     * Pauses a download.
+     * @return the task if its transfer must be interrupted, null otherwise
+     */
+    public synchronized Task pause(String url) {
+        Task task = mTasks.get(url);
+        if (task != null && task.state != STATE_PAUSED) {
+            task.state = STATE_PAUSED;
+            return task.active ? task : null;
+        }
+        return null;
+    }
+
+    /** Resumes a paused download. */
+    public synchronized boolean resume(String url) {
+        Task task = mTasks.get(url);
+        if (task != null && task.state == STATE_PAUSED) {
+            task.state = STATE_QUEUED;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes a download from the queue.
+     * @return the task if its transfer must be interrupted, null otherwise
+     */
+    public synchronized Task cancel(String url) {
+        Task task = mTasks.remove(url);
+        if (task != null) {
+            task.state = STATE_CANCELED;
+            return task.active ? task : null;
+        }
+        return null;
+    }
+
+    /** Changes the priority of a queued download. */
+    public synchronized boolean setPriority(String url, int priority) {
+        Task task = mTasks.get(url);
+        if (task != null) {
+            task.priority = priority;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized Task get(String url) {
+        return mTasks.get(url);
+    }
+
+    public synchronized boolean contains(String url) {
+        return mTasks.containsKey(url);
+    }
+
+    public synchronized boolean isPaused(String url) {
+        Task task = mTasks.get(url);
+        return task != null && task.state == STATE_PAUSED;
+    }
+
+    /** Returns true if there are downloads running or waiting to run. */
+    public synchronized boolean hasPending() {
+        if (mActive > 0)
+            return true;
+        for (Task task : mTasks.values()) {
+            if (task.state == STATE_QUEUED)
+                return true;
+        }
+        return false;
+    }
+
+    /** Aggregates the progress of all running and queued downloads. */
+    public synchronized Progress getProgress() {
+        Progress p = new Progress();
+        for (Task task : mTasks.values()) {
+            if (task.state == STATE_PAUSED)
+                continue;
+
+            p.count++;
+            if (task.state == STATE_RUNNING) {
+                p.running++;
+                long length = task.length;
+                if (length > 0) {
+                    p.bytes += Math.min(task.bytes, length);
+                    p.length += length;
+                }
+                else {
+                    p.indeterminate = true;
+                }
+            }
+        }
+        if (p.running == 0 || p.length <= 0)
+            p.indeterminate = true;
+        return p;
+    }
+
+    private int getHostSlots(String host) {
+        Integer slots = mHostSlots.get(host);
+        return slots != null ? slots : 0;
+    }
+
+    static String getHost(String url) {
+        try {
+            String host = new URI(url).getHost();
+            if (host != null)
+                return host.toLowerCase();
+        }
+        catch (Exception ignored) {
+        }
+        return "";
+    }
+
+    /** A download task. Transfer fields are updated by the worker. */
+    public static final class Task {
+        public final String url;
+        public final String host;
+        public final long messageId;
+        public final String peer;
+        public final boolean encrypted;
+        public final long timestamp;
+
+        volatile int state = STATE_QUEUED;
+        int priority;
+        long sequence;
+        /** True while a worker is holding a transfer slot for this task. */
+        boolean active;
+
+        public volatile File destination;
+        public volatile long bytes;
+        public volatile long length;
+
+        Task(String url, long messageId, String peer, boolean encrypted, long timestamp) {
+            this.url = url;
+            this.host = getHost(url);
+            this.messageId = messageId;
+            this.peer = peer;
+            this.encrypted = encrypted;
+            this.timestamp = timestamp;
+        }
+
+        public int getState() {
+            return state;
+        }
+    }
+
+    /** Aggregated progress of the download queue. */
+    public static final class Progress {
+        /** Number of downloads not paused. */
+        public int count;
+        /** Number of downloads currently transferring. */
+        public int running;
+        public long bytes;
+        public long length;
+        /** True if the total length of the running downloads is unknown. */
+        public boolean indeterminate;
+
+        public int getPercent() {
+            return indeterminate ? -1 : (int) ((100 * bytes) / length);
+        }
+    }
+
+}
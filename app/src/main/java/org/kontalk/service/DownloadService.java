@@ -16,12 +16,8 @@
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
-package org.kontalk.service;
 
-/*
- * TODO instead of using a notification ID per type, use a notification ID per
- * download.
- */
+package org.kontalk.service;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -30,26 +26,34 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
 import java.util.Date;
-import java.util.LinkedHashMap;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import android.app.IntentService;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.app.Service;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Process;
 import android.support.v4.app.NotificationCompat;
-import android.util.Log;
 
 import org.kontalk.Kontalk;
+import org.kontalk.Log;
 import org.kontalk.R;
 import org.kontalk.client.ClientHTTPConnection;
 import org.kontalk.client.EndpointServer;
@@ -57,6 +61,7 @@ import org.kontalk.crypto.Coder;
 import org.kontalk.crypto.DecryptException;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.message.CompositeMessage;
+import org.kontalk.provider.MessagesProvider;
 import org.kontalk.provider.MyMessages.Messages;
 import org.kontalk.provider.UsersProvider;
 import org.kontalk.service.msgcenter.MessageCenterService;
@@ -64,8 +69,11 @@ import org.kontalk.ui.ConversationsActivity;
 import org.kontalk.ui.MessagingNotification;
 import org.kontalk.ui.ProgressNotificationBuilder;
 import org.kontalk.util.MediaStorage;
+import org.kontalk.util.MessageUtils;
 import org.kontalk.util.Preferences;
 import org.kontalk.util.StepTimer;
+import org.kontalk.util.metrics.Metrics;
+import org.kontalk.util.metrics.TransferMeter;
 
 import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_DOWNLOADING;
 import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_DOWNLOAD_ERROR;
@@ -75,151 +83,207 @@ import static org.kontalk.ui.MessagingNotification.NOTIFICATION_UPDATE_DELAY;
 
 /**
  * The attachment download service.
- * TODO implement multiple downloads in queue or in parallel
+ * Downloads are scheduled by a {@link DownloadQueue} and run in parallel,
+ * each one with its own {@link ClientHTTPConnection}. A single foreground
+ * notification reports the aggregated progress of all transfers.
  * @author Daniele Ricci
  */
-public class DownloadService extends IntentService implements DownloadListener {
+public class DownloadService extends Service {
     private static final String TAG = MessageCenterService.TAG;
 
-    /** A map to avoid duplicate downloads. */
-    private static final Map<String, Long> sQueue = new LinkedHashMap<>();
+    /** Maximum number of concurrent downloads. */
+    private static final int MAX_CONCURRENT_DOWNLOADS = 3;
+    /** Maximum number of concurrent downloads from the same host. */
+    private static final int MAX_HOST_DOWNLOADS = 2;
+
+    /** The download queue, also used to avoid duplicate downloads. */
+    private static final DownloadQueue sQueue = new DownloadQueue(
+        MAX_CONCURRENT_DOWNLOADS, MAX_HOST_DOWNLOADS);
 
     public static final String ACTION_DOWNLOAD_URL = "org.kontalk.action.DOWNLOAD_URL";
     public static final String ACTION_DOWNLOAD_ABORT = "org.kontalk.action.DOWNLOAD_ABORT";
+    public static final String ACTION_DOWNLOAD_PAUSE = "org.kontalk.action.DOWNLOAD_PAUSE";
+    public static final String ACTION_DOWNLOAD_RESUME = "org.kontalk.action.DOWNLOAD_RESUME";
+
+    /** Partial files of unfinished downloads, by message id and URL hash. */
+    private static final String PARTIAL_FILENAME_FORMAT = ".download_%d_%s.part";
+
+    /** Download priority. Use with ACTION_DOWNLOAD_URL. */
+    public static final String EXTRA_PRIORITY = "org.kontalk.download.PRIORITY";
 
     private ProgressNotificationBuilder mNotificationBuilder;
     private NotificationManager mNotificationManager;
+    private boolean mForeground;
 
-    // data about the download currently being processed
-    private Notification mCurrentNotification;
-    private long mTotalBytes;
     /** Step timer for notification updates. */
-    private StepTimer mUpdateTimer = new StepTimer(NOTIFICATION_UPDATE_DELAY);
+    private final StepTimer mUpdateTimer = new StepTimer(NOTIFICATION_UPDATE_DELAY);
 
-    private long mMessageId;
-    private String mPeer;
-    private boolean mEncrypted;
+    private ExecutorService mExecutor;
+    private Handler mHandler;
+    private int mLastStartId;
 
-    private ClientHTTPConnection mDownloadClient;
-    private boolean mCanceled;
+    /** Running workers by URL, used to interrupt transfers. */
+    private final Map<String, DownloadWorker> mWorkers = new HashMap<>();
 
-    public DownloadService() {
-        super(DownloadService.class.getSimpleName());
-    }
+    private PrivateKey mPrivateKey;
+    private X509Certificate mCertificate;
 
     @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
-        if (mNotificationManager == null)
-            mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-
-        if (ACTION_DOWNLOAD_ABORT.equals(intent.getAction())) {
-            final Uri uri = intent.getData();
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    onDownloadAbort(uri);
-                }
-            }).start();
-        }
-
-        return super.onStartCommand(intent, flags, startId);
+    public void onCreate() {
+        super.onCreate();
+        mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        mHandler = new Handler();
+        mExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_DOWNLOADS, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, DownloadService.class.getSimpleName() + " #" + mCount.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
     }
 
     @Override
-    protected void onHandleIntent(Intent intent) {
-        String action = intent.getAction();
-
-        if (ACTION_DOWNLOAD_URL.equals(action)) {
-            onDownloadURL(intent.getData(), intent.getExtras());
-        }
+    public void onDestroy() {
+        super.onDestroy();
+        mExecutor.shutdown();
     }
 
-    private void onDownloadURL(Uri uri, Bundle args) {
-        String url = uri.toString();
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
 
-        // check if download has already been queued
-        if (sQueue.get(url) != null) return;
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        mLastStartId = startId;
 
-        // notify user about download immediately
-        startForeground(0);
-        mCanceled = false;
+        // all actions require a download URL
+        if (intent != null && intent.getData() != null) {
+            String action = intent.getAction();
+            Uri uri = intent.getData();
 
-        if (mDownloadClient == null) {
-            PersonalKey key;
-            PrivateKey privateKey;
-            try {
-                key = ((Kontalk) getApplication()).getPersonalKey();
-                privateKey = key.getBridgePrivateKey();
+            if (ACTION_DOWNLOAD_URL.equals(action)) {
+                onDownloadURL(uri, intent.getExtras());
             }
-            catch (Exception e) {
-                // TODO i18n :)
-                errorNotification("ERROR", "NAUGHTY BOY/GIRL!");
-                return;
+            else if (ACTION_DOWNLOAD_ABORT.equals(action)) {
+                onDownloadAbort(uri);
+            }
+            else if (ACTION_DOWNLOAD_PAUSE.equals(action)) {
+                onDownloadPause(uri);
             }
+            else if (ACTION_DOWNLOAD_RESUME.equals(action)) {
+                sQueue.resume(uri.toString());
+            }
+        }
+
+        schedule();
+        return START_NOT_STICKY;
+    }
 
-            mDownloadClient = new ClientHTTPConnection(this,
-                privateKey, key.getBridgeCertificate());
+    private void onDownloadURL(Uri uri, Bundle args) {
+        // check if external storage is available
+        if (!MediaStorage.isExternalStorageAvailable()) {
+            errorNotification(getString(R.string.notify_ticker_external_storage),
+                getString(R.string.notify_text_external_storage));
+            return;
         }
 
-        try {
-            // check if external storage is available
-            if (!MediaStorage.isExternalStorageAvailable()) {
-                errorNotification(getString(R.string.notify_ticker_external_storage),
-                    getString(R.string.notify_text_external_storage));
-                return;
-            }
+        long msgId = args.getLong(CompositeMessage.MSG_ID, 0);
+        String peer = args.getString(CompositeMessage.MSG_SENDER);
+        boolean encrypted = args.getBoolean(CompositeMessage.MSG_ENCRYPTED, false);
+        long timestamp = args.getLong(CompositeMessage.MSG_TIMESTAMP);
+        int priority = args.getInt(EXTRA_PRIORITY, DownloadQueue.PRIORITY_NORMAL);
 
-            // make sure storage directory is present
-            MediaStorage.MEDIA_ROOT.mkdirs();
+        // duplicate downloads will just be resumed or prioritized
+        sQueue.add(uri.toString(), msgId, peer, encrypted, timestamp, priority);
+    }
 
-            mMessageId = args.getLong(CompositeMessage.MSG_ID, 0);
-            mPeer = args.getString(CompositeMessage.MSG_SENDER);
-            mEncrypted = args.getBoolean(CompositeMessage.MSG_ENCRYPTED, false);
-            sQueue.put(url, mMessageId);
+    private void onDownloadAbort(Uri uri) {
+        String url = uri.toString();
+        final DownloadQueue.Task task = sQueue.get(url);
+        if (sQueue.cancel(url) != null) {
+            // worker will clean up
+            interrupt(task);
+        }
+        else if (task != null) {
+            // discard data of the paused download
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    discard(task);
+                }
+            }).start();
+        }
+    }
+
+    private void onDownloadPause(Uri uri) {
+        interrupt(sQueue.pause(uri.toString()));
+    }
 
-            Date date = null;
-            long timestamp = args.getLong(CompositeMessage.MSG_TIMESTAMP);
-            if (timestamp > 0)
-                date = new Date(timestamp);
+    private void interrupt(DownloadQueue.Task task) {
+        if (task != null) {
+            final DownloadWorker worker = mWorkers.get(task.url);
+            if (worker != null) {
+                // disconnecting might block on network
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        worker.abort();
+                    }
+                }).start();
+            }
+        }
+    }
 
-            // download content
-            mDownloadClient.downloadAutofilename(url, MediaStorage.MEDIA_ROOT, date, this);
+    /** Starts as many downloads as the queue allows. Main thread only. */
+    private void schedule() {
+        DownloadQueue.Task task;
+        while ((task = sQueue.next()) != null) {
+            DownloadWorker worker = new DownloadWorker(task);
+            mWorkers.put(task.url, worker);
+            mExecutor.execute(worker);
         }
-        catch (Exception e) {
-            error(url, null, e);
+
+        if (sQueue.hasPending()) {
+            updateForeground(true);
         }
-        finally {
-            sQueue.remove(url);
-            mMessageId = 0;
-            mPeer = null;
+        else {
+            stopForeground();
+            stopSelf(mLastStartId);
         }
     }
 
-    private void onDownloadAbort(Uri uri) {
-        String url = uri.toString();
-        Long msgId = sQueue.get(url);
-        if (msgId != null) {
-            // interrupt worker if running
-            if (msgId == mMessageId) {
-                mDownloadClient.abort();
-                mCanceled = true;
+    /** Called by workers on termination. */
+    private void finished(final DownloadQueue.Task task) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mWorkers.remove(task.url);
+                sQueue.release(task);
+                schedule();
             }
-            // remove from queue - will never be processed
-            else
-                sQueue.remove(url);
-        }
+        });
     }
 
-    public void startForeground(long totalBytes) {
-        Log.d(TAG, "starting foreground progress notification");
-        mTotalBytes = totalBytes;
+    private synchronized void updateForeground(boolean force) {
+        if (!force && !mUpdateTimer.isStep())
+            return;
 
-        Intent ni = new Intent(getApplicationContext(), ConversationsActivity.class);
-        // FIXME this intent should actually open the ComposeMessage activity
-        PendingIntent pi = PendingIntent.getActivity(getApplicationContext(),
+        if (mNotificationBuilder == null) {
+            Intent ni = new Intent(getApplicationContext(), ConversationsActivity.class);
+            // FIXME this intent should actually open the ComposeMessage activity
+            PendingIntent pi = PendingIntent.getActivity(getApplicationContext(),
                 NOTIFICATION_ID_DOWNLOADING, ni, 0);
 
-        if (mNotificationBuilder == null) {
             mNotificationBuilder = new ProgressNotificationBuilder(getApplicationContext(),
                 R.layout.progress_notification,
                 getString(R.string.downloading_attachment),
@@ -227,53 +291,70 @@ public class DownloadService extends IntentService implements DownloadListener {
                 pi);
         }
 
-        // if we don't know the content length yet, start an interminate progress
-        foregroundNotification(totalBytes > 0 ? 0 : -1);
-        startForeground(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
-    }
+        DownloadQueue.Progress progress = sQueue.getProgress();
+        CharSequence text = progress.count > 1 ?
+            getResources().getQuantityString(R.plurals.downloading_attachments,
+                progress.count, progress.count) :
+            getString(R.string.downloading_attachment);
 
-    private void foregroundNotification(int progress) {
-        mCurrentNotification = mNotificationBuilder
-            .progress(progress,
-                R.string.attachment_download,
-                R.string.downloading_attachment)
+        Notification notification = mNotificationBuilder
+            .progress(progress.getPercent(),
+                getString(R.string.attachment_download), text)
             .build();
+
+        if (!mForeground) {
+            Log.d(TAG, "starting foreground progress notification");
+            startForeground(NOTIFICATION_ID_DOWNLOADING, notification);
+            mForeground = true;
+        }
+        else {
+            // send the updates to the notification manager
+            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOADING, notification);
+        }
     }
 
-    public void stopForeground() {
-        stopForeground(true);
-        mCurrentNotification = null;
-        mTotalBytes = 0;
+    private synchronized void stopForeground() {
+        if (mForeground) {
+            stopForeground(true);
+            mForeground = false;
+        }
     }
 
-    @Override
-    public void start(String url, File destination, long length) {
-        mUpdateTimer.reset();
-        startForeground(length);
+    private static File getPartialFile(DownloadQueue.Task task) {
+        // message id might be unknown, the URL makes it unique
+        return new File(MediaStorage.MEDIA_ROOT, String.format(PARTIAL_FILENAME_FORMAT,
+            task.messageId, MessageUtils.sha1(task.url)));
     }
 
-    @Override
-    public void completed(String url, String mime, File destination) {
+    /** Deletes partial data of a download. */
+    private void discard(DownloadQueue.Task task) {
+        getPartialFile(task).delete();
+        if (task.messageId > 0)
+            MessagesProvider.setTransferOffset(this, task.messageId, 0);
+    }
+
+    private synchronized ClientHTTPConnection createClient() throws Exception {
+        if (mPrivateKey == null) {
+            PersonalKey key = ((Kontalk) getApplication()).getPersonalKey();
+            mPrivateKey = key.getBridgePrivateKey();
+            mCertificate = key.getBridgeCertificate();
+        }
+        return new ClientHTTPConnection(this, mPrivateKey, mCertificate);
+    }
+
+    private void completed(DownloadQueue.Task task, String mime, File destination) {
         Uri uri = Uri.fromFile(destination);
 
         ContentValues values = null;
 
         // encrypted file?
-        if (mEncrypted) {
-            mCurrentNotification = mNotificationBuilder
-                .progress(-1,
-                    R.string.attachment_download,
-                    R.string.decrypting_attachment)
-                .build();
-            // send the updates to the notification manager
-            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
-
+        if (task.encrypted) {
             InputStream in = null;
             OutputStream out = null;
             try {
                 EndpointServer server = Preferences.getEndpointServer(this);
                 PersonalKey key = ((Kontalk) getApplicationContext()).getPersonalKey();
-                Coder coder = UsersProvider.getDecryptCoder(this, server, key, mPeer);
+                Coder coder = UsersProvider.getDecryptCoder(this, server, key, task.peer);
                 if (coder != null) {
                     in = new FileInputStream(destination);
 
@@ -321,19 +402,18 @@ public class DownloadService extends IntentService implements DownloadListener {
 
         // update messages.localUri
         if (values == null)
-            values = new ContentValues(1);
+            values = new ContentValues(2);
         values.put(Messages.ATTACHMENT_LOCAL_URI, uri.toString());
+        // download is not resumable anymore
+        values.put(Messages.ATTACHMENT_OFFSET, 0);
         getContentResolver().update(ContentUris
-            .withAppendedId(Messages.CONTENT_URI, mMessageId), values, null, null);
+            .withAppendedId(Messages.CONTENT_URI, task.messageId), values, null, null);
 
         // update media store
         MediaStorage.scanFile(this, destination, mime);
 
-        // stop foreground
-        stopForeground();
-
         // notify only if conversation is not open
-        if (!MessagingNotification.isPaused(mPeer)) {
+        if (!MessagingNotification.isPaused(task.peer)) {
 
             // detect mime type if not available
             if (mime == null)
@@ -361,15 +441,6 @@ public class DownloadService extends IntentService implements DownloadListener {
         }
     }
 
-    @Override
-    public void error(String url, File destination, Throwable exc) {
-        Log.e(TAG, "download error", exc);
-        stopForeground();
-        if (!mCanceled)
-            errorNotification(getString(R.string.notify_ticker_download_error),
-                getString(R.string.notify_text_download_error));
-    }
-
     private void errorNotification(String ticker, String text) {
         // create intent for download error notification
         Intent i = new Intent(this, ConversationsActivity.class);
@@ -392,17 +463,156 @@ public class DownloadService extends IntentService implements DownloadListener {
         mNotificationManager.notify(NOTIFICATION_ID_DOWNLOAD_ERROR, builder.build());
     }
 
-    @Override
-    public void progress(String url, File destination, long bytes) {
-        if (mCurrentNotification != null && (bytes >= mTotalBytes || mUpdateTimer.isStep())) {
-            int progress = (int) ((100 * bytes) / mTotalBytes);
-            foregroundNotification(progress);
-            // send the updates to the notification manager
-            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
-        }
+    /** Returns true if the given URL is being downloaded, queued or paused. */
+    public static boolean isQueued(String url) {
+        return sQueue.contains(url);
     }
 
-    public static boolean isQueued(String url) {
-        return sQueue.containsKey(url);
+    public static boolean isPaused(String url) {
+        return sQueue.isPaused(url);
     }
+
+    /**
+     * Raises the priority of a queued download, e.g. because its message is
+     * visible on screen. It doesn't affect downloads already running.
+     */
+    public static void prioritize(String url) {
+        sQueue.setPriority(url, DownloadQueue.PRIORITY_VISIBLE);
+    }
+
+    /**
+     * Restores the normal priority of a queued download, e.g. because its
+     * message has been scrolled off screen.
+     */
+    public static void deprioritize(String url) {
+        sQueue.setPriority(url, DownloadQueue.PRIORITY_NORMAL);
+    }
+
+    /** Runs a single download. */
+    private final class DownloadWorker implements Runnable, DownloadListener {
+        private final DownloadQueue.Task mTask;
+        private final TransferMeter mMeter = Metrics.downloadMeter();
+        private ClientHTTPConnection mClient;
+
+        public DownloadWorker(DownloadQueue.Task task) {
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                // make sure storage directory is present
+                MediaStorage.MEDIA_ROOT.mkdirs();
+
+                ClientHTTPConnection client;
+                try {
+                    client = createClient();
+                }
+                catch (Exception e) {
+                    // TODO i18n :)
+                    errorNotification("ERROR", "NAUGHTY BOY/GIRL!");
+                    return;
+                }
+
+                synchronized (this) {
+                    // already interrupted
+                    if (isInterrupted()) {
+                        if (isCanceled())
+                            discard(mTask);
+                        return;
+                    }
+                    mClient = client;
+                }
+
+                // resume from the last checkpoint, if any
+                File partial = getPartialFile(mTask);
+                long offset = (mTask.messageId > 0 && partial.isFile()) ?
+                    MessagesProvider.getTransferOffset(DownloadService.this, mTask.messageId) : 0;
+
+                Date date = mTask.timestamp > 0 ? new Date(mTask.timestamp) : null;
+                client.downloadAutofilename(mTask.url, MediaStorage.MEDIA_ROOT, date,
+                    partial, offset, this);
+            }
+            catch (Exception e) {
+                error(mTask.url, mTask.destination, e);
+            }
+            finally {
+                finished(mTask);
+            }
+        }
+
+        public void abort() {
+            ClientHTTPConnection client;
+            synchronized (this) {
+                client = mClient;
+            }
+            if (client != null)
+                client.abort();
+        }
+
+        private boolean isInterrupted() {
+            return mTask.getState() != DownloadQueue.STATE_RUNNING;
+        }
+
+        private boolean isCanceled() {
+            return mTask.getState() == DownloadQueue.STATE_CANCELED;
+        }
+
+        @Override
+        public void start(String url, File destination, long length) {
+            mTask.destination = destination;
+            mTask.length = length;
+            mTask.bytes = 0;
+            mMeter.start();
+            updateForeground(true);
+        }
+
+        @Override
+        public void progress(String url, File destination, long bytes) {
+            mTask.bytes = bytes;
+            mMeter.progress(bytes);
+            if (isInterrupted()) {
+                // stop writing as soon as possible
+                abort();
+            }
+            else {
+                updateForeground(false);
+            }
+        }
+
+        @Override
+        public void checkpoint(String url, File destination, long offset) {
+            if (mTask.messageId > 0)
+                MessagesProvider.setTransferOffset(DownloadService.this, mTask.messageId, offset);
+        }
+
+        @Override
+        public void completed(String url, String mime, File destination) {
+            if (!isCanceled()) {
+                mMeter.completed();
+                DownloadService.this.completed(mTask, mime, destination);
+            }
+            else {
+                destination.delete();
+                discard(mTask);
+            }
+        }
+
+        @Override
+        public void error(String url, File destination, Throwable exc) {
+            // keep partial data for resuming later, unless canceled
+            if (isCanceled())
+                discard(mTask);
+
+            if (isInterrupted()) {
+                Log.d(TAG, "download interrupted: {}", url);
+            }
+            else {
+                Log.e(TAG, "download error", exc);
+                errorNotification(getString(R.string.notify_ticker_download_error),
+                    getString(R.string.notify_text_download_error));
+            }
+        }
+    }
+
 }
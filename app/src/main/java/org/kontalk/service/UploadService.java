@@ -26,11 +26,14 @@ import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_UPLOADING;
 import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_UPLOAD_ERROR;
 import static org.kontalk.ui.MessagingNotification.NOTIFICATION_UPDATE_DELAY;
 
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.kontalk.Kontalk;
+import org.kontalk.Log;
 import org.kontalk.R;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.provider.MessagesProvider;
@@ -39,8 +42,12 @@ import org.kontalk.ui.ConversationsActivity;
 import org.kontalk.ui.ProgressNotificationBuilder;
 import org.kontalk.upload.KontalkBoxUploadConnection;
 import org.kontalk.upload.UploadConnection;
+import org.kontalk.upload.UploadRejectedException;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.StepTimer;
+import org.kontalk.util.metrics.MessageTracer;
+import org.kontalk.util.metrics.Metrics;
+import org.kontalk.util.metrics.TransferMeter;
 
 import android.app.IntentService;
 import android.app.Notification;
@@ -50,7 +57,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.support.v4.app.NotificationCompat;
-import android.util.Log;
 
 
 /**
@@ -61,6 +67,9 @@ import android.util.Log;
 public class UploadService extends IntentService implements ProgressListener {
     private static final String TAG = MessageCenterService.TAG;
 
+    /** Encrypted data of resumable uploads. */
+    private static final String SPOOL_FILENAME_FORMAT = "upload_%d.enc";
+
     /** A map to avoid duplicate uploads. */
     private static final Map<String, Long> queue = new LinkedHashMap<String, Long>();
 
@@ -93,6 +102,7 @@ public class UploadService extends IntentService implements ProgressListener {
     private long mTotalBytes;
     /** Step timer for notification updates. */
     private StepTimer mUpdateTimer = new StepTimer(NOTIFICATION_UPDATE_DELAY);
+    private final TransferMeter mMeter = Metrics.uploadMeter();
 
     private long mMessageId;
     private UploadConnection mConn;
@@ -156,10 +166,15 @@ public class UploadService extends IntentService implements ProgressListener {
         // check if upload has already been queued
         if (queue.get(filename) != null) return;
 
+        // state of a previous attempt, if any
+        MessageResumeState state = new MessageResumeState(databaseId);
+        boolean completed = false;
+        boolean permanent = false;
+
         try {
             // notify user about upload immediately
             long length = MediaStorage.getLength(this, file);
-            Log.v(TAG, "file size is " + length + " bytes");
+            Log.v(TAG, "file size is {} bytes", length);
 
             mTotalBytes = length;
             startForeground(0);
@@ -170,8 +185,15 @@ public class UploadService extends IntentService implements ProgressListener {
             if (compress > 0) {
                 if (mime.startsWith("image/")) {
                     try {
-                        mCompressed = MediaStorage
-                            .resizeImage(this, file, databaseId, compress);
+                        // reuse the compressed image prepared by the sender
+                        // or by an interrupted upload
+                        mCompressed = MediaStorage.getCompressedImageFile(this, databaseId);
+                        if (!mCompressed.isFile()) {
+                            mCompressed = MediaStorage
+                                .resizeImage(this, file, databaseId, compress);
+                            // new data can't be appended to the old upload
+                            state.reset();
+                        }
                         mTotalBytes = length = mCompressed.length();
                         // update mime and file with the new compressed image
                         file = Uri.fromFile(mCompressed);
@@ -196,8 +218,9 @@ public class UploadService extends IntentService implements ProgressListener {
             queue.put(filename, mMessageId);
 
             // upload content
-            String mediaUrl = mConn.upload(file, mime, encrypt, to, this);
-            Log.d(TAG, "uploaded with media URL: " + mediaUrl);
+            String mediaUrl = mConn.upload(file, mime, encrypt, to, state, this);
+            Log.d(TAG, "uploaded with media URL: {}", mediaUrl);
+            MessageTracer.mark(msgId, MessageTracer.STAGE_UPLOADED);
 
             // update message fetch_url
             MessagesProvider.uploaded(this, databaseId, mediaUrl);
@@ -207,25 +230,47 @@ public class UploadService extends IntentService implements ProgressListener {
                 previewPath, mediaUrl, encrypt, databaseId, msgId);
 
             // end operations
+            completed = true;
             completed();
         }
         catch (Exception e) {
             error(url, null, e);
+            permanent = isPermanentError(e);
         }
         finally {
             queue.remove(filename);
             mMessageId = 0;
-            try {
-                // delete compressed file (if any)
-                mCompressed.delete();
-            }
-            catch (Exception e) {
-                // ignored
+            // keep data around if the upload can be resumed later
+            if (completed || mCanceled || permanent) {
+                try {
+                    // delete compressed file (if any)
+                    mCompressed.delete();
+                }
+                catch (Exception e) {
+                    // ignored
+                }
+                state.discard();
+                if (permanent)
+                    state.save(null, 0);
             }
             mCompressed = null;
         }
     }
 
+    /** Returns true if retrying the upload with the same data will not help. */
+    private static boolean isPermanentError(Throwable e) {
+        // errors might be wrapped
+        while (e != null) {
+            // rejected by the server or source data missing or truncated
+            if (e instanceof UploadRejectedException ||
+                    e instanceof FileNotFoundException ||
+                    e instanceof EOFException)
+                return true;
+            e = e.getCause();
+        }
+        return false;
+    }
+
     public void startForeground(long totalBytes) {
         Log.d(TAG, "starting foreground progress notification");
 
@@ -265,10 +310,12 @@ public class UploadService extends IntentService implements ProgressListener {
     @Override
     public void start(UploadConnection conn) {
         mUpdateTimer.reset();
+        mMeter.start();
         startForeground(mTotalBytes);
     }
 
     public void completed() {
+        mMeter.completed();
         stopForeground();
 
         // upload completed - no need for notification
@@ -309,6 +356,7 @@ public class UploadService extends IntentService implements ProgressListener {
 
     @Override
     public void progress(UploadConnection conn, long bytes) {
+        mMeter.progress(bytes);
         if (mCanceled || !MessagesProvider.exists(this, mMessageId)) {
             Log.v(TAG, "upload canceled or message deleted - aborting");
             mConn.abort();
@@ -326,4 +374,41 @@ public class UploadService extends IntentService implements ProgressListener {
     public static boolean isQueued(String url) {
         return queue.containsKey(url);
     }
+
+    /** Resume state of an upload, persisted in the message. */
+    private final class MessageResumeState implements UploadConnection.ResumeState {
+        private final long mDatabaseId;
+        private String mLocation;
+
+        public MessageResumeState(long databaseId) {
+            mDatabaseId = databaseId;
+            mLocation = MessagesProvider.getUploadUrl(UploadService.this, databaseId);
+        }
+
+        @Override
+        public String getLocation() {
+            return mLocation;
+        }
+
+        @Override
+        public File getSpoolFile() {
+            return new File(getCacheDir(), String.format(SPOOL_FILENAME_FORMAT, mDatabaseId));
+        }
+
+        @Override
+        public void save(String location, long offset) {
+            mLocation = location;
+            MessagesProvider.setUploadState(UploadService.this, mDatabaseId, location, offset);
+        }
+
+        /** Forgets the previous upload session. */
+        public void reset() {
+            mLocation = null;
+        }
+
+        /** Deletes data kept for resuming the upload. */
+        public void discard() {
+            getSpoolFile().delete();
+        }
+    }
 }
@@ -25,6 +25,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import com.segment.backo.Backo;
@@ -41,6 +42,8 @@ import org.kontalk.Kontalk;
 import org.kontalk.authenticator.LegacyAuthentication;
 import org.kontalk.client.EndpointServer;
 import org.kontalk.client.KontalkConnection;
+import org.kontalk.client.ServerRacer;
+import org.kontalk.client.ServerStats;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.crypto.X509Bridge;
@@ -51,6 +54,7 @@ import org.kontalk.util.Preferences;
 import org.spongycastle.openpgp.PGPException;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.util.Log;
 
@@ -75,6 +79,11 @@ public class XMPPConnectionHelper extends Thread {
     private EndpointServer mServer;
     private boolean mServerDirty;
 
+    /** Servers we can connect to in place of {@link #mServer}. */
+    private volatile List<EndpointServer> mCandidates;
+    /** Racer for the connection in progress, if any. */
+    private volatile ServerRacer<KontalkConnection> mRacer;
+
     /** Connection retry count for exponential backoff. */
     private int mRetryCount;
     /** Exponential backoff calculator. */
@@ -163,36 +172,25 @@ public class XMPPConnectionHelper extends Thread {
 
         // recreate connection if closed
         if (mConn == null || !mConn.isConnected()) {
+            List<EndpointServer> candidates = mCandidates;
 
-            KeyStore trustStore = null;
-            boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
-            if (!acceptAnyCertificate)
-                trustStore = InternalTrustStore.getTrustStore(mContext);
-
-            String resource = getResource(mContext);
-
-            if (key == null) {
-                mConn = new KontalkConnection(resource, mServer, !USE_STARTTLS,
-                    acceptAnyCertificate, trustStore, token);
+            if (candidates != null && candidates.size() > 1) {
+                // race connections to all servers of the network
+                raceConnect(candidates, key, token);
             }
-
             else {
-                mConn = new KontalkConnection(resource, mServer, !USE_STARTTLS,
-                    key.getBridgePrivateKey(),
-                    key.getBridgeCertificate(),
-                    acceptAnyCertificate,
-                    trustStore, token);
-            }
+                mConn = createConnection(mServer, key, token);
 
-            // apply packet timeout based on retry count
-            mConn.setPacketReplyTimeout((mRetryCount + 1) * KontalkConnection.DEFAULT_PACKET_TIMEOUT);
+                if (mListener != null)
+                    mListener.created(mConn);
 
-            if (mListener != null)
-                mListener.created(mConn);
+                timedConnect(mConn, mServer);
+            }
+        }
+        else {
+            // connect
+            mConn.connect();
         }
-
-        // connect
-        mConn.connect();
 
         if (mListener != null) {
             mConn.addConnectionListener(mListener);
@@ -205,6 +203,111 @@ public class XMPPConnectionHelper extends Thread {
 
     }
 
+    private KontalkConnection createConnection(EndpointServer server, PersonalKey key, String token)
+            throws XMPPException, PGPException, IOException, KeyStoreException,
+            NoSuchProviderException, NoSuchAlgorithmException, CertificateException {
+
+        KeyStore trustStore = null;
+        boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
+        if (!acceptAnyCertificate)
+            trustStore = InternalTrustStore.getTrustStore(mContext);
+
+        String resource = getResource(mContext);
+
+        KontalkConnection conn;
+        if (key == null) {
+            conn = new KontalkConnection(resource, server, !USE_STARTTLS,
+                acceptAnyCertificate, trustStore, token);
+        }
+
+        else {
+            conn = new KontalkConnection(resource, server, !USE_STARTTLS,
+                key.getBridgePrivateKey(),
+                key.getBridgeCertificate(),
+                acceptAnyCertificate,
+                trustStore, token);
+        }
+
+        // apply packet timeout based on retry count
+        conn.setPacketReplyTimeout((mRetryCount + 1) * KontalkConnection.DEFAULT_PACKET_TIMEOUT);
+        return conn;
+    }
+
+    /** Connects to a single server, recording connection statistics. */
+    private void timedConnect(KontalkConnection conn, EndpointServer server)
+            throws XMPPException, SmackException, IOException {
+
+        ServerStats stats = Preferences.getServerStats(mContext);
+        long start = SystemClock.elapsedRealtime();
+        boolean success = false;
+        try {
+            conn.connect();
+            success = true;
+            stats.recordSuccess(server, SystemClock.elapsedRealtime() - start);
+        }
+        finally {
+            // don't blame the server if we were shutting down
+            if (!success && mConnecting)
+                stats.recordFailure(server);
+            Preferences.saveServerStats(mContext);
+        }
+    }
+
+    /**
+     * Races connections to the given servers. The winner becomes the
+     * current connection and server.
+     */
+    private void raceConnect(List<EndpointServer> candidates, final PersonalKey key, final String token)
+            throws XMPPException, SmackException, IOException {
+
+        ServerRacer<KontalkConnection> racer = new ServerRacer<>(
+            new ServerRacer.Connector<KontalkConnection>() {
+                @Override
+                public KontalkConnection create(EndpointServer server) throws Exception {
+                    return createConnection(server, key, token);
+                }
+
+                @Override
+                public void connect(KontalkConnection conn) throws Exception {
+                    conn.connect();
+                }
+
+                @Override
+                public void close(KontalkConnection conn) {
+                    conn.instantShutdown();
+                }
+            }, Preferences.getServerStats(mContext));
+
+        mRacer = racer;
+        try {
+            ServerRacer.Result<KontalkConnection> winner = racer.race(candidates);
+            Log.d(TAG, "connected to " + winner.server + " in " + winner.rtt + " ms");
+
+            mServer = winner.server;
+            mConn = winner.connection;
+
+            if (mListener != null)
+                mListener.created(mConn);
+        }
+        catch (XMPPException e) {
+            throw e;
+        }
+        catch (SmackException e) {
+            throw e;
+        }
+        catch (IOException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            // interrupted or some other error
+            throw new SmackException(e);
+        }
+        finally {
+            mRacer = null;
+            Preferences.saveServerStats(mContext);
+        }
+    }
+
     public void connect() {
         PersonalKey key = null;
 
@@ -371,14 +474,27 @@ public class XMPPConnectionHelper extends Thread {
     /** Sets the server the next time we will connect to. */
     public void setServer(EndpointServer server) {
         mServer = server;
+        mCandidates = null;
         mServerDirty = true;
     }
 
+    /**
+     * Sets the servers that can be used in place of the current one.
+     * If more than one, connections to all of them will be raced.
+     */
+    public void setServerCandidates(List<EndpointServer> candidates) {
+        mCandidates = candidates;
+    }
+
     /** Shuts down this client thread gracefully. */
     public void shutdown() throws NotConnectedException {
         mConnecting = false;
         interrupt();
 
+        ServerRacer<?> racer = mRacer;
+        if (racer != null)
+            racer.cancel();
+
         if (mConn != null)
             mConn.instantShutdown();
     }
@@ -26,6 +26,8 @@ import org.jivesoftware.smack.XMPPConnection;
 
 /**
  * An adaptive ping manager.
+ * Ping intervals are driven by a {@link PingIntervalLearner}, which remembers
+ * the largest safe interval for every network.
  * @author Daniele Ricci
  */
 public abstract class AbstractAdaptiveServerPingManager extends Manager {
@@ -40,26 +42,12 @@ public abstract class AbstractAdaptiveServerPingManager extends Manager {
      * Current ping interval.
      */
     protected long mInterval;
-    /**
-     * Timestamp of last ping success.
-     */
-    protected long mLastSuccess;
-    /**
-     * Last successful ping interval.
-     */
-    protected long mLastSuccessInterval;
-    /**
-     * Interval for the next increase.
-     */
-    protected long mNextIncrease;
-    /**
-     * Successful ping streak. Used for computing when the next increase attempt
-     * will be made.
-     */
-    protected long mPingStreak;
 
-    protected AbstractAdaptiveServerPingManager(XMPPConnection connection) {
+    protected final PingIntervalLearner mLearner;
+
+    protected AbstractAdaptiveServerPingManager(XMPPConnection connection, PingIntervalLearner learner) {
         super(connection);
+        mLearner = learner;
     }
 
     public void setEnabled(boolean enabled) {
@@ -70,79 +58,66 @@ public abstract class AbstractAdaptiveServerPingManager extends Manager {
         return mEnabled;
     }
 
+    public PingIntervalLearner getLearner() {
+        return mLearner;
+    }
+
     public abstract void onConnectionCompleted();
 
     public abstract void onConnectivityChanged();
 
     /**
-     * Called by the ping failed listener.
-     * It will half the interval for the next alarm.
+     * Returns the time since the last stanza was received from the server,
+     * that is how long the connection has been idle. This is what the
+     * network actually tolerated, regardless of when the alarm was scheduled.
+     * @return idle time in milliseconds, 0 if unknown
      */
-    public void pingFailed() {
-        long interval;
-
-        // ping has failed, reset ping streak
-        mPingStreak = 0;
-
-        if (mLastSuccessInterval > 0) {
-            // we were trying an increase, go back to previous value
-            interval = mLastSuccessInterval;
-            // better use the previous value for a longer time :)
-            setNextIncreaseInterval((long) (mNextIncrease * 1.5));
-        }
-        else {
-            // half interval
-            interval = mInterval / 2;
+    public long getIdleTime() {
+        XMPPConnection connection = connection();
+        if (connection != null) {
+            long lastStanza = connection.getLastStanzaReceived();
+            if (lastStanza > 0)
+                return Math.max(0, System.currentTimeMillis() - lastStanza);
         }
+        return 0;
+    }
+
+    /**
+     * Called by the ping failed listener.
+     * The learner will lower the interval for the next alarm.
+     * @param idleTime idle time before the ping, as returned by {@link #getIdleTime()}
+     */
+    public void pingFailed(long idleTime) {
+        long interval = mLearner.onFailure(idleTime);
+        LOGGER.fine("Ping failed on " + mLearner.getNetwork() + " after " +
+            idleTime + " ms idle, next interval " + interval + " ms");
         setupPing(interval);
     }
 
     /**
      * Called when a ping has succeeded.
-     * In order to avoid a too much optimistic approach, we wait for at least
-     * the supposed ping interval to pass before incrementing back the interval
-     * for the next ping.
+     * The learner will try a higher interval for the next alarm if the
+     * search for the current network has not converged yet.
+     * @param idleTime idle time before the ping, as returned by {@link #getIdleTime()}
      */
-    public void pingSuccess() {
-        long nextAlarm = mInterval;
-        long now = getElapsedRealtime();
-
-        // we got a successful ping, increase ping streak
-        mPingStreak += mInterval;
-
-        if (mLastSuccessInterval > 0) {
-            // interval increase was successful, reset backoff
-            setNextIncreaseInterval(mInterval);
-
-            // interval increase was successful
-        }
-        // try an increase only if we previously had a successful ping
-        else if (mLastSuccess > 0) {
-            if (mPingStreak >= mNextIncrease) {
-                // we are trying an increase, store the last successful interval
-                mLastSuccessInterval = mInterval;
-
-                nextAlarm = (long) (mInterval * 1.5);
-            }
-
-            // do not increase interval for now
-        }
-
-        // remember last success
-        mLastSuccess = now;
+    public void pingSuccess(long idleTime) {
+        long interval = mLearner.onSuccess(idleTime);
+        LOGGER.fine("Ping succeeded on " + mLearner.getNetwork() + " after " +
+            idleTime + " ms idle, next interval " + interval + " ms");
+        setupPing(interval);
+    }
 
-        setupPing(nextAlarm);
+    /**
+     * Switches the learner to the given network and schedules the next ping
+     * using the value learned for it.
+     */
+    protected void setupNetwork(String network) {
+        mLearner.setNetwork(network);
+        setupPing(mLearner.getInterval());
     }
 
     protected abstract void setupPing(long intervalMillis);
 
     protected abstract long getElapsedRealtime();
 
-    protected void setNextIncreaseInterval(long interval) {
-        // reset last successful interval
-        mLastSuccessInterval = 0;
-        // set and save next increase
-        mNextIncrease = interval;
-    }
-
 }
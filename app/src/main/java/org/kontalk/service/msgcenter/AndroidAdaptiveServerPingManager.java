@@ -71,8 +71,18 @@ public class AndroidAdaptiveServerPingManager extends AbstractAdaptiveServerPing
         }
     }
 
+    /**
+     * Returns all ping intervals learned so far, by network identity.
+     * @see SystemUtils#getCurrentNetworkIdentity(Context)
+     */
+    public static Map<String, PingIntervalLearner.NetworkState> getLearnedIntervals(Context context) {
+        return Preferences.getPingLearnedStates(context);
+    }
+
     private AndroidAdaptiveServerPingManager(XMPPConnection connection, Context context) {
-        super(connection);
+        super(connection, new PingIntervalLearner(MIN_ALARM_INTERVAL,
+            AlarmManager.INTERVAL_HALF_HOUR, SEARCH_RESOLUTION, REPROBE_STREAK,
+            new PreferencesStorage(context)));
         mContext = context;
         enable();
         onConnectionCompleted();
@@ -89,26 +99,43 @@ public class AndroidAdaptiveServerPingManager extends AbstractAdaptiveServerPing
     };
 
     private static final int MIN_ALARM_INTERVAL = 90 * 1000;
+    /** Stop searching when bounds are closer than this. */
+    private static final int SEARCH_RESOLUTION = 30 * 1000;
+    /** Successful pings after convergence before probing for a longer interval. */
+    private static final int REPROBE_STREAK = 50;
+
+    /** Stores learned ping intervals in preferences. */
+    private static final class PreferencesStorage implements PingIntervalLearner.Storage {
+        private final Context mContext;
+
+        PreferencesStorage(Context context) {
+            mContext = context.getApplicationContext();
+        }
+
+        @Override
+        public PingIntervalLearner.NetworkState load(String network) {
+            return Preferences.getPingLearnedState(mContext, network);
+        }
+
+        @Override
+        public void save(String network, PingIntervalLearner.NetworkState state) {
+            Preferences.setPingLearnedState(mContext, network, state);
+        }
+    }
 
     private Context mContext;
     private PendingIntent mPendingIntent;
 
     private void setupOnConnectionCompleted() {
         if (mContext != null) {
-            // setup first alarm using last value from preference
-            setupPing(Preferences.getPingAlarmInterval(mContext, AlarmManager.INTERVAL_HALF_HOUR));
-            // next increase can happen at least at next interval
-            mNextIncrease = Preferences.getPingAlarmBackoff(mContext, mInterval);
-            // reset internal variables
-            mLastSuccess = 0;
-            mLastSuccessInterval = 0;
+            // setup first alarm using the value learned for this network
+            setupNetwork(SystemUtils.getCurrentNetworkIdentity(mContext));
         }
     }
 
     @Override
     public void onConnectionCompleted() {
         setupOnConnectionCompleted();
-        mPingStreak = 0;
     }
 
     @Override
@@ -165,18 +192,8 @@ public class AndroidAdaptiveServerPingManager extends AbstractAdaptiveServerPing
                 mInterval = MIN_ALARM_INTERVAL;
             }
 
-            // save value to preference for later retrieval
-            Preferences.setPingAlarmInterval(mContext, mInterval);
-
             // remove difference from last received stanza
-            long interval = mInterval;
-            XMPPConnection connection = connection();
-            if (connection != null) {
-                long now = System.currentTimeMillis();
-                long lastStanza = connection.getLastStanzaReceived();
-                if (lastStanza > 0)
-                    interval -= (now - lastStanza);
-            }
+            long interval = mInterval - getIdleTime();
 
             LOGGER.log(Level.WARNING, "Setting alarm for next ping to " + mInterval + " ms (real " + interval + " ms)");
 
@@ -201,12 +218,6 @@ public class AndroidAdaptiveServerPingManager extends AbstractAdaptiveServerPing
         }
     }
 
-    @Override
-    protected void setNextIncreaseInterval(long interval) {
-        super.setNextIncreaseInterval(interval);
-        Preferences.setPingAlarmBackoff(mContext, mNextIncrease);
-    }
-
     public static void onConnected() {
         synchronized (INSTANCES) {
             Iterator<Map.Entry<XMPPConnection, AndroidAdaptiveServerPingManager>> it = INSTANCES.entrySet().iterator();
@@ -18,20 +18,11 @@
 
 package org.kontalk.service.msgcenter;
 
-import static org.kontalk.service.msgcenter.MessageCenterService.ACTION_LAST_ACTIVITY;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_FROM;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_TO;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_PACKET_ID;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_SECONDS;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_TYPE;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_ERROR_CONDITION;
-
 import org.jivesoftware.smack.packet.Stanza;
 import org.jivesoftware.smack.packet.XMPPError;
 import org.jivesoftware.smackx.iqlast.packet.LastActivity;
 
-import android.content.Intent;
-
+import org.kontalk.service.msgcenter.event.LastActivityEvent;
 import org.kontalk.util.XMPPUtils;
 
 
@@ -48,18 +39,9 @@ class LastActivityListener extends MessageCenterPacketListener {
     @Override
     public void processPacket(Stanza packet) {
         LastActivity p = (LastActivity) packet;
-        Intent i = new Intent(ACTION_LAST_ACTIVITY);
-        i.putExtra(EXTRA_PACKET_ID, p.getStanzaId());
-
-        i.putExtra(EXTRA_TYPE, p.getType().toString());
-        i.putExtra(EXTRA_FROM, p.getFrom());
-        i.putExtra(EXTRA_TO, p.getTo());
-        i.putExtra(EXTRA_SECONDS, p.getIdleTime());
-
         XMPPError.Condition errCondition = XMPPUtils.getErrorCondition(packet);
-        if (errCondition != null)
-            i.putExtra(EXTRA_ERROR_CONDITION, errCondition.toString());
 
-        sendBroadcast(i);
+        publish(new LastActivityEvent(p.getFrom(), p.getTo(), p.getStanzaId(),
+            p.getType(), p.getIdleTime(), errCondition));
     }
 }
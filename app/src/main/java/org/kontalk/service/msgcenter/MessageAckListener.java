@@ -30,6 +30,8 @@ import android.content.ContentValues;
 import android.net.Uri;
 
 import org.kontalk.provider.MyMessages.Messages;
+import org.kontalk.util.metrics.MessageTracer;
+import org.kontalk.util.metrics.Metrics;
 
 
 /**
@@ -76,6 +78,9 @@ class MessageAckListener extends MessageCenterPacketListener {
             }
 
             if (msgId > 0) {
+                Metrics.ACK_RTT.stop(id);
+                MessageTracer.mark(id, MessageTracer.STAGE_ACKED);
+
                 // we have a message awaiting ack from server
                 ContentValues values = new ContentValues(3);
                 values.put(Messages.STATUS, Messages.STATUS_SENT);
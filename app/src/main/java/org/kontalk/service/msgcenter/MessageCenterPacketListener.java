@@ -20,6 +20,7 @@ package org.kontalk.service.msgcenter;
 
 import java.lang.ref.WeakReference;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.jivesoftware.smack.SmackException;
@@ -32,6 +33,8 @@ import org.kontalk.client.EndpointServer;
 import org.kontalk.client.KontalkConnection;
 import org.kontalk.message.CompositeMessage;
 import org.kontalk.service.msgcenter.MessageCenterService.IdleConnectionHandler;
+import org.kontalk.service.msgcenter.event.MessageCenterEvent;
+import org.kontalk.service.msgcenter.event.PresenceEvent;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -96,6 +99,20 @@ abstract class MessageCenterPacketListener implements StanzaListener {
             instance.mLocalBroadcastManager.sendBroadcast(intent);
     }
 
+    /** Publishes an event to the event bus (and to legacy broadcast receivers). */
+    protected void publish(MessageCenterEvent event) {
+        MessageCenterService instance = mInstance.get();
+        if (instance != null && instance.isStarted())
+            instance.publish(event);
+    }
+
+    /** Publishes a burst of presence events at once. */
+    protected void publishPresences(List<PresenceEvent> events) {
+        MessageCenterService instance = mInstance.get();
+        if (instance != null && instance.isStarted())
+            instance.publishPresences(events);
+    }
+
     protected void registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
         MessageCenterService instance = mInstance.get();
         if (instance != null && instance.isStarted())
@@ -199,6 +216,12 @@ abstract class MessageCenterPacketListener implements StanzaListener {
             instance.mHandler.post(action);
     }
 
+    protected void runOnUiThread(Runnable action, long delayMillis) {
+        MessageCenterService instance = mInstance.get();
+        if (instance != null)
+            instance.mHandler.postDelayed(action, delayMillis);
+    }
+
     protected void endKeyPairRegeneration() {
         MessageCenterService instance = mInstance.get();
         if (instance != null)
@@ -19,7 +19,9 @@
 package org.kontalk.service.msgcenter;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.security.GeneralSecurityException;
 import java.util.Collection;
@@ -89,11 +91,11 @@ import android.os.Process;
 import android.os.SystemClock;
 import android.support.v4.content.LocalBroadcastManager;
 import android.text.TextUtils;
-import android.util.Log;
 import android.widget.Toast;
 
 import org.kontalk.BuildConfig;
 import org.kontalk.Kontalk;
+import org.kontalk.Log;
 import org.kontalk.R;
 import org.kontalk.authenticator.Authenticator;
 import org.kontalk.authenticator.LegacyAuthentication;
@@ -123,11 +125,16 @@ import org.kontalk.service.KeyPairGeneratorService;
 import org.kontalk.service.UploadService;
 import org.kontalk.service.XMPPConnectionHelper;
 import org.kontalk.service.XMPPConnectionHelper.ConnectionHelperListener;
+import org.kontalk.service.msgcenter.event.EventBus;
+import org.kontalk.service.msgcenter.event.MessageCenterEvent;
+import org.kontalk.service.msgcenter.event.PresenceEvent;
 import org.kontalk.ui.MessagingNotification;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.MessageUtils;
 import org.kontalk.util.Preferences;
 import org.kontalk.util.SystemUtils;
+import org.kontalk.util.metrics.MessageTracer;
+import org.kontalk.util.metrics.Metrics;
 
 
 /**
@@ -174,14 +181,16 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     public static final String ACTION_ROSTER_LOADED = "org.kontalk.action.ROSTER_LOADED";
 
     /**
-     * Broadcasted when a presence stanza is received.
+     * A {@link PresenceEvent} is published on the {@link EventBus} when a
+     * presence stanza is received.
      * Send this intent to broadcast presence.
      * Send this intent with type="probe" to request a presence in the roster.
      */
     public static final String ACTION_PRESENCE = "org.kontalk.action.PRESENCE";
 
     /**
-     * Broadcasted when a last activity iq is received.
+     * A last activity event is published on the {@link EventBus} when a
+     * last activity iq is received.
      * Send this intent to request a last activity.
      */
     public static final String ACTION_LAST_ACTIVITY = "org.kontalk.action.LAST_ACTIVITY";
@@ -212,7 +221,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     public static final String ACTION_VCARD = "org.kontalk.action.VCARD";
 
     /**
-     * Broadcasted when receiving a public key.
+     * A public key event is published on the {@link EventBus} when
+     * receiving a public key.
      * Send this intent to request a public key.
      */
     public static final String ACTION_PUBLICKEY = "org.kontalk.action.PUBLICKEY";
@@ -241,7 +251,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     public static final String ACTION_UNBLOCKED = "org.kontalk.action.UNBLOCKED";
 
     /**
-     * Broadcasted when receiving version information.
+     * A version event is published on the {@link EventBus} when receiving
+     * version information.
      * Send this intent to request version information to an entity.
      */
     public static final String ACTION_VERSION = "org.kontalk.action.VERSION";
@@ -344,6 +355,9 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     /** Supported upload services. */
     Map<String, String> mUploadServices;
 
+    /** Event bus for publishing events to the UI. */
+    private final EventBus mEventBus = EventBus.getInstance();
+
     /** Roster store. */
     private SQLiteRosterStore mRosterStore;
 
@@ -358,6 +372,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     private boolean mInactive;
     /** Timestamp of last use of {@link #ACTION_TEST}. */
     private long mLastTest;
+    /** Time the current connection attempt was started (for metrics). */
+    private long mConnectStart;
     /** Pending intent for idle signaling. */
     private PendingIntent mIdleIntent;
 
@@ -440,20 +456,14 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                         Log.v(TAG, "test ping failed");
                         XMPPConnection conn = service.mConnection;
                         if (conn != null) {
-                            AndroidAdaptiveServerPingManager
-                                .getInstanceFor(conn, service)
-                                .pingFailed();
+                            AndroidAdaptiveServerPingManager pingManager =
+                                AndroidAdaptiveServerPingManager.getInstanceFor(conn, service);
+                            pingManager.pingFailed(pingManager.getIdleTime());
                         }
                         restart(service.getApplicationContext());
                     }
-                    else {
-                        XMPPConnection conn = service.mConnection;
-                        if (conn != null) {
-                            AndroidAdaptiveServerPingManager
-                                .getInstanceFor(conn, service)
-                                .pingSuccess();
-                        }
-                    }
+                    // a successful test doesn't tell anything about the
+                    // ping interval since the connection wasn't idle
                 }
                 return true;
             }
@@ -657,7 +667,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             }
             catch (NotConnectedException e) {
                 // ignored
-                Log.v(TAG, "not connected. Dropping packet " + packet);
+                Log.v(TAG, "not connected. Dropping packet {}", packet);
             }
         }
     }
@@ -668,7 +678,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        Log.d(TAG, "Message Center starting - " + intent);
+        Log.d(TAG, "Message Center starting - {}", intent);
 
         handleIntent(intent);
         return START_STICKY;
@@ -679,6 +689,21 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         return null;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        Metrics.dump(writer);
+        writer.println();
+        Log.dump(writer);
+        writer.println();
+        writer.println("Message traces:");
+        try {
+            MessageTracer.export(writer);
+        }
+        catch (IOException e) {
+            // not thrown by PrintWriter
+        }
+    }
+
     @Override
     public void onDestroy() {
         Log.d(TAG, "destroying message center");
@@ -754,6 +779,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
         // clear cached data from contacts
         Contact.invalidateData();
+        // presence data is not valid anymore
+        mEventBus.clearSticky(PresenceEvent.class);
 
         // stop any key pair regeneration service
         if (!LegacyAuthentication.isUpgrading())
@@ -893,19 +920,19 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                     mPingLock.acquire();
                     final XMPPConnection connection = mConnection;
                     final PingManager pingManager = PingManager.getInstanceFor(connection);
+                    final AndroidAdaptiveServerPingManager adaptiveManager = AndroidAdaptiveServerPingManager
+                        .getInstanceFor(connection, MessageCenterService.this);
                     Async.go(new Runnable() {
                         @Override
                         public void run() {
+                            // measure from the actual ping time, the alarm might have been delayed
+                            long idleTime = adaptiveManager.getIdleTime();
                             try {
                                 if (pingManager.pingMyServer(true, SLOW_PING_TIMEOUT)) {
-                                    AndroidAdaptiveServerPingManager
-                                        .getInstanceFor(connection, MessageCenterService.this)
-                                        .pingSuccess();
+                                    adaptiveManager.pingSuccess(idleTime);
                                 }
                                 else {
-                                    AndroidAdaptiveServerPingManager
-                                        .getInstanceFor(connection, MessageCenterService.this)
-                                        .pingFailed();
+                                    adaptiveManager.pingFailed(idleTime);
                                 }
                             }
                             catch (SmackException.NotConnectedException e) {
@@ -1172,7 +1199,9 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             // get server from preferences
             mServer = Preferences.getEndpointServer(this);
 
+            mConnectStart = SystemClock.elapsedRealtime();
             mHelper = new XMPPConnectionHelper(this, mServer, false);
+            mHelper.setServerCandidates(Preferences.getEndpointServerCandidates(this, mServer));
             mHelper.setListener(this);
             mHelper.start();
         }
@@ -1181,11 +1210,14 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     @Override
     public void connectionClosed() {
         Log.v(TAG, "connection closed");
+        Metrics.CONNECTED.set(0);
     }
 
     @Override
     public void connectionClosedOnError(Exception error) {
         Log.w(TAG, "connection closed with error", error);
+        Metrics.CONNECTED.set(0);
+        Metrics.RECONNECTS.inc();
         quit(true);
         createConnection();
     }
@@ -1290,6 +1322,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     @Override
     public void authenticated(XMPPConnection connection, boolean resumed) {
         Log.v(TAG, "authenticated!");
+        Metrics.CONNECT_TIME.record(SystemClock.elapsedRealtime() - mConnectStart);
+        Metrics.CONNECTED.set(1);
 
         // add message ack listener
         if (mConnection.isSmEnabled()) {
@@ -1328,6 +1362,16 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         broadcast(action, null, null);
     }
 
+    /** Publishes an event to the event bus. */
+    void publish(MessageCenterEvent event) {
+        mEventBus.publish(event);
+    }
+
+    /** Publishes a burst of presence events with a single delivery per subscriber. */
+    void publishPresences(List<PresenceEvent> events) {
+        mEventBus.publish(events);
+    }
+
     private void broadcast(String action, String extraName, String extraValue) {
         Intent i = new Intent(action);
         if (extraName != null)
@@ -1534,7 +1578,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 b.putInt("org.kontalk.message.compress", compress);
             }
 
-            Log.v(TAG, "resending pending message " + id);
+            Log.v(TAG, "resending pending message {}", id);
             sendMessage(b);
         }
 
@@ -1564,7 +1608,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             b.putString("org.kontalk.message.to", peer);
             b.putString("org.kontalk.message.ack", msgId);
 
-            Log.v(TAG, "resending pending receipt for message " + id);
+            Log.v(TAG, "resending pending receipt for message {}", id);
             sendMessage(b);
         }
 
@@ -1644,22 +1688,20 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     }
 
     private void broadcastPresence(Roster roster, RosterEntry entry, String jid, String id) {
-        Intent i;
+        PresenceEvent event;
         // entry present and not pending subscription
         if (isRosterEntrySubscribed(entry) || Authenticator.isSelfJID(this, jid)) {
             // roster entry found, look for presence
             Presence presence = roster.getPresence(jid);
-            i = PresenceListener.createIntent(this, presence, entry);
+            // to keep track of request-reply
+            event = PresenceListener.createEvent(this, presence, entry, id);
         }
         else {
             // null type indicates no roster entry found or not authorized
-            i = new Intent(ACTION_PRESENCE);
-            i.putExtra(EXTRA_FROM, jid);
+            event = new PresenceEvent(jid, id);
         }
 
-        // to keep track of request-reply
-        i.putExtra(EXTRA_PACKET_ID, id);
-        mLocalBroadcastManager.sendBroadcast(i);
+        publish(event);
     }
 
     /** A special method to broadcast our own presence. */
@@ -1667,14 +1709,11 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         Presence presence = createPresence();
         presence.setFrom(mConnection.getUser());
 
-        Intent i = PresenceListener.createIntent(this, presence, null);
-        i.putExtra(EXTRA_FINGERPRINT, getMyFingerprint());
-        i.putExtra(EXTRA_SUBSCRIBED_FROM, true);
-        i.putExtra(EXTRA_SUBSCRIBED_TO, true);
-
+        PresenceEvent base = PresenceListener.createEvent(this, presence, null, id);
         // to keep track of request-reply
-        i.putExtra(EXTRA_PACKET_ID, id);
-        mLocalBroadcastManager.sendBroadcast(i);
+        publish(new PresenceEvent(base.getFrom(), base.getTo(), id, base.getType(),
+            base.getMode(), base.getStatus(), base.getPriority(), base.getStamp(),
+            getMyFingerprint(), null, true, true));
     }
 
     private String getMyFingerprint() {
@@ -1789,7 +1828,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                         i.putExtra(EXTRA_BLOCKLIST, _list.toArray(list));
                     }
 
-                    Log.v(TAG, "broadcasting blocklist: " + i);
+                    Log.v(TAG, "broadcasting blocklist: {}", i);
                     mLocalBroadcastManager.sendBroadcast(i);
                 }
 
@@ -1809,7 +1848,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         String to = data.getString("org.kontalk.message.to");
 
         if (!isAuthorized(to)) {
-            Log.i(TAG, "not subscribed to " + to + ", not sending message");
+            Log.i(TAG, "not subscribed to {}, not sending message", to);
             // warn user: message will not be sent
             if (!retrying && MessagingNotification.isPaused(to)) {
                 Toast.makeText(this, R.string.warn_not_subscribed,
@@ -1840,6 +1879,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         }
 
         String id = data.getString("org.kontalk.message.packetId");
+        MessageTracer.mark(id, MessageTracer.STAGE_DEQUEUED);
 
         boolean encrypt = data.getBoolean("org.kontalk.message.encrypt");
         String mime = data.getString("org.kontalk.message.mime");
@@ -1954,6 +1994,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                         encMsg.addExtension(new E2EEncryption(toMessage));
 
                         m = encMsg;
+                        MessageTracer.mark(id, MessageTracer.STAGE_ENCRYPTED);
                     }
                 }
 
@@ -2009,7 +2050,12 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                     DeliveryReceiptRequest.addTo(m);
             }
 
+            if (msgId > 0)
+                Metrics.ACK_RTT.start(id);
+            Metrics.MESSAGES_SENT.inc();
+
             sendPacket(m);
+            MessageTracer.mark(id, MessageTracer.STAGE_SENT);
 
             // no ack request, release message center immediately
             if (!ackRequest)
@@ -2037,6 +2083,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         Uri msgUri = null;
         try {
             msgUri = getContentResolver().insert(Messages.CONTENT_URI, values);
+            MessageTracer.mark(msg.getId(), MessageTracer.STAGE_STORED);
         }
         catch (SQLiteConstraintException econstr) {
             // duplicated message, skip it
@@ -2056,9 +2103,11 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         }).start();
 
         // fire notification only if message was actually inserted to database
-        if (msgUri != null && !MessagingNotification.isPaused(sender)) {
-            // update notifications (delayed)
-            MessagingNotification.delayedUpdateMessagesNotification(getApplicationContext(), true);
+        if (msgUri != null) {
+            // update notifications (coalesced)
+            MessagingNotification.messageReceived(context, ContentUris.parseId(msgUri),
+                sender, MessagingNotification.getNotificationText(context, msg));
+            MessageTracer.mark(msg.getId(), MessageTracer.STAGE_NOTIFIED);
         }
 
         return msgUri;
@@ -34,6 +34,7 @@ import org.jivesoftware.smackx.chatstates.packet.ChatStateExtension;
 import org.jivesoftware.smackx.receipts.DeliveryReceipt;
 import org.jivesoftware.smackx.receipts.DeliveryReceiptRequest;
 
+import org.kontalk.Log;
 import org.kontalk.client.BitsOfBinary;
 import org.kontalk.client.E2EEncryption;
 import org.kontalk.client.OutOfBandData;
@@ -49,13 +50,14 @@ import org.kontalk.provider.MyMessages.Messages;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.MessageUtils;
 import org.kontalk.util.XMPPUtils;
+import org.kontalk.util.metrics.MessageTracer;
+import org.kontalk.util.metrics.Metrics;
 
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Intent;
 import android.net.Uri;
-import android.util.Log;
 
 
 /**
@@ -110,6 +112,8 @@ class MessageListener extends MessageCenterPacketListener {
 
                 // delivery receipt
                 if (deliveryReceipt != null) {
+                    MessageTracer.mark(deliveryReceipt.getId(), MessageTracer.STAGE_DELIVERED);
+
                     synchronized (waitingReceipt) {
                         String id = m.getStanzaId();
                         Long _msgId = waitingReceipt.get(id);
@@ -140,9 +144,11 @@ class MessageListener extends MessageCenterPacketListener {
 
                 // incoming message
                 else {
+                    long start = System.nanoTime();
                     String msgId = m.getStanzaId();
                     if (msgId == null)
                         msgId = MessageUtils.messageId();
+                    MessageTracer.begin(msgId, true);
 
                     String body = m.getBody();
 
@@ -172,6 +178,7 @@ class MessageListener extends MessageCenterPacketListener {
                             try {
                                 MessageUtils.decryptMessage(getContext(),
                                     getServer(), msg, encryptedData);
+                                MessageTracer.mark(msgId, MessageTracer.STAGE_DECRYPTED);
                             }
 
                             catch (Exception exc) {
@@ -271,6 +278,8 @@ class MessageListener extends MessageCenterPacketListener {
                     }
 
                     Uri msgUri = incoming(msg);
+                    Metrics.MESSAGE_INGEST.recordSince(start);
+                    Metrics.MESSAGES_RECEIVED.inc();
 
                     if (m.hasExtension(DeliveryReceiptRequest.ELEMENT, DeliveryReceipt.NAMESPACE)) {
                         // send ack :)
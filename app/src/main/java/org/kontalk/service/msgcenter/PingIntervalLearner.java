@@ -0,0 +1,283 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Learns the largest safe keepalive interval for every network we connect to.
+ * For each network we keep a known safe interval (a ping at that interval
+ * succeeded) and a known unsafe interval (a ping at that interval failed,
+ * i.e. some NAT or firewall dropped our idle connection). The next ping is
+ * scheduled halfway between the two until they are closer than the
+ * configured resolution; at that point the safe interval is used. When no
+ * upper bound is known yet, the safe interval is doubled.
+ *
+ * Once converged, the upper bound is probed again after a long enough
+ * streak of successful pings, in case the network timeout has grown.
+ *
+ * This class does not depend on Android, learned values are persisted
+ * through a {@link Storage}.
+ * @author Daniele Ricci
+ */
+public class PingIntervalLearner {
+
+    /** Persistent storage for learned values. */
+    public interface Storage {
+        /** Returns the stored state for the given network or null. */
+        NetworkState load(String network);
+
+        /**
+         * Stores the state for the given network. This is also called when
+         * switching to a known network, so implementations can track usage.
+         */
+        void save(String network, NetworkState state);
+    }
+
+    /** Learned bounds for a single network. All values in milliseconds. */
+    public static class NetworkState {
+        /** Largest interval known to be safe (0 if unknown). */
+        public final long safe;
+        /** Smallest interval known to fail (0 if unknown). */
+        public final long unsafe;
+
+        public NetworkState(long safe, long unsafe) {
+            this.safe = safe;
+            this.unsafe = unsafe;
+        }
+
+        @Override
+        public String toString() {
+            return "[safe=" + safe + ", unsafe=" + unsafe + "]";
+        }
+    }
+
+    /** Network used when the current network cannot be identified. */
+    public static final String UNKNOWN_NETWORK = "unknown";
+
+    private final long mMinInterval;
+    private final long mMaxInterval;
+    private final long mResolution;
+    private final int mReprobeStreak;
+    private final Storage mStorage;
+
+    /** Learned values cache. */
+    private final Map<String, NetworkState> mStates = new HashMap<>();
+
+    private String mNetwork;
+    private long mSafe;
+    private long mUnsafe;
+    /** Interval currently being tested. */
+    private long mInterval;
+    /** Successful pings since convergence. */
+    private int mStreak;
+
+    /**
+     * @param minInterval minimum ping interval, assumed to be always safe
+     * @param maxInterval maximum ping interval, also the first one tried
+     * @param resolution stop searching when bounds are closer than this
+     * @param reprobeStreak successful pings after convergence before probing
+     *                      the upper bound again
+     * @param storage storage for learned values, may be null
+     */
+    public PingIntervalLearner(long minInterval, long maxInterval,
+            long resolution, int reprobeStreak, Storage storage) {
+        mMinInterval = minInterval;
+        mMaxInterval = maxInterval;
+        mResolution = resolution;
+        mReprobeStreak = reprobeStreak;
+        mStorage = storage;
+        setNetwork(null);
+    }
+
+    /** Switches to another network, restoring any value learned for it. */
+    public synchronized void setNetwork(String network) {
+        if (network == null)
+            network = UNKNOWN_NETWORK;
+
+        mNetwork = network;
+        NetworkState state = getState(network);
+        if (state != null) {
+            mSafe = state.safe;
+            mUnsafe = state.unsafe;
+            if (mStorage != null)
+                mStorage.save(network, state);
+        }
+        else {
+            mSafe = 0;
+            mUnsafe = 0;
+        }
+        mStreak = 0;
+        mInterval = nextInterval();
+    }
+
+    public synchronized String getNetwork() {
+        return mNetwork;
+    }
+
+    /** Interval to use for the next ping. */
+    public synchronized long getInterval() {
+        return mInterval;
+    }
+
+    /** Largest interval known to be safe on the current network (0 if unknown). */
+    public synchronized long getSafeInterval() {
+        return mSafe;
+    }
+
+    /** Smallest interval known to fail on the current network (0 if unknown). */
+    public synchronized long getUnsafeInterval() {
+        return mUnsafe;
+    }
+
+    /** Returns true if the search for the current network has completed. */
+    public synchronized boolean isConverged() {
+        return isConverged(lowerBound());
+    }
+
+    /** Returns a copy of all learned values (cached networks only). */
+    public synchronized Map<String, NetworkState> getLearnedStates() {
+        return new HashMap<>(mStates);
+    }
+
+    /**
+     * A ping has succeeded.
+     * @param idleTime actual time the connection was idle before the ping,
+     *                 which might differ from the scheduled interval (e.g.
+     *                 because of inexact alarms or other traffic), 0 if unknown
+     * @return the interval for the next ping
+     */
+    public synchronized long onSuccess(long idleTime) {
+        long interval = idleTime > 0 ? idleTime : mInterval;
+        boolean changed = false;
+
+        if (interval > mSafe) {
+            mSafe = interval;
+            changed = true;
+        }
+        if (mUnsafe > 0 && interval >= mUnsafe) {
+            // upper bound probe succeeded, timeout has grown
+            mUnsafe = 0;
+            mStreak = 0;
+            changed = true;
+        }
+        else if (isConverged(lowerBound())) {
+            mStreak++;
+        }
+
+        if (changed)
+            save();
+
+        mInterval = nextInterval();
+        return mInterval;
+    }
+
+    /**
+     * A ping has failed.
+     * @param idleTime actual time the connection was idle before the ping,
+     *                 0 if unknown
+     * @return the interval for the next ping
+     */
+    public synchronized long onFailure(long idleTime) {
+        long interval = idleTime > 0 ? idleTime : mInterval;
+        mStreak = 0;
+
+        // the minimum interval is assumed to be safe, the connection
+        // was lost for other reasons
+        if (interval >= mMinInterval) {
+            if (mUnsafe == 0 || interval < mUnsafe)
+                mUnsafe = interval;
+
+            if (interval <= mSafe) {
+                // our safe value is not safe anymore, timeout has shrunk
+                mSafe = 0;
+            }
+
+            save();
+        }
+
+        mInterval = nextInterval();
+        return mInterval;
+    }
+
+    private long lowerBound() {
+        return Math.max(mSafe, mMinInterval);
+    }
+
+    private boolean isConverged(long lower) {
+        return (mUnsafe > 0 && mUnsafe - lower <= mResolution) ||
+            (mUnsafe == 0 && lower >= mMaxInterval);
+    }
+
+    private long nextInterval() {
+        long lower = lowerBound();
+        long next;
+
+        if (isConverged(lower)) {
+            // periodically check if the timeout has grown
+            if (mUnsafe > 0 && mStreak >= mReprobeStreak)
+                next = mUnsafe;
+            else
+                next = lower;
+        }
+        else if (mUnsafe > 0) {
+            // binary search between bounds
+            next = lower + (mUnsafe - lower) / 2;
+        }
+        else if (mSafe > 0) {
+            // no upper bound yet, try higher
+            next = mSafe * 2;
+        }
+        else {
+            // nothing known, start from the top
+            next = mMaxInterval;
+        }
+
+        return clamp(next);
+    }
+
+    private long clamp(long interval) {
+        if (interval > mMaxInterval)
+            return mMaxInterval;
+        if (interval < mMinInterval)
+            return mMinInterval;
+        return interval;
+    }
+
+    private NetworkState getState(String network) {
+        NetworkState state = mStates.get(network);
+        if (state == null && mStorage != null) {
+            state = mStorage.load(network);
+            if (state != null)
+                mStates.put(network, state);
+        }
+        return state;
+    }
+
+    private void save() {
+        NetworkState state = new NetworkState(mSafe, mUnsafe);
+        mStates.put(mNetwork, state);
+        if (mStorage != null)
+            mStorage.save(mNetwork, state);
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jivesoftware.smack.packet.Presence;
+import org.jxmpp.util.XmppStringUtils;
+
+
+/**
+ * Keeps the latest presence stanza received from every full JID until the
+ * next flush, grouped by bare JID. Used to collapse the presence storm
+ * following roster load. Resources are kept apart so that e.g. a resource
+ * going offline doesn't hide another one coming online.
+ * @author Daniele Ricci
+ */
+class PresenceCoalescer {
+    /** How long to collect presence stanzas before flushing. */
+    public static final long DEFAULT_WINDOW = 500;
+
+    private final long mWindow;
+    /** Bare JID to (full JID to presence), in arrival order. */
+    private Map<String, Map<String, Presence>> mPending = new LinkedHashMap<>();
+
+    public PresenceCoalescer() {
+        this(DEFAULT_WINDOW);
+    }
+
+    public PresenceCoalescer(long window) {
+        mWindow = window;
+    }
+
+    public long getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * Queues a presence stanza, replacing any previous one from the same
+     * full JID.
+     * @return true if this is the first stanza of a new window, meaning the
+     * caller should schedule a flush
+     */
+    public synchronized boolean offer(Presence p) {
+        boolean first = mPending.isEmpty();
+        String from = p.getFrom();
+        String bareJid = XmppStringUtils.parseBareJid(from);
+
+        Map<String, Presence> resources = mPending.get(bareJid);
+        if (resources == null) {
+            resources = new LinkedHashMap<>();
+            mPending.put(bareJid, resources);
+        }
+        // keep arrival order of the latest stanzas
+        resources.remove(from);
+        resources.put(from, p);
+        return first;
+    }
+
+    /**
+     * Returns all queued presence stanzas and starts a new window.
+     * @return bare JID to the latest stanza of each of its resources,
+     * oldest first
+     */
+    public synchronized Map<String, List<Presence>> drain() {
+        if (mPending.isEmpty())
+            return Collections.emptyMap();
+
+        Map<String, List<Presence>> pending = new LinkedHashMap<>(mPending.size());
+        for (Map.Entry<String, Map<String, Presence>> e : mPending.entrySet())
+            pending.put(e.getKey(), new ArrayList<>(e.getValue().values()));
+
+        mPending = new LinkedHashMap<>();
+        return pending;
+    }
+
+    public synchronized int size() {
+        return mPending.size();
+    }
+
+}
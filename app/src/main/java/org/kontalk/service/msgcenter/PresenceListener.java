@@ -19,6 +19,11 @@
 package org.kontalk.service.msgcenter;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.jivesoftware.smack.SmackException.NotConnectedException;
 import org.jivesoftware.smack.packet.ExtensionElement;
@@ -32,12 +37,14 @@ import org.spongycastle.openpgp.PGPException;
 import org.spongycastle.openpgp.PGPPublicKey;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.util.Log;
+import android.database.Cursor;
 
+import org.kontalk.Log;
 import org.kontalk.client.PublicKeyPresence;
 import org.kontalk.client.PublicKeyPublish;
 import org.kontalk.crypto.PGP;
@@ -47,23 +54,15 @@ import org.kontalk.provider.MyMessages.CommonColumns;
 import org.kontalk.provider.MyMessages.Threads.Requests;
 import org.kontalk.provider.MyUsers.Users;
 import org.kontalk.provider.UsersProvider;
+import org.kontalk.service.msgcenter.event.PresenceEvent;
 import org.kontalk.ui.MessagingNotification;
 import org.kontalk.util.Preferences;
 
-import static org.kontalk.service.msgcenter.MessageCenterService.ACTION_PRESENCE;
 import static org.kontalk.service.msgcenter.MessageCenterService.ACTION_SUBSCRIBED;
 import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_FROM;
 import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_PACKET_ID;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_PRIORITY;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_ROSTER_NAME;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_SHOW;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_STAMP;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_STATUS;
 import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_TO;
 import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_TYPE;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_FINGERPRINT;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_SUBSCRIBED_FROM;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_SUBSCRIBED_TO;
 
 
 /**
@@ -72,6 +71,23 @@ import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_SUBSCRIBE
  */
 class PresenceListener extends MessageCenterPacketListener {
 
+    /** Max number of users to query at once (below the SQLite parameters limit). */
+    private static final int MAX_QUERY_SIZE = 500;
+
+    private final PresenceCoalescer mCoalescer = new PresenceCoalescer();
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            queueTask(new Runnable() {
+                @Override
+                public void run() {
+                    flushPresences();
+                }
+            });
+        }
+    };
+
     public PresenceListener(MessageCenterService instance) {
         super(instance);
     }
@@ -267,86 +283,195 @@ class PresenceListener extends MessageCenterPacketListener {
         resendPending(false, true, from);
     }
 
-    private void handlePresence(final Presence p) {
-        queueTask(new Runnable() {
-            @Override
-            public void run() {
-                updateUsersDatabase(p);
-
-                // request the new key if fingerprint changed
-                String newFingerprint = PublicKeyPresence.getFingerprint(p);
-                if (newFingerprint != null) {
-                    String jid = XmppStringUtils.parseBareJid(p.getFrom());
-                    PGPPublicKeyRing pubRing = UsersProvider.getPublicKey(getContext(),
-                        jid, false);
-                    if (pubRing != null) {
-                        String oldFingerprint = PGP.getFingerprint(PGP.getMasterKey(pubRing));
-                        if (!newFingerprint.equalsIgnoreCase(oldFingerprint)) {
-                            MessageCenterService.requestPublicKey(getContext(), jid);
-                        }
+    private void handlePresence(Presence p) {
+        if (p.getFrom() == null)
+            return;
+
+        // first stanza of a new window: schedule a flush
+        if (mCoalescer.offer(p)) {
+            runOnUiThread(mFlushTask, mCoalescer.getWindow());
+        }
+    }
+
+    /** Flushes all coalesced presence stanzas in one go. */
+    private void flushPresences() {
+        Map<String, List<Presence>> pending = mCoalescer.drain();
+        if (pending.isEmpty())
+            return;
+
+        Context ctx = getContext();
+        if (ctx == null)
+            return;
+
+        Map<String, UserData> users = queryUsers(ctx, pending.keySet());
+
+        ArrayList<ContentProviderOperation> operations =
+            new ArrayList<>(pending.size());
+        List<PresenceEvent> presences = new ArrayList<>(pending.size());
+
+        for (Map.Entry<String, List<Presence>> e : pending.entrySet()) {
+            String jid = e.getKey();
+            List<Presence> resources = e.getValue();
+            UserData user = users.get(jid);
+
+            // aggregate the resources in arrival order, like applying them one by one
+            ContentValues values = new ContentValues();
+            String newFingerprint = null;
+            for (Presence p : resources) {
+                values.putAll(createUsersValues(p));
+                String fingerprint = PublicKeyPresence.getFingerprint(p);
+                if (fingerprint != null)
+                    newFingerprint = fingerprint;
+            }
+
+            operations.add(ContentProviderOperation.newUpdate(Users.CONTENT_URI)
+                .withValues(values)
+                .withSelection(Users.JID + "=?", new String[] { jid })
+                .build());
+
+            // request the new key if fingerprint changed
+            if (newFingerprint != null && user != null && user.publicKey != null) {
+                try {
+                    PGPPublicKeyRing pubRing = PGP.readPublicKeyring(user.publicKey);
+                    String oldFingerprint = PGP.getFingerprint(PGP.getMasterKey(pubRing));
+                    if (!newFingerprint.equalsIgnoreCase(oldFingerprint)) {
+                        MessageCenterService.requestPublicKey(ctx, jid);
                     }
                 }
+                catch (Exception ignored) {
+                    // invalid stored key
+                }
+            }
+
+            // same values the database would return after the update
+            long lastSeen = values.containsKey(Users.LAST_SEEN) ?
+                values.getAsLong(Users.LAST_SEEN) : (user != null ? user.lastSeen : -1);
+            String fingerprint = values.containsKey(Users.FINGERPRINT) ?
+                values.getAsString(Users.FINGERPRINT) : (user != null ? user.fingerprint : null);
 
-                Intent i = createIntent(getContext(), p, getRosterEntry(p.getFrom()));
-                sendBroadcast(i);
+            for (Presence p : resources) {
+                presences.add(createEvent(p, getRosterEntry(p.getFrom()), p.getStanzaId(),
+                    lastSeen, fingerprint));
             }
-        });
+        }
+
+        try {
+            ctx.getContentResolver().applyBatch(UsersProvider.AUTHORITY, operations);
+        }
+        catch (Exception e) {
+            Log.w(MessageCenterService.TAG, "unable to update users database", e);
+        }
+
+        publishPresences(presences);
     }
 
-    public static Intent createIntent(Context ctx, Presence p, RosterEntry entry) {
-        Intent i = new Intent(ACTION_PRESENCE);
-        Presence.Type type = p.getType();
-        i.putExtra(EXTRA_TYPE, type != null ? type.name() : Presence.Type.available.name());
-        i.putExtra(EXTRA_PACKET_ID, p.getStanzaId());
+    private static final class UserData {
+        long lastSeen = -1;
+        String fingerprint;
+        byte[] publicKey;
+    }
 
-        i.putExtra(EXTRA_FROM, p.getFrom());
-        i.putExtra(EXTRA_TO, p.getTo());
-        i.putExtra(EXTRA_STATUS, p.getStatus());
-        Presence.Mode mode = p.getMode();
-        i.putExtra(EXTRA_SHOW, mode != null ? mode.name() : Presence.Mode.available.name());
-        i.putExtra(EXTRA_PRIORITY, p.getPriority());
+    /** Loads the data we need for the given users in as few queries as possible. */
+    private static Map<String, UserData> queryUsers(Context ctx, Collection<String> jids) {
+        Map<String, UserData> users = new HashMap<>(jids.size());
+        List<String> list = new ArrayList<>(jids);
+
+        for (int start = 0; start < list.size(); start += MAX_QUERY_SIZE) {
+            int end = Math.min(start + MAX_QUERY_SIZE, list.size());
+            Cursor c = UsersProvider.queryUsers(ctx, new String[] {
+                    Users.JID,
+                    Users.LAST_SEEN,
+                    Users.FINGERPRINT,
+                    Users.PUBLIC_KEY,
+                }, list.subList(start, end));
+
+            if (c == null)
+                continue;
+
+            try {
+                while (c.moveToNext()) {
+                    UserData user = new UserData();
+                    user.lastSeen = c.getLong(1);
+                    user.fingerprint = c.getString(2);
+                    user.publicKey = c.getBlob(3);
+                    users.put(c.getString(0), user);
+                }
+            }
+            finally {
+                c.close();
+            }
+        }
 
+        return users;
+    }
+
+    /**
+     * Creates a presence event, looking up missing data in the database.
+     * @param id packet id (or request id) to assign to the event
+     */
+    public static PresenceEvent createEvent(Context ctx, Presence p, RosterEntry entry, String id) {
         String jid = XmppStringUtils.parseBareJid(p.getFrom());
 
+        long lastSeen = -1;
+        DelayInformation delay = p.getExtension(DelayInformation.ELEMENT, DelayInformation.NAMESPACE);
+        if (delay == null) {
+            // try last seen from database
+            lastSeen = UsersProvider.getLastSeen(ctx, jid);
+        }
+
+        String fingerprint = PublicKeyPresence.getFingerprint(p);
+        if (fingerprint == null) {
+            // try untrusted fingerprint from database
+            fingerprint = UsersProvider.getFingerprint(ctx, jid, false);
+        }
+
+        return createEvent(p, entry, id, lastSeen, fingerprint);
+    }
+
+    /**
+     * Creates a presence event using the given database data.
+     * @param lastSeen last seen timestamp from database, -1 if not known
+     * @param fingerprint untrusted fingerprint from database
+     */
+    private static PresenceEvent createEvent(Presence p, RosterEntry entry, String id,
+            long lastSeen, String fingerprint) {
         long timestamp;
         DelayInformation delay = p.getExtension(DelayInformation.ELEMENT, DelayInformation.NAMESPACE);
         if (delay != null) {
             timestamp = delay.getStamp().getTime();
         }
         else {
-            // try last seen from database
-            timestamp = UsersProvider.getLastSeen(ctx, jid);
+            timestamp = lastSeen;
             if (timestamp < 0)
                 timestamp = System.currentTimeMillis();
         }
 
-        i.putExtra(EXTRA_STAMP, timestamp);
-
         // public key fingerprint
-        String fingerprint = PublicKeyPresence.getFingerprint(p);
-        if (fingerprint == null) {
-            // try untrusted fingerprint from database
-            fingerprint = UsersProvider.getFingerprint(ctx, jid, false);
-        }
-        i.putExtra(EXTRA_FINGERPRINT, fingerprint);
+        String presenceFingerprint = PublicKeyPresence.getFingerprint(p);
+        if (presenceFingerprint != null)
+            fingerprint = presenceFingerprint;
 
         // subscription information
+        String rosterName = null;
+        boolean subscribedFrom = false, subscribedTo = false;
         if (entry != null) {
-            i.putExtra(EXTRA_ROSTER_NAME, entry.getName());
+            rosterName = entry.getName();
 
             RosterPacket.ItemType subscriptionType = entry.getType();
-            i.putExtra(EXTRA_SUBSCRIBED_FROM, subscriptionType == RosterPacket.ItemType.both ||
-                subscriptionType == RosterPacket.ItemType.from);
-            i.putExtra(EXTRA_SUBSCRIBED_TO, subscriptionType == RosterPacket.ItemType.both ||
-                subscriptionType == RosterPacket.ItemType.to);
+            subscribedFrom = subscriptionType == RosterPacket.ItemType.both ||
+                subscriptionType == RosterPacket.ItemType.from;
+            subscribedTo = subscriptionType == RosterPacket.ItemType.both ||
+                subscriptionType == RosterPacket.ItemType.to;
         }
 
-        return i;
+        Presence.Type type = p.getType();
+        return new PresenceEvent(p.getFrom(), p.getTo(), id,
+            type != null ? type : Presence.Type.available, p.getMode(),
+            p.getStatus(), p.getPriority(), timestamp, fingerprint, rosterName,
+            subscribedFrom, subscribedTo);
     }
 
-    private int updateUsersDatabase(Presence p) {
-        String jid = XmppStringUtils.parseBareJid(p.getFrom());
-
+    private ContentValues createUsersValues(Presence p) {
         ContentValues values = new ContentValues(4);
         values.put(Users.REGISTERED, 1);
 
@@ -380,8 +505,7 @@ class PresenceListener extends MessageCenterPacketListener {
                 values.put(Users.FINGERPRINT, fingerprint);
         }
 
-        return getContext().getContentResolver().update(Users.CONTENT_URI,
-            values, Users.JID + "=?", new String[] { jid });
+        return values;
     }
 
 }
@@ -22,23 +22,16 @@ import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Stanza;
 import org.jxmpp.util.XmppStringUtils;
 
-import android.content.Intent;
-import android.util.Log;
-
+import org.kontalk.Log;
 import org.kontalk.authenticator.Authenticator;
 import org.kontalk.client.PublicKeyPublish;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.crypto.X509Bridge;
 import org.kontalk.data.Contact;
 import org.kontalk.provider.UsersProvider;
+import org.kontalk.service.msgcenter.event.PublicKeyEvent;
 import org.kontalk.sync.SyncAdapter;
 
-import static org.kontalk.service.msgcenter.MessageCenterService.ACTION_PUBLICKEY;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_FROM;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_PACKET_ID;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_PUBLIC_KEY;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_TO;
-
 
 /**
  * Packet Listener for public key publish iq stanzas.
@@ -90,20 +83,14 @@ class PublicKeyListener extends MessageCenterPacketListener {
                 String id = p.getStanzaId();
                 // we are syncing and this is a response for the Syncer
                 if (SyncAdapter.getIQPacketId().equals(id) && SyncAdapter.isActive(getContext())) {
-                    // sync currently active, broadcast the key
-                    Intent i = new Intent(ACTION_PUBLICKEY);
-                    i.putExtra(EXTRA_PACKET_ID, p.getStanzaId());
-
-                    i.putExtra(EXTRA_FROM, p.getFrom());
-                    i.putExtra(EXTRA_TO, p.getTo());
-                    i.putExtra(EXTRA_PUBLIC_KEY, _publicKey);
-
-                    sendBroadcast(i);
+                    // sync currently active, publish the key
+                    publish(new PublicKeyEvent(p.getFrom(), p.getTo(),
+                        p.getStanzaId(), _publicKey));
                 }
 
                 else {
                     try {
-                        Log.v("pubkey", "Updating key for " + from);
+                        Log.v("pubkey", "Updating key for {}", from);
                         UsersProvider.setUserKey(getContext(), from, _publicKey);
                         // maybe trust the key
                         UsersProvider.maybeTrustUserKey(getContext(), from, _publicKey);
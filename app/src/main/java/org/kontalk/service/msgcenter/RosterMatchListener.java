@@ -22,16 +22,8 @@ import java.util.List;
 
 import org.jivesoftware.smack.packet.Stanza;
 
-import android.content.Intent;
-
 import org.kontalk.client.RosterMatch;
-
-import static org.kontalk.service.msgcenter.MessageCenterService.ACTION_ROSTER_MATCH;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_FROM;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_JIDLIST;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_PACKET_ID;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_TO;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_TYPE;
+import org.kontalk.service.msgcenter.event.RosterMatchEvent;
 
 
 /**
@@ -48,19 +40,8 @@ class RosterMatchListener extends MessageCenterPacketListener {
     public void processPacket(Stanza packet) {
         if (packet.getError() == null) {
             RosterMatch p = (RosterMatch) packet;
-            Intent i = new Intent(ACTION_ROSTER_MATCH);
-            i.putExtra(EXTRA_FROM, p.getFrom());
-            i.putExtra(EXTRA_TO, p.getTo());
-            i.putExtra(EXTRA_TYPE, p.getType().toString());
-            i.putExtra(EXTRA_PACKET_ID, p.getStanzaId());
-
-            List<String> items = p.getItems();
-            if (items != null) {
-                String[] list = new String[items.size()];
-                i.putExtra(EXTRA_JIDLIST, items.toArray(list));
-            }
-
-            sendBroadcast(i);
+            publish(new RosterMatchEvent(p.getFrom(), p.getTo(), p.getStanzaId(),
+                p.getType(), p.getItems()));
         }
     }
 }
@@ -0,0 +1,156 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jivesoftware.smack.roster.packet.RosterPacket;
+
+
+/**
+ * In-memory copy of the persisted roster, indexed by JID.
+ * Used by {@link SQLiteRosterStore} to answer lookups without hitting the
+ * database and to compute the minimal set of rows to write on a reset.
+ * Not thread-safe.
+ * @author Daniele Ricci
+ */
+class RosterMirror {
+
+    private final Map<String, RosterPacket.Item> mItems = new LinkedHashMap<>();
+    private String mVersion;
+
+    /** Rows to write to bring the persisted roster up to date. */
+    static class Changes {
+        final List<RosterPacket.Item> upserts = new ArrayList<>();
+        final List<String> deletes = new ArrayList<>();
+
+        public boolean isEmpty() {
+            return upserts.isEmpty() && deletes.isEmpty();
+        }
+
+        /** Number of rows that will be written by applying these changes. */
+        public int size() {
+            return upserts.size() + deletes.size();
+        }
+    }
+
+    public void load(Collection<RosterPacket.Item> items, String version) {
+        mItems.clear();
+        for (RosterPacket.Item item : items)
+            mItems.put(item.getUser(), item);
+        mVersion = version;
+    }
+
+    public RosterPacket.Item get(String jid) {
+        return mItems.get(jid);
+    }
+
+    public Collection<RosterPacket.Item> getAll() {
+        return Collections.unmodifiableCollection(mItems.values());
+    }
+
+    public int size() {
+        return mItems.size();
+    }
+
+    public String getVersion() {
+        return mVersion;
+    }
+
+    public void setVersion(String version) {
+        mVersion = version;
+    }
+
+    /** Returns true if the given item differs from what is currently stored. */
+    public boolean isChanged(RosterPacket.Item item) {
+        return !sameItem(mItems.get(item.getUser()), item);
+    }
+
+    public void put(RosterPacket.Item item) {
+        mItems.put(item.getUser(), item);
+    }
+
+    public boolean remove(String jid) {
+        return mItems.remove(jid) != null;
+    }
+
+    /** Computes the changes needed to replace the whole roster with the given items. */
+    public Changes diff(Collection<RosterPacket.Item> items) {
+        Changes changes = new Changes();
+        Set<String> seen = new HashSet<>(items.size());
+
+        for (RosterPacket.Item item : items) {
+            seen.add(item.getUser());
+            if (isChanged(item))
+                changes.upserts.add(item);
+        }
+
+        for (String jid : mItems.keySet()) {
+            if (!seen.contains(jid))
+                changes.deletes.add(jid);
+        }
+
+        return changes;
+    }
+
+    /** Applies changes computed by {@link #diff} after they have been persisted. */
+    public void apply(Changes changes, String version) {
+        for (String jid : changes.deletes)
+            mItems.remove(jid);
+        for (RosterPacket.Item item : changes.upserts)
+            mItems.put(item.getUser(), item);
+        mVersion = version;
+    }
+
+    /** Compares two items on the fields we actually persist. */
+    static boolean sameItem(RosterPacket.Item a, RosterPacket.Item b) {
+        if (a == b)
+            return true;
+        if (a == null || b == null)
+            return false;
+
+        return equals(a.getUser(), b.getUser()) &&
+            equals(emptyToNull(a.getName()), emptyToNull(b.getName())) &&
+            getItemType(a) == getItemType(b) &&
+            a.getItemStatus() == b.getItemStatus() &&
+            equals(a.getGroupNames(), b.getGroupNames());
+    }
+
+    static RosterPacket.ItemType getItemType(RosterPacket.Item item) {
+        RosterPacket.ItemType type = item.getItemType();
+        return type != null ? type : RosterPacket.ItemType.none;
+    }
+
+    private static String emptyToNull(String s) {
+        return (s != null && s.length() > 0) ? s : null;
+    }
+
+    private static boolean equals(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+}
@@ -36,16 +36,21 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.text.TextUtils;
 
+import org.kontalk.Log;
 import org.kontalk.util.Preferences;
 
 
 /**
  * A roster store backed by a SQLite database.
+ * The whole roster is mirrored in memory, so lookups never hit the database
+ * and roster resets only write the rows that actually changed. The roster
+ * version is stored in the same database and updated in the same transaction
+ * as the entries it refers to.
  * @author Daniele Ricci
  */
 public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
 
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 2;
     private static final String DATABASE_NAME = "roster.db";
 
     private static final String TABLE_ROSTER = "roster";
@@ -60,10 +65,33 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
     private static final String SCHEMA_ROSTER =
         "CREATE TABLE " + TABLE_ROSTER + " " + CREATE_TABLE_ROSTER;
 
+    private static final String TABLE_META = "meta";
+    private static final String CREATE_TABLE_META = "(" +
+        "name TEXT NOT NULL PRIMARY KEY," +
+        "value TEXT" +
+        ")";
+
+    private static final String SCHEMA_META =
+        "CREATE TABLE " + TABLE_META + " " + CREATE_TABLE_META;
+
+    private static final String META_VERSION = "version";
+
+    private static final String[] SCHEMA_UPGRADE_V1 = {
+        SCHEMA_META,
+    };
+
     private final Context mContext;
 
     private SQLiteStatement mInsertStatement;
-    private final Object mInsertLock = new Object();
+    private SQLiteStatement mDeleteStatement;
+    private SQLiteStatement mVersionStatement;
+
+    /** Guards the mirror, the compiled statements and all writes. */
+    private final Object mLock = new Object();
+    private RosterMirror mMirror;
+
+    /** Total number of rows written since creation (for statistics). */
+    private long mRowsWritten;
 
     public SQLiteRosterStore(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -73,20 +101,65 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SCHEMA_ROSTER);
+        db.execSQL(SCHEMA_META);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // this is the first version
+        switch (oldVersion) {
+            case 1:
+                for (String sql : SCHEMA_UPGRADE_V1)
+                    db.execSQL(sql);
+                // move roster version out of preferences
+                db.execSQL("INSERT INTO " + TABLE_META + " VALUES(?, ?)",
+                    new Object[] { META_VERSION, Preferences.getRosterVersion(mContext) });
+        }
     }
 
     public void onDestroy() {
+        synchronized (mLock) {
+            mInsertStatement = null;
+            mDeleteStatement = null;
+            mVersionStatement = null;
+            mMirror = null;
+        }
         close();
     }
 
+    /** Total number of roster rows written (inserted, replaced or deleted). */
+    public long getRowsWritten() {
+        synchronized (mLock) {
+            return mRowsWritten;
+        }
+    }
+
+    /** Loads the mirror from the database if needed. Call with {@link #mLock} held. */
+    private RosterMirror getMirror() {
+        if (mMirror == null) {
+            RosterMirror mirror = new RosterMirror();
+            SQLiteDatabase db = getReadableDatabase();
+            Cursor c = null;
+            try {
+                List<RosterPacket.Item> items = new ArrayList<>();
+                c = db.query(TABLE_ROSTER, null, null, null, null, null, null);
+                while (c.moveToNext()) {
+                    items.add(fromCursor(c));
+                }
+                mirror.load(items, readVersion(db));
+            }
+            finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+            mMirror = mirror;
+        }
+        return mMirror;
+    }
+
     private SQLiteStatement prepareInsert(SQLiteDatabase db, RosterPacket.Item item) {
         if (mInsertStatement == null) {
-            mInsertStatement = db.compileStatement("INSERT INTO " + TABLE_ROSTER +
+            mInsertStatement = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_ROSTER +
                 " VALUES(?, ?, ?, ?, ?)");
         }
         else {
@@ -95,9 +168,9 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
 
         int i = 0;
         mInsertStatement.bindString(++i, item.getUser());
-        mInsertStatement.bindString(++i, item.getName());
-        mInsertStatement.bindString(++i, item.getItemType() != null ?
-            item.getItemType().toString() : RosterPacket.ItemType.none.toString());
+        String name = item.getName();
+        mInsertStatement.bindString(++i, name != null ? name : "");
+        mInsertStatement.bindString(++i, RosterMirror.getItemType(item).toString());
 
         RosterPacket.ItemStatus status = item.getItemStatus();
         if (status != null) {
@@ -108,7 +181,7 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
         }
 
         Set<String> groups = item.getGroupNames();
-        if (groups != null) {
+        if (groups != null && groups.size() > 0) {
             mInsertStatement.bindString(++i, TextUtils.join(",", groups));
         }
         else {
@@ -118,29 +191,27 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
         return mInsertStatement;
     }
 
+    private SQLiteStatement prepareDelete(SQLiteDatabase db, String jid) {
+        if (mDeleteStatement == null) {
+            mDeleteStatement = db.compileStatement("DELETE FROM " + TABLE_ROSTER +
+                " WHERE jid = ?");
+        }
+        else {
+            mDeleteStatement.clearBindings();
+        }
+
+        mDeleteStatement.bindString(1, jid);
+        return mDeleteStatement;
+    }
+
     @Override
     public Collection<RosterPacket.Item> getEntries() {
-        SQLiteDatabase db = getReadableDatabase();
-        Cursor c = null;
-        try {
-            c = db.query(TABLE_ROSTER, null, null, null, null, null, null);
-            if (c != null) {
-                List<RosterPacket.Item> items = new ArrayList<>(c.getCount());
-                while (c.moveToNext()) {
-                    items.add(fromCursor(c));
-                }
-
-                return items;
+        synchronized (mLock) {
+            try {
+                return new ArrayList<>(getMirror().getAll());
             }
-
-            return null;
-        }
-        catch (SQLiteException e) {
-            return null;
-        }
-        finally {
-            if (c != null) {
-                c.close();
+            catch (SQLiteException e) {
+                return null;
             }
         }
     }
@@ -148,7 +219,8 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
     private RosterPacket.Item fromCursor(Cursor c) {
         String user = c.getString(0);
         String name = c.getString(1);
-        RosterPacket.Item item = new RosterPacket.Item(user, name);
+        RosterPacket.Item item = new RosterPacket.Item(user,
+            TextUtils.isEmpty(name) ? null : name);
         String type = c.getString(2);
         if (type == null)
             type = RosterPacket.ItemType.none.toString();
@@ -171,95 +243,173 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
 
     @Override
     public RosterPacket.Item getEntry(String bareJid) {
-        SQLiteDatabase db = getReadableDatabase();
-        Cursor c = null;
-        try {
-            c = db.query(TABLE_ROSTER, null,
-                "user = ?", new String[] { bareJid },
-                null, null, null);
-            if (c != null && c.moveToFirst()) {
-                return fromCursor(c);
+        synchronized (mLock) {
+            try {
+                return getMirror().get(bareJid);
             }
-        }
-        catch (SQLiteException e) {
-            return null;
-        }
-        finally {
-            if (c != null) {
-                c.close();
+            catch (SQLiteException e) {
+                return null;
             }
         }
-        return null;
     }
 
     @Override
     public String getRosterVersion() {
-        return Preferences.getRosterVersion(mContext);
+        synchronized (mLock) {
+            try {
+                String version = getMirror().getVersion();
+                return version != null ? version : "";
+            }
+            catch (SQLiteException e) {
+                return "";
+            }
+        }
     }
 
-    private boolean addEntry(SQLiteDatabase db, RosterPacket.Item item) {
-        synchronized (mInsertLock) {
+    @Override
+    public boolean addEntry(RosterPacket.Item item, String version) {
+        synchronized (mLock) {
+            RosterMirror mirror;
+            SQLiteDatabase db;
             try {
-                SQLiteStatement stm = prepareInsert(db, item);
-                stm.executeInsert();
+                mirror = getMirror();
+                db = getWritableDatabase();
             }
             catch (SQLiteException e) {
                 return false;
             }
 
-            // insert was successful
+            boolean changed = mirror.isChanged(item);
+
+            beginTransaction(db);
+            boolean success = false;
+            try {
+                if (changed) {
+                    prepareInsert(db, item).executeInsert();
+                    mRowsWritten++;
+                }
+                writeVersion(db, version);
+                success = setTransactionSuccessful(db);
+            }
+            catch (SQLiteException e) {
+                return false;
+            }
+            finally {
+                endTransaction(db, success);
+            }
+
+            if (changed)
+                mirror.put(item);
+            mirror.setVersion(version);
             return true;
         }
     }
 
-    @Override
-    public boolean addEntry(RosterPacket.Item item, String version) {
-        SQLiteDatabase db = getWritableDatabase();
-        return addEntry(db, item) && setRosterVersion(version);
-    }
-
     @Override
     public boolean resetEntries(Collection<RosterPacket.Item> items, String version) {
-        SQLiteDatabase db = getWritableDatabase();
+        synchronized (mLock) {
+            RosterMirror mirror;
+            SQLiteDatabase db;
+            try {
+                mirror = getMirror();
+                db = getWritableDatabase();
+            }
+            catch (SQLiteException e) {
+                return false;
+            }
 
-        beginTransaction(db);
-        boolean success = false;
+            RosterMirror.Changes changes = mirror.diff(items);
 
-        try {
-            db.execSQL("DELETE FROM " + TABLE_ROSTER);
-            for (RosterPacket.Item item : items) {
-                addEntry(db, item);
+            beginTransaction(db);
+            boolean success = false;
+            try {
+                for (String jid : changes.deletes) {
+                    prepareDelete(db, jid).execute();
+                }
+                for (RosterPacket.Item item : changes.upserts) {
+                    prepareInsert(db, item).executeInsert();
+                }
+                writeVersion(db, version);
+                success = setTransactionSuccessful(db);
             }
-
-            success = setTransactionSuccessful(db);
-            if (success) {
-                setRosterVersion(version);
+            catch (SQLiteException e) {
+                Log.w(MessageCenterService.TAG, "unable to reset roster", e);
+                return false;
+            }
+            finally {
+                endTransaction(db, success);
             }
-        }
-        catch (SQLiteException e) {
-            return false;
-        }
-        finally {
-            endTransaction(db, success);
-        }
 
-        return false;
+            mRowsWritten += changes.size();
+            mirror.apply(changes, version);
+            Log.v(MessageCenterService.TAG, "roster reset: {} upserted, {} deleted, {} total",
+                changes.upserts.size(), changes.deletes.size(), items.size());
+            return true;
+        }
     }
 
     @Override
     public boolean removeEntry(String bareJid, String version) {
-        SQLiteDatabase db = getWritableDatabase();
+        synchronized (mLock) {
+            RosterMirror mirror;
+            SQLiteDatabase db;
+            try {
+                mirror = getMirror();
+                db = getWritableDatabase();
+            }
+            catch (SQLiteException e) {
+                return false;
+            }
+
+            beginTransaction(db);
+            boolean success = false;
+            try {
+                if (mirror.get(bareJid) != null) {
+                    prepareDelete(db, bareJid).execute();
+                    mRowsWritten++;
+                }
+                writeVersion(db, version);
+                success = setTransactionSuccessful(db);
+            }
+            catch (SQLiteException e) {
+                return false;
+            }
+            finally {
+                endTransaction(db, success);
+            }
+
+            mirror.remove(bareJid);
+            mirror.setVersion(version);
+            return true;
+        }
+    }
+
+    private String readVersion(SQLiteDatabase db) {
+        Cursor c = db.query(TABLE_META, new String[] { "value" },
+            "name = ?", new String[] { META_VERSION }, null, null, null);
         try {
-            db.delete(TABLE_ROSTER, "user = ?", new String[]{bareJid});
-            return setRosterVersion(version);
+            return c.moveToFirst() ? c.getString(0) : null;
         }
-        catch (SQLiteException e) {
-            return false;
+        finally {
+            c.close();
         }
     }
 
-    private boolean setRosterVersion(String version) {
-        return Preferences.setRosterVersion(version);
+    private void writeVersion(SQLiteDatabase db, String version) {
+        if (mVersionStatement == null) {
+            mVersionStatement = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_META +
+                " VALUES(?, ?)");
+        }
+        else {
+            mVersionStatement.clearBindings();
+        }
+
+        mVersionStatement.bindString(1, META_VERSION);
+        if (version != null)
+            mVersionStatement.bindString(2, version);
+        else
+            mVersionStatement.bindNull(2);
+        mVersionStatement.execute();
     }
 
     /* Transactions compatibility layer */
@@ -20,10 +20,9 @@ package org.kontalk.service.msgcenter;
 
 import org.jivesoftware.smack.packet.Stanza;
 
+import org.kontalk.Log;
 import org.kontalk.client.UploadInfo;
 
-import android.util.Log;
-
 
 /**
  * Packet listener for upload info responses.
@@ -43,8 +42,8 @@ class UploadInfoListener extends MessageCenterPacketListener {
         UploadInfo info = (UploadInfo) packet;
         String node = info.getNode();
         setUploadService(node, info.getUri());
-        Log.v(MessageCenterService.TAG, "upload info received, node = " +
-            node + ", uri = " + info.getUri());
+        Log.v(MessageCenterService.TAG, "upload info received, node = {}, uri = {}",
+            node, info.getUri());
 
         // resend pending messages
         resendPendingMessages(true, false);
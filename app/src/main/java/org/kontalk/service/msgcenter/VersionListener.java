@@ -21,14 +21,7 @@ package org.kontalk.service.msgcenter;
 import org.jivesoftware.smack.packet.Stanza;
 import org.jivesoftware.smackx.iqversion.packet.Version;
 
-import android.content.Intent;
-
-import static org.kontalk.service.msgcenter.MessageCenterService.ACTION_VERSION;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_FROM;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_PACKET_ID;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_TO;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_VERSION_NAME;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_VERSION_NUMBER;
+import org.kontalk.service.msgcenter.event.VersionEvent;
 
 
 /**
@@ -44,16 +37,8 @@ class VersionListener extends MessageCenterPacketListener {
     @Override
     public void processPacket(Stanza packet) {
         Version p = (Version) packet;
-        Intent i = new Intent(ACTION_VERSION);
-        i.putExtra(EXTRA_PACKET_ID, p.getStanzaId());
-
-        i.putExtra(EXTRA_FROM, p.getFrom());
-        i.putExtra(EXTRA_TO, p.getTo());
-
-        i.putExtra(EXTRA_VERSION_NAME, p.getName());
-        i.putExtra(EXTRA_VERSION_NUMBER, p.getVersion());
-
-        sendBroadcast(i);
+        publish(new VersionEvent(p.getFrom(), p.getTo(), p.getStanzaId(),
+            p.getName(), p.getVersion()));
     }
 
 }
@@ -0,0 +1,273 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter.event;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+import android.os.Handler;
+import android.os.Looper;
+
+
+/**
+ * In-process publish/subscribe bus for message center events.
+ * Subscribers can listen to a single bare JID or to every JID; events are
+ * handed over on the executor chosen by the subscriber. The latest event of
+ * every type is kept for each JID and can be delivered on subscription.
+ * @author Daniele Ricci
+ */
+public class EventBus {
+
+    /** Runs tasks on the calling thread. */
+    public static final Executor POSTING = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static volatile Executor sMainThread;
+
+    private static final class InstanceHolder {
+        static final EventBus INSTANCE = new EventBus();
+    }
+
+    /** Subscriptions by topic. The null key holds subscriptions to all topics. */
+    private final Map<String, List<Subscription<?>>> mSubscriptions = new HashMap<>();
+    /** Latest event by type and topic. */
+    private final Map<Class<?>, Map<String, MessageCenterEvent>> mSticky = new ConcurrentHashMap<>();
+
+    public static EventBus getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    /** Returns an executor running tasks on the main thread. */
+    public static Executor mainThread() {
+        if (sMainThread == null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            sMainThread = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    if (Looper.myLooper() == handler.getLooper())
+                        command.run();
+                    else
+                        handler.post(command);
+                }
+            };
+        }
+        return sMainThread;
+    }
+
+    EventBus() {
+    }
+
+    /**
+     * Subscribes to events of the given type.
+     * @param jid the JID to listen to, null for all
+     * @param executor where events will be delivered
+     * @param sticky true to immediately receive the latest matching event(s)
+     * @return an handle to be used with {@link #unsubscribe}
+     */
+    public <T extends MessageCenterEvent> Object subscribe(Class<T> type, String jid,
+            Executor executor, EventSubscriber<? super T> subscriber, boolean sticky) {
+        String topic = MessageCenterEvent.topicOf(jid);
+        Subscription<T> s = new Subscription<T>(type, topic, executor, subscriber);
+
+        boolean hasSticky = false;
+        synchronized (mSubscriptions) {
+            // sticky events are read together with registration, so they
+            // are always older than anything published to the subscription
+            if (sticky) {
+                List<MessageCenterEvent> events = getStickyEvents(type, topic);
+                if (events.size() > 0) {
+                    s.setSticky(events);
+                    hasSticky = true;
+                }
+            }
+
+            List<Subscription<?>> list = mSubscriptions.get(topic);
+            if (list == null) {
+                list = new CopyOnWriteArrayList<>();
+                mSubscriptions.put(topic, list);
+            }
+            list.add(s);
+        }
+
+        // the first delivery task to run will deliver sticky events first
+        if (hasSticky)
+            s.post(Collections.<MessageCenterEvent>emptyList());
+
+        return s;
+    }
+
+    public void unsubscribe(Object handle) {
+        if (handle instanceof Subscription) {
+            Subscription<?> s = (Subscription<?>) handle;
+            s.active = false;
+            synchronized (mSubscriptions) {
+                List<Subscription<?>> list = mSubscriptions.get(s.topic);
+                if (list != null) {
+                    list.remove(s);
+                    if (list.isEmpty())
+                        mSubscriptions.remove(s.topic);
+                }
+            }
+        }
+    }
+
+    /** Publishes a single event. */
+    public void publish(MessageCenterEvent event) {
+        publish(Collections.singletonList(event));
+    }
+
+    /**
+     * Publishes a group of events. Each subscriber receives all of its
+     * matching events with a single executor task.
+     */
+    public void publish(Collection<? extends MessageCenterEvent> events) {
+        Map<Subscription<?>, List<MessageCenterEvent>> deliveries = new HashMap<>();
+
+        synchronized (mSubscriptions) {
+            for (MessageCenterEvent event : events) {
+                String topic = event.getJid();
+                if (topic != null)
+                    putSticky(event);
+
+                collect(deliveries, mSubscriptions.get(topic), event);
+                if (topic != null)
+                    collect(deliveries, mSubscriptions.get(null), event);
+            }
+        }
+
+        for (Map.Entry<Subscription<?>, List<MessageCenterEvent>> d : deliveries.entrySet()) {
+            d.getKey().post(d.getValue());
+        }
+    }
+
+    /** Returns the latest event of the given type for the given JID, if any. */
+    public <T extends MessageCenterEvent> T getSticky(Class<T> type, String jid) {
+        Map<String, MessageCenterEvent> events = mSticky.get(type);
+        return events != null ? type.cast(events.get(MessageCenterEvent.topicOf(jid))) : null;
+    }
+
+    /** Forgets the latest events of the given type (e.g. on disconnection). */
+    public void clearSticky(Class<? extends MessageCenterEvent> type) {
+        mSticky.remove(type);
+    }
+
+    private void putSticky(MessageCenterEvent event) {
+        Class<?> type = event.getClass();
+        Map<String, MessageCenterEvent> events = mSticky.get(type);
+        if (events == null) {
+            events = new ConcurrentHashMap<>();
+            mSticky.put(type, events);
+        }
+        events.put(event.getJid(), event);
+    }
+
+    private List<MessageCenterEvent> getStickyEvents(Class<?> type, String topic) {
+        List<MessageCenterEvent> out = new ArrayList<>();
+        for (Map.Entry<Class<?>, Map<String, MessageCenterEvent>> e : mSticky.entrySet()) {
+            if (type.isAssignableFrom(e.getKey())) {
+                if (topic != null) {
+                    MessageCenterEvent event = e.getValue().get(topic);
+                    if (event != null)
+                        out.add(event);
+                }
+                else {
+                    out.addAll(e.getValue().values());
+                }
+            }
+        }
+        return out;
+    }
+
+    private static void collect(Map<Subscription<?>, List<MessageCenterEvent>> deliveries,
+            List<Subscription<?>> subscriptions, MessageCenterEvent event) {
+        if (subscriptions == null)
+            return;
+
+        for (Subscription<?> s : subscriptions) {
+            if (s.type.isInstance(event)) {
+                List<MessageCenterEvent> list = deliveries.get(s);
+                if (list == null) {
+                    list = new ArrayList<>(1);
+                    deliveries.put(s, list);
+                }
+                list.add(event);
+            }
+        }
+    }
+
+    private static final class Subscription<T extends MessageCenterEvent> {
+        final Class<T> type;
+        final String topic;
+        final Executor executor;
+        final EventSubscriber<? super T> subscriber;
+        volatile boolean active = true;
+        /** Sticky events not delivered yet. */
+        private List<MessageCenterEvent> mSticky;
+
+        Subscription(Class<T> type, String topic, Executor executor, EventSubscriber<? super T> subscriber) {
+            this.type = type;
+            this.topic = topic;
+            this.executor = executor;
+            this.subscriber = subscriber;
+        }
+
+        synchronized void setSticky(List<MessageCenterEvent> events) {
+            mSticky = events;
+        }
+
+        private synchronized List<MessageCenterEvent> takeSticky() {
+            List<MessageCenterEvent> events = mSticky;
+            mSticky = null;
+            return events;
+        }
+
+        void post(final List<MessageCenterEvent> events) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    List<MessageCenterEvent> sticky = takeSticky();
+                    if (sticky != null)
+                        deliver(sticky);
+                    deliver(events);
+                }
+            });
+        }
+
+        void deliver(List<MessageCenterEvent> events) {
+            for (MessageCenterEvent event : events) {
+                // unsubscribed in the meantime
+                if (!active)
+                    return;
+                subscriber.onEvent(type.cast(event));
+            }
+        }
+    }
+
+}
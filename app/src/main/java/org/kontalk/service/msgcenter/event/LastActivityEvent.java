@@ -0,0 +1,57 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter.event;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.XMPPError;
+
+
+/**
+ * Last activity response.
+ * @author Daniele Ricci
+ */
+public final class LastActivityEvent extends MessageCenterEvent {
+
+    private final IQ.Type mType;
+    private final long mSeconds;
+    private final XMPPError.Condition mErrorCondition;
+
+    public LastActivityEvent(String from, String to, String id, IQ.Type type,
+            long seconds, XMPPError.Condition errorCondition) {
+        super(from, to, id);
+        mType = type;
+        mSeconds = seconds;
+        mErrorCondition = errorCondition;
+    }
+
+    public IQ.Type getType() {
+        return mType;
+    }
+
+    /** Idle time in seconds. */
+    public long getSeconds() {
+        return mSeconds;
+    }
+
+    /** Error condition, if the response is an error. */
+    public XMPPError.Condition getErrorCondition() {
+        return mErrorCondition;
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter.event;
+
+import java.util.Locale;
+
+import org.jxmpp.util.XmppStringUtils;
+
+
+/**
+ * Base class for immutable events published by the message center.
+ * Events are routed to subscribers by the bare JID of the peer.
+ * @author Daniele Ricci
+ */
+public abstract class MessageCenterEvent {
+
+    private final String mFrom;
+    private final String mTo;
+    private final String mId;
+    private final String mJid;
+
+    protected MessageCenterEvent(String from, String to, String id) {
+        mFrom = from;
+        mTo = to;
+        mId = id;
+        mJid = topicOf(from);
+    }
+
+    /** Full JID of the sender. */
+    public String getFrom() {
+        return mFrom;
+    }
+
+    public String getTo() {
+        return mTo;
+    }
+
+    /** Packet id (or request id) of the event. */
+    public String getId() {
+        return mId;
+    }
+
+    /** Bare JID of the sender, used as routing topic. */
+    public String getJid() {
+        return mJid;
+    }
+
+    /** Returns the routing topic for the given JID. */
+    public static String topicOf(String jid) {
+        return jid != null ? XmppStringUtils.parseBareJid(jid).toLowerCase(Locale.US) : null;
+    }
+
+}
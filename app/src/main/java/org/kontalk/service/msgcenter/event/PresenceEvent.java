@@ -0,0 +1,99 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter.event;
+
+import org.jivesoftware.smack.packet.Presence;
+
+
+/**
+ * Presence of a user.
+ * @author Daniele Ricci
+ */
+public final class PresenceEvent extends MessageCenterEvent {
+
+    private final Presence.Type mType;
+    private final Presence.Mode mMode;
+    private final String mStatus;
+    private final int mPriority;
+    private final long mStamp;
+    private final String mFingerprint;
+    private final String mRosterName;
+    private final boolean mSubscribedFrom;
+    private final boolean mSubscribedTo;
+
+    /** Creates an event for a user not found in the roster or not authorized. */
+    public PresenceEvent(String from, String id) {
+        this(from, null, id, null, null, null, 0, -1, null, null, false, false);
+    }
+
+    public PresenceEvent(String from, String to, String id, Presence.Type type,
+            Presence.Mode mode, String status, int priority, long stamp,
+            String fingerprint, String rosterName, boolean subscribedFrom, boolean subscribedTo) {
+        super(from, to, id);
+        mType = type;
+        mMode = mode;
+        mStatus = status;
+        mPriority = priority;
+        mStamp = stamp;
+        mFingerprint = fingerprint;
+        mRosterName = rosterName;
+        mSubscribedFrom = subscribedFrom;
+        mSubscribedTo = subscribedTo;
+    }
+
+    /** Presence type. Null if no roster entry was found for the user. */
+    public Presence.Type getType() {
+        return mType;
+    }
+
+    public Presence.Mode getMode() {
+        return mMode;
+    }
+
+    public String getStatus() {
+        return mStatus;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /** Presence (or last seen) timestamp. */
+    public long getStamp() {
+        return mStamp;
+    }
+
+    /** Public key fingerprint advertised by the user (or last known). */
+    public String getFingerprint() {
+        return mFingerprint;
+    }
+
+    public String getRosterName() {
+        return mRosterName;
+    }
+
+    public boolean isSubscribedFrom() {
+        return mSubscribedFrom;
+    }
+
+    public boolean isSubscribedTo() {
+        return mSubscribedTo;
+    }
+
+}
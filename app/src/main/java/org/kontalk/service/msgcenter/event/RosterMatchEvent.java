@@ -0,0 +1,51 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter.event;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.jivesoftware.smack.packet.IQ;
+
+
+/**
+ * Roster match response. Routed by the probe component JID.
+ * @author Daniele Ricci
+ */
+public final class RosterMatchEvent extends MessageCenterEvent {
+
+    private final IQ.Type mType;
+    private final List<String> mItems;
+
+    public RosterMatchEvent(String from, String to, String id, IQ.Type type, List<String> items) {
+        super(from, to, id);
+        mType = type;
+        mItems = items != null ? Collections.unmodifiableList(items) : null;
+    }
+
+    public IQ.Type getType() {
+        return mType;
+    }
+
+    /** Matched JIDs. Null if the server didn't return any list. */
+    public List<String> getItems() {
+        return mItems;
+    }
+
+}
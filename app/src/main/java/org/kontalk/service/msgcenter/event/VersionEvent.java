@@ -0,0 +1,45 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter.event;
+
+
+/**
+ * Software version response.
+ * @author Daniele Ricci
+ */
+public final class VersionEvent extends MessageCenterEvent {
+
+    private final String mName;
+    private final String mVersion;
+
+    public VersionEvent(String from, String to, String id, String name, String version) {
+        super(from, to, id);
+        mName = name;
+        mVersion = version;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getVersion() {
+        return mVersion;
+    }
+
+}
@@ -0,0 +1,353 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.sync;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.accounts.Account;
+import android.annotation.TargetApi;
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.text.TextUtils;
+
+import org.kontalk.BuildConfig;
+import org.kontalk.Log;
+import org.kontalk.R;
+import org.kontalk.provider.MyUsers.Users;
+
+
+/**
+ * Writes our raw contacts to the contacts provider. Contacts are diffed
+ * against the raw contacts already present, so unchanged contacts produce
+ * no operations. Operations are applied in chunks of limited size, with a
+ * yield point at the beginning of every contact, to keep binder
+ * transactions small and not to hold the contacts provider write lock
+ * for too long.
+ * @author Daniele Ricci
+ */
+class RawContactsWriter {
+    // using SyncAdapter tag
+    private static final String TAG = SyncAdapter.TAG;
+
+    /** Number of operations needed to insert a contact. */
+    private static final int INSERT_OPERATIONS = 3;
+    /** Number of operations needed to update a contact. */
+    private static final int UPDATE_OPERATIONS = 3;
+
+    /** A raw contact already present in the contacts provider. */
+    private static final class Existing {
+        final long id;
+        final String displayName;
+        final String phone;
+
+        Existing(long id, String displayName, String phone) {
+            this.id = id;
+            this.displayName = displayName;
+            this.phone = phone;
+        }
+    }
+
+    private final Context mContext;
+    private final Account mAccount;
+    private final ContentProviderClient mProvider;
+    private final SyncResult mSyncResult;
+    private final int mBatchSize;
+
+    /** Raw contacts not written yet, by JID. */
+    private final Map<String, Existing> mExisting = new HashMap<>();
+
+    private final ArrayList<ContentProviderOperation> mOperations;
+    private int mPendingInserts;
+    private int mPendingUpdates;
+    private int mPendingDeletes;
+
+    private int mChunks;
+    private long mTotalTime;
+    private long mMaxTime;
+
+    /**
+     * @param batchSize max number of operations applied in a single batch
+     */
+    public RawContactsWriter(Context context, Account account, ContentProviderClient provider,
+            SyncResult syncResult, int batchSize) {
+        mContext = context;
+        mAccount = account;
+        mProvider = provider;
+        mSyncResult = syncResult;
+        mBatchSize = Math.max(batchSize, Math.max(INSERT_OPERATIONS, UPDATE_OPERATIONS));
+        mOperations = new ArrayList<>(mBatchSize);
+    }
+
+    /** Loads the raw contacts currently present for our account. */
+    public void load() throws RemoteException, OperationApplicationException {
+        Cursor c = mProvider.query(RawContacts.CONTENT_URI,
+            new String[] {
+                RawContacts._ID,
+                Syncer.RAW_COLUMN_DISPLAY_NAME,
+                Syncer.RAW_COLUMN_PHONE,
+                Syncer.RAW_COLUMN_USERID,
+            },
+            RawContacts.ACCOUNT_NAME + " = ? AND " + RawContacts.ACCOUNT_TYPE + " = ? AND " +
+                RawContacts.DELETED + " = 0",
+            new String[] { mAccount.name, mAccount.type }, null);
+        if (c == null)
+            throw new RemoteException();
+
+        List<Long> duplicates = new ArrayList<>();
+        try {
+            while (c.moveToNext()) {
+                long id = c.getLong(0);
+                String jid = c.getString(3);
+                Existing old = mExisting.put(jid,
+                    new Existing(id, c.getString(1), c.getString(2)));
+                if (old != null)
+                    duplicates.add(old.id);
+            }
+        }
+        finally {
+            c.close();
+        }
+
+        // duplicate raw contacts, get rid of them
+        for (long id : duplicates) {
+            reserve(1);
+            addDelete(id);
+        }
+    }
+
+    /** Inserts or updates the raw contact for the given JID, if needed. */
+    public void put(String displayName, String phone, String jid)
+            throws RemoteException, OperationApplicationException {
+        Existing existing = mExisting.remove(jid);
+        if (existing == null) {
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "adding contact \"" + displayName + "\" <" + phone + ">");
+            }
+
+            int index = reserve(INSERT_OPERATIONS);
+            mOperations.add(insertRawContact(displayName, phone, jid,
+                RawContacts.CONTENT_URI).build());
+            addContactData(displayName, phone, index);
+            mPendingInserts++;
+        }
+
+        else if (!TextUtils.equals(displayName, existing.displayName) ||
+                !TextUtils.equals(phone, existing.phone)) {
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "updating contact \"" + displayName + "\" <" + phone + ">");
+            }
+
+            reserve(UPDATE_OPERATIONS);
+            String[] rawContactId = { String.valueOf(existing.id) };
+            mOperations.add(ContentProviderOperation.newUpdate(syncAdapterUri(RawContacts.CONTENT_URI))
+                .withSelection(RawContacts._ID + " = ?", rawContactId)
+                .withValue(Syncer.RAW_COLUMN_DISPLAY_NAME, displayName)
+                .withValue(Syncer.RAW_COLUMN_PHONE, phone)
+                .withYieldAllowed(true)
+                .build());
+            mOperations.add(ContentProviderOperation.newUpdate(syncAdapterUri(Data.CONTENT_URI))
+                .withSelection(Data.RAW_CONTACT_ID + " = ? AND " + Data.MIMETYPE + " = '" +
+                    StructuredName.CONTENT_ITEM_TYPE + "'", rawContactId)
+                .withValue(StructuredName.DISPLAY_NAME, displayName)
+                .build());
+            mOperations.add(ContentProviderOperation.newUpdate(syncAdapterUri(Data.CONTENT_URI))
+                .withSelection(Data.RAW_CONTACT_ID + " = ? AND " + Data.MIMETYPE + " = '" +
+                    Users.CONTENT_ITEM_TYPE + "'", rawContactId)
+                .withValue(Syncer.DATA_COLUMN_DISPLAY_NAME, displayName)
+                .withValue(Syncer.DATA_COLUMN_PHONE, phone)
+                .build());
+            mPendingUpdates++;
+        }
+    }
+
+    /** Inserts our profile raw contact. */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    public void putProfile(String displayName, String phone, String jid)
+            throws RemoteException, OperationApplicationException {
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "adding profile \"" + displayName + "\" <" + phone + ">");
+        }
+
+        int index = reserve(INSERT_OPERATIONS);
+        mOperations.add(insertRawContact(displayName, phone, jid,
+            ContactsContract.Profile.CONTENT_RAW_CONTACTS_URI).build());
+        addContactData(displayName, phone, index);
+        mPendingInserts++;
+    }
+
+    /** Deletes the raw contact for the given JID, if any. */
+    public void delete(String jid)
+            throws RemoteException, OperationApplicationException {
+        Existing existing = mExisting.remove(jid);
+        if (existing != null) {
+            reserve(1);
+            addDelete(existing.id);
+        }
+    }
+
+    /** Deletes all raw contacts not written yet, except the ones for the given JIDs. */
+    public void deleteStale(Set<String> keep)
+            throws RemoteException, OperationApplicationException {
+        for (Iterator<Map.Entry<String, Existing>> it = mExisting.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Existing> e = it.next();
+            if (!keep.contains(e.getKey())) {
+                it.remove();
+                reserve(1);
+                addDelete(e.getValue().id);
+            }
+        }
+    }
+
+    /** Applies all pending operations. */
+    public void flush() throws RemoteException, OperationApplicationException {
+        if (mOperations.size() == 0)
+            return;
+
+        long start = SystemClock.elapsedRealtime();
+        try {
+            mProvider.applyBatch(mOperations);
+        }
+        catch (RemoteException e) {
+            skipPending();
+            throw e;
+        }
+        catch (OperationApplicationException e) {
+            skipPending();
+            throw e;
+        }
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        mChunks++;
+        mTotalTime += elapsed;
+        mMaxTime = Math.max(mMaxTime, elapsed);
+        Log.v(TAG, "applied {} contact operations in {} ms", mOperations.size(), elapsed);
+
+        mSyncResult.stats.numInserts += mPendingInserts;
+        mSyncResult.stats.numUpdates += mPendingUpdates;
+        mSyncResult.stats.numDeletes += mPendingDeletes;
+        mSyncResult.stats.numEntries += mPendingInserts + mPendingUpdates;
+        resetPending();
+    }
+
+    /** Number of batches applied so far. */
+    public int getChunkCount() {
+        return mChunks;
+    }
+
+    /** Total time spent applying batches, in milliseconds. */
+    public long getTotalTime() {
+        return mTotalTime;
+    }
+
+    /** Time spent applying the slowest batch, in milliseconds. */
+    public long getMaxTime() {
+        return mMaxTime;
+    }
+
+    /**
+     * Makes room for the given number of operations, applying the current
+     * batch if needed.
+     * @return the index of the first reserved operation in the batch
+     */
+    private int reserve(int count) throws RemoteException, OperationApplicationException {
+        if (mOperations.size() + count > mBatchSize)
+            flush();
+        return mOperations.size();
+    }
+
+    private void skipPending() {
+        mSyncResult.stats.numSkippedEntries += mPendingInserts + mPendingUpdates + mPendingDeletes;
+        mOperations.clear();
+        resetPending();
+    }
+
+    private void resetPending() {
+        mPendingInserts = 0;
+        mPendingUpdates = 0;
+        mPendingDeletes = 0;
+    }
+
+    private void addDelete(long rawContactId) {
+        mOperations.add(ContentProviderOperation.newDelete(syncAdapterUri(RawContacts.CONTENT_URI))
+            .withSelection(RawContacts._ID + " = ?", new String[] { String.valueOf(rawContactId) })
+            .withYieldAllowed(true)
+            .build());
+        mPendingDeletes++;
+    }
+
+    private Uri syncAdapterUri(Uri uri) {
+        return uri.buildUpon()
+            .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
+            .appendQueryParameter(RawContacts.ACCOUNT_NAME, mAccount.name)
+            .appendQueryParameter(RawContacts.ACCOUNT_TYPE, mAccount.type)
+            .build();
+    }
+
+    private ContentProviderOperation.Builder insertRawContact(String username, String phone, String jid, Uri uri) {
+        return ContentProviderOperation.newInsert(uri)
+            .withValue(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_DEFAULT)
+            .withValue(RawContacts.ACCOUNT_NAME, mAccount.name)
+            .withValue(RawContacts.ACCOUNT_TYPE, mAccount.type)
+            .withValue(Syncer.RAW_COLUMN_DISPLAY_NAME, username)
+            .withValue(Syncer.RAW_COLUMN_PHONE, phone)
+            .withValue(Syncer.RAW_COLUMN_USERID, jid)
+            // yield only between contacts
+            .withYieldAllowed(true);
+    }
+
+    /** Adds the data rows for the raw contact inserted at the given batch index. */
+    private void addContactData(String username, String phone, int opIndex) {
+        ContentProviderOperation.Builder builder;
+
+        // create a Data record of common type 'StructuredName' for our RawContact
+        builder = ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
+            .withValueBackReference(ContactsContract.CommonDataKinds.StructuredName.RAW_CONTACT_ID, opIndex)
+            .withValue(ContactsContract.Data.MIMETYPE, ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE)
+            .withValue(ContactsContract.CommonDataKinds.StructuredName.DISPLAY_NAME, username);
+        mOperations.add(builder.build());
+
+        // create a Data record of custom type 'org.kontalk.user' to display a link to the conversation
+        builder = ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
+            .withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, opIndex)
+            .withValue(ContactsContract.Data.MIMETYPE, Users.CONTENT_ITEM_TYPE)
+            .withValue(Syncer.DATA_COLUMN_DISPLAY_NAME, username)
+            .withValue(Syncer.DATA_COLUMN_ACCOUNT_NAME, mContext.getString(R.string.app_name))
+            .withValue(Syncer.DATA_COLUMN_PHONE, phone);
+        mOperations.add(builder.build());
+    }
+
+}
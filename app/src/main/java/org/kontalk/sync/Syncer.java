@@ -18,13 +18,19 @@
 
 package org.kontalk.sync;
 
-import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Presence;
@@ -49,23 +55,29 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.RawContacts;
 import android.support.v4.content.LocalBroadcastManager;
 import android.text.TextUtils;
-import android.util.Log;
 
-import org.kontalk.BuildConfig;
-import org.kontalk.R;
+import org.kontalk.Log;
 import org.kontalk.authenticator.Authenticator;
-import org.kontalk.client.NumberValidator;
+import org.kontalk.client.NumberNormalizer;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PGPUserID;
 import org.kontalk.data.Contact;
 import org.kontalk.provider.MyUsers.Users;
 import org.kontalk.provider.UsersProvider;
 import org.kontalk.service.msgcenter.MessageCenterService;
+import org.kontalk.service.msgcenter.event.EventBus;
+import org.kontalk.service.msgcenter.event.EventSubscriber;
+import org.kontalk.service.msgcenter.event.LastActivityEvent;
+import org.kontalk.service.msgcenter.event.MessageCenterEvent;
+import org.kontalk.service.msgcenter.event.PresenceEvent;
+import org.kontalk.service.msgcenter.event.PublicKeyEvent;
+import org.kontalk.service.msgcenter.event.RosterMatchEvent;
 import org.kontalk.util.XMPPUtils;
 
 
@@ -80,6 +92,19 @@ public class Syncer {
     // max time to wait for network response
     private static final int MAX_WAIT_TIME = 60000;
 
+    /** Max number of items in a roster match request. */
+    private static final int MAX_ROSTER_MATCH_SIZE = 500;
+    /** Max number of roster match requests waiting for a response. */
+    private static final int MAX_PENDING_SLICES = 2;
+    /** Max time to wait for a single roster match response. */
+    private static final int SLICE_WAIT_TIME = 20000;
+    /** Times a roster match request is sent again before skipping its contacts. */
+    private static final int SLICE_MAX_RETRIES = 1;
+    /** Interval for checking if sync has been canceled while waiting. */
+    private static final int POLL_INTERVAL = 1000;
+    /** Max number of raw contacts operations applied in a single batch. */
+    private static final int MAX_BATCH_OPERATIONS = 150;
+
     /** {@link Data} column for the display name. */
     public static final String DATA_COLUMN_DISPLAY_NAME = Data.DATA1;
     /** {@link Data} column for the account name. */
@@ -108,237 +133,243 @@ public class Syncer {
         public byte[] publicKey;
         public boolean blocked;
         public boolean presence;
+        /** True if a public key response has been received (key might be null). */
+        public boolean publicKeyReceived;
         /** True if found during roster match. */
         public boolean matched;
         /** Discard this entry: it has not been found on server. */
         public boolean discarded;
     }
 
+    /** A slice of the JID list sent to the server for roster match. */
+    private static final class RosterSlice {
+        public final List<String> jids;
+        /** Packet id of the last request. */
+        public String id;
+        /** Time (elapsed realtime) after which the request will be considered lost. */
+        public long deadline;
+        public int retries;
+        /** JIDs matched by the server. */
+        public List<String> matched;
+
+        public RosterSlice(List<String> jids) {
+            this.jids = jids;
+        }
+    }
+
+    /** Queued by the receiver when the message center is connected. */
+    private static final Object CONNECTED = new Object();
+    /** Queued by the receiver when all presence data has been received. */
+    private static final Object PRESENCE_DONE = new Object();
+
+    /**
+     * Collects roster match and presence data from the message center.
+     * Matched roster slices and progress markers are queued for the sync
+     * thread, which is the only one writing to databases.
+     */
     // FIXME this class should handle most recent/available presence stanzas
-    private static final class PresenceBroadcastReceiver extends BroadcastReceiver {
-        /** Max number of items in a roster match request. */
-        private static final int MAX_ROSTER_MATCH_SIZE = 500;
+    private static final class PresenceBroadcastReceiver extends BroadcastReceiver
+            implements EventSubscriber<MessageCenterEvent> {
 
-        private List<PresenceItem> response;
-        private final WeakReference<Syncer> notifyTo;
+        private final Context context;
+        private final BlockingQueue<Object> queue;
 
-        private final List<String> jidList;
-        private int rosterParts = -1;
-        private String[] iq;
+        /** Received items, mapped by lowercase bare JID. */
+        private final Map<String, PresenceItem> response = new LinkedHashMap<>();
+        /** Roster match requests waiting for a response, by packet id. */
+        private final Map<String, RosterSlice> pending = new HashMap<>();
         private String presenceId;
+        private boolean connected;
+        private boolean closed;
 
         private int presenceCount;
         private int pubkeyCount;
-        private int rosterCount;
         /** Packet id list for not matched contacts (in roster but not matched on server). */
         private Set<String> notMatched = new HashSet<>();
         private boolean blocklistReceived;
 
-        public PresenceBroadcastReceiver(List<String> jidList, Syncer notifyTo) {
-            this.notifyTo = new WeakReference<Syncer>(notifyTo);
-            this.jidList = jidList;
+        public PresenceBroadcastReceiver(Context context, BlockingQueue<Object> queue) {
+            this.context = context;
+            this.queue = queue;
+        }
+
+        public synchronized void addPending(RosterSlice slice) {
+            pending.put(slice.id, slice);
+        }
+
+        public synchronized void removePending(RosterSlice slice) {
+            pending.remove(slice.id);
+        }
+
+        /** Presence data will be collected from now on. */
+        public synchronized void setPresenceId(String id) {
+            presenceId = id;
+        }
+
+        /** Stops collecting data and returns the received items. */
+        public synchronized List<PresenceItem> close() {
+            closed = true;
+            return new ArrayList<>(response.values());
+        }
+
+        public synchronized boolean isBlocklistReceived() {
+            return blocklistReceived;
         }
 
         @Override
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
+        public synchronized void onEvent(MessageCenterEvent event) {
+            if (closed)
+                return;
+
+            if (event instanceof PresenceEvent)
+                onPresence((PresenceEvent) event);
+            else if (event instanceof RosterMatchEvent)
+                onRosterMatch((RosterMatchEvent) event);
+            else if (event instanceof PublicKeyEvent)
+                onPublicKey((PublicKeyEvent) event);
+            else if (event instanceof LastActivityEvent)
+                onLastActivity((LastActivityEvent) event);
+        }
 
-            if (MessageCenterService.ACTION_PRESENCE.equals(action)) {
-
-                // consider only presences received *after* roster response
-                if (response != null && presenceId != null) {
-
-                    String jid = intent.getStringExtra(MessageCenterService.EXTRA_FROM);
-                    String type = intent.getStringExtra(MessageCenterService.EXTRA_TYPE);
-                    String id = intent.getStringExtra(MessageCenterService.EXTRA_PACKET_ID);
-                    if (type != null && presenceId.equals(id)) {
-                        // update presence item data
-                        String bareJid = XmppStringUtils.parseBareJid(jid);
-                        PresenceItem item = getPresenceItem(bareJid);
-                        item.status = intent.getStringExtra(MessageCenterService.EXTRA_STATUS);
-                        item.timestamp = intent.getLongExtra(MessageCenterService.EXTRA_STAMP, -1);
-                        item.rosterName = intent.getStringExtra(MessageCenterService.EXTRA_ROSTER_NAME);
-                        if (!item.presence) {
-                            item.presence = true;
-                            // increment presence count
-                            presenceCount++;
-                            // check user existance (only if subscription is "both")
-                            if (!item.matched && intent.getBooleanExtra(MessageCenterService.EXTRA_SUBSCRIBED_FROM, false) &&
-                                intent.getBooleanExtra(MessageCenterService.EXTRA_SUBSCRIBED_TO, false)) {
-                                // verify actual user existance through last activity
-                                String lastActivityId = StringUtils.randomString(6);
-                                MessageCenterService.requestLastActivity(context, item.from, lastActivityId);
-                                notMatched.add(lastActivityId);
-                            }
+        private void onPresence(PresenceEvent event) {
+            // consider only presences received *after* roster match
+            if (presenceId != null) {
+
+                String id = event.getId();
+                if (event.getType() != null && presenceId.equals(id)) {
+                    // update presence item data
+                    PresenceItem item = getPresenceItem(event.getJid());
+                    item.status = event.getStatus();
+                    item.timestamp = event.getStamp();
+                    item.rosterName = event.getRosterName();
+                    if (!item.presence) {
+                        item.presence = true;
+                        // increment presence count
+                        presenceCount++;
+                        // check user existance (only if subscription is "both")
+                        if (!item.matched && event.isSubscribedFrom() && event.isSubscribedTo()) {
+                            // verify actual user existance through last activity
+                            String lastActivityId = StringUtils.randomString(6);
+                            MessageCenterService.requestLastActivity(context, item.from, lastActivityId);
+                            notMatched.add(lastActivityId);
                         }
                     }
                 }
             }
+        }
 
-            // roster match result received
-            else if (MessageCenterService.ACTION_ROSTER_MATCH.equals(action)) {
-                String id = intent.getStringExtra(MessageCenterService.EXTRA_PACKET_ID);
-                for (String iqId : iq) {
-                    if (iqId.equals(id)) {
-                        // decrease roster parts counter
-                        rosterParts--;
-
-                        String[] list = intent.getStringArrayExtra(MessageCenterService.EXTRA_JIDLIST);
-                        if (list != null) {
-                            rosterCount += list.length;
-                            if (response == null) {
-                                // prepare list to be filled in with presence data
-                                response = new ArrayList<PresenceItem>(rosterCount);
-                            }
-                            for (String jid : list) {
-                                PresenceItem p = new PresenceItem();
-                                p.from = jid;
-                                p.matched = true;
-                                response.add(p);
-                            }
-                        }
+        // roster match result received
+        private void onRosterMatch(RosterMatchEvent event) {
+            RosterSlice slice = pending.remove(event.getId());
+            // not requested or given up already
+            if (slice == null)
+                return;
+
+            List<String> list = event.getItems();
+            slice.matched = (list != null) ? list : new ArrayList<String>(0);
+            for (String jid : slice.matched) {
+                PresenceItem p = new PresenceItem();
+                p.from = jid;
+                p.matched = true;
+                response.put(key(jid), p);
+            }
 
-                        if (rosterParts <= 0) {
-                            // all roster parts received
+            // hand it over to the sync thread
+            queue.offer(slice);
+        }
 
-                            if (rosterCount == 0 && blocklistReceived) {
-                                // no roster elements
-                                finish();
-                            }
-                            else {
-                                Syncer w = notifyTo.get();
-                                if (w != null) {
-                                    // request presence data for the whole roster
-                                    presenceId = StringUtils.randomString(6);
-                                    w.requestPresenceData(presenceId);
-                                    // request public keys for the whole roster
-                                    w.requestPublicKeys();
-                                    // request block list
-                                    w.requestBlocklist();
-                                }
-                            }
-                        }
+        private void onPublicKey(PublicKeyEvent event) {
+            if (presenceId != null) {
+                // see if bare JID is present in roster response
+                PresenceItem item = response.get(key(event.getJid()));
+                if (item != null) {
+                    item.publicKey = event.getPublicKey();
+                    item.publicKeyReceived = true;
 
-                        // no need to continue
-                        break;
-                    }
+                    // increment vcard count
+                    pubkeyCount++;
                 }
-            }
 
-            else if (MessageCenterService.ACTION_PUBLICKEY.equals(action)) {
-                if (response != null) {
-                    String jid = intent.getStringExtra(MessageCenterService.EXTRA_FROM);
-                    // see if bare JID is present in roster response
-                    String compare = XmppStringUtils.parseBareJid(jid);
-                    for (PresenceItem item : response) {
-                        if (XmppStringUtils.parseBareJid(item.from).equalsIgnoreCase(compare)) {
-                            item.publicKey = intent.getByteArrayExtra(MessageCenterService.EXTRA_PUBLIC_KEY);
-
-                            // increment vcard count
-                            pubkeyCount++;
-                            break;
-                        }
-                    }
-
-                    // done with presence data and blocklist
-                    if (pubkeyCount == presenceCount && blocklistReceived && notMatched.size() == 0)
-                        finish();
+                checkDone();
+            }
+        }
 
+        // last activity (for user existance verification)
+        private void onLastActivity(LastActivityEvent event) {
+            String requestId = event.getId();
+            if (notMatched.contains(requestId)) {
+                notMatched.remove(requestId);
+
+                // consider only item-not-found (404) errors
+                if (event.getType() == IQ.Type.error &&
+                        event.getErrorCondition() == XMPPError.Condition.item_not_found) {
+                    // user does not exist!
+                    String jid = event.getFrom();
+                    // discard entry
+                    PresenceItem item = response.get(key(jid));
+                    if (item != null)
+                        item.discarded = true;
+                    // unsubscribe!
+                    unsubscribe(context, jid);
                 }
 
+                checkDone();
             }
+        }
+
+        @Override
+        public synchronized void onReceive(Context context, Intent intent) {
+            if (closed)
+                return;
 
-            else if (MessageCenterService.ACTION_BLOCKLIST.equals(action)) {
+            String action = intent.getAction();
+
+            if (MessageCenterService.ACTION_BLOCKLIST.equals(action)) {
                 blocklistReceived = true;
 
                 String[] list = intent.getStringArrayExtra(MessageCenterService.EXTRA_BLOCKLIST);
                 if (list != null) {
-
                     for (String jid : list) {
                         // see if bare JID is present in roster response
-                        String compare = XmppStringUtils.parseBareJid(jid);
-                        for (PresenceItem item : response) {
-                            if (XmppStringUtils.parseBareJid(item.from).equalsIgnoreCase(compare)) {
-                                item.blocked = true;
-
-                                break;
-                            }
-                        }
+                        PresenceItem item = response.get(key(jid));
+                        if (item != null)
+                            item.blocked = true;
                     }
-
                 }
 
-                // done with presence data and blocklist
-                if (pubkeyCount >= presenceCount && notMatched.size() == 0)
-                    finish();
-            }
-
-            // last activity (for user existance verification)
-            else if (MessageCenterService.ACTION_LAST_ACTIVITY.equals(action)) {
-                String requestId = intent.getStringExtra(MessageCenterService.EXTRA_PACKET_ID);
-                if (notMatched.contains(requestId)) {
-                    notMatched.remove(requestId);
-
-                    String type = intent.getStringExtra(MessageCenterService.EXTRA_TYPE);
-                    // consider only item-not-found (404) errors
-                    if (type != null && type.equalsIgnoreCase(IQ.Type.error.toString()) &&
-                            XMPPError.Condition.item_not_found.toString().equals(intent
-                                .getStringExtra(MessageCenterService.EXTRA_ERROR_CONDITION))) {
-                        // user does not exist!
-                        String jid = intent.getStringExtra(MessageCenterService.EXTRA_FROM);
-                        // discard entry
-                        discardPresenceItem(jid);
-                        // unsubscribe!
-                        unsubscribe(context, jid);
-
-                        if (pubkeyCount >= presenceCount && blocklistReceived && notMatched.size() == 0)
-                            finish();
-                    }
-                }
+                checkDone();
             }
 
-            // connected! Retry...
-            else if (MessageCenterService.ACTION_CONNECTED.equals(action) && rosterParts < 0) {
-                Syncer w = notifyTo.get();
-                if (w != null) {
-                    // request a roster match
-                    rosterParts = getRosterParts(jidList);
-                    iq = new String[rosterParts];
-                    for (int i = 0; i < rosterParts; i++) {
-                        int end = (i+1)*MAX_ROSTER_MATCH_SIZE;
-                        if (end >= jidList.size())
-                            end = jidList.size();
-                        List<String> slice = jidList.subList(i*MAX_ROSTER_MATCH_SIZE, end);
-
-                        iq[i] = StringUtils.randomString(6);
-                        w.requestRosterMatch(iq[i], slice);
-                    }
-                }
+            // connected! Start roster match
+            else if (MessageCenterService.ACTION_CONNECTED.equals(action) && !connected) {
+                connected = true;
+                queue.offer(CONNECTED);
             }
         }
 
-        private void discardPresenceItem(String jid) {
-            for (PresenceItem item : response) {
-                if (XmppStringUtils.parseBareJid(item.from).equalsIgnoreCase(jid)) {
-                    item.discarded = true;
-                    return;
-                }
-            }
+        private void checkDone() {
+            // done with presence data and blocklist
+            if (presenceId != null && pubkeyCount >= presenceCount &&
+                    blocklistReceived && notMatched.size() == 0)
+                queue.offer(PRESENCE_DONE);
         }
 
         private PresenceItem getPresenceItem(String jid) {
-            for (PresenceItem item : response) {
-                if (XmppStringUtils.parseBareJid(item.from).equalsIgnoreCase(jid))
-                    return item;
+            String key = key(jid);
+            PresenceItem item = response.get(key);
+            if (item == null) {
+                // add item if not found
+                item = new PresenceItem();
+                item.from = jid;
+                response.put(key, item);
             }
-
-            // add item if not found
-            PresenceItem item = new PresenceItem();
-            item.from = jid;
-            response.add(item);
             return item;
         }
 
+        private static String key(String jid) {
+            return XmppStringUtils.parseBareJid(jid).toLowerCase(Locale.US);
+        }
+
         private void unsubscribe(Context context, String jid) {
             Intent i = new Intent(context, MessageCenterService.class);
             i.setAction(MessageCenterService.ACTION_PRESENCE);
@@ -346,23 +377,6 @@ public class Syncer {
             i.putExtra(MessageCenterService.EXTRA_TYPE, Presence.Type.unsubscribe.name());
             context.startService(i);
         }
-
-        private int getRosterParts(List<String> jidList) {
-            return (int) Math.ceil((double) jidList.size() / MAX_ROSTER_MATCH_SIZE);
-        }
-
-        public List<PresenceItem> getResponse() {
-            return (rosterCount >= 0) ? response : null;
-        }
-
-        private void finish() {
-            Syncer w = notifyTo.get();
-            if (w != null) {
-                synchronized (w) {
-                    w.notifyAll();
-                }
-            }
-        }
     }
 
     public Syncer(Context context) {
@@ -391,10 +405,10 @@ public class Syncer {
 
     /**
      * The actual sync procedure.
-     * This one uses the slowest method ever: it first checks for every phone
-     * number in all contacts and it sends them to the server. Once a response
-     * is received, it deletes all the raw contacts created by us and then
-     * recreates only the ones the server has found a match for.
+     * It first checks for every phone number in all contacts and it sends
+     * them to the server in slices. As soon as a slice is matched, the raw
+     * contacts created by us for that slice are replaced with the ones the
+     * server has found a match for.
      */
     public void performSync(Context context, Account account, String authority,
         ContentProviderClient provider, ContentProviderClient usersProvider,
@@ -414,7 +428,7 @@ public class Syncer {
             .build();
         try {
             int count = usersProvider.update(uri, new ContentValues(), null, null);
-            Log.d(TAG, "users database resynced (" + count + ")");
+            Log.d(TAG, "users database resynced ({})", count);
         }
         catch (Exception e) {
             Log.e(TAG, "error resyncing users database - aborting sync", e);
@@ -435,6 +449,9 @@ public class Syncer {
             return;
         }
 
+        // numbers are normalized using the same region throughout the sync
+        NumberNormalizer normalizer = NumberNormalizer.create(mContext, account.name, 0);
+
         while (cursor.moveToNext()) {
             if (mCanceled) {
                 cursor.close();
@@ -451,7 +468,7 @@ public class Syncer {
 
             // fix number
             try {
-                number = NumberValidator.fixNumber(mContext, number, account.name, 0);
+                number = normalizer.normalize(number);
             }
             catch (Exception e) {
                 Log.e(TAG, "unable to normalize number: " + number + " - skipping", e);
@@ -494,198 +511,460 @@ public class Syncer {
         else {
             final LocalBroadcastManager lbm = LocalBroadcastManager
                 .getInstance(mContext);
+            final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
 
             // register presence broadcast receiver
-            PresenceBroadcastReceiver receiver = new PresenceBroadcastReceiver(jidList, this);
+            PresenceBroadcastReceiver receiver = new PresenceBroadcastReceiver(mContext, queue);
             IntentFilter f = new IntentFilter();
-            f.addAction(MessageCenterService.ACTION_PRESENCE);
-            f.addAction(MessageCenterService.ACTION_ROSTER_MATCH);
-            f.addAction(MessageCenterService.ACTION_PUBLICKEY);
             f.addAction(MessageCenterService.ACTION_BLOCKLIST);
-            f.addAction(MessageCenterService.ACTION_LAST_ACTIVITY);
             f.addAction(MessageCenterService.ACTION_CONNECTED);
             lbm.registerReceiver(receiver, f);
 
-            // request current connection status
-            MessageCenterService.requestConnectionStatus(mContext);
+            // presence, roster match, public keys and last activity from the event bus
+            // (delivered on the main thread like the broadcasts above)
+            final EventBus bus = EventBus.getInstance();
+            Object subscription = bus.subscribe(MessageCenterEvent.class,
+                null, EventBus.mainThread(), receiver, false);
 
-            // wait for the service to complete its job
-            synchronized (this) {
-                // wait for connection
-                try {
-                    wait(MAX_WAIT_TIME);
-                }
-                catch (InterruptedException e) {
-                    // simulate canceled operation
-                    mCanceled = true;
+            try {
+                streamSync(account, provider, usersProvider, syncResult,
+                    receiver, queue, lookupNumbers, jidList);
+            }
+            finally {
+                lbm.unregisterReceiver(receiver);
+                bus.unsubscribe(subscription);
+            }
+        }
+    }
+
+    /**
+     * Sends roster match requests with a bounded number of outstanding
+     * slices, applying each matched slice as soon as it arrives. Then
+     * collects presence data for the whole roster and commits the users
+     * table.
+     */
+    private void streamSync(Account account, ContentProviderClient provider,
+            ContentProviderClient usersProvider, SyncResult syncResult,
+            PresenceBroadcastReceiver receiver, BlockingQueue<Object> queue,
+            Map<String, RawPhoneNumberEntry> lookupNumbers, List<String> jidList)
+            throws OperationCanceledException {
+
+        // request current connection status
+        MessageCenterService.requestConnectionStatus(mContext);
+
+        // wait for connection
+        if (waitFor(queue, CONNECTED, MAX_WAIT_TIME) == null) {
+            Log.w(TAG, "connection timeout - aborting sync");
+            syncResult.stats.numIoExceptions++;
+            return;
+        }
+
+        RawContactsWriter writer = new RawContactsWriter(mContext, account,
+            provider, syncResult, MAX_BATCH_OPERATIONS);
+        try {
+            writer.load();
+        }
+        catch (Exception e) {
+            Log.e(TAG, "error reading raw contacts - aborting sync", e);
+            syncResult.databaseError = true;
+            return;
+        }
+
+        LinkedList<RosterSlice> waiting = new LinkedList<>();
+        for (int i = 0; i < jidList.size(); i += MAX_ROSTER_MATCH_SIZE) {
+            waiting.add(new RosterSlice(jidList.subList(i,
+                Math.min(i + MAX_ROSTER_MATCH_SIZE, jidList.size()))));
+        }
+
+        List<RosterSlice> outstanding = new ArrayList<>(MAX_PENDING_SLICES);
+        // JIDs in slices we gave up on
+        List<String> failed = new ArrayList<>();
+        int matched = 0;
+
+        while (waiting.size() > 0 || outstanding.size() > 0) {
+            // keep a bounded number of requests in flight
+            while (outstanding.size() < MAX_PENDING_SLICES && waiting.size() > 0) {
+                RosterSlice slice = waiting.removeFirst();
+                slice.id = StringUtils.randomString(6);
+                slice.deadline = SystemClock.elapsedRealtime() + SLICE_WAIT_TIME;
+                receiver.addPending(slice);
+                requestRosterMatch(slice.id, slice.jids);
+                outstanding.add(slice);
+            }
+
+            long deadline = Long.MAX_VALUE;
+            for (RosterSlice slice : outstanding)
+                deadline = Math.min(deadline, slice.deadline);
+
+            Object msg = poll(queue, deadline - SystemClock.elapsedRealtime());
+            if (msg instanceof RosterSlice && outstanding.remove(msg)) {
+                RosterSlice slice = (RosterSlice) msg;
+                matched += slice.matched.size();
+                applySlice(provider, usersProvider, syncResult, writer, lookupNumbers, slice);
+            }
+
+            // expire lost requests
+            long now = SystemClock.elapsedRealtime();
+            for (Iterator<RosterSlice> it = outstanding.iterator(); it.hasNext(); ) {
+                RosterSlice slice = it.next();
+                if (slice.deadline <= now) {
+                    it.remove();
+                    receiver.removePending(slice);
+                    if (slice.retries++ < SLICE_MAX_RETRIES) {
+                        Log.w(TAG, "roster match timeout - retrying slice");
+                        waiting.addFirst(slice);
+                    }
+                    else {
+                        Log.w(TAG, "roster match timeout - skipping " + slice.jids.size() + " contacts");
+                        failed.addAll(slice.jids);
+                        syncResult.stats.numIoExceptions++;
+                    }
                 }
             }
+        }
 
-            lbm.unregisterReceiver(receiver);
+        if (matched > 0) {
+            // request presence data, public keys and block list for the whole roster
+            String presenceId = StringUtils.randomString(6);
+            receiver.setPresenceId(presenceId);
+            requestPresenceData(presenceId);
+            requestPublicKeys();
+            requestBlocklist();
 
-            // last chance to quit
-            if (mCanceled) throw new OperationCanceledException();
+            if (waitFor(queue, PRESENCE_DONE, MAX_WAIT_TIME) == null)
+                Log.w(TAG, "presence data timeout - using partial data");
+        }
 
-            List<PresenceItem> res = receiver.getResponse();
-            if (res != null) {
-                ArrayList<ContentProviderOperation> operations =
-                    new ArrayList<ContentProviderOperation>();
-                // TODO operations.size() could be used instead (?)
-                int op = 0;
-                String ownContactJid = null;
+        List<PresenceItem> res = receiver.close();
+        boolean blocklistReceived = receiver.isBlocklistReceived();
+        // last chance to quit
+        if (mCanceled) throw new OperationCanceledException();
 
-                // this is the time - delete all Kontalk raw contacts
-                try {
-                    syncResult.stats.numDeletes += deleteAll(account, provider);
+        // keep what we had for data that didn't arrive in time
+        Map<String, ContentValues> stored = null;
+        boolean partial = !blocklistReceived;
+        for (int i = 0; i < res.size() && !partial; i++) {
+            PresenceItem entry = res.get(i);
+            partial = !entry.discarded && (!entry.presence || !entry.publicKeyReceived);
+        }
+        if (partial)
+            stored = queryServerValues(usersProvider);
+
+        String ownContactJid = null;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            try {
+                syncResult.stats.numDeletes += deleteProfile(account, provider);
+            }
+            catch (Exception e) {
+                Log.e(TAG, "profile delete error", e);
+                syncResult.databaseError = true;
+            }
+        }
+
+        ContentValues registeredValues = new ContentValues();
+        registeredValues.put(Users.REGISTERED, 1);
+        for (int i = 0; i < res.size(); i++) {
+            PresenceItem entry = res.get(i);
+            if (entry.discarded)
+                continue;
+
+            final RawPhoneNumberEntry data = lookupNumbers
+                .get(XmppStringUtils.parseLocalpart(entry.from));
+            // update fields
+            try {
+                // matched contacts were written already
+                if (!entry.matched && data != null && data.lookupKey != null) {
+                    writer.put(getDisplayName(provider, data.lookupKey, data.number),
+                        data.number, data.jid);
                 }
-                catch (Exception e) {
-                    Log.e(TAG, "contact delete error", e);
-                    syncResult.databaseError = true;
-                    return;
+
+                // start from stored values, overwrite with what we received
+                ContentValues previous = (stored != null) ?
+                    stored.get(PresenceBroadcastReceiver.key(entry.from)) : null;
+                if (previous != null) {
+                    registeredValues.putAll(previous);
                 }
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
-                    try {
-                        syncResult.stats.numDeletes += deleteProfile(account, provider);
-                    }
-                    catch (Exception e) {
-                        Log.e(TAG, "profile delete error", e);
-                        syncResult.databaseError = true;
-                    }
+                else {
+                    registeredValues.putNull(Users.STATUS);
+                    registeredValues.putNull(Users.LAST_SEEN);
+                    registeredValues.putNull(Users.FINGERPRINT);
+                    registeredValues.putNull(Users.PUBLIC_KEY);
+                    registeredValues.put(Users.BLOCKED, false);
                 }
 
-                ContentValues registeredValues = new ContentValues();
-                registeredValues.put(Users.REGISTERED, 1);
-                for (int i = 0; i < res.size(); i++) {
-                    PresenceItem entry = res.get(i);
-                    if (entry.discarded)
-                        continue;
+                if (entry.presence) {
+                    String status = entry.status;
 
-                    final RawPhoneNumberEntry data = lookupNumbers
-                        .get(XmppStringUtils.parseLocalpart(entry.from));
-                    if (data != null && data.lookupKey != null) {
-                        // add contact
-                        addContact(account,
-                                getDisplayName(provider, data.lookupKey, data.number),
-                                data.number, data.jid, operations, op++);
-                    }
-                    else {
-                        syncResult.stats.numSkippedEntries++;
-                    }
+                    if (!TextUtils.isEmpty(status))
+                        registeredValues.put(Users.STATUS, status);
+                    else
+                        registeredValues.putNull(Users.STATUS);
 
-                    // update fields
-                    try {
-                        String status = entry.status;
-
-                        if (!TextUtils.isEmpty(status))
-                            registeredValues.put(Users.STATUS, status);
-                        else
-                            registeredValues.putNull(Users.STATUS);
-
-                        if (entry.timestamp >= 0)
-                            registeredValues.put(Users.LAST_SEEN, entry.timestamp);
-                        else
-                            registeredValues.putNull(Users.LAST_SEEN);
-
-                        if (entry.publicKey != null) {
-                            try {
-                                PGPPublicKey pubKey = PGP.getMasterKey(entry.publicKey);
-
-                                String fp = PGP.getFingerprint(pubKey);
-                                registeredValues.put(Users.FINGERPRINT, fp);
-                                registeredValues.put(Users.PUBLIC_KEY, entry.publicKey);
-
-                                // no data from system contacts, use name from public key
-                                if (data == null) {
-                                    // TODO server
-                                    PGPUserID uid = PGP.parseUserId(pubKey, null);
-                                    if (uid != null) {
-                                        registeredValues.put(Users.DISPLAY_NAME, uid.getName());
-                                    }
-                                }
-                            }
-                            catch (Exception e) {
-                                Log.w(TAG, "unable to parse public key", e);
-                            }
-                        }
-                        else {
-                            registeredValues.putNull(Users.FINGERPRINT);
-                            registeredValues.putNull(Users.PUBLIC_KEY);
-                            // use roster name if no contact data available
-                            if (data == null && entry.rosterName != null) {
-                                registeredValues.put(Users.DISPLAY_NAME, entry.rosterName);
-                            }
-                        }
+                    if (entry.timestamp >= 0)
+                        registeredValues.put(Users.LAST_SEEN, entry.timestamp);
+                    else
+                        registeredValues.putNull(Users.LAST_SEEN);
+                }
 
-                        // blocked status
-                        registeredValues.put(Users.BLOCKED, entry.blocked);
-                        // user JID as reported by the server
-                        registeredValues.put(Users.JID, entry.from);
-
-                        /*
-                         * Since UsersProvider.resync inserted the user row
-                         * using our server name, it might have changed because
-                         * of what the server reported. We already put into the
-                         * values the new JID, but we need to use the old one
-                         * in the where condition so we will have a match.
-                         */
-                        String origJid;
-                        if (data != null)
-                            origJid = XMPPUtils.createLocalJID(mContext,
-                                XmppStringUtils.parseLocalpart(entry.from));
-                        else
-                            origJid = entry.from;
-                        usersProvider.update(Users.CONTENT_URI_OFFLINE, registeredValues,
-                            Users.JID + " = ?", new String[] { origJid });
-
-                        // clear data
-                        registeredValues.remove(Users.DISPLAY_NAME);
-
-                        // if this is our own contact, trust our own key later
-                        if (Authenticator.isSelfJID(mContext, entry.from)) {
-                            ownContactJid = entry.from;
-
-                            // register our profile while we're at it
-                            if (data != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
-                                // add contact
-                                addProfile(account,
-                                    Authenticator.getDefaultDisplayName(mContext),
-                                    data.number, data.jid, operations, op++);
+                if (entry.publicKey != null) {
+                    try {
+                        PGPPublicKey pubKey = PGP.getMasterKey(entry.publicKey);
+
+                        String fp = PGP.getFingerprint(pubKey);
+                        registeredValues.put(Users.FINGERPRINT, fp);
+                        registeredValues.put(Users.PUBLIC_KEY, entry.publicKey);
+
+                        // no data from system contacts, use name from public key
+                        if (data == null) {
+                            // TODO server
+                            PGPUserID uid = PGP.parseUserId(pubKey, null);
+                            if (uid != null) {
+                                registeredValues.put(Users.DISPLAY_NAME, uid.getName());
                             }
                         }
                     }
                     catch (Exception e) {
-                        Log.e(TAG, "error updating users database", e);
-                        // we shall continue here...
+                        Log.w(TAG, "unable to parse public key", e);
+                    }
+                }
+                else {
+                    if (entry.publicKeyReceived) {
+                        registeredValues.putNull(Users.FINGERPRINT);
+                        registeredValues.putNull(Users.PUBLIC_KEY);
+                    }
+                    // use roster name if no contact data available
+                    if (data == null && entry.rosterName != null) {
+                        registeredValues.put(Users.DISPLAY_NAME, entry.rosterName);
                     }
                 }
 
-                try {
-                    if (operations.size() > 0)
-                        provider.applyBatch(operations);
-                    syncResult.stats.numInserts += op;
-                    syncResult.stats.numEntries += op;
+                // blocked status
+                if (blocklistReceived)
+                    registeredValues.put(Users.BLOCKED, entry.blocked);
+                // user JID as reported by the server
+                registeredValues.put(Users.JID, entry.from);
+
+                /*
+                 * Since UsersProvider.resync inserted the user row
+                 * using our server name, it might have changed because
+                 * of what the server reported. We already put into the
+                 * values the new JID, but we need to use the old one
+                 * in the where condition so we will have a match.
+                 */
+                String origJid;
+                if (data != null)
+                    origJid = XMPPUtils.createLocalJID(mContext,
+                        XmppStringUtils.parseLocalpart(entry.from));
+                else
+                    origJid = entry.from;
+                usersProvider.update(Users.CONTENT_URI_OFFLINE, registeredValues,
+                    Users.JID + " = ?", new String[] { origJid });
+
+                // clear data
+                registeredValues.remove(Users.DISPLAY_NAME);
+
+                // if this is our own contact, trust our own key later
+                if (Authenticator.isSelfJID(mContext, entry.from)) {
+                    ownContactJid = entry.from;
+
+                    // register our profile while we're at it
+                    if (data != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+                        // add contact
+                        writer.putProfile(Authenticator.getDefaultDisplayName(mContext),
+                            data.number, data.jid);
+                    }
                 }
-                catch (Exception e) {
-                    Log.e(TAG, "contact write error", e);
-                    syncResult.stats.numSkippedEntries = op;
-                    syncResult.databaseError = true;
-                    return;
+            }
+            catch (Exception e) {
+                Log.e(TAG, "error updating users database", e);
+                // we shall continue here...
+            }
+        }
+
+        try {
+            // raw contacts not belonging to any requested contact
+            writer.deleteStale(new HashSet<>(jidList));
+            writer.flush();
+        }
+        catch (Exception e) {
+            Log.e(TAG, "contact write error", e);
+            syncResult.databaseError = true;
+            return;
+        }
+        finally {
+            Log.d(TAG, "raw contacts written in {} batches, {} ms (slowest {} ms)",
+                writer.getChunkCount(), writer.getTotalTime(), writer.getMaxTime());
+        }
+
+        // we don't know anything new about these, keep what we had
+        if (failed.size() > 0)
+            keepRegistered(usersProvider, failed);
+
+        commit(usersProvider, syncResult);
+
+        if (ownContactJid != null)
+            // we found our own contact, trust our own key now
+            UsersProvider.trustUserKey(mContext, ownContactJid);
+    }
+
+    /**
+     * Writes our raw contacts for the given matched slice and marks
+     * matched users as registered.
+     */
+    private void applySlice(ContentProviderClient provider,
+            ContentProviderClient usersProvider, SyncResult syncResult,
+            RawContactsWriter writer, Map<String, RawPhoneNumberEntry> lookupNumbers,
+            RosterSlice slice) {
+
+        ArrayList<ContentProviderOperation> userOperations = new ArrayList<>();
+        Set<String> notMatched = new HashSet<>(slice.jids);
+
+        try {
+            for (String jid : slice.matched) {
+                final RawPhoneNumberEntry data = lookupNumbers
+                    .get(XmppStringUtils.parseLocalpart(jid));
+                if (data != null && data.lookupKey != null) {
+                    notMatched.remove(data.jid);
+                    writer.put(getDisplayName(provider, data.lookupKey, data.number),
+                        data.number, data.jid);
+                }
+                else {
+                    syncResult.stats.numSkippedEntries++;
+                }
+
+                // show the user as registered right away
+                if (data != null) {
+                    userOperations.add(ContentProviderOperation.newUpdate(Users.CONTENT_URI_OFFLINE)
+                        .withValue(Users.REGISTERED, 1)
+                        .withSelection(Users.JID + " = ?", new String[] { data.jid })
+                        .build());
                 }
+                userOperations.add(ContentProviderOperation.newUpdate(Users.CONTENT_URI)
+                    .withValue(Users.REGISTERED, 1)
+                    .withSelection(Users.JID + " = ?", new String[] { jid })
+                    .build());
+            }
+
+            for (String jid : notMatched)
+                writer.delete(jid);
+            writer.flush();
+        }
+        catch (Exception e) {
+            Log.e(TAG, "contact write error", e);
+            syncResult.databaseError = true;
+        }
 
-                commit(usersProvider, syncResult);
+        try {
+            if (userOperations.size() > 0) {
+                usersProvider.applyBatch(userOperations);
+                Contact.invalidate(slice.matched);
+            }
+        }
+        catch (Exception e) {
+            Log.e(TAG, "error updating users database", e);
+        }
+
+        Log.v(TAG, "roster match slice applied ({}/{} matched)",
+            slice.matched.size(), slice.jids.size());
+    }
 
-                if (ownContactJid != null)
-                    // we found our own contact, trust our own key now
-                    UsersProvider.trustUserKey(mContext, ownContactJid);
+    /** Marks users that were registered as still registered in the offline table. */
+    private void keepRegistered(ContentProviderClient usersProvider, List<String> jids) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        Cursor c = null;
+        try {
+            c = usersProvider.query(Users.CONTENT_URI, new String[] { Users.HASH },
+                Users.REGISTERED + " <> 0", null, null);
+            Set<String> registered = new HashSet<>(c.getCount());
+            while (c.moveToNext())
+                registered.add(c.getString(0));
+
+            for (String jid : jids) {
+                if (registered.contains(XmppStringUtils.parseLocalpart(jid))) {
+                    operations.add(ContentProviderOperation.newUpdate(Users.CONTENT_URI_OFFLINE)
+                        .withValue(Users.REGISTERED, 1)
+                        .withSelection(Users.JID + " = ?", new String[] { jid })
+                        .build());
+                }
             }
 
-            // timeout or error
-            else {
-                Log.w(TAG, "connection timeout - aborting sync");
+            if (operations.size() > 0)
+                usersProvider.applyBatch(operations);
+        }
+        catch (Exception e) {
+            Log.e(TAG, "error updating users database", e);
+        }
+        finally {
+            if (c != null)
+                c.close();
+        }
+    }
 
-                syncResult.stats.numIoExceptions++;
+    /**
+     * Returns the server-provided data currently in the online table, by
+     * lowercase bare JID, for users whose data did not arrive this time.
+     */
+    private Map<String, ContentValues> queryServerValues(ContentProviderClient usersProvider) {
+        Map<String, ContentValues> values = new HashMap<>();
+        Cursor c = null;
+        try {
+            c = usersProvider.query(Users.CONTENT_URI, new String[] {
+                    Users.JID, Users.STATUS, Users.LAST_SEEN,
+                    Users.FINGERPRINT, Users.PUBLIC_KEY, Users.BLOCKED
+                }, Users.REGISTERED + " <> 0", null, null);
+            while (c.moveToNext()) {
+                ContentValues v = new ContentValues(5);
+                v.put(Users.STATUS, c.getString(1));
+                if (c.isNull(2))
+                    v.putNull(Users.LAST_SEEN);
+                else
+                    v.put(Users.LAST_SEEN, c.getLong(2));
+                v.put(Users.FINGERPRINT, c.getString(3));
+                v.put(Users.PUBLIC_KEY, c.getBlob(4));
+                v.put(Users.BLOCKED, c.getInt(5) != 0);
+                values.put(PresenceBroadcastReceiver.key(c.getString(0)), v);
             }
         }
+        catch (Exception e) {
+            Log.e(TAG, "error reading users database", e);
+        }
+        finally {
+            if (c != null)
+                c.close();
+        }
+        return values;
+    }
+
+    /** Waits for the given marker to be queued. */
+    private Object waitFor(BlockingQueue<Object> queue, Object marker, long timeout)
+            throws OperationCanceledException {
+        long deadline = SystemClock.elapsedRealtime() + timeout;
+        long left;
+        while ((left = deadline - SystemClock.elapsedRealtime()) > 0) {
+            // anything else is a late response we are not interested in anymore
+            if (poll(queue, left) == marker)
+                return marker;
+        }
+        return null;
+    }
+
+    /** Polls the queue, checking for cancellation at regular intervals. */
+    private Object poll(BlockingQueue<Object> queue, long timeout)
+            throws OperationCanceledException {
+        Object msg;
+        try {
+            msg = queue.poll(Math.max(0, Math.min(timeout, POLL_INTERVAL)),
+                TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            // simulate canceled operation
+            mCanceled = true;
+            msg = null;
+        }
+
+        if (mCanceled) throw new OperationCanceledException();
+        return msg;
     }
 
     private void commit(ContentProviderClient usersProvider, SyncResult syncResult) {
@@ -697,7 +976,6 @@ public class Syncer {
         try {
             usersProvider.update(uri, null, null, null);
             Log.d(TAG, "users database committed");
-            Contact.invalidate();
         }
         catch (Exception e) {
             Log.e(TAG, "error committing users database - aborting sync", e);
@@ -802,65 +1080,4 @@ public class Syncer {
     }
     */
 
-    private void addContact(Account account, String username, String phone, String jid,
-            List<ContentProviderOperation> operations, int index) {
-        if (BuildConfig.DEBUG) {
-            Log.d(TAG, "adding contact \"" + username + "\" <" + phone + ">");
-        }
-
-        // create our RawContact
-        operations.add(insertRawContact(account, username, phone, jid,
-            RawContacts.CONTENT_URI).build());
-
-        // add contact data
-        addContactData(username, phone, operations, index);
-    }
-
-    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
-    private void addProfile(Account account, String username, String phone, String jid,
-            List<ContentProviderOperation> operations, int index) {
-        if (BuildConfig.DEBUG) {
-            Log.d(TAG, "adding profile \"" + username + "\" <" + phone + ">");
-        }
-
-        // create our RawContact
-        operations.add(insertRawContact(account, username, phone, jid,
-            ContactsContract.Profile.CONTENT_RAW_CONTACTS_URI).build());
-
-        // add contact data
-        addContactData(username, phone, operations, index);
-    }
-
-    private ContentProviderOperation.Builder insertRawContact(Account account, String username, String phone, String jid, Uri uri) {
-        return ContentProviderOperation.newInsert(uri)
-            .withValue(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_DEFAULT)
-            .withValue(RawContacts.ACCOUNT_NAME, account.name)
-            .withValue(RawContacts.ACCOUNT_TYPE, account.type)
-            .withValue(RAW_COLUMN_DISPLAY_NAME, username)
-            .withValue(RAW_COLUMN_PHONE, phone)
-            .withValue(RAW_COLUMN_USERID, jid);
-    }
-
-    private void addContactData(String username, String phone, List<ContentProviderOperation> operations, int index) {
-        ContentProviderOperation.Builder builder;
-        final int opIndex = index * 3;
-
-        // create a Data record of common type 'StructuredName' for our RawContact
-        builder = ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
-            .withValueBackReference(ContactsContract.CommonDataKinds.StructuredName.RAW_CONTACT_ID, opIndex)
-            .withValue(ContactsContract.Data.MIMETYPE, ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE)
-            .withValue(ContactsContract.CommonDataKinds.StructuredName.DISPLAY_NAME, username);
-        operations.add(builder.build());
-
-        // create a Data record of custom type 'org.kontalk.user' to display a link to the conversation
-        builder = ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
-            .withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, opIndex)
-            .withValue(ContactsContract.Data.MIMETYPE, Users.CONTENT_ITEM_TYPE)
-            .withValue(DATA_COLUMN_DISPLAY_NAME, username)
-            .withValue(DATA_COLUMN_ACCOUNT_NAME, mContext.getString(R.string.app_name))
-            .withValue(DATA_COLUMN_PHONE, phone)
-            .withYieldAllowed(true);
-        operations.add(builder.build());
-    }
-
 }
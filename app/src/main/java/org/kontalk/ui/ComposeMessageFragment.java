@@ -21,10 +21,12 @@ package org.kontalk.ui;
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.regex.Pattern;
 
 import com.afollestad.materialdialogs.AlertDialogWrapper;
@@ -113,8 +115,15 @@ import org.kontalk.provider.MyMessages.Threads;
 import org.kontalk.provider.MyMessages.Threads.Conversations;
 import org.kontalk.provider.MyMessages.Threads.Requests;
 import org.kontalk.provider.UsersProvider;
+import org.kontalk.service.DownloadQueue;
 import org.kontalk.service.DownloadService;
 import org.kontalk.service.msgcenter.MessageCenterService;
+import org.kontalk.service.msgcenter.event.EventBus;
+import org.kontalk.service.msgcenter.event.EventSubscriber;
+import org.kontalk.service.msgcenter.event.LastActivityEvent;
+import org.kontalk.service.msgcenter.event.MessageCenterEvent;
+import org.kontalk.service.msgcenter.event.PresenceEvent;
+import org.kontalk.service.msgcenter.event.VersionEvent;
 import org.kontalk.sync.Syncer;
 import org.kontalk.ui.adapter.MessageListAdapter;
 import org.kontalk.ui.view.AudioContentView;
@@ -123,11 +132,13 @@ import org.kontalk.ui.view.AudioPlayerControl;
 import org.kontalk.ui.view.ComposerBar;
 import org.kontalk.ui.view.ComposerListener;
 import org.kontalk.ui.view.MessageListItem;
+import org.kontalk.util.ImagePreprocessor;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.MessageUtils;
 import org.kontalk.util.Preferences;
 import org.kontalk.util.SystemUtils;
 import org.kontalk.util.XMPPUtils;
+import org.kontalk.util.metrics.MessageTracer;
 
 import io.codetail.animation.SupportAnimator;
 import io.codetail.animation.ViewAnimationUtils;
@@ -220,6 +231,7 @@ public class ComposeMessageFragment extends ActionModeListFragment implements
 
     private LocalBroadcastManager mLocalBroadcastManager;
     private BroadcastReceiver mPresenceReceiver;
+    private final List<Object> mEventSubscriptions = new ArrayList<>(3);
     private BroadcastReceiver mPrivacyListener;
 
     private boolean mOfflineModeWarned;
@@ -669,10 +681,6 @@ public class ComposeMessageFragment extends ActionModeListFragment implements
     public void sendBinaryMessage(Uri uri, String mime, boolean media,
             Class<? extends MessageComponent<?>> klass) {
         Log.v(TAG, "sending binary content: " + uri);
-        Uri newMsg = null;
-        String msgId = null;
-        File previewFile = null;
-        long length = -1;
 
         boolean encrypted = Preferences.getEncryptionEnabled(getActivity());
         int compress = 0;
@@ -680,89 +688,160 @@ public class ComposeMessageFragment extends ActionModeListFragment implements
             compress = Preferences.getImageCompression(getActivity());
         }
 
-        try {
-            // TODO convert to thread (?)
+        offlineModeWarning();
 
-            offlineModeWarning();
+        String msgId = MessageCenterService.messageId();
+        MessageTracer.begin(msgId, false);
+        boolean image = media && klass == ImageComponent.class;
+        Runnable task = new BinaryMessageTask(getActivity().getApplicationContext(),
+            mUserJID, threadId, uri, mime, msgId, image, encrypted, compress);
 
-            msgId = MessageCenterService.messageId();
+        if (image) {
+            // thumbnail and compressed image are generated off the UI thread
+            ImagePreprocessor.getInstance().execute(task);
+        }
+        else {
+            task.run();
+        }
+    }
 
-            // generate thumbnail
-            // FIXME this is blocking!!!!
-            if (media && klass == ImageComponent.class) {
-                // FIXME hard-coded to ImageComponent
-                String filename = ImageComponent.buildMediaFilename(msgId, MediaStorage.THUMBNAIL_MIME_NETWORK);
-                previewFile = MediaStorage.cacheThumbnail(getActivity(), uri,
-                        filename, true);
-            }
+    /**
+     * Stores an outgoing binary message and hands it over to the message
+     * center. Images are preprocessed here (thumbnail and compressed copy
+     * from a single decode), so this is meant to run on the
+     * {@link ImagePreprocessor} pool. Composer state is captured on creation
+     * and only changed back on the UI thread.
+     */
+    private final class BinaryMessageTask implements Runnable {
+        private final Context mContext;
+        private final String mPeer;
+        private final long mThreadId;
+        private final Uri mUri;
+        private final String mMime;
+        private final String mMsgId;
+        private final boolean mImage;
+        private final boolean mEncrypted;
+        private final int mCompress;
+
+        BinaryMessageTask(Context context, String peer, long threadId, Uri uri,
+                String mime, String msgId, boolean image, boolean encrypted, int compress) {
+            mContext = context;
+            mPeer = peer;
+            mThreadId = threadId;
+            mUri = uri;
+            mMime = mime;
+            mMsgId = msgId;
+            mImage = image;
+            mEncrypted = encrypted;
+            mCompress = compress;
+        }
 
-            length = MediaStorage.getLength(getActivity(), uri);
+        @Override
+        public void run() {
+            Uri newMsg = null;
+            File previewFile = null;
+            File compressed = null;
+            long length = -1;
 
-            // save to database
-            ContentValues values = new ContentValues();
-            values.put(Messages.MESSAGE_ID, msgId);
-            values.put(Messages.PEER, mUserJID);
+            try {
+                if (mImage) {
+                    // FIXME hard-coded to ImageComponent
+                    String filename = ImageComponent.buildMediaFilename(mMsgId,
+                        MediaStorage.THUMBNAIL_MIME_NETWORK);
+                    previewFile = new File(mContext.getCacheDir(), filename);
+                    if (mCompress > 0)
+                        compressed = new File(mContext.getCacheDir(), "compress_" + mMsgId + ".tmp");
+
+                    MediaStorage.prepareImage(mContext, mUri, previewFile,
+                        compressed, mCompress);
+                }
 
-            /* TODO ask for a text to send with the image
-            values.put(Messages.BODY_MIME, TextComponent.MIME_TYPE);
-            values.put(Messages.BODY_CONTENT, content.getBytes());
-            values.put(Messages.BODY_LENGTH, content.length());
-             */
+                length = MediaStorage.getLength(mContext, mUri);
 
-            values.put(Messages.UNREAD, false);
-            // of course outgoing messages are not encrypted in database
-            values.put(Messages.ENCRYPTED, false);
-            values.put(Messages.SECURITY_FLAGS, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
-            values.put(Messages.DIRECTION, Messages.DIRECTION_OUT);
-            values.put(Messages.TIMESTAMP, System.currentTimeMillis());
-            values.put(Messages.STATUS, Messages.STATUS_SENDING);
+                // save to database
+                ContentValues values = new ContentValues();
+                values.put(Messages.MESSAGE_ID, mMsgId);
+                values.put(Messages.PEER, mPeer);
 
-            if (previewFile != null)
-                values.put(Messages.ATTACHMENT_PREVIEW_PATH, previewFile.getAbsolutePath());
+                /* TODO ask for a text to send with the image
+                values.put(Messages.BODY_MIME, TextComponent.MIME_TYPE);
+                values.put(Messages.BODY_CONTENT, content.getBytes());
+                values.put(Messages.BODY_LENGTH, content.length());
+                 */
 
-            values.put(Messages.ATTACHMENT_MIME, mime);
-            values.put(Messages.ATTACHMENT_LOCAL_URI, uri.toString());
-            values.put(Messages.ATTACHMENT_LENGTH, length);
-            values.put(Messages.ATTACHMENT_COMPRESS, compress);
+                values.put(Messages.UNREAD, false);
+                // of course outgoing messages are not encrypted in database
+                values.put(Messages.ENCRYPTED, false);
+                values.put(Messages.SECURITY_FLAGS, mEncrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
+                values.put(Messages.DIRECTION, Messages.DIRECTION_OUT);
+                values.put(Messages.TIMESTAMP, System.currentTimeMillis());
+                values.put(Messages.STATUS, Messages.STATUS_SENDING);
 
-            newMsg = getActivity().getContentResolver().insert(
-                    Messages.CONTENT_URI, values);
-        }
-        catch (Exception e) {
-            Log.e(TAG, "unable to store media", e);
-        }
+                if (previewFile != null)
+                    values.put(Messages.ATTACHMENT_PREVIEW_PATH, previewFile.getAbsolutePath());
 
-        if (newMsg != null) {
+                values.put(Messages.ATTACHMENT_MIME, mMime);
+                values.put(Messages.ATTACHMENT_LOCAL_URI, mUri.toString());
+                values.put(Messages.ATTACHMENT_LENGTH, length);
+                values.put(Messages.ATTACHMENT_COMPRESS, mCompress);
 
-            // update thread id from the inserted message
-            if (threadId <= 0) {
-                Cursor c = getActivity().getContentResolver().query(newMsg,
-                        new String[] { Messages.THREAD_ID }, null, null, null);
-                if (c.moveToFirst()) {
-                    threadId = c.getLong(0);
-                    mConversation = null;
-                    startQuery(true, false);
-                }
-                else {
-                    Log.v(TAG, "no data - cannot start query for this composer");
+                newMsg = mContext.getContentResolver().insert(
+                        Messages.CONTENT_URI, values);
+            }
+            catch (Exception e) {
+                Log.e(TAG, "unable to store media", e);
+            }
+
+            if (newMsg != null) {
+                MessageTracer.mark(mMsgId, MessageTracer.STAGE_STORED);
+                long msgId = ContentUris.parseId(newMsg);
+
+                // the upload will pick up the already compressed image
+                if (compressed != null && compressed.isFile() &&
+                        !compressed.renameTo(MediaStorage.getCompressedImageFile(mContext, msgId)))
+                    compressed.delete();
+
+                // update thread id from the inserted message
+                if (mThreadId <= 0) {
+                    Cursor c = mContext.getContentResolver().query(newMsg,
+                            new String[] { Messages.THREAD_ID }, null, null, null);
+                    if (c.moveToFirst()) {
+                        final long newThreadId = c.getLong(0);
+                        mHandler.post(new Runnable() {
+                            public void run() {
+                                // composer might have switched to another peer
+                                if (threadId <= 0 && isAdded() && mPeer.equals(mUserJID)) {
+                                    threadId = newThreadId;
+                                    mConversation = null;
+                                    startQuery(true, false);
+                                }
+                            }
+                        });
+                    }
+                    else {
+                        Log.v(TAG, "no data - cannot start query for this composer");
+                    }
+                    c.close();
                 }
-                c.close();
+
+                // send message!
+                String previewPath = (previewFile != null) ? previewFile.getAbsolutePath() : null;
+                MessageCenterService.sendBinaryMessage(mContext,
+                    mPeer, mMime, mUri, length, previewPath, mEncrypted, mCompress,
+                    msgId, mMsgId);
             }
+            else {
+                if (compressed != null)
+                    compressed.delete();
 
-            // send message!
-            String previewPath = (previewFile != null) ? previewFile.getAbsolutePath() : null;
-            MessageCenterService.sendBinaryMessage(getActivity(),
-                mUserJID, mime, uri, length, previewPath, encrypted, compress,
-                ContentUris.parseId(newMsg), msgId);
-        }
-        else {
-            getActivity().runOnUiThread(new Runnable() {
-                public void run() {
-                    Toast.makeText(getActivity(),
-                            R.string.err_store_message_failed,
-                            Toast.LENGTH_LONG).show();
-                }
-            });
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        Toast.makeText(mContext,
+                                R.string.err_store_message_failed,
+                                Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
         }
     }
 
@@ -787,6 +866,7 @@ public class ComposeMessageFragment extends ActionModeListFragment implements
                 byte[] bytes = mText.getBytes();
 
                 String msgId = MessageUtils.messageId();
+                MessageTracer.begin(msgId, false);
 
                 // save to local storage
                 ContentValues values = new ContentValues();
@@ -806,6 +886,8 @@ public class ComposeMessageFragment extends ActionModeListFragment implements
                 Uri newMsg = getActivity().getContentResolver().insert(
                         Messages.CONTENT_URI, values);
                 if (newMsg != null) {
+                    MessageTracer.mark(msgId, MessageTracer.STAGE_STORED);
+
                     // update thread id from the inserted message
                     if (threadId <= 0) {
                         Cursor c = getActivity().getContentResolver().query(newMsg,
@@ -965,6 +1047,16 @@ public class ComposeMessageFragment extends ActionModeListFragment implements
                             }
                         };
                         builder.setPositiveButton(R.string.download_cancel, stopDL);
+
+                        final boolean paused = DownloadService.isPaused(attachment.getFetchUrl());
+                        DialogInterface.OnClickListener pauseDL = new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int which) {
+                                // pause or resume file download
+                                pauseDownload(msg, !paused);
+                            }
+                        };
+                        builder.setNeutralButton(paused ? R.string.download_resume :
+                            R.string.download_pause, pauseDL);
                     }
 
                     builder.show();
@@ -991,6 +1083,8 @@ public class ComposeMessageFragment extends ActionModeListFragment implements
             i.putExtra(CompositeMessage.MSG_SENDER, msg.getSender());
             i.putExtra(CompositeMessage.MSG_TIMESTAMP, msg.getTimestamp());
             i.putExtra(CompositeMessage.MSG_ENCRYPTED, attachment.getSecurityFlags() != Coder.SECURITY_CLEARTEXT);
+            // user is looking at it
+            i.putExtra(DownloadService.EXTRA_PRIORITY, DownloadQueue.PRIORITY_VISIBLE);
             i.setData(Uri.parse(attachment.getFetchUrl()));
             getActivity().startService(i);
         }
@@ -1013,6 +1107,19 @@ public class ComposeMessageFragment extends ActionModeListFragment implements
         }
     }
 
+    private void pauseDownload(CompositeMessage msg, boolean pause) {
+        AttachmentComponent attachment = (AttachmentComponent) msg
+                .getComponent(AttachmentComponent.class);
+
+        if (attachment != null && attachment.getFetchUrl() != null) {
+            Intent i = new Intent(getActivity(), DownloadService.class);
+            i.setAction(pause ? DownloadService.ACTION_DOWNLOAD_PAUSE :
+                DownloadService.ACTION_DOWNLOAD_RESUME);
+            i.setData(Uri.parse(attachment.getFetchUrl()));
+            getActivity().startService(i);
+        }
+    }
+
     private void openFile(CompositeMessage msg) {
         AttachmentComponent attachment = (AttachmentComponent) msg
                 .getComponent(AttachmentComponent.class);
@@ -2070,166 +2177,186 @@ public class ComposeMessageFragment extends ActionModeListFragment implements
         }
     }
 
-    private void subscribePresence() {
-        // TODO this needs serious refactoring
-        if (mPresenceReceiver == null) {
-            mPresenceReceiver = new BroadcastReceiver() {
-                public void onReceive(Context context, Intent intent) {
-                    String action = intent.getAction();
-
-                    if (MessageCenterService.ACTION_PRESENCE.equals(action)) {
-                        String from = intent.getStringExtra(MessageCenterService.EXTRA_FROM);
-                        String bareFrom = from != null ? XmppStringUtils.parseBareJid(from) : null;
+    private void onPresence(Context context, PresenceEvent event) {
+        String from = event.getFrom();
+        String bareFrom = event.getJid();
 
-                        // we are receiving a presence from our peer
-                        if (from != null && bareFrom.equalsIgnoreCase(mUserJID)) {
+        // we handle only (un)available presence stanzas
+        Presence.Type type = event.getType();
 
-                            // we handle only (un)available presence stanzas
-                            String type = intent.getStringExtra(MessageCenterService.EXTRA_TYPE);
+        if (type == null) {
+            // no roster entry found, request subscription
 
-                            if (type == null) {
-                                // no roster entry found, request subscription
+            // pre-approve our presence if we don't have contact's key
+            Intent i = new Intent(context, MessageCenterService.class);
+            i.setAction(MessageCenterService.ACTION_PRESENCE);
+            i.putExtra(MessageCenterService.EXTRA_TO, mUserJID);
+            i.putExtra(MessageCenterService.EXTRA_TYPE, Presence.Type.subscribed.name());
+            context.startService(i);
 
-                                // pre-approve our presence if we don't have contact's key
-                                Intent i = new Intent(context, MessageCenterService.class);
-                                i.setAction(MessageCenterService.ACTION_PRESENCE);
-                                i.putExtra(MessageCenterService.EXTRA_TO, mUserJID);
-                                i.putExtra(MessageCenterService.EXTRA_TYPE, Presence.Type.subscribed.name());
-                                context.startService(i);
+            // request subscription
+            i = new Intent(context, MessageCenterService.class);
+            i.setAction(MessageCenterService.ACTION_PRESENCE);
+            i.putExtra(MessageCenterService.EXTRA_TO, mUserJID);
+            i.putExtra(MessageCenterService.EXTRA_TYPE, Presence.Type.subscribe.name());
+            context.startService(i);
 
-                                // request subscription
-                                i = new Intent(context, MessageCenterService.class);
-                                i.setAction(MessageCenterService.ACTION_PRESENCE);
-                                i.putExtra(MessageCenterService.EXTRA_TO, mUserJID);
-                                i.putExtra(MessageCenterService.EXTRA_TYPE, Presence.Type.subscribe.name());
-                                context.startService(i);
+            setStatusText(context.getString(R.string.invitation_sent_label));
+        }
 
-                                setStatusText(context.getString(R.string.invitation_sent_label));
-                            }
+        // (un)available presence
+        else if (type == Presence.Type.available || type == Presence.Type.unavailable) {
 
-                            // (un)available presence
-                            else if (Presence.Type.available.name().equals(type) || Presence.Type.unavailable.name().equals(type)) {
-
-                                CharSequence statusText = null;
-
-                                // really not much sense in requesting the key for a non-existing contact
-                                Contact contact = getContact();
-                                if (contact != null) {
-                                    boolean subscribedFrom = intent.getBooleanExtra(MessageCenterService.EXTRA_SUBSCRIBED_FROM, false);
-                                    String newFingerprint = intent.getStringExtra(MessageCenterService.EXTRA_FINGERPRINT);
-                                    // if this is null, we are accepting the key for the first time
-                                    PGPPublicKeyRing trustedPublicKey = contact.getTrustedPublicKeyRing();
-
-                                    // request the key if we don't have a trusted one or we are subscribed from the contact
-                                    boolean requestKey = (trustedPublicKey == null || subscribedFrom);
-                                    // check if fingerprint changed
-                                    if (trustedPublicKey != null) {
-                                        String oldFingerprint = PGP.getFingerprint(PGP.getMasterKey(trustedPublicKey));
-                                        if (newFingerprint == null || newFingerprint.equalsIgnoreCase(oldFingerprint)) {
-                                            // no fingerprint available or fingerprint has not changed since last time
-                                            requestKey = false;
-                                        }
-                                    }
-                                    else {
-                                        // request key if we got one in the first place
-                                        requestKey = (contact.getFingerprint() != null);
-                                    }
+            CharSequence statusText = null;
 
-                                    if (requestKey) {
-                                        // warn user that public key is changed
-                                        showKeyChangedWarning();
-                                    }
-                                }
+            // really not much sense in requesting the key for a non-existing contact
+            Contact contact = getContact();
+            if (contact != null) {
+                boolean subscribedFrom = event.isSubscribedFrom();
+                String newFingerprint = event.getFingerprint();
+                // if this is null, we are accepting the key for the first time
+                PGPPublicKeyRing trustedPublicKey = contact.getTrustedPublicKeyRing();
+
+                // request the key if we don't have a trusted one or we are subscribed from the contact
+                boolean requestKey = (trustedPublicKey == null || subscribedFrom);
+                // check if fingerprint changed
+                if (trustedPublicKey != null) {
+                    String oldFingerprint = PGP.getFingerprint(PGP.getMasterKey(trustedPublicKey));
+                    if (newFingerprint == null || newFingerprint.equalsIgnoreCase(oldFingerprint)) {
+                        // no fingerprint available or fingerprint has not changed since last time
+                        requestKey = false;
+                    }
+                }
+                else {
+                    // request key if we got one in the first place
+                    requestKey = (contact.getFingerprint() != null);
+                }
 
-                                if (Presence.Type.available.toString().equals(type)) {
-                                    mAvailableResources.add(from);
-                                    statusText = context.getString(R.string.seen_online_label);
+                if (requestKey) {
+                    // warn user that public key is changed
+                    showKeyChangedWarning();
+                }
+            }
 
-                                    // request version information
-                                    if (contact != null && contact.getVersion() != null) {
-                                        setVersionInfo(context, contact.getVersion());
-                                    }
-                                    else if (mVersionRequestId == null) {
-                                        requestVersion(from);
-                                    }
-                                }
-                                else if (Presence.Type.unavailable.toString().equals(type)) {
-                                    boolean removed = mAvailableResources.remove(from);
-                                    /*
-                                     * All available resources have gone. Mark
-                                     * the user as offline immediately and use the
-                                     * timestamp provided with the stanza (if any).
-                                     */
-                                    if (mAvailableResources.size() == 0) {
-                                        // an offline user can't be typing
-                                        mIsTyping = false;
-
-                                        if (removed) {
-                                            // resource was removed now, mark as just offline
-                                            statusText = context.getText(R.string.seen_moment_ago_label);
-                                        }
-                                        else {
-                                            // resource is offline, request last activity
-                                            if (contact != null && contact.getLastSeen() > 0) {
-                                                setLastSeenTimestamp(context, contact.getLastSeen());
-                                            }
-                                            else if (mLastActivityRequestId == null) {
-                                                mLastActivityRequestId = StringUtils.randomString(6);
-                                                MessageCenterService.requestLastActivity(context, bareFrom, mLastActivityRequestId);
-                                            }
-                                        }
-                                    }
-                                }
+            if (type == Presence.Type.available) {
+                mAvailableResources.add(from);
+                statusText = context.getString(R.string.seen_online_label);
 
-                                if (statusText != null) {
-                                    mCurrentStatus = statusText;
-                                    if (!mIsTyping)
-                                        setStatusText(statusText);
-                                }
-                            }
+                // request version information
+                if (contact != null && contact.getVersion() != null) {
+                    setVersionInfo(context, contact.getVersion());
+                }
+                else if (mVersionRequestId == null) {
+                    requestVersion(from);
+                }
+            }
+            else {
+                boolean removed = mAvailableResources.remove(from);
+                /*
+                 * All available resources have gone. Mark
+                 * the user as offline immediately and use the
+                 * timestamp provided with the stanza (if any).
+                 */
+                if (mAvailableResources.size() == 0) {
+                    // an offline user can't be typing
+                    mIsTyping = false;
 
-                            // subscription accepted, probe presence
-                            else if (Presence.Type.subscribed.name().equals(type)) {
-                                presenceSubscribe();
-                            }
-                        }
+                    if (removed) {
+                        // resource was removed now, mark as just offline
+                        statusText = context.getText(R.string.seen_moment_ago_label);
                     }
-
-                    else if (MessageCenterService.ACTION_LAST_ACTIVITY.equals(action)) {
-                        String id = intent.getStringExtra(MessageCenterService.EXTRA_PACKET_ID);
-                        if (id != null && id.equals(mLastActivityRequestId)) {
-                            mLastActivityRequestId = null;
-                            // ignore last activity if we had an available presence in the meantime
-                            if (mAvailableResources.size() == 0) {
-                                String type = intent.getStringExtra(MessageCenterService.EXTRA_TYPE);
-                                if (type == null || !type.equalsIgnoreCase(IQ.Type.error.toString())) {
-                                    long seconds = intent.getLongExtra(MessageCenterService.EXTRA_SECONDS, -1);
-                                    setLastSeenSeconds(context, seconds);
-                                }
-                            }
+                    else {
+                        // resource is offline, request last activity
+                        if (contact != null && contact.getLastSeen() > 0) {
+                            setLastSeenTimestamp(context, contact.getLastSeen());
                         }
-                    }
-
-                    else if (MessageCenterService.ACTION_VERSION.equals(action)) {
-                        // compare version and show warning if needed
-                        String id = intent.getStringExtra(MessageCenterService.EXTRA_PACKET_ID);
-                        if (id != null && id.equals(mVersionRequestId)) {
-                            mVersionRequestId = null;
-                            String name = intent.getStringExtra(MessageCenterService.EXTRA_VERSION_NAME);
-                            if (name != null && name.equalsIgnoreCase(context.getString(R.string.app_name))) {
-                                String version = intent.getStringExtra(MessageCenterService.EXTRA_VERSION_NUMBER);
-                                if (version != null) {
-                                    Contact contact = getContact();
-                                    if (contact != null)
-                                        // cache the version
-                                        contact.setVersion(version);
-                                    setVersionInfo(context, version);
-                                }
-                            }
+                        else if (mLastActivityRequestId == null) {
+                            mLastActivityRequestId = StringUtils.randomString(6);
+                            MessageCenterService.requestLastActivity(context, bareFrom, mLastActivityRequestId);
                         }
                     }
+                }
+            }
+
+            if (statusText != null) {
+                mCurrentStatus = statusText;
+                if (!mIsTyping)
+                    setStatusText(statusText);
+            }
+        }
+
+        // subscription accepted, probe presence
+        else if (type == Presence.Type.subscribed) {
+            presenceSubscribe();
+        }
+    }
+
+    private void onLastActivity(Context context, LastActivityEvent event) {
+        String id = event.getId();
+        if (id != null && id.equals(mLastActivityRequestId)) {
+            mLastActivityRequestId = null;
+            // ignore last activity if we had an available presence in the meantime
+            if (mAvailableResources.size() == 0) {
+                if (event.getType() != IQ.Type.error) {
+                    setLastSeenSeconds(context, event.getSeconds());
+                }
+            }
+        }
+    }
+
+    private void onVersion(Context context, VersionEvent event) {
+        // compare version and show warning if needed
+        String id = event.getId();
+        if (id != null && id.equals(mVersionRequestId)) {
+            mVersionRequestId = null;
+            String name = event.getName();
+            if (name != null && name.equalsIgnoreCase(context.getString(R.string.app_name))) {
+                String version = event.getVersion();
+                if (version != null) {
+                    Contact contact = getContact();
+                    if (contact != null)
+                        // cache the version
+                        contact.setVersion(version);
+                    setVersionInfo(context, version);
+                }
+            }
+        }
+    }
+
+    private void subscribePresence() {
+        // TODO this needs serious refactoring
+        if (mPresenceReceiver == null) {
+            EventSubscriber<MessageCenterEvent> subscriber = new EventSubscriber<MessageCenterEvent>() {
+                @Override
+                public void onEvent(MessageCenterEvent event) {
+                    Context context = getActivity();
+                    if (context == null || mPresenceReceiver == null)
+                        return;
+
+                    if (event instanceof PresenceEvent)
+                        onPresence(context, (PresenceEvent) event);
+                    else if (event instanceof LastActivityEvent)
+                        onLastActivity(context, (LastActivityEvent) event);
+                    else if (event instanceof VersionEvent)
+                        onVersion(context, (VersionEvent) event);
+                }
+            };
+
+            // listen for presence, last activity and version of our peer
+            EventBus bus = EventBus.getInstance();
+            Executor executor = EventBus.mainThread();
+            mEventSubscriptions.add(bus.subscribe(PresenceEvent.class,
+                mUserJID, executor, subscriber, true));
+            mEventSubscriptions.add(bus.subscribe(LastActivityEvent.class,
+                mUserJID, executor, subscriber, false));
+            mEventSubscriptions.add(bus.subscribe(VersionEvent.class,
+                mUserJID, executor, subscriber, false));
+
+            mPresenceReceiver = new BroadcastReceiver() {
+                public void onReceive(Context context, Intent intent) {
+                    String action = intent.getAction();
 
-                    else if (MessageCenterService.ACTION_CONNECTED.equals(action)) {
+                    if (MessageCenterService.ACTION_CONNECTED.equals(action)) {
                         // reset compose sent flag
                         mComposer.resetCompose();
                         // reset available resources list
@@ -2264,14 +2391,11 @@ public class ComposeMessageFragment extends ActionModeListFragment implements
                 }
             };
 
-            // listen for user presence, connection and incoming messages
+            // listen for connection and incoming messages
             IntentFilter filter = new IntentFilter();
-            filter.addAction(MessageCenterService.ACTION_PRESENCE);
             filter.addAction(MessageCenterService.ACTION_CONNECTED);
             filter.addAction(MessageCenterService.ACTION_ROSTER_LOADED);
-            filter.addAction(MessageCenterService.ACTION_LAST_ACTIVITY);
             filter.addAction(MessageCenterService.ACTION_MESSAGE);
-            filter.addAction(MessageCenterService.ACTION_VERSION);
 
             mLocalBroadcastManager.registerReceiver(mPresenceReceiver, filter);
 
@@ -2352,6 +2476,10 @@ public class ComposeMessageFragment extends ActionModeListFragment implements
             mLocalBroadcastManager.unregisterReceiver(mPresenceReceiver);
             mPresenceReceiver = null;
         }
+        EventBus bus = EventBus.getInstance();
+        for (Object handle : mEventSubscriptions)
+            bus.unsubscribe(handle);
+        mEventSubscriptions.clear();
     }
 
     private void setStatusText(CharSequence text) {
@@ -18,6 +18,7 @@
 
 package org.kontalk.ui;
 
+import org.kontalk.BuildConfig;
 import org.kontalk.R;
 import org.kontalk.data.Contact;
 import org.kontalk.data.Conversation;
@@ -222,6 +223,9 @@ public class ConversationListFragment extends ActionModeListFragment
         // offline mode
         mOfflineMenu = menu.findItem(R.id.menu_offline);
 
+        // metrics screen
+        menu.findItem(R.id.menu_metrics).setVisible(BuildConfig.DEBUG);
+
         // trigger manually
         onDatabaseChanged();
         updateOffline();
@@ -278,6 +282,10 @@ public class ConversationListFragment extends ActionModeListFragment
                 PreferencesActivity.start(getActivity());
                 return true;
             }
+
+            case R.id.menu_metrics:
+                MetricsActivity.start(getActivity());
+                return true;
         }
 
         return super.onOptionsItemSelected(item);
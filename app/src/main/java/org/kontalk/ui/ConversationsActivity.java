@@ -288,7 +288,7 @@ public class ConversationsActivity extends ToolbarActivity
                 // mark all messages as old
                 MessagesProvider.markAllThreadsAsOld(context);
                 // update notification
-                MessagingNotification.updateMessagesNotification(context, false);
+                MessagingNotification.clearMessagesNotification(context);
             }
         }).start();
 
@@ -0,0 +1,145 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.ui;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Unread messages to be notified, grouped by peer. Kept up to date with
+ * incoming messages and read marks, so the notification can be rebuilt
+ * without querying the database.
+ * @author Daniele Ricci
+ */
+class MessagesNotificationState {
+
+    /** Maximum number of lines kept for each conversation. */
+    static final int MAX_LINES = 10;
+
+    /** Unread messages from a peer. */
+    static final class Conversation {
+        final String peer;
+        /** The most recent lines, oldest first. */
+        final LinkedList<CharSequence> lines = new LinkedList<>();
+        /** Database ids of the unread messages (null in snapshots). */
+        final Set<Long> ids;
+        /** Number of unread messages (only in snapshots). */
+        int unread;
+
+        Conversation(String peer) {
+            this.peer = peer;
+            this.ids = new HashSet<>();
+        }
+
+        Conversation(Conversation c) {
+            this.peer = c.peer;
+            this.lines.addAll(c.lines);
+            this.ids = null;
+            this.unread = c.ids.size();
+        }
+
+        CharSequence getLastLine() {
+            return lines.getLast();
+        }
+    }
+
+    /** Conversations by peer, least recently updated first. */
+    private final Map<String, Conversation> mConversations = new LinkedHashMap<>();
+    private int mUnread;
+    /** Incremented on every change. */
+    private long mVersion;
+
+    /**
+     * Adds an unread message.
+     * @return false if the message was already known
+     */
+    public synchronized boolean add(long id, String peer, CharSequence text) {
+        Conversation c = mConversations.get(peer);
+        if (c != null && c.ids.contains(id))
+            return false;
+
+        // move conversation to the end
+        if (c == null)
+            c = new Conversation(peer);
+        else
+            mConversations.remove(peer);
+        mConversations.put(peer, c);
+
+        c.ids.add(id);
+        c.lines.add(text);
+        if (c.lines.size() > MAX_LINES)
+            c.lines.removeFirst();
+        mUnread++;
+        mVersion++;
+        return true;
+    }
+
+    /** Removes all messages from a peer, e.g. because they have been read. */
+    public synchronized boolean remove(String peer) {
+        Conversation c = mConversations.remove(peer);
+        if (c != null) {
+            mUnread -= c.ids.size();
+            mVersion++;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized void clear() {
+        mConversations.clear();
+        mUnread = 0;
+        mVersion++;
+    }
+
+    public synchronized int getUnreadCount() {
+        return mUnread;
+    }
+
+    public synchronized int getConversationCount() {
+        return mConversations.size();
+    }
+
+    public synchronized long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Returns a copy of the conversations, most recent last.
+     * @param exclude a peer to leave out (may be null)
+     */
+    public synchronized List<Conversation> snapshot(String exclude) {
+        List<Conversation> list = new ArrayList<>(mConversations.size());
+        Iterator<Conversation> iter = mConversations.values().iterator();
+        while (iter.hasNext()) {
+            Conversation c = iter.next();
+            if (exclude == null || !exclude.equalsIgnoreCase(c.peer))
+                list.add(new Conversation(c));
+        }
+        return list;
+    }
+
+}
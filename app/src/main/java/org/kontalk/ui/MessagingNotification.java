@@ -18,20 +18,22 @@
 
 package org.kontalk.ui;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.jxmpp.util.XmppStringUtils;
 
 import org.kontalk.R;
 import org.kontalk.authenticator.Authenticator;
 import org.kontalk.data.Contact;
+import org.kontalk.message.AttachmentComponent;
 import org.kontalk.message.CompositeMessage;
+import org.kontalk.message.TextComponent;
 import org.kontalk.provider.MessagesProvider;
 import org.kontalk.provider.MyMessages.CommonColumns;
 import org.kontalk.provider.MyMessages.Messages;
-import org.kontalk.provider.MyMessages.Threads;
-import org.kontalk.util.MessageUtils;
+import org.kontalk.util.CoalescingExecutor;
 import org.kontalk.util.Preferences;
 
 import android.accounts.Account;
@@ -39,13 +41,12 @@ import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.database.Cursor;
+import android.graphics.Bitmap;
 import android.graphics.Typeface;
-import android.graphics.drawable.Drawable;
 import android.media.AudioManager;
 import android.net.Uri;
 import android.support.v4.app.NotificationCompat;
@@ -56,6 +57,7 @@ import android.text.Spannable;
 import android.text.SpannableStringBuilder;
 import android.text.style.ForegroundColorSpan;
 import android.text.style.StyleSpan;
+import android.util.Log;
 
 
 /**
@@ -63,6 +65,8 @@ import android.text.style.StyleSpan;
  * @author Daniele Ricci
  */
 public class MessagingNotification {
+    private static final String TAG = MessagingNotification.class.getSimpleName();
+
     public static final int NOTIFICATION_ID_MESSAGES        = 101;
     public static final int NOTIFICATION_ID_UPLOADING       = 102;
     public static final int NOTIFICATION_ID_UPLOAD_ERROR    = 103;
@@ -79,29 +83,30 @@ public class MessagingNotification {
 
     private static final String[] MESSAGES_UNREAD_PROJECTION =
     {
-        Messages.THREAD_ID,
+        Messages._ID,
         CommonColumns.PEER,
         Messages.BODY_CONTENT,
         Messages.ATTACHMENT_MIME,
         CommonColumns.ENCRYPTED,
     };
 
-    private static final String[] THREADS_UNREAD_PROJECTION =
-    {
-        CommonColumns._ID,
-        CommonColumns.PEER,
-        Threads.MIME,
-        Threads.CONTENT,
-        CommonColumns.ENCRYPTED,
-        CommonColumns.UNREAD,
-    };
-
     private static final String MESSAGES_UNREAD_SELECTION =
         CommonColumns.NEW + " <> 0 AND " +
         CommonColumns.DIRECTION + " = " + Messages.DIRECTION_IN;
 
-    /** Pending delayed notification update flag. */
-    private static volatile boolean sPending;
+    /** Quiet time before rebuilding the messages notification. */
+    private static final long UPDATE_DELAY = 300;
+    /** Maximum time a messages notification update can be delayed. */
+    private static final long UPDATE_MAX_DELAY = 2000;
+
+    /** Unread messages being notified. Modified only by the updater thread. */
+    private static final MessagesNotificationState sState = new MessagesNotificationState();
+    /** True if the state must be reloaded from the database. */
+    private static final AtomicBoolean sReload = new AtomicBoolean(true);
+    /** True if the next update should alert the user. */
+    private static final AtomicBoolean sAlert = new AtomicBoolean();
+    /** Serialized, coalescing messages notification updater. */
+    private static CoalescingExecutor sUpdater;
 
     /** Peer to NOT be notified for new messages. */
     private static volatile String sPaused;
@@ -118,6 +123,7 @@ public class MessagingNotification {
         public void onReceive(Context context, Intent intent) {
             // mark all messages as old
             MessagesProvider.markAllThreadsAsOld(context);
+            clearMessagesNotification(context);
         }
     }
 
@@ -142,127 +148,117 @@ public class MessagingNotification {
         return sPaused != null && sPaused.equalsIgnoreCase(XmppStringUtils.parseBareJid(jid));
     }
 
-    private static boolean supportsBigNotifications() {
-        return android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN;
+    private static synchronized CoalescingExecutor getUpdater(Context context) {
+        if (sUpdater == null) {
+            final Context appContext = context.getApplicationContext();
+            sUpdater = new CoalescingExecutor("MessagingNotification",
+                UPDATE_DELAY, UPDATE_MAX_DELAY, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            rebuildMessagesNotification(appContext);
+                        }
+                        catch (Exception e) {
+                            Log.w(TAG, "unable to update messages notification", e);
+                        }
+                    }
+                });
+        }
+        return sUpdater;
     }
 
-    /** Starts messages notification updates in another thread. */
-    public static void delayedUpdateMessagesNotification(final Context context, final boolean isNew) {
-        // notifications are disabled
-        if (!Preferences.getNotificationsEnabled(context))
-            return;
+    /**
+     * Adds a new incoming message to the notification. Bursts of messages
+     * will cause a single notification update.
+     * @param id message database id
+     */
+    public static void messageReceived(Context context, final long id, final String peer, final CharSequence text) {
+        // open conversation: no alerts
+        if (!isPaused(peer))
+            sAlert.set(true);
+
+        // tracked even if notifications are disabled, they might be enabled later
+        CoalescingExecutor updater = getUpdater(context);
+        updater.execute(new Runnable() {
+            @Override
+            public void run() {
+                sState.add(id, peer, text);
+            }
+        });
+        updater.request();
+    }
 
-        if (!sPending) {
-            sPending = true;
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    updateMessagesNotification(context, isNew);
-                    sPending = false;
-                }
-            }).start();
-        }
+    /** Removes the messages of a conversation from the notification. */
+    public static void conversationRead(Context context, final String peer) {
+        final CoalescingExecutor updater = getUpdater(context);
+        updater.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (sState.remove(peer))
+                    updater.request();
+            }
+        });
+    }
+
+    /** Removes all messages from the notification (e.g. all marked as old). */
+    public static void clearMessagesNotification(Context context) {
+        CoalescingExecutor updater = getUpdater(context);
+        updater.execute(new Runnable() {
+            @Override
+            public void run() {
+                sState.clear();
+            }
+        });
+        updater.request();
     }
 
     /**
-     * Updates system notification for unread messages.
+     * Reloads unread messages from the database and updates the system
+     * notification. The update happens in the background.
      * @param context
      * @param isNew if true a new message has come (starts notification alerts)
      */
     public static void updateMessagesNotification(Context context, boolean isNew) {
-        // notifications are disabled
-        if (!Preferences.getNotificationsEnabled(context))
-            return;
-        // no default account. WTF?!?
-        Account account = Authenticator.getDefaultAccount(context);
-        if (account == null)
-            return;
+        sReload.set(true);
+        if (isNew)
+            sAlert.set(true);
+        getUpdater(context).requestNow();
+    }
 
-        // if notifying new messages, wait a little bit
-        // to let all incoming messages come through
-        /*
-        FIXME this is useless because message are slow to arrive anyway
-        (time to receive packs, store messages in db, etc. wastes too much time
-        if (isNew) {
-            try {
-                Thread.sleep(500);
-            }
-            catch (InterruptedException e) {
-                // ignored
-            }
-        }
-        */
+    /** Returns the text to be notified for a message. */
+    public static String getNotificationText(Context context, CompositeMessage msg) {
+        if (msg.isEncrypted())
+            return context.getString(R.string.text_encrypted);
 
-        ContentResolver res = context.getContentResolver();
-        NotificationManager nm = (NotificationManager) context
-            .getSystemService(Context.NOTIFICATION_SERVICE);
+        TextComponent text = (TextComponent) msg.getComponent(TextComponent.class);
+        if (text != null)
+            return text.getContent();
 
-        String query = MESSAGES_UNREAD_SELECTION;
-        String[] args = null;
-        String[] proj;
-        String order;
-        Uri uri;
-        if (supportsBigNotifications()) {
-            uri = Messages.CONTENT_URI;
-            proj = MESSAGES_UNREAD_PROJECTION;
-            order = Messages.DEFAULT_SORT_ORDER;
-        }
-        else {
-            uri = Threads.CONTENT_URI;
-            proj = THREADS_UNREAD_PROJECTION;
-            order = Threads.INVERTED_SORT_ORDER;
-        }
+        AttachmentComponent att = (AttachmentComponent) msg.getComponent(AttachmentComponent.class);
+        if (att != null)
+            return CompositeMessage.getSampleTextContent(att.getMime());
 
-        // is there a peer to not notify for?
-        if (sPaused != null) {
-            query += " AND " + CommonColumns.PEER + " <> ?";
-            args = new String[] { sPaused };
-        }
-
-        Cursor c = res.query(uri, proj, query, args, order);
-
-        // this shouldn't happen, but who knows...
-        if (c == null) {
-            nm.cancel(NOTIFICATION_ID_MESSAGES);
-            return;
-        }
+        return "";
+    }
 
-        // no unread messages - delete notification
-        int unread = c.getCount();
-        if (unread == 0) {
-            c.close();
-            nm.cancel(NOTIFICATION_ID_MESSAGES);
+    /** Loads unread messages from the database. Called by the updater thread. */
+    private static void reloadMessages(Context context) {
+        Cursor c = context.getContentResolver().query(Messages.CONTENT_URI,
+            MESSAGES_UNREAD_PROJECTION, MESSAGES_UNREAD_SELECTION, null,
+            Messages.DEFAULT_SORT_ORDER);
+        if (c == null)
             return;
-        }
-
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(context.getApplicationContext());
 
-        if (supportsBigNotifications()) {
-            Map<String, CharSequence[]> convs = new HashMap<String, CharSequence[]>();
-
-            String peer = null;
-            long id = 0;
+        sState.clear();
+        try {
             while (c.moveToNext()) {
-                // thread_id for PendingIntent
-                id = c.getLong(0);
-                peer = c.getString(1);
+                long id = c.getLong(0);
+                String peer = c.getString(1);
                 byte[] content = c.getBlob(2);
                 String attMime = c.getString(3);
-
-                CharSequence[] b = convs.get(peer);
-                if (b == null) {
-                    b = new CharSequence[2];
-                    b[0] = new StringBuilder();
-                    b[1] = null;
-                    convs.put(peer, b);
-                }
-                else {
-                    ((StringBuilder) b[0]).append('\n');
-                }
+                boolean encrypted = c.getInt(4) != 0;
 
                 String textContent;
-
-                boolean encrypted = c.getInt(4) != 0;
                 if (encrypted) {
                     textContent = context.getString(R.string.text_encrypted);
                 }
@@ -273,178 +269,183 @@ public class MessagingNotification {
                     textContent = content != null ? new String(content) : "";
                 }
 
-                ((StringBuilder) b[0]).append(textContent);
-                b[1] = textContent;
+                sState.add(id, peer, textContent);
             }
+        }
+        finally {
             c.close();
+        }
+    }
 
-            // TODO we are not ready for this -- builder.addAction(android.R.drawable.ic_menu_revert, "Reply", accumulator.getPendingIntent());
+    /** Updates the system notification for unread messages. Called by the updater thread. */
+    private static void rebuildMessagesNotification(Context context) {
+        NotificationManager nm = (NotificationManager) context
+            .getSystemService(Context.NOTIFICATION_SERVICE);
 
-            /* -- FIXME FIXME VERY UGLY CODE FIXME FIXME -- */
+        if (sReload.getAndSet(false))
+            reloadMessages(context);
+        boolean isNew = sAlert.getAndSet(false);
 
-            Style style;
-            CharSequence title, text, ticker;
+        // notifications are disabled
+        if (!Preferences.getNotificationsEnabled(context))
+            return;
+        // no default account. WTF?!?
+        Account account = Authenticator.getDefaultAccount(context);
+        if (account == null)
+            return;
+
+        // is there a peer to not notify for?
+        List<MessagesNotificationState.Conversation> convs = sState.snapshot(sPaused);
 
-            // more than one conversation - use InboxStyle
-            if (convs.size() > 1) {
-                style = new InboxStyle();
+        // no unread messages - delete notification
+        if (convs.size() == 0) {
+            nm.cancel(NOTIFICATION_ID_MESSAGES);
+            return;
+        }
 
-                // ticker: "X unread messages"
-                ticker = context.getString(R.string.unread_messages, unread);
+        int unread = 0;
+        List<String> peers = new ArrayList<>(convs.size());
+        for (MessagesNotificationState.Conversation conv : convs) {
+            unread += conv.unread;
+            peers.add(conv.peer);
+        }
+        // load all contacts at once
+        Contact.prefetch(context, peers);
 
-                // title
-                title = ticker;
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(context.getApplicationContext());
 
-                // text: comma separated names (TODO RTL?)
-                StringBuilder btext = new StringBuilder();
-                int count = 0;
-                for (String user : convs.keySet()) {
-                    count++;
+        // TODO we are not ready for this -- builder.addAction(android.R.drawable.ic_menu_revert, "Reply", accumulator.getPendingIntent());
 
-                    Contact contact = Contact.findByUserId(context, user);
-                    String name = (contact != null) ? contact.getName() :
-                        context.getString(R.string.peer_unknown);
+        Style style;
+        CharSequence title, text, ticker;
+        Intent ni;
 
-                    if (contact != null) {
-                        if (btext.length() > 0)
-                            btext.append(", ");
-                        btext.append(name);
-                    }
+        // more than one conversation - use InboxStyle
+        if (convs.size() > 1) {
+            style = new InboxStyle();
 
-                    // inbox line
-                    if (count < 5) {
-                        SpannableStringBuilder buf = new SpannableStringBuilder();
-                        buf.append(name).append(' ');
-                        buf.setSpan(new ForegroundColorSpan(context.getResources()
-                                .getColor(R.color.notification_name_color)),
-                            0, buf.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                        // take just the last message
-                        buf.append(convs.get(user)[1]);
-
-                        ((InboxStyle) style).addLine(buf);
-                    }
-                }
+            // ticker: "X unread messages"
+            ticker = context.getString(R.string.unread_messages, unread);
 
-                if (btext.length() > 0)
-                    text = btext.toString();
-                else
-                    // TODO i18n
-                    text = "(unknown users)";
+            // title
+            title = ticker;
 
-                String summary;
-                if (count > 5)
-                    // TODO i18n
-                    summary = "+" + (convs.size() - count) + " more";
-                else
-                    summary = account.name;
+            // text: comma separated names (TODO RTL?)
+            StringBuilder btext = new StringBuilder();
+            int count = 0;
+            // most recent first
+            for (int i = convs.size() - 1; i >= 0; i--) {
+                MessagesNotificationState.Conversation conv = convs.get(i);
+                count++;
 
-                ((InboxStyle) style).setSummaryText(summary);
-            }
-            // one conversation, use BigTextStyle
-            else {
-                String content = convs.get(peer)[0].toString();
-                CharSequence last = convs.get(peer)[1];
-
-                // big text content
-                style = new BigTextStyle();
-                ((BigTextStyle) style).bigText(content);
-                ((BigTextStyle) style).setSummaryText(account.name);
-
-                // ticker
-                Contact contact = Contact.findByUserId(context, peer);
+                Contact contact = Contact.findByUserId(context, conv.peer);
                 String name = (contact != null) ? contact.getName() :
                     context.getString(R.string.peer_unknown);
-                    // debug mode -- conversation.peer;
-
-                SpannableStringBuilder buf = new SpannableStringBuilder();
-                buf.append(name).append(':').append(' ');
-                buf.setSpan(new StyleSpan(Typeface.BOLD), 0, buf.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                buf.append(last);
-
-                ticker = buf;
-
-                // title
-                title = name;
-
-                // text
-                text = (unread > 1) ?
-                    context.getString(R.string.unread_messages, unread)
-                    : content;
 
-                // avatar
                 if (contact != null) {
-                    Drawable avatar = contact.getAvatar(context);
-                    if (avatar != null)
-                        builder.setLargeIcon(MessageUtils.drawableToBitmap(avatar));
+                    if (btext.length() > 0)
+                        btext.append(", ");
+                    btext.append(name);
+                }
+
+                // inbox line
+                if (count < 5) {
+                    SpannableStringBuilder buf = new SpannableStringBuilder();
+                    buf.append(name).append(' ');
+                    buf.setSpan(new ForegroundColorSpan(context.getResources()
+                            .getColor(R.color.notification_name_color)),
+                        0, buf.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    // take just the last message
+                    buf.append(conv.getLastLine());
+
+                    ((InboxStyle) style).addLine(buf);
                 }
             }
 
-            builder.setNumber(unread);
-            builder.setSmallIcon(R.drawable.ic_stat_notify);
+            if (btext.length() > 0)
+                text = btext.toString();
+            else
+                // TODO i18n
+                text = "(unknown users)";
+
+            String summary;
+            if (count > 5)
+                // TODO i18n
+                summary = "+" + (convs.size() - 4) + " more";
+            else
+                summary = account.name;
 
-            builder.setTicker(ticker);
-            builder.setContentTitle(title);
-            builder.setContentText(text);
-            builder.setStyle(style);
-            builder.setDeleteIntent(PendingIntent.getBroadcast(context, 0,
-                sNotificationOnDeleteIntent, 0));
+            ((InboxStyle) style).setSummaryText(summary);
 
-            Intent ni;
             // more than one unread conversation - open ConversationList
-            if (convs.size() > 1) {
-                ni = new Intent(context, ConversationsActivity.class);
-                ni.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK
-                    | Intent.FLAG_ACTIVITY_SINGLE_TOP
-                    | Intent.FLAG_ACTIVITY_CLEAR_TOP);
-            }
-            // one unread conversation - open ComposeMessage on that peer
-            else {
-                ni = ComposeMessage.fromConversation(context, id);
+            ni = new Intent(context, ConversationsActivity.class);
+            ni.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK
+                | Intent.FLAG_ACTIVITY_SINGLE_TOP
+                | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+        }
+        // one conversation, use BigTextStyle
+        else {
+            MessagesNotificationState.Conversation conv = convs.get(0);
+            StringBuilder content = new StringBuilder();
+            for (CharSequence line : conv.lines) {
+                if (content.length() > 0)
+                    content.append('\n');
+                content.append(line);
             }
-            PendingIntent pi = PendingIntent.getActivity(context, NOTIFICATION_ID_MESSAGES,
-                    ni, 0);
+            CharSequence last = conv.getLastLine();
 
-            builder.setContentIntent(pi);
-        }
+            // big text content
+            style = new BigTextStyle();
+            ((BigTextStyle) style).bigText(content);
+            ((BigTextStyle) style).setSummaryText(account.name);
 
-        else {
+            // ticker
+            Contact contact = Contact.findByUserId(context, conv.peer);
+            String name = (contact != null) ? contact.getName() :
+                context.getString(R.string.peer_unknown);
+                // debug mode -- conversation.peer;
 
-            // loop all threads and accumulate them
-            MessageAccumulator accumulator = new MessageAccumulator(context);
-            while (c.moveToNext()) {
-                String content = c.getString(3);
-                boolean encrypted = c.getInt(4) != 0;
+            SpannableStringBuilder buf = new SpannableStringBuilder();
+            buf.append(name).append(':').append(' ');
+            buf.setSpan(new StyleSpan(Typeface.BOLD), 0, buf.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            buf.append(last);
 
-                if (encrypted)
-                    content = context.getString(R.string.text_encrypted);
-                else if (content == null)
-                    content = CompositeMessage.getSampleTextContent(c.getString(2));
-
-                accumulator.accumulate(
-                    c.getLong(0),
-                    c.getString(1),
-                    content,
-                    c.getInt(5)
-                );
-            }
-            c.close();
+            ticker = buf;
+
+            // title
+            title = name;
+
+            // text
+            text = (unread > 1) ?
+                context.getString(R.string.unread_messages, unread)
+                : last;
 
-            builder.setTicker(accumulator.getTicker());
-            Contact contact = accumulator.getContact();
+            // avatar
             if (contact != null) {
-                Drawable avatar = contact.getAvatar(context);
+                Bitmap avatar = contact.getAvatarBitmap(context);
                 if (avatar != null)
-                    builder.setLargeIcon(MessageUtils.drawableToBitmap(avatar));
+                    builder.setLargeIcon(avatar);
             }
-            builder.setNumber(accumulator.unreadCount);
-            builder.setSmallIcon(R.drawable.ic_stat_notify);
-            builder.setContentTitle(accumulator.getTitle());
-            builder.setContentText(accumulator.getText());
-            builder.setContentIntent(accumulator.getPendingIntent());
-            builder.setDeleteIntent(PendingIntent.getBroadcast(context, 0,
-                sNotificationOnDeleteIntent, 0));
+
+            // one unread conversation - open ComposeMessage on that peer
+            ni = ComposeMessage.fromUserId(context, conv.peer);
         }
 
+        builder.setNumber(unread);
+        builder.setSmallIcon(R.drawable.ic_stat_notify);
+
+        builder.setTicker(ticker);
+        builder.setContentTitle(title);
+        builder.setContentText(text);
+        // ignored on older platforms
+        builder.setStyle(style);
+        builder.setDeleteIntent(PendingIntent.getBroadcast(context, 0,
+            sNotificationOnDeleteIntent, 0));
+
+        PendingIntent pi = PendingIntent.getActivity(context, NOTIFICATION_ID_MESSAGES,
+                ni, 0);
+        builder.setContentIntent(pi);
+
         if (isNew) {
             setDefaults(context, builder);
         }
@@ -453,18 +454,6 @@ public class MessagingNotification {
         setFeatures(context, builder);
 
         nm.notify(NOTIFICATION_ID_MESSAGES, builder.build());
-
-        /* TODO take this from configuration
-        boolean quickReply = false;
-        if (isNew && quickReply) {
-            Intent i = new Intent(context.getApplicationContext(), QuickReplyActivity.class);
-            i.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_MULTIPLE_TASK);
-            i.putExtra("org.kontalk.quickreply.FROM", accumulator.getLastMessagePeer());
-            i.putExtra("org.kontalk.quickreply.MESSAGE", accumulator.getLastMessageText());
-            i.putExtra("org.kontalk.quickreply.OPEN_INTENT", accumulator.getLastMessagePendingIntent());
-            context.startActivity(i);
-        }
-        */
     }
 
     private static void setDefaults(Context context, NotificationCompat.Builder builder) {
@@ -522,9 +511,9 @@ public class MessagingNotification {
 
         // include an avatar if any
         if (contact != null) {
-            Drawable avatar = contact.getAvatar(context);
+            Bitmap avatar = contact.getAvatarBitmap(context);
             if (avatar != null)
-                builder.setLargeIcon(MessageUtils.drawableToBitmap(avatar));
+                builder.setLargeIcon(avatar);
         }
 
         // defaults (sound, vibration, lights)
@@ -585,123 +574,4 @@ public class MessagingNotification {
 
         nm.cancel(NOTIFICATION_ID_AUTH_ERROR);
     }
-
-    /**
-     * This class accumulates all incoming unread threads and returns
-     * well-formed data to be used in a {@link Notification}.
-     * @author Daniele Ricci
-     */
-    private static final class MessageAccumulator {
-        private final class ConversationStub {
-            public long id;
-            public String peer;
-            public String content;
-        }
-
-        private ConversationStub conversation;
-        private int convCount;
-        private int unreadCount;
-        private Context mContext;
-        private Contact mContact;
-
-        public MessageAccumulator(Context context) {
-            mContext = context;
-        }
-
-        /** Adds a conversation thread to the accumulator. */
-        public void accumulate(long id, String peer, String content, int unread) {
-            // check old accumulated conversation
-            if (conversation != null) {
-                if (!conversation.peer.equalsIgnoreCase(peer))
-                    convCount++;
-            }
-            // no previous conversation - start counting
-            else {
-                convCount = 1;
-                conversation = new ConversationStub();
-            }
-
-            conversation.id = id;
-            conversation.peer = peer;
-            conversation.content = content;
-
-            unreadCount += unread;
-        }
-
-        private void cacheContact() {
-            mContact = Contact.findByUserId(mContext, conversation.peer);
-        }
-
-        public Contact getContact() {
-            return mContact;
-        }
-
-        /** Returns the text that should be used as a ticker in the notification. */
-        public CharSequence getTicker() {
-            cacheContact();
-            String peer = (mContact != null) ? mContact.getName() :
-                mContext.getString(R.string.peer_unknown);
-                // debug mode -- conversation.peer;
-
-            SpannableStringBuilder buf = new SpannableStringBuilder();
-            buf.append(peer).append(':').append(' ');
-            buf.setSpan(new StyleSpan(Typeface.BOLD), 0, buf.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-            buf.append(conversation.content);
-
-            return buf;
-        }
-
-        /** Returns the text that should be used as the notification title. */
-        public String getTitle() {
-            if (convCount > 1) {
-                return mContext.getString(R.string.new_messages);
-            }
-            else {
-                cacheContact();
-                return (mContact != null) ? mContact.getName() :
-                    mContext.getString(R.string.peer_unknown);
-                    // debug mode -- conversation.peer;
-            }
-        }
-
-        /** Returns the text that should be used as the notification text. */
-        public String getText() {
-            return (unreadCount > 1) ?
-                    mContext.getString(R.string.unread_messages, unreadCount)
-                    : conversation.content;
-        }
-
-        /** Builds a {@link PendingIntent} to be used in the notification. */
-        public PendingIntent getPendingIntent() {
-            Intent ni;
-            // more than one unread conversation - open ConversationList
-            if (convCount > 1) {
-                ni = new Intent(mContext, ConversationsActivity.class);
-                ni.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK
-                    | Intent.FLAG_ACTIVITY_SINGLE_TOP
-                    | Intent.FLAG_ACTIVITY_CLEAR_TOP);
-            }
-            // one unread conversation - open ComposeMessage on that peer
-            else {
-                ni = ComposeMessage.fromConversation(mContext, conversation.id);
-            }
-            return PendingIntent.getActivity(mContext, NOTIFICATION_ID_MESSAGES,
-                    ni, 0);
-        }
-
-        public String getLastMessageText() {
-            return conversation.content;
-        }
-
-        public String getLastMessagePeer() {
-            return conversation.peer;
-        }
-
-        public PendingIntent getLastMessagePendingIntent() {
-            // one unread conversation - open ComposeMessage on that peer
-            Intent ni = ComposeMessage.fromConversation(mContext, conversation.id);
-            return PendingIntent.getActivity(mContext, NOTIFICATION_ID_QUICK_REPLY,
-                    ni, 0);
-        }
-    }
 }
@@ -0,0 +1,139 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.ui;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import org.kontalk.Log;
+import org.kontalk.R;
+import org.kontalk.util.metrics.MessageTracer;
+import org.kontalk.util.metrics.Metrics;
+
+
+/**
+ * Debug screen showing a snapshot of the application metrics.
+ * @author Daniele Ricci
+ */
+public class MetricsActivity extends ToolbarActivity {
+    private static final String TAG = MetricsActivity.class.getSimpleName();
+
+    private TextView mText;
+
+    public static void start(Activity context) {
+        Intent intent = new Intent(context, MetricsActivity.class);
+        context.startActivityIfNeeded(intent, -1);
+    }
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.metrics_screen);
+
+        setupToolbar(true);
+
+        mText = (TextView) findViewById(R.id.metrics);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        super.onCreateOptionsMenu(menu);
+        getMenuInflater().inflate(R.menu.metrics_menu, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case android.R.id.home:
+                finish();
+                return true;
+
+            case R.id.menu_refresh:
+                refresh();
+                return true;
+
+            case R.id.menu_export_traces:
+                exportTraces();
+                return true;
+
+            case R.id.menu_reset:
+                Metrics.reset();
+                MessageTracer.clear();
+                refresh();
+                return true;
+        }
+
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void refresh() {
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        Metrics.dump(writer);
+        writer.flush();
+        mText.setText(out.toString());
+    }
+
+    private void exportTraces() {
+        File dir = getExternalFilesDir(null);
+        if (dir == null)
+            dir = getFilesDir();
+        File file = new File(dir, "traces-" + System.currentTimeMillis() + ".csv");
+
+        Writer out = null;
+        try {
+            out = new FileWriter(file);
+            MessageTracer.export(out);
+            Toast.makeText(this, file.getAbsolutePath(), Toast.LENGTH_LONG).show();
+        }
+        catch (IOException e) {
+            Log.e(TAG, "unable to export traces", e);
+            Toast.makeText(this, e.toString(), Toast.LENGTH_LONG).show();
+        }
+        finally {
+            try {
+                if (out != null)
+                    out.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+
+}
@@ -25,10 +25,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.net.SocketException;
-import java.util.Comparator;
-import java.util.HashSet;
 import java.util.Locale;
-import java.util.Set;
 import java.util.zip.ZipInputStream;
 
 import com.afollestad.materialdialogs.AlertDialogWrapper;
@@ -57,6 +54,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.support.annotation.NonNull;
 import android.support.v4.content.LocalBroadcastManager;
@@ -73,6 +71,7 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.ViewTreeObserver;
 import android.view.WindowManager;
 import android.widget.AdapterView;
 import android.widget.Button;
@@ -84,6 +83,7 @@ import org.kontalk.BuildConfig;
 import org.kontalk.Kontalk;
 import org.kontalk.R;
 import org.kontalk.authenticator.Authenticator;
+import org.kontalk.client.CountryCodes;
 import org.kontalk.client.EndpointServer;
 import org.kontalk.client.NumberValidator;
 import org.kontalk.client.NumberValidator.NumberValidatorListener;
@@ -161,43 +161,28 @@ public class NumberValidation extends AccountAuthenticatorActionBarActivity
         boolean syncing;
     }
 
-    /**
-     * Compatibility method for {@link PhoneNumberUtil#getSupportedRegions()}.
-     * This was introduced because crappy Honeycomb has an old version of
-     * libphonenumber, therefore Dalvik will insist on we using it.
-     * In case getSupportedRegions doesn't exist, getSupportedCountries will be
-     * used.
-     */
-    @SuppressWarnings("unchecked")
-    private Set<String> getSupportedRegions(PhoneNumberUtil util) {
-        try {
-            return (Set<String>) util.getClass()
-                .getMethod("getSupportedRegions")
-                .invoke(util);
-        }
-        catch (NoSuchMethodException e) {
-            try {
-                return (Set<String>) util.getClass()
-                    .getMethod("getSupportedCountries")
-                    .invoke(util);
-            }
-            catch (Exception helpme) {
-                // ignored
-            }
-        }
-        catch (Exception e) {
-            // ignored
-        }
-
-        return new HashSet<String>();
-    }
-
     @Override
     public void onCreate(Bundle savedInstanceState) {
+        final long startTime = SystemClock.elapsedRealtime();
         super.onCreate(savedInstanceState);
         setContentView(R.layout.number_validation);
         setupToolbar(false);
 
+        if (BuildConfig.DEBUG) {
+            // startup benchmark
+            final ViewTreeObserver observer = getWindow().getDecorView().getViewTreeObserver();
+            observer.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+                @Override
+                public boolean onPreDraw() {
+                    if (observer.isAlive())
+                        observer.removeOnPreDrawListener(this);
+                    Log.d(TAG, "first draw after " +
+                        (SystemClock.elapsedRealtime() - startTime) + " ms");
+                    return true;
+                }
+            });
+        }
+
         mAccountManager = AccountManager.get(this);
         mHandler = new Handler();
 
@@ -213,16 +198,7 @@ public class NumberValidation extends AccountAuthenticatorActionBarActivity
 
         // populate country codes
         final CountryCodesAdapter ccList = new CountryCodesAdapter(this, R.layout.country_item, R.layout.country_dropdown_item);
-        PhoneNumberUtil util = PhoneNumberUtil.getInstance();
-        Set<String> ccSet = getSupportedRegions(util);
-        for (String cc : ccSet)
-            ccList.add(cc);
-
-        ccList.sort(new Comparator<CountryCodesAdapter.CountryCode>() {
-            public int compare(CountryCodesAdapter.CountryCode lhs, CountryCodesAdapter.CountryCode rhs) {
-                return lhs.regionName.compareTo(rhs.regionName);
-            }
-        });
+        ccList.addAll(Locale.getDefault());
         mCountryCode.setAdapter(ccList);
         mCountryCode.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
             public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
@@ -237,6 +213,7 @@ public class NumberValidation extends AccountAuthenticatorActionBarActivity
         // FIXME this doesn't consider creation because of configuration change
         PhoneNumber myNum = NumberValidator.getMyNumber(this);
         if (myNum != null) {
+            PhoneNumberUtil util = PhoneNumberUtil.getInstance();
             CountryCode cc = new CountryCode();
             cc.regionCode = util.getRegionCodeForNumber(myNum);
             if (cc.regionCode == null)
@@ -249,7 +226,7 @@ public class NumberValidation extends AccountAuthenticatorActionBarActivity
             final String regionCode = tm.getSimCountryIso().toUpperCase(Locale.US);
             CountryCode cc = new CountryCode();
             cc.regionCode = regionCode;
-            cc.countryCode = util.getCountryCodeForRegion(regionCode);
+            cc.countryCode = CountryCodes.getCountryCode(regionCode);
             mCountryCode.setSelection(ccList.getPositionForId(cc));
         }
 
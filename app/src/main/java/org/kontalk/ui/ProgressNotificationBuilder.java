@@ -61,11 +61,20 @@ public class ProgressNotificationBuilder extends NotificationCompat.Builder {
      * @param progress if less than 0, progress bar will be indeterminate
      */
     public ProgressNotificationBuilder progress(int progress, int contentTitle, int contentText) {
+        return progress(progress, mContext.getString(contentTitle),
+            mContext.getString(contentText));
+    }
+
+    /**
+     * Updates the notification progress bar.
+     * @param progress if less than 0, progress bar will be indeterminate
+     */
+    public ProgressNotificationBuilder progress(int progress, CharSequence contentTitle, CharSequence contentText) {
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
             this.setSmallIcon(R.drawable.ic_stat_notify)
                 .setProgress(100, progress, false)
-                .setContentTitle(mContext.getString(contentTitle))
-                .setContentText(mContext.getString(contentText));
+                .setContentTitle(contentTitle)
+                .setContentText(contentText);
 
             if (progress < 0)
                 setProgress(0, 0, true);
@@ -78,7 +87,7 @@ public class ProgressNotificationBuilder extends NotificationCompat.Builder {
         else {
             mContentView = new RemoteViews(mContext.getPackageName(), mLayout);
             // this should not be needed -- contentView.setOnClickPendingIntent(R.id.progress_notification, null);
-            mContentView.setTextViewText(R.id.title, mContext.getString(contentText));
+            mContentView.setTextViewText(R.id.title, contentText);
             mContentView.setTextViewText(R.id.progress_text, (progress < 0) ? "" : String.format("%d%%", progress));
 
             if (progress < 0)
@@ -38,6 +38,9 @@ import android.widget.ListView;
 public class ConversationListAdapter extends CursorAdapter {
     private static final String TAG = ConversationsActivity.TAG;
 
+    /** Number of conversations whose contacts are loaded together. */
+    private static final int CONTACTS_PREFETCH_WINDOW = 30;
+
     private final LayoutInflater mFactory;
     private OnContentChangedListener mOnContentChangedListener;
 
@@ -62,6 +65,8 @@ public class ConversationListAdapter extends CursorAdapter {
         }
 
         ConversationListItem headerView = (ConversationListItem) view;
+        // load contacts for the next rows in one go
+        Conversation.prefetchContacts(context, cursor, CONTACTS_PREFETCH_WINDOW);
         Conversation conv = Conversation.createFromCursor(context, cursor);
 
         headerView.bind(context, conv);
@@ -25,6 +25,7 @@ import java.util.List;
 import java.util.Locale;
 
 import org.kontalk.R;
+import org.kontalk.client.CountryCodes;
 import org.kontalk.client.NumberValidator;
 
 import android.content.Context;
@@ -37,8 +38,6 @@ import android.widget.CheckedTextView;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import com.google.i18n.phonenumbers.PhoneNumberUtil;
-
 
 public class CountryCodesAdapter extends BaseAdapter {
 
@@ -339,11 +338,22 @@ public class CountryCodesAdapter extends BaseAdapter {
     public void add(String regionCode) {
         CountryCode cc = new CountryCode();
         cc.regionCode = regionCode;
-        cc.countryCode = PhoneNumberUtil.getInstance().getCountryCodeForRegion(regionCode);
+        cc.countryCode = CountryCodes.getCountryCode(regionCode);
         cc.regionName = NumberValidator.getRegionDisplayName(regionCode, Locale.getDefault());
         mData.add(cc);
     }
 
+    /** Adds all supported regions, sorted by their name in the given locale. */
+    public void addAll(Locale locale) {
+        for (int index : CountryCodes.getSortedIndexes(locale)) {
+            CountryCode cc = new CountryCode();
+            cc.regionCode = CountryCodes.getRegionCode(index);
+            cc.countryCode = CountryCodes.getCountryCode(index);
+            cc.regionName = CountryCodes.getRegionName(index, locale);
+            mData.add(cc);
+        }
+    }
+
     public void clear() {
         mData.clear();
     }
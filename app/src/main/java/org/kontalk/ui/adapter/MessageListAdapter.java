@@ -22,12 +22,15 @@ import java.util.regex.Pattern;
 
 import org.kontalk.R;
 import org.kontalk.data.Contact;
+import org.kontalk.message.AttachmentComponent;
 import org.kontalk.message.CompositeMessage;
 import org.kontalk.provider.MyMessages.Messages;
+import org.kontalk.service.DownloadService;
 import org.kontalk.ui.view.AudioPlayerControl;
 import org.kontalk.ui.ComposeMessage;
 import org.kontalk.ui.view.MessageListItem;
 import org.kontalk.util.MessageUtils;
+import org.kontalk.util.metrics.MessageTracer;
 
 import android.content.Context;
 import android.database.Cursor;
@@ -44,8 +47,12 @@ public class MessageListAdapter extends CursorAdapter {
 
     private static final String TAG = ComposeMessage.TAG;
 
+    /** Number of messages to build in advance when a new cursor is set. */
+    private static final int PREFETCH_COUNT = 20;
+
     private final LayoutInflater mFactory;
     private final Pattern mHighlight;
+    private final MessageListCache mCache;
     private OnContentChangedListener mOnContentChangedListener;
 
     private Contact mContact;
@@ -56,11 +63,18 @@ public class MessageListAdapter extends CursorAdapter {
         mFactory = LayoutInflater.from(context);
         mHighlight = highlight;
         mAudioPlayerControl = audioPlayerControl;
+        mCache = new MessageListCache(context, highlight);
 
         list.setRecyclerListener(new RecyclerListener() {
             public void onMovedToScrapHeap(View view) {
                 if (view instanceof MessageListItem) {
-                    ((MessageListItem) view).unbind();
+                    MessageListItem item = (MessageListItem) view;
+                    // message is not visible anymore
+                    String fetchUrl = getFetchUrl(item.getMessage());
+                    if (fetchUrl != null)
+                        DownloadService.deprioritize(fetchUrl);
+
+                    item.unbind();
                 }
             }
         });
@@ -74,7 +88,14 @@ public class MessageListAdapter extends CursorAdapter {
         }
 
         MessageListItem headerView = (MessageListItem) view;
-        CompositeMessage msg = CompositeMessage.fromCursor(context, cursor);
+        CompositeMessage msg = mCache.get(cursor);
+        MessageTracer.mark(msg.getId(), MessageTracer.STAGE_DISPLAYED);
+
+        // downloads of visible messages go first
+        String fetchUrl = getFetchUrl(msg);
+        if (fetchUrl != null)
+            DownloadService.prioritize(fetchUrl);
+
         if (msg.getDirection() == Messages.DIRECTION_IN &&
                 (mContact == null || !mContact.getJID().equalsIgnoreCase(msg.getSender())))
             mContact = Contact.findByUserId(context, msg.getSender());
@@ -88,6 +109,31 @@ public class MessageListAdapter extends CursorAdapter {
         headerView.bind(context, msg, mContact, mHighlight, previous, mAudioPlayerControl);
     }
 
+    private static String getFetchUrl(CompositeMessage msg) {
+        if (msg != null) {
+            AttachmentComponent attachment = (AttachmentComponent) msg
+                .getComponent(AttachmentComponent.class);
+            if (attachment != null)
+                return attachment.getFetchUrl();
+        }
+        return null;
+    }
+
+    @Override
+    public void changeCursor(Cursor cursor) {
+        mCache.setCursor(cursor);
+        // we can't track changes without a cursor
+        if (cursor != null) {
+            mCache.register(mContext.getContentResolver());
+            mCache.prefetch(cursor, PREFETCH_COUNT);
+        }
+        else {
+            mCache.unregister(mContext.getContentResolver());
+        }
+
+        super.changeCursor(cursor);
+    }
+
     @Override
     public int getItemViewType(int position) {
         Cursor c = (Cursor) getItem(position);
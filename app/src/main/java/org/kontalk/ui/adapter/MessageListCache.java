@@ -0,0 +1,222 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.ui.adapter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.v4.util.LruCache;
+
+import org.kontalk.message.CompositeMessage;
+import org.kontalk.message.TextComponent;
+import org.kontalk.provider.MyMessages.Messages;
+import org.kontalk.ui.view.TextPreparer;
+
+
+/**
+ * A size-bounded cache of messages built for the message list, keyed by
+ * database id. Entries are never modified once built and are invalidated by
+ * the change notifications sent by the messages provider for every single
+ * message, so binding a row that was already seen doesn't allocate anything.
+ * Messages built from a cursor that has become outdated are not cached, so a
+ * bind from the old cursor can't bring back an invalidated entry before the
+ * new cursor is set. Text is prepared in the background by {@link TextPreparer} as soon as a
+ * message is built.
+ * @author Daniele Ricci
+ */
+class MessageListCache {
+
+    /** Roughly a few screens of messages. */
+    private static final int MAX_ENTRIES = 100;
+
+    private final Context mContext;
+    private final Pattern mHighlight;
+    private final LruCache<Long, Entry> mCache;
+    private final ContentObserver mObserver;
+    private boolean mRegistered;
+
+    /** Bumped on every change notification. */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    /** The cursor rows are being bound from. */
+    private Cursor mCursor;
+    /** True if {@link #mCursor} has changed since it was queried. */
+    private volatile boolean mCursorStale;
+    private final ContentObserver mCursorObserver;
+
+    /** A cached message, along with the columns used to validate it. */
+    private static final class Entry {
+        final CompositeMessage message;
+        final int status;
+        final long statusChanged;
+        final long serverTimestamp;
+
+        Entry(CompositeMessage message, int status, long statusChanged, long serverTimestamp) {
+            this.message = message;
+            this.status = status;
+            this.statusChanged = statusChanged;
+            this.serverTimestamp = serverTimestamp;
+        }
+
+        boolean matches(Cursor c) {
+            return status == c.getInt(CompositeMessage.COLUMN_STATUS) &&
+                statusChanged == c.getLong(CompositeMessage.COLUMN_STATUS_CHANGED) &&
+                serverTimestamp == c.getLong(CompositeMessage.COLUMN_SERVER_TIMESTAMP);
+        }
+    }
+
+    public MessageListCache(Context context, Pattern highlight) {
+        mContext = context.getApplicationContext();
+        mHighlight = highlight;
+        mCache = new LruCache<>(MAX_ENTRIES);
+        // no handler: invalidate right away, before any requery can rebind
+        mObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                // no URI available (older platforms)
+                clear();
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                invalidate(uri);
+            }
+        };
+        mCursorObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mCursorStale = true;
+            }
+        };
+    }
+
+    /**
+     * Sets the cursor rows will be bound from. Messages will not be cached
+     * anymore once the cursor receives a change notification.
+     */
+    public void setCursor(Cursor cursor) {
+        if (mCursor != null)
+            mCursor.unregisterContentObserver(mCursorObserver);
+        mCursor = cursor;
+        mCursorStale = false;
+        if (cursor != null)
+            cursor.registerContentObserver(mCursorObserver);
+    }
+
+    /**
+     * Returns the message for the current row of the given cursor, building
+     * it if it's not cached or if the row has changed.
+     */
+    public CompositeMessage get(Cursor cursor) {
+        long id = cursor.getLong(CompositeMessage.COLUMN_ID);
+        Entry entry = mCache.get(id);
+        if (entry == null || !entry.matches(cursor)) {
+            int generation = mGeneration.get();
+            CompositeMessage msg = CompositeMessage.fromCursor(mContext, cursor);
+            prepare(msg);
+
+            entry = new Entry(msg,
+                cursor.getInt(CompositeMessage.COLUMN_STATUS),
+                cursor.getLong(CompositeMessage.COLUMN_STATUS_CHANGED),
+                cursor.getLong(CompositeMessage.COLUMN_SERVER_TIMESTAMP));
+
+            // an outdated cursor would repopulate invalidated entries
+            if (!mCursorStale) {
+                mCache.put(id, entry);
+                // a change might have been notified in the meantime
+                if (mCursorStale || mGeneration.get() != generation)
+                    mCache.remove(id);
+            }
+        }
+
+        return entry.message;
+    }
+
+    /** Starts preparing everything that can be reused across binds. */
+    private void prepare(CompositeMessage msg) {
+        TextComponent text = (TextComponent) msg.getComponent(TextComponent.class);
+        if (text != null && text.getFormattedContent() == null)
+            TextPreparer.getInstance(mContext).prepare(text, mHighlight, null);
+    }
+
+    /**
+     * Builds the messages for the last rows of the given cursor, so their
+     * text will hopefully be ready by the time they are displayed.
+     * Cursor position is preserved.
+     */
+    public void prefetch(Cursor cursor, int count) {
+        int position = cursor.getPosition();
+        // most recent messages are displayed first
+        if (cursor.moveToLast()) {
+            do {
+                get(cursor);
+            } while (--count > 0 && cursor.moveToPrevious());
+        }
+        cursor.moveToPosition(position);
+    }
+
+    public void invalidate(Uri uri) {
+        if (uri != null && uri.getPathSegments().size() == 2) {
+            long id;
+            try {
+                id = ContentUris.parseId(uri);
+            }
+            catch (NumberFormatException e) {
+                // server id: the provider notifies the database id too
+                return;
+            }
+            mGeneration.incrementAndGet();
+            mCache.remove(id);
+        }
+        else {
+            // generic notification
+            clear();
+        }
+    }
+
+    public void clear() {
+        mGeneration.incrementAndGet();
+        mCache.evictAll();
+    }
+
+    /** Starts listening for changes. */
+    public void register(ContentResolver resolver) {
+        if (!mRegistered) {
+            resolver.registerContentObserver(Messages.CONTENT_URI, true, mObserver);
+            mRegistered = true;
+        }
+    }
+
+    /** Stops listening for changes. Cache is cleared since changes would be missed. */
+    public void unregister(ContentResolver resolver) {
+        if (mRegistered) {
+            resolver.unregisterContentObserver(mObserver);
+            mRegistered = false;
+        }
+        clear();
+    }
+
+}
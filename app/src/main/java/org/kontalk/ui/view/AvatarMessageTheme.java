@@ -34,7 +34,7 @@ import org.kontalk.util.SystemUtils;
  * Avatar-based message balloon theme.
  * @author Daniele Ricci
  */
-public class AvatarMessageTheme extends BaseMessageTheme {
+public class AvatarMessageTheme extends BaseMessageTheme implements Contact.ContactCallback {
 
     private static Drawable sDefaultContactImage;
 
@@ -43,6 +43,8 @@ public class AvatarMessageTheme extends BaseMessageTheme {
     private LinearLayout mBalloonView;
 
     private CircleContactBadge mAvatar;
+    /** Contact whose avatar is being displayed. */
+    private Contact mAvatarContact;
 
     public AvatarMessageTheme(int layoutId, int drawableId) {
         super(layoutId);
@@ -89,18 +91,30 @@ public class AvatarMessageTheme extends BaseMessageTheme {
 
         if (mAvatar != null) {
             mAvatar.assignContactUri(contact != null ? contact.getUri() : null);
-            mAvatar.setImageDrawable(contact != null ?
-                contact.getAvatar(mContext) : sDefaultContactImage);
+            mAvatar.setImageDrawable(sDefaultContactImage);
+            mAvatarContact = contact;
+            if (contact != null) {
+                // called right away if cached
+                contact.getAvatarAsync(mContext, this);
+            }
         }
 
         super.setIncoming(contact);
     }
 
+    @Override
+    public void avatarLoaded(Contact contact, Drawable avatar) {
+        // be sure we are still displaying the same contact
+        if (contact == mAvatarContact && avatar != null)
+            mAvatar.setImageDrawable(avatar);
+    }
+
     @Override
     public void setOutgoing(Contact contact, int status) {
         setView();
 
         if (mAvatar != null) {
+            mAvatarContact = null;
             Drawable avatar;
             Bitmap profile = SystemUtils.getProfilePhoto(mContext);
             if (profile != null) {
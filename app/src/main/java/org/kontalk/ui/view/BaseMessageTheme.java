@@ -82,7 +82,10 @@ public abstract class BaseMessageTheme implements MessageListItemTheme {
         TextContentView view = TextContentView.obtain(mInflater, mContent, true);
 
         String text = mContext.getResources().getString(R.string.text_encrypted);
-        view.bind(databaseId, new TextComponent(text), null);
+        TextComponent component = new TextComponent(text);
+        // nothing to prepare here
+        component.setFormattedContent(text);
+        view.bind(databaseId, component, null);
         mContent.addContent(view);
     }
 
@@ -27,7 +27,10 @@ import android.widget.ImageView;
 
 import org.kontalk.R;
 import org.kontalk.message.ImageComponent;
+import org.kontalk.util.BitmapPool;
+import org.kontalk.util.ThumbnailLoader;
 
+import java.io.File;
 import java.util.regex.Pattern;
 
 
@@ -36,9 +39,12 @@ import java.util.regex.Pattern;
  * @author Daniele Ricci
  */
 public class ImageContentView extends ImageView
-        implements MessageContentView<ImageComponent> {
+        implements MessageContentView<ImageComponent>, ThumbnailLoader.Callback {
 
     private ImageComponent mComponent;
+    private ThumbnailLoader.Request mRequest;
+    /** Displayed bitmap, retained from the pool. */
+    private Bitmap mBitmap;
 
     public ImageContentView(Context context) {
         super(context);
@@ -54,17 +60,47 @@ public class ImageContentView extends ImageView
 
     @Override
     public void bind(long messageId, ImageComponent component, Pattern highlight) {
+        if (mRequest != null) {
+            mRequest.cancel();
+            mRequest = null;
+        }
         mComponent = component;
 
         // prepend some text for the ImageSpan
         //String placeholder = CompositeMessage.getSampleTextContent(component.getContent().getMime());
 
-        Bitmap bitmap = mComponent.getBitmap();
-        if (bitmap != null)
-            setImageBitmap(bitmap);
+        ThumbnailLoader loader = ThumbnailLoader.getInstance(getContext());
+        File previewFile = component.getPreviewFile();
+        Bitmap bitmap = loader.getCached(previewFile);
+        if (bitmap != null) {
+            setBitmap(bitmap);
+        }
+        else {
+            // TODO maybe some placeholder like Image: image/jpeg
+            setBitmap(null);
+
+            if (previewFile != null)
+                mRequest = loader.load(previewFile, component.getLocalUri(), this);
+        }
+    }
 
-        // TODO else: maybe some placeholder like Image: image/jpeg
+    @Override
+    public void onThumbnailLoaded(File previewFile, Bitmap bitmap) {
+        mRequest = null;
+        if (mComponent != null && previewFile.equals(mComponent.getPreviewFile()))
+            setBitmap(bitmap);
+        else
+            BitmapPool.getInstance().release(bitmap);
+    }
 
+    /** Sets the displayed bitmap, releasing the previous one to the pool. */
+    private void setBitmap(Bitmap bitmap) {
+        Bitmap old = mBitmap;
+        mBitmap = bitmap;
+        setImageBitmap(bitmap);
+        // the new bitmap comes with its own reference
+        if (old != null)
+            BitmapPool.getInstance().release(old);
     }
 
     @Override
@@ -84,8 +120,13 @@ public class ImageContentView extends ImageView
     }
 
     private void clear() {
+        if (mRequest != null) {
+            // view is being recycled, we don't need the thumbnail anymore
+            mRequest.cancel();
+            mRequest = null;
+        }
         mComponent = null;
-        setImageBitmap(null);
+        setBitmap(null);
     }
 
     public static ImageContentView create(LayoutInflater inflater, ViewGroup parent) {
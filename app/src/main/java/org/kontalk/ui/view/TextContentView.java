@@ -20,29 +20,26 @@ package org.kontalk.ui.view;
 
 import android.content.Context;
 import android.text.Layout;
-import android.text.SpannableStringBuilder;
-import android.text.style.BackgroundColorSpan;
-import android.text.util.Linkify;
 import android.util.AttributeSet;
 import android.view.LayoutInflater;
 import android.view.ViewGroup;
+import android.widget.TextView;
 
 import org.kontalk.R;
 import org.kontalk.message.TextComponent;
 import org.kontalk.util.Preferences;
 
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import com.rockerhieu.emojicon.EmojiconTextView;
-
 
 /**
  * Message component for {@link TextComponent}.
+ * Links, emoji and highlights are prepared by {@link TextPreparer}, this
+ * view just displays the result.
  * @author Daniele Ricci
  */
-public class TextContentView extends EmojiconTextView
-        implements MessageContentView<TextComponent> {
+public class TextContentView extends TextView
+        implements MessageContentView<TextComponent>, TextPreparer.Callback {
 
     // pool-related stuff
 
@@ -57,36 +54,22 @@ public class TextContentView extends EmojiconTextView
     protected TextContentView next;
 
 
-    /**
-     * Maximum affordable size of a text message to make complex stuff
-     * (e.g. emoji, linkify, etc.)
-     */
-    private static final int MAX_AFFORDABLE_SIZE = 10240;   // 10 KB
-
     private TextComponent mComponent;
+    private TextPreparer.Request mRequest;
     private boolean mEncryptionPlaceholder;
-    private BackgroundColorSpan mHighlightColorSpan;  // set in ctor
 
     private boolean mMeasureHack;
 
     public TextContentView(Context context) {
         super(context);
-        init(context);
     }
 
     public TextContentView(Context context, AttributeSet attrs) {
         super(context, attrs);
-        init(context);
     }
 
     public TextContentView(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
-        init(context);
-    }
-
-    private void init(Context context) {
-        int color = context.getResources().getColor(R.color.highlight_color);
-        mHighlightColorSpan = new BackgroundColorSpan(color);
     }
 
     /*
@@ -127,37 +110,46 @@ public class TextContentView extends EmojiconTextView
 
     @Override
     public void bind(long databaseId, TextComponent component, Pattern highlight) {
+        cancelRequest();
         mComponent = component;
         Context context = getContext();
 
-        SpannableStringBuilder formattedMessage = formatMessage(highlight);
+        setTextAppearance(context, getTextAppearance(context));
+
+        CharSequence formattedMessage = component.getFormattedContent();
+        if (formattedMessage == null) {
+            // show plain text until links and emoji are ready
+            formattedMessage = component.getContent();
+            mRequest = TextPreparer.getInstance(context)
+                .prepare(component, highlight, this);
+        }
+
+        setText(formattedMessage);
+    }
+
+    @Override
+    public void onTextPrepared(TextComponent component, CharSequence text) {
+        mRequest = null;
+        if (component == mComponent)
+            setText(text);
+    }
+
+    private void cancelRequest() {
+        if (mRequest != null) {
+            mRequest.cancel();
+            mRequest = null;
+        }
+    }
+
+    /** Returns the text appearance style for the font size chosen by the user. */
+    public static int getTextAppearance(Context context) {
         String size = Preferences.getFontSize(context);
-        int sizeId;
         if (size.equals("small"))
-            sizeId = android.R.style.TextAppearance_Small;
+            return android.R.style.TextAppearance_Small;
         else if (size.equals("large"))
-            sizeId = android.R.style.TextAppearance_Large;
+            return android.R.style.TextAppearance_Large;
         else
-            sizeId = android.R.style.TextAppearance;
-        setTextAppearance(context, sizeId);
-        //setEmojiconSize((int) getTextSize());
-
-        // linkify!
-        if (formattedMessage.length() < MAX_AFFORDABLE_SIZE)
-            Linkify.addLinks(formattedMessage, Linkify.ALL);
-
-        /*
-         * workaround for bugs:
-         * http://code.google.com/p/android/issues/detail?id=17343
-         * http://code.google.com/p/android/issues/detail?id=22493
-         * applies from Honeycomb to JB 4.2.2 afaik
-         */
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB &&
-                android.os.Build.VERSION.SDK_INT <= android.os.Build.VERSION_CODES.JELLY_BEAN_MR1)
-            // from http://stackoverflow.com/a/12303155/1045199
-            formattedMessage.append("\u200b"); // was: \u2060
-
-        setText(formattedMessage);
+            return android.R.style.TextAppearance;
     }
 
     @Override
@@ -180,23 +172,8 @@ public class TextContentView extends EmojiconTextView
         return mEncryptionPlaceholder;
     }
 
-    private SpannableStringBuilder formatMessage(final Pattern highlight) {
-        SpannableStringBuilder buf;
-
-        String textContent = mComponent.getContent();
-
-        buf = new SpannableStringBuilder(textContent);
-
-        if (highlight != null) {
-            Matcher m = highlight.matcher(buf.toString());
-            while (m.find())
-                buf.setSpan(mHighlightColorSpan, m.start(), m.end(), 0);
-        }
-
-        return buf;
-    }
-
     private void clear() {
+        cancelRequest();
         mComponent = null;
     }
 
@@ -0,0 +1,241 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.ui.view;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.text.SpannableStringBuilder;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.DynamicDrawableSpan;
+import android.text.util.Linkify;
+
+import org.kontalk.R;
+import org.kontalk.message.TextComponent;
+
+import com.rockerhieu.emojicon.EmojiconHandler;
+
+
+/**
+ * Prepares message text for display off the UI thread: highlight, link and
+ * emoji spans are computed once per text component and stored in it as
+ * its formatted content. Views just attach the result.
+ * @author Daniele Ricci
+ */
+public class TextPreparer {
+
+    /**
+     * Maximum affordable size of a text message to make complex stuff
+     * (e.g. emoji, linkify, etc.)
+     */
+    private static final int MAX_AFFORDABLE_SIZE = 10240;   // 10 KB
+
+    private static TextPreparer sInstance;
+
+    private final Context mContext;
+    private final ExecutorService mExecutor;
+    private final Handler mHandler;
+
+    /** Components being prepared, to avoid doing the same work twice. */
+    private final Map<TextComponent, Task> mPending = new IdentityHashMap<>();
+
+    /** Receives prepared text on the main thread. */
+    public interface Callback {
+        void onTextPrepared(TextComponent component, CharSequence text);
+    }
+
+    /** A pending preparation, can be cancelled. */
+    public static final class Request {
+        private final Task mTask;
+        private final Callback mCallback;
+
+        Request(Task task, Callback callback) {
+            mTask = task;
+            mCallback = callback;
+        }
+
+        /**
+         * Cancels the request: the callback will not be called. Text will
+         * still be prepared and stored in the component.
+         */
+        public void cancel() {
+            synchronized (mTask) {
+                mTask.callbacks.remove(mCallback);
+            }
+        }
+    }
+
+    private static final class Task {
+        final List<Callback> callbacks = new ArrayList<>(1);
+    }
+
+    private TextPreparer(Context context) {
+        mContext = context.getApplicationContext();
+        mHandler = new Handler(Looper.getMainLooper());
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "TextPreparer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public static synchronized TextPreparer getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new TextPreparer(context);
+        return sInstance;
+    }
+
+    /**
+     * Prepares the text of a component asynchronously. If a preparation for
+     * the same component is already in progress, no new work is queued.
+     * @param callback called on the main thread with the result (may be null)
+     * @return a request which can be used to cancel the callback
+     */
+    public Request prepare(final TextComponent component, final Pattern highlight, Callback callback) {
+        Task task;
+        boolean submit;
+        synchronized (mPending) {
+            task = mPending.get(component);
+            submit = (task == null);
+            if (submit) {
+                task = new Task();
+                mPending.put(component, task);
+            }
+        }
+
+        if (callback != null) {
+            synchronized (task) {
+                task.callbacks.add(callback);
+            }
+        }
+
+        if (submit) {
+            final Task newTask = task;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final CharSequence text = prepareSync(component, highlight);
+
+                    synchronized (mPending) {
+                        mPending.remove(component);
+                    }
+
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            Callback[] callbacks;
+                            synchronized (newTask) {
+                                callbacks = newTask.callbacks
+                                    .toArray(new Callback[newTask.callbacks.size()]);
+                                newTask.callbacks.clear();
+                            }
+                            for (Callback cb : callbacks)
+                                cb.onTextPrepared(component, text);
+                        }
+                    });
+                }
+            });
+        }
+
+        return new Request(task, callback);
+    }
+
+    /** Prepares the text of a component right away, unless already prepared. */
+    public CharSequence prepareSync(TextComponent component, Pattern highlight) {
+        CharSequence text = component.getFormattedContent();
+        if (text == null) {
+            text = format(component.getContent(), highlight);
+            component.setFormattedContent(text);
+        }
+        return text;
+    }
+
+    private CharSequence format(String textContent, Pattern highlight) {
+        SpannableStringBuilder buf = new SpannableStringBuilder(textContent);
+
+        if (highlight != null) {
+            int color = mContext.getResources().getColor(R.color.highlight_color);
+            BackgroundColorSpan highlightColorSpan = new BackgroundColorSpan(color);
+
+            Matcher m = highlight.matcher(textContent);
+            while (m.find())
+                buf.setSpan(highlightColorSpan, m.start(), m.end(), 0);
+        }
+
+        if (buf.length() < MAX_AFFORDABLE_SIZE) {
+            // linkify!
+            Linkify.addLinks(buf, Linkify.ALL);
+
+            // emoji
+            int emojiSize = mContext.getResources()
+                .getDimensionPixelSize(R.dimen.emoji_textview_size);
+            EmojiconHandler.addEmojis(mContext, buf, emojiSize,
+                DynamicDrawableSpan.ALIGN_BASELINE, getTextSize());
+        }
+
+        /*
+         * workaround for bugs:
+         * http://code.google.com/p/android/issues/detail?id=17343
+         * http://code.google.com/p/android/issues/detail?id=22493
+         * applies from Honeycomb to JB 4.2.2 afaik
+         */
+        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB &&
+                android.os.Build.VERSION.SDK_INT <= android.os.Build.VERSION_CODES.JELLY_BEAN_MR1)
+            // from http://stackoverflow.com/a/12303155/1045199
+            buf.append("\u200b"); // was: \u2060
+
+        return buf;
+    }
+
+    /** Size of the text as it will be displayed, used for aligning emoji. */
+    private int getTextSize() {
+        TypedArray a = mContext.obtainStyledAttributes(
+            TextContentView.getTextAppearance(mContext),
+            new int[] { android.R.attr.textSize });
+        try {
+            return a.getDimensionPixelSize(0, 0);
+        }
+        finally {
+            a.recycle();
+        }
+    }
+
+}
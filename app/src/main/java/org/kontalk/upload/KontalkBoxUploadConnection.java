@@ -18,12 +18,14 @@
 
 package org.kontalk.upload;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.net.HttpURLConnection;
 import java.net.URL;
@@ -36,6 +38,8 @@ import java.security.PrivateKey;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.net.ssl.HttpsURLConnection;
 
@@ -53,6 +57,7 @@ import org.kontalk.crypto.Coder;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.provider.UsersProvider;
 import org.kontalk.service.ProgressListener;
+import org.kontalk.util.MediaStorage;
 import org.kontalk.util.Preferences;
 import org.kontalk.util.ProgressInputStreamEntity;
 
@@ -78,6 +83,11 @@ public class KontalkBoxUploadConnection implements UploadConnection {
 
     private final String mBaseUrl;
 
+    /** Resumable upload support by upload URL. */
+    private static final Map<String, Boolean> sResumableSupport = new HashMap<>();
+
+    private volatile ResumableUpload mResumableUpload;
+
     public KontalkBoxUploadConnection(Context context, String url,
             PrivateKey privateKey, X509Certificate bridgeCert) {
         mContext = context;
@@ -90,6 +100,165 @@ public class KontalkBoxUploadConnection implements UploadConnection {
     public void abort() {
         if (currentRequest != null)
             currentRequest.disconnect();
+        ResumableUpload upload = mResumableUpload;
+        if (upload != null)
+            upload.abort();
+    }
+
+    @Override
+    public String upload(Uri uri, String mime, boolean encrypt, String to, ResumeState state,
+            final ProgressListener listener) throws IOException {
+
+        final boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
+        ResumableUpload upload = new ResumableUpload(new ResumableUpload.ConnectionFactory() {
+            @Override
+            public HttpURLConnection open(URL url) throws IOException {
+                HttpsURLConnection conn = NetCipher.getHttpsURLConnection(url);
+                try {
+                    setupConnection(conn, acceptAnyCertificate);
+                }
+                catch (Exception e) {
+                    throw new IOException("error setting up SSL connection", e);
+                }
+                return conn;
+            }
+        }, ResumableUpload.DEFAULT_CHUNK_SIZE);
+
+        long contentLength = MediaStorage.getLength(mContext, uri);
+        if (contentLength < 0 || !isResumableSupported(upload)) {
+            // fallback to plain upload
+            return upload(uri, mime, encrypt, to, listener);
+        }
+
+        mResumableUpload = upload;
+        InputStream in = null;
+        try {
+            String location = state.getLocation();
+            File spool = state.getSpoolFile();
+            boolean encrypted = false;
+
+            if (encrypt) {
+                // encrypted data must be the same across attempts
+                if (location != null && spool.isFile()) {
+                    encrypted = true;
+                }
+                else {
+                    location = null;
+                    encrypted = encrypt(uri, to, spool);
+                }
+            }
+
+            long length = encrypted ? spool.length() : contentLength;
+            long offset = 0;
+
+            if (location != null) {
+                offset = upload.getOffset(location);
+                // session expired or not matching our data
+                if (offset < 0 || offset > length) {
+                    location = null;
+                    offset = 0;
+                }
+            }
+
+            if (location == null) {
+                Map<String, String> headers = new HashMap<>();
+                headers.put("Content-Type", mime != null ? mime : "application/octet-stream");
+                if (encrypted)
+                    headers.put(HEADER_MESSAGE_FLAGS, "encrypted");
+                location = upload.create(mBaseUrl, length, headers);
+            }
+            state.save(location, offset);
+
+            in = encrypted ? new FileInputStream(spool) :
+                mContext.getContentResolver().openInputStream(uri);
+            skipFully(in, offset);
+
+            listener.start(this);
+            final UploadConnection conn = this;
+            final ResumeState resumeState = state;
+            return upload.upload(location, in, offset, length, new ResumableUpload.UploadListener() {
+                @Override
+                public void progress(long bytes) {
+                    listener.progress(conn, bytes);
+                }
+
+                @Override
+                public void checkpoint(String location, long offset) {
+                    resumeState.save(location, offset);
+                }
+            });
+        }
+        catch (IOException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw innerException("upload error", e);
+        }
+        finally {
+            mResumableUpload = null;
+            if (in != null) {
+                try {
+                    in.close();
+                }
+                catch (Exception e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private boolean isResumableSupported(ResumableUpload upload) throws IOException {
+        Boolean supported;
+        synchronized (sResumableSupport) {
+            supported = sResumableSupport.get(mBaseUrl);
+        }
+
+        if (supported == null) {
+            supported = upload.isSupported(mBaseUrl);
+            synchronized (sResumableSupport) {
+                sResumableSupport.put(mBaseUrl, supported);
+            }
+        }
+
+        return supported;
+    }
+
+    /**
+     * Encrypts the given content to a file.
+     * @return true if data was encrypted, false if no coder is available
+     */
+    private boolean encrypt(Uri uri, String to, File out) throws Exception {
+        PersonalKey key = Kontalk.get(mContext).getPersonalKey();
+        EndpointServer server = Preferences.getEndpointServer(mContext);
+        Coder coder = UsersProvider.getEncryptCoder(mContext, server, key, new String[] { to });
+        if (coder == null)
+            return false;
+
+        InputStream in = mContext.getContentResolver().openInputStream(uri);
+        OutputStream outStream = null;
+        try {
+            outStream = new FileOutputStream(out);
+            coder.encryptFile(in, outStream);
+            return true;
+        }
+        finally {
+            in.close();
+            if (outStream != null)
+                outStream.close();
+        }
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                // some streams refuse to skip, read instead
+                if (in.read() < 0)
+                    throw new EOFException("upload data is shorter than expected");
+                skipped = 1;
+            }
+            count -= skipped;
+        }
     }
 
     @Override
@@ -134,8 +303,9 @@ public class KontalkBoxUploadConnection implements UploadConnection {
             ProgressInputStreamEntity entity = new ProgressInputStreamEntity(inMessage, this, listener);
             entity.writeTo(currentRequest.getOutputStream());
 
-            if (currentRequest.getResponseCode() != 200)
-                throw new IOException(currentRequest.getResponseCode() + " " + currentRequest.getResponseMessage());
+            int code = currentRequest.getResponseCode();
+            if (code != 200)
+                throw UploadRejectedException.forCode(currentRequest.getResponseMessage(), code);
 
             return responseToString(currentRequest, Charset.defaultCharset());
         }
@@ -184,7 +354,7 @@ public class KontalkBoxUploadConnection implements UploadConnection {
         return ie;
     }
 
-    private void setupClient(HttpsURLConnection conn, String mime, boolean encrypted, boolean acceptAnyCertificate)
+    private void setupConnection(HttpsURLConnection conn, boolean acceptAnyCertificate)
         throws CertificateException, UnrecoverableKeyException,
         NoSuchAlgorithmException, KeyStoreException,
         KeyManagementException, NoSuchProviderException,
@@ -194,6 +364,17 @@ public class KontalkBoxUploadConnection implements UploadConnection {
             mPrivateKey, mCertificate, acceptAnyCertificate));
         if (acceptAnyCertificate)
             conn.setHostnameVerifier(new AllowAllHostnameVerifier());
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+    }
+
+    private void setupClient(HttpsURLConnection conn, String mime, boolean encrypted, boolean acceptAnyCertificate)
+        throws CertificateException, UnrecoverableKeyException,
+        NoSuchAlgorithmException, KeyStoreException,
+        KeyManagementException, NoSuchProviderException,
+        IOException {
+
+        setupConnection(conn, acceptAnyCertificate);
         conn.setRequestProperty("Content-Type", mime != null ? mime
             : "application/octet-stream");
         if (encrypted)
@@ -201,8 +382,6 @@ public class KontalkBoxUploadConnection implements UploadConnection {
         // bug caused by Lighttpd
         conn.setRequestProperty("Expect", "100-continue");
 
-        conn.setConnectTimeout(CONNECT_TIMEOUT);
-        conn.setReadTimeout(READ_TIMEOUT);
         conn.setDoOutput(true);
         conn.setDoInput(true);
         conn.setRequestMethod("POST");
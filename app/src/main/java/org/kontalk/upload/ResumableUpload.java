@@ -0,0 +1,283 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.upload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+
+/**
+ * Client for resumable uploads, following the tus 1.0 core protocol with
+ * the creation extension (http://tus.io/protocols/resumable-upload.html).
+ * An upload session is created with a POST request declaring the total
+ * length; data is then sent in chunks, each one acknowledged by the server
+ * with the new upload offset. After an interruption, a HEAD request on the
+ * session tells where to resume from.
+ * The response body to the last chunk is expected to be the media URL, as
+ * for a plain upload.
+ * PATCH requests are sent as POST with a method override header, since
+ * {@link HttpURLConnection} doesn't support the PATCH method.
+ * @author Daniele Ricci
+ */
+public class ResumableUpload {
+
+    public static final String PROTOCOL_VERSION = "1.0.0";
+
+    static final String HEADER_RESUMABLE = "Tus-Resumable";
+    static final String HEADER_VERSION = "Tus-Version";
+    static final String HEADER_LENGTH = "Upload-Length";
+    static final String HEADER_OFFSET = "Upload-Offset";
+    static final String HEADER_METHOD_OVERRIDE = "X-HTTP-Method-Override";
+    static final String CONTENT_TYPE_CHUNK = "application/offset+octet-stream";
+
+    /** Default chunk size: small enough not to lose much on flaky links. */
+    public static final int DEFAULT_CHUNK_SIZE = 512 * 1024;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Creates connections to the upload server. */
+    public interface ConnectionFactory {
+        HttpURLConnection open(URL url) throws IOException;
+    }
+
+    public interface UploadListener {
+        /** Bytes sent so far, including data uploaded by previous attempts. */
+        void progress(long bytes);
+
+        /** Data up to the given offset has been acknowledged by the server. */
+        void checkpoint(String location, long offset);
+    }
+
+    private final ConnectionFactory mFactory;
+    private final int mChunkSize;
+
+    private volatile HttpURLConnection mCurrentRequest;
+    private volatile boolean mAborted;
+
+    public ResumableUpload(ConnectionFactory factory, int chunkSize) {
+        mFactory = factory;
+        mChunkSize = chunkSize;
+    }
+
+    public void abort() {
+        mAborted = true;
+        HttpURLConnection conn = mCurrentRequest;
+        if (conn != null)
+            conn.disconnect();
+    }
+
+    /** Returns true if the server at the given URL supports resumable uploads. */
+    public boolean isSupported(String url) throws IOException {
+        HttpURLConnection conn = open(url);
+        boolean completed = false;
+        try {
+            conn.setRequestMethod("OPTIONS");
+            int code = conn.getResponseCode();
+            String versions = conn.getHeaderField(HEADER_VERSION);
+            completed = true;
+            return (code == HttpURLConnection.HTTP_OK || code == HttpURLConnection.HTTP_NO_CONTENT) &&
+                versions != null && versions.contains(PROTOCOL_VERSION);
+        }
+        finally {
+            release(conn, completed);
+        }
+    }
+
+    /**
+     * Creates a new upload session.
+     * @param headers additional request headers, e.g. the content type
+     * @return the absolute URL of the upload session
+     */
+    public String create(String url, long length, Map<String, String> headers) throws IOException {
+        HttpURLConnection conn = open(url);
+        boolean completed = false;
+        try {
+            conn.setRequestMethod("POST");
+            conn.setRequestProperty(HEADER_LENGTH, String.valueOf(length));
+            if (headers != null) {
+                for (Map.Entry<String, String> e : headers.entrySet())
+                    conn.setRequestProperty(e.getKey(), e.getValue());
+            }
+            conn.setDoOutput(true);
+            conn.setFixedLengthStreamingMode(0);
+            conn.getOutputStream().close();
+
+            int code = conn.getResponseCode();
+            String location = conn.getHeaderField("Location");
+            if (code != HttpURLConnection.HTTP_CREATED || location == null)
+                throw UploadRejectedException.forCode("unable to create upload", code);
+
+            completed = true;
+            return new URL(new URL(url), location).toString();
+        }
+        finally {
+            release(conn, completed);
+        }
+    }
+
+    /**
+     * Asks the server how much data has been received for an upload session.
+     * @return the upload offset, or -1 if the session doesn't exist anymore
+     */
+    public long getOffset(String location) throws IOException {
+        HttpURLConnection conn = open(location);
+        boolean completed = false;
+        try {
+            conn.setRequestMethod("HEAD");
+            int code = conn.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_FOUND || code == HttpURLConnection.HTTP_GONE)
+                return -1;
+            if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_NO_CONTENT)
+                throw UploadRejectedException.forCode("unable to retrieve upload offset", code);
+
+            long offset = parseOffset(conn);
+            completed = true;
+            return offset;
+        }
+        finally {
+            release(conn, completed);
+        }
+    }
+
+    /**
+     * Sends data to an upload session.
+     * @param in data to upload, already positioned at offset
+     * @param offset the upload offset, as returned by {@link #getOffset}
+     * @param length total upload length
+     * @return the response to the last chunk or the session location if empty
+     */
+    public String upload(String location, InputStream in, long offset, long length,
+            UploadListener listener) throws IOException {
+        String result = null;
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        while (offset < length) {
+            if (mAborted)
+                throw new IOException("upload aborted");
+
+            int size = (int) Math.min(mChunkSize, length - offset);
+            HttpURLConnection conn = open(location);
+            boolean completed = false;
+            try {
+                conn.setRequestMethod("POST");
+                conn.setRequestProperty(HEADER_METHOD_OVERRIDE, "PATCH");
+                conn.setRequestProperty(HEADER_OFFSET, String.valueOf(offset));
+                conn.setRequestProperty("Content-Type", CONTENT_TYPE_CHUNK);
+                conn.setDoOutput(true);
+                conn.setFixedLengthStreamingMode(size);
+
+                OutputStream out = conn.getOutputStream();
+                int written = 0;
+                while (written < size) {
+                    int l = in.read(buffer, 0, Math.min(buffer.length, size - written));
+                    if (l < 0)
+                        throw new EOFException("upload data is shorter than declared");
+                    out.write(buffer, 0, l);
+                    written += l;
+                    listener.progress(offset + written);
+                }
+                out.close();
+
+                int code = conn.getResponseCode();
+                if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_NO_CONTENT)
+                    throw UploadRejectedException.forCode("chunk upload failed", code);
+
+                long newOffset = parseOffset(conn);
+                if (newOffset != offset + size)
+                    throw new IOException("unexpected upload offset " + newOffset +
+                        " (expected " + (offset + size) + ")");
+
+                offset = newOffset;
+                listener.checkpoint(location, offset);
+
+                if (offset >= length && code == HttpURLConnection.HTTP_OK)
+                    result = readResponse(conn);
+                completed = true;
+            }
+            finally {
+                release(conn, completed);
+            }
+        }
+
+        return (result != null && result.length() > 0) ? result : location;
+    }
+
+    private HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection conn = mFactory.open(new URL(url));
+        conn.setRequestProperty(HEADER_RESUMABLE, PROTOCOL_VERSION);
+        mCurrentRequest = conn;
+        return conn;
+    }
+
+    /**
+     * Releases a connection, keeping it alive for the next request only if
+     * the exchange was completed successfully.
+     */
+    private void release(HttpURLConnection conn, boolean completed) {
+        mCurrentRequest = null;
+        if (completed) {
+            try {
+                InputStream in = conn.getInputStream();
+                if (in != null)
+                    in.close();
+            }
+            catch (IOException e) {
+                conn.disconnect();
+            }
+        }
+        else {
+            conn.disconnect();
+        }
+    }
+
+    private static long parseOffset(HttpURLConnection conn) throws IOException {
+        String offset = conn.getHeaderField(HEADER_OFFSET);
+        if (offset == null)
+            throw new IOException("missing upload offset");
+        try {
+            return Long.parseLong(offset.trim());
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("invalid upload offset: " + offset);
+        }
+    }
+
+    private static String readResponse(HttpURLConnection conn) throws IOException {
+        InputStream in = conn.getInputStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int l;
+            while ((l = in.read(buffer)) != -1)
+                out.write(buffer, 0, l);
+            return out.toString("UTF-8").trim();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+}
@@ -18,6 +18,7 @@
 
 package org.kontalk.upload;
 
+import java.io.File;
 import java.io.IOException;
 
 import android.net.Uri;
@@ -36,4 +37,27 @@ public interface UploadConnection {
     public String upload(Uri uri, String mime, boolean encrypt, String to, ProgressListener listener)
         throws IOException;
 
+    /**
+     * Uploads the given file, resuming a previous attempt if possible.
+     * Implementations not supporting resumable uploads may just restart the
+     * upload from scratch.
+     */
+    public String upload(Uri uri, String mime, boolean encrypt, String to, ResumeState state,
+        ProgressListener listener) throws IOException;
+
+    /** Persistent state of a resumable upload. */
+    public interface ResumeState {
+        /** Returns the location of the upload session, or null if not started yet. */
+        String getLocation();
+
+        /**
+         * Returns a file for keeping data that must not change between
+         * attempts, e.g. the encrypted content.
+         */
+        File getSpoolFile();
+
+        /** Called when the server has acknowledged data up to the given offset. */
+        void save(String location, long offset);
+    }
+
 }
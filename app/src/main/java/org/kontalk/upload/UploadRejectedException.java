@@ -0,0 +1,65 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.upload;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+
+/**
+ * The upload server refused the upload with a client error: retrying the
+ * same upload will not help.
+ * @author Daniele Ricci
+ */
+public class UploadRejectedException extends IOException {
+
+    private final int mCode;
+
+    public UploadRejectedException(String detail, int code) {
+        super(detail + ": " + code);
+        mCode = code;
+    }
+
+    /** The HTTP status code returned by the server. */
+    public int getCode() {
+        return mCode;
+    }
+
+    /**
+     * Returns true if the given HTTP status code means the request will
+     * never succeed. Expired sessions, offset conflicts and rate limiting
+     * are not permanent, since the upload can be resumed or started over.
+     */
+    public static boolean isRejected(int code) {
+        return code >= 400 && code < 500 &&
+            code != HttpURLConnection.HTTP_CLIENT_TIMEOUT &&
+            code != HttpURLConnection.HTTP_NOT_FOUND &&
+            code != HttpURLConnection.HTTP_CONFLICT &&
+            code != HttpURLConnection.HTTP_GONE &&
+            code != 429;
+    }
+
+    /** Returns the exception to throw for an unexpected HTTP status code. */
+    static IOException forCode(String detail, int code) {
+        return isRejected(code) ?
+            new UploadRejectedException(detail, code) :
+            new IOException(detail + ": " + code);
+    }
+
+}
@@ -0,0 +1,424 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Debug;
+
+
+/**
+ * A pool of bitmaps to be reused through {@link BitmapFactory.Options#inBitmap}.
+ * Pooled bitmaps are bucketed by size: on API 11-18 by exact dimensions
+ * and configuration (as required by the platform), on API 19+ by
+ * allocation size, since any large enough bitmap can be reused.
+ *
+ * Shared bitmaps are reference counted: {@link #retain(Bitmap)} when
+ * holding a bitmap, {@link #release(Bitmap)} when done with it. A bitmap
+ * is returned to the pool when its last reference is released.
+ *
+ * On API < 11 bitmaps cannot be reused and the pool only keeps statistics.
+ * @author Daniele Ricci
+ */
+public class BitmapPool {
+
+    /** Maximum size of pooled bitmaps in bytes. */
+    private static final int MAX_POOL_SIZE = 4 * 1024 * 1024;
+    /** Don't reuse bitmaps larger than this many times the needed size. */
+    private static final int MAX_SIZE_MULTIPLIER = 4;
+
+    private static final BitmapPool sInstance = new BitmapPool(MAX_POOL_SIZE);
+
+    private final int mMaxSize;
+    private int mSize;
+
+    /** Pooled bitmaps by bucket. */
+    private final TreeMap<Long, LinkedList<Bitmap>> mBuckets = new TreeMap<>();
+    /** Pooled bitmaps, least recently added first. */
+    private final LinkedList<Bitmap> mLru = new LinkedList<>();
+    /** Reference counts of shared bitmaps. */
+    private final Map<Bitmap, Integer> mRefs = new IdentityHashMap<>();
+
+    /** Allocation counters. */
+    public static final class Stats {
+        /** Bitmaps decoded into a newly allocated bitmap. */
+        public long allocations;
+        public long allocatedBytes;
+        /** Bitmaps decoded into a reused bitmap. */
+        public long reuses;
+        public long reusedBytes;
+        /** Bitmaps returned to the pool. */
+        public long returns;
+        /** Bitmaps dropped from the pool to stay in budget. */
+        public long evictions;
+        /** Bitmaps currently pooled and their size. */
+        public int pooled;
+        public int pooledBytes;
+        /** Bitmaps currently shared (with a reference count). */
+        public int shared;
+        /** Number of garbage collections since start (-1 if not available). */
+        public long gcCount;
+        /** Time spent in garbage collection in ms (-1 if not available). */
+        public long gcTime;
+
+        @Override
+        public String toString() {
+            return "allocations=" + allocations + " (" + allocatedBytes + " bytes), " +
+                "reuses=" + reuses + " (" + reusedBytes + " bytes), " +
+                "returns=" + returns + ", evictions=" + evictions + ", " +
+                "pooled=" + pooled + " (" + pooledBytes + " bytes), " +
+                "shared=" + shared + ", gc=" + gcCount + " (" + gcTime + " ms)";
+        }
+    }
+
+    private final Stats mStats = new Stats();
+
+    BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    public static BitmapPool getInstance() {
+        return sInstance;
+    }
+
+    public static boolean isReuseSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /** Returns a snapshot of the allocation counters. */
+    public synchronized Stats getStats() {
+        Stats s = new Stats();
+        s.allocations = mStats.allocations;
+        s.allocatedBytes = mStats.allocatedBytes;
+        s.reuses = mStats.reuses;
+        s.reusedBytes = mStats.reusedBytes;
+        s.returns = mStats.returns;
+        s.evictions = mStats.evictions;
+        s.pooled = mLru.size();
+        s.pooledBytes = mSize;
+        s.shared = mRefs.size();
+        s.gcCount = getRuntimeStat("art.gc.gc-count");
+        s.gcTime = getRuntimeStat("art.gc.gc-time");
+        return s;
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static long getRuntimeStat(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            try {
+                return Long.parseLong(Debug.getRuntimeStat(name));
+            }
+            catch (Exception ignored) {
+            }
+        }
+        return -1;
+    }
+
+    /** Adds a reference to a shared bitmap. */
+    public synchronized void retain(Bitmap bitmap) {
+        if (bitmap != null) {
+            Integer count = mRefs.get(bitmap);
+            mRefs.put(bitmap, count != null ? count + 1 : 1);
+        }
+    }
+
+    /**
+     * Removes a reference to a shared bitmap. The bitmap is returned to the
+     * pool when the last reference is released.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap != null) {
+            Integer count = mRefs.get(bitmap);
+            if (count == null || count <= 1) {
+                mRefs.remove(bitmap);
+                put(bitmap);
+            }
+            else {
+                mRefs.put(bitmap, count - 1);
+            }
+        }
+    }
+
+    /**
+     * Gives a bitmap to the pool. The caller must not use the bitmap anymore.
+     * Bitmaps that can't be reused are recycled.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || mRefs.containsKey(bitmap) || mLru.contains(bitmap))
+            return;
+
+        int size = getSize(bitmap);
+        if (!isReuseSupported() || !bitmap.isMutable() || size > mMaxSize) {
+            bitmap.recycle();
+            return;
+        }
+
+        long key = getKey(bitmap);
+        LinkedList<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new LinkedList<>();
+            mBuckets.put(key, bucket);
+        }
+        bucket.add(bitmap);
+        mLru.add(bitmap);
+        mSize += size;
+        mStats.returns++;
+
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Returns a pooled bitmap which can be used for decoding an image of the
+     * given size, or null.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        if (!isReuseSupported() || width <= 0 || height <= 0)
+            return null;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // any bitmap large enough will do, but don't waste too much memory
+            long needed = (long) width * height * getBytesPerPixel(config);
+            long maxSize = needed * MAX_SIZE_MULTIPLIER;
+            for (Map.Entry<Long, LinkedList<Bitmap>> e : mBuckets.tailMap(getBucket(needed)).entrySet()) {
+                // buckets hold bitmaps of at least half their key
+                if (e.getKey() / 2 > maxSize)
+                    break;
+
+                Iterator<Bitmap> it = e.getValue().iterator();
+                while (it.hasNext()) {
+                    Bitmap b = it.next();
+                    int size = getSize(b);
+                    if (size >= needed && size <= maxSize) {
+                        it.remove();
+                        return take(b, e.getKey());
+                    }
+                }
+            }
+        }
+        else {
+            long key = getKey(width, height, config);
+            LinkedList<Bitmap> bucket = mBuckets.get(key);
+            if (bucket != null && bucket.size() > 0) {
+                return take(bucket.removeFirst(), key);
+            }
+        }
+
+        return null;
+    }
+
+    /** Removes a bitmap (already removed from its bucket) from the pool. */
+    private Bitmap take(Bitmap bitmap, long key) {
+        LinkedList<Bitmap> bucket = mBuckets.get(key);
+        if (bucket != null && bucket.isEmpty())
+            mBuckets.remove(key);
+        mLru.remove(bitmap);
+        mSize -= getSize(bitmap);
+        return bitmap;
+    }
+
+    /** Drops all pooled bitmaps. */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    private void trimToSize(int maxSize) {
+        while (mSize > maxSize && mLru.size() > 0) {
+            Bitmap b = mLru.removeFirst();
+            long key = getKey(b);
+            LinkedList<Bitmap> bucket = mBuckets.get(key);
+            if (bucket != null) {
+                bucket.remove(b);
+                if (bucket.isEmpty())
+                    mBuckets.remove(key);
+            }
+            mSize -= getSize(b);
+            mStats.evictions++;
+            b.recycle();
+        }
+    }
+
+    /**
+     * Sets {@link BitmapFactory.Options#inBitmap} to a pooled bitmap suitable
+     * for decoding. Options must contain the image bounds (from a previous
+     * decode with {@link BitmapFactory.Options#inJustDecodeBounds}).
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void prepareOptions(BitmapFactory.Options options) {
+        options.inJustDecodeBounds = false;
+        if (!isReuseSupported())
+            return;
+
+        options.inMutable = true;
+
+        int sample = Math.max(options.inSampleSize, 1);
+        // before KitKat, only bitmaps decoded without sampling can be reused
+        if (sample > 1 && Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT)
+            return;
+
+        Bitmap.Config config = options.inPreferredConfig != null ?
+            options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        int width = (options.outWidth + sample - 1) / sample;
+        int height = (options.outHeight + sample - 1) / sample;
+        options.inBitmap = get(width, height, config);
+    }
+
+    /** Returns the unused inBitmap to the pool after a failed decode. */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private boolean resetOptions(BitmapFactory.Options options) {
+        if (isReuseSupported() && options.inBitmap != null) {
+            put(options.inBitmap);
+            options.inBitmap = null;
+            return true;
+        }
+        return false;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private synchronized void count(BitmapFactory.Options options, Bitmap result) {
+        if (result != null) {
+            if (isReuseSupported() && options.inBitmap == result) {
+                mStats.reuses++;
+                mStats.reusedBytes += getSize(result);
+            }
+            else {
+                mStats.allocations++;
+                mStats.allocatedBytes += getSize(result);
+            }
+        }
+    }
+
+    /** Decodes a file, reusing a pooled bitmap if possible. */
+    public Bitmap decodeFile(File file, BitmapFactory.Options options) {
+        String path = file.getPath();
+        if (options.outWidth <= 0) {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(path, options);
+        }
+
+        prepareOptions(options);
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(path, options);
+        }
+        catch (IllegalArgumentException e) {
+            // incompatible inBitmap
+            if (!resetOptions(options))
+                throw e;
+            bitmap = BitmapFactory.decodeFile(path, options);
+        }
+        count(options, bitmap);
+        return bitmap;
+    }
+
+    /** Decodes a byte array, reusing a pooled bitmap if possible. */
+    public Bitmap decodeByteArray(byte[] data, BitmapFactory.Options options) {
+        if (options.outWidth <= 0) {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+
+        prepareOptions(options);
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+        catch (IllegalArgumentException e) {
+            if (!resetOptions(options))
+                throw e;
+            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+        count(options, bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Decodes a content URI, reusing a pooled bitmap if possible. Options
+     * must already contain the image bounds.
+     */
+    public Bitmap decodeUri(Context context, Uri uri, BitmapFactory.Options options) throws IOException {
+        prepareOptions(options);
+        Bitmap bitmap;
+        try {
+            bitmap = decodeUriOnce(context, uri, options);
+        }
+        catch (IllegalArgumentException e) {
+            if (!resetOptions(options))
+                throw e;
+            bitmap = decodeUriOnce(context, uri, options);
+        }
+        count(options, bitmap);
+        return bitmap;
+    }
+
+    private static Bitmap decodeUriOnce(Context context, Uri uri, BitmapFactory.Options options) throws IOException {
+        InputStream in = context.getContentResolver().openInputStream(uri);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static int getSize(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+            return bitmap.getAllocationByteCount();
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static long getKey(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+            return getBucket(getSize(bitmap));
+        return getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+    }
+
+    /** Exact size bucket (for API < 19). */
+    private static long getKey(int width, int height, Bitmap.Config config) {
+        return ((long) width << 32) | ((long) height << 8) | (config != null ? config.ordinal() : 0xff);
+    }
+
+    /** Allocation size bucket, the next power of two (for API 19+). */
+    private static long getBucket(long size) {
+        return Long.highestOneBit(Math.max(size - 1, 1)) << 1;
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888)
+            return 4;
+        else if (config == Bitmap.Config.ALPHA_8)
+            return 1;
+        return 2;
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.util;
+
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+
+
+/**
+ * A file output stream wrapper that periodically makes written data durable
+ * and reports the resulting file position. Positions reported to the
+ * listener are safe to resume from after a crash.
+ * @author Daniele Ricci
+ */
+public class CheckpointOutputStream extends FilterOutputStream {
+
+    public interface CheckpointListener {
+        /** Data up to the given position has been synced to storage. */
+        void checkpoint(long position);
+    }
+
+    private final FileOutputStream mFile;
+    private final long mInterval;
+    private final CheckpointListener mListener;
+
+    private long mPosition;
+    private long mLastCheckpoint;
+
+    /**
+     * @param out the file stream to write to
+     * @param position current position in the file
+     * @param interval number of bytes between checkpoints
+     */
+    public CheckpointOutputStream(FileOutputStream out, long position, long interval,
+            CheckpointListener listener) {
+        super(out);
+        mFile = out;
+        mPosition = mLastCheckpoint = position;
+        mInterval = interval;
+        mListener = listener;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        mPosition += len;
+        if (mPosition - mLastCheckpoint >= mInterval)
+            checkpoint();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        mPosition++;
+        if (mPosition - mLastCheckpoint >= mInterval)
+            checkpoint();
+    }
+
+    /** Syncs written data to storage and notifies the listener. */
+    public void checkpoint() throws IOException {
+        if (mPosition != mLastCheckpoint) {
+            mFile.flush();
+            mFile.getFD().sync();
+            mLastCheckpoint = mPosition;
+            mListener.checkpoint(mPosition);
+        }
+    }
+
+    public long getPosition() {
+        return mPosition;
+    }
+
+}
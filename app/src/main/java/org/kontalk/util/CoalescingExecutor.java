@@ -0,0 +1,112 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.util;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Runs a task on a single background thread, coalescing bursts of
+ * requests into a single execution. The task runs when no requests have
+ * come for a while, but never later than a maximum delay from the first
+ * pending request. Executions never overlap.
+ * @author Daniele Ricci
+ */
+public class CoalescingExecutor {
+
+    private final ScheduledExecutorService mExecutor;
+    private final Runnable mTask;
+    private final long mDelay;
+    private final long mMaxDelay;
+
+    private ScheduledFuture<?> mScheduled;
+    /** Time of the first pending request, valid only if a run is scheduled. */
+    private long mFirstRequest;
+    private long mRuns;
+
+    /**
+     * @param name name of the background thread
+     * @param delay quiet time after the last request before running, in ms
+     * @param maxDelay maximum time after the first request before running, in ms
+     * @param task the task
+     */
+    public CoalescingExecutor(final String name, long delay, long maxDelay, Runnable task) {
+        mTask = task;
+        mDelay = delay;
+        mMaxDelay = maxDelay;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    private final Runnable mRunner = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (CoalescingExecutor.this) {
+                // requests from now on will schedule another run
+                mScheduled = null;
+                mRuns++;
+            }
+            mTask.run();
+        }
+    };
+
+    /** Requests an execution of the task. */
+    public synchronized void request() {
+        long now = System.nanoTime() / 1000000;
+        if (mScheduled == null || !mScheduled.cancel(false))
+            mFirstRequest = now;
+
+        long delay = Math.max(0, Math.min(mDelay, mFirstRequest + mMaxDelay - now));
+        mScheduled = mExecutor.schedule(mRunner, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /** Requests an immediate execution of the task. */
+    public synchronized void requestNow() {
+        if (mScheduled != null)
+            mScheduled.cancel(false);
+        mFirstRequest = System.nanoTime() / 1000000;
+        mScheduled = mExecutor.schedule(mRunner, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /** Runs a task on the background thread, serialized with executions. */
+    public void execute(Runnable r) {
+        mExecutor.execute(r);
+    }
+
+    /** Number of times the task has been run so far. */
+    public synchronized long getRunCount() {
+        return mRuns;
+    }
+
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+}
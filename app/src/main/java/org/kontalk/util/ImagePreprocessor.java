@@ -0,0 +1,256 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ThumbnailUtils;
+import android.net.Uri;
+import android.os.Process;
+
+import org.kontalk.Kontalk;
+import org.kontalk.Log;
+
+
+/**
+ * Prepares outgoing images for sending.
+ * A single decode of the original image produces both the compressed image
+ * to upload and the thumbnail sent along with the message. The decode is
+ * subsampled to what the outputs actually need and is gated by a memory
+ * budget, so that preparing several images at once on the worker pool
+ * can't exhaust the heap.
+ * @author Daniele Ricci
+ */
+public class ImagePreprocessor {
+    private static final String TAG = Kontalk.TAG;
+
+    /** Number of processing threads. */
+    private static final int POOL_SIZE = 2;
+
+    /** Fraction of the heap usable by concurrent decodes. */
+    private static final int DECODE_HEAP_FRACTION = 4;
+
+    /** Maximum number of pixels of a compressed image. */
+    private static final int MAX_IMAGE_SIZE = 1200000; // 1.2MP
+
+    /** Decode memory budget, in kilobytes. */
+    private static final int DECODE_BUDGET = (int) (Runtime.getRuntime()
+        .maxMemory() / DECODE_HEAP_FRACTION / 1024);
+    private static final Semaphore sDecodeBudget = new Semaphore(DECODE_BUDGET, true);
+
+    private static ImagePreprocessor sInstance;
+
+    private final ExecutorService mExecutor;
+
+    private ImagePreprocessor() {
+        mExecutor = Executors.newFixedThreadPool(POOL_SIZE, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "ImagePreprocessor-" + mCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public static synchronized ImagePreprocessor getInstance() {
+        if (sInstance == null)
+            sInstance = new ImagePreprocessor();
+        return sInstance;
+    }
+
+    /** Runs a task involving image processing on the worker pool. */
+    public void execute(Runnable task) {
+        mExecutor.execute(task);
+    }
+
+    /**
+     * Processes an image in a single decode pass.
+     * @param thumbnail where to write the network thumbnail, or null
+     * @param compressed where to write the compressed image, or null
+     * @param maxSize maximum width and height of the compressed image
+     * @param quality JPEG quality of the compressed image
+     */
+    public static void process(Context context, Uri uri, File thumbnail,
+            File compressed, int maxSize, int quality) throws IOException {
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(context, uri, options);
+
+        int width = options.outWidth;
+        int height = options.outHeight;
+        if (width <= 0 || height <= 0)
+            throw new IOException("unable to decode image bounds: " + uri);
+
+        // size of the compressed image, before rotation
+        int targetWidth = 0, targetHeight = 0;
+        if (compressed != null) {
+            float factor = Math.max(1f, Math.max((float) width / maxSize, (float) height / maxSize));
+            float pixels = (width / factor) * (height / factor);
+            if (pixels > MAX_IMAGE_SIZE)
+                factor *= (float) Math.sqrt(pixels / MAX_IMAGE_SIZE);
+            targetWidth = Math.max(1, (int) (width / factor));
+            targetHeight = Math.max(1, (int) (height / factor));
+        }
+
+        // decode only what we need for both outputs
+        int reqWidth = targetWidth, reqHeight = targetHeight;
+        if (thumbnail != null) {
+            reqWidth = Math.max(reqWidth, MediaStorage.THUMBNAIL_WIDTH);
+            reqHeight = Math.max(reqHeight, MediaStorage.THUMBNAIL_HEIGHT);
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = getSampleSize(width, height, reqWidth, reqHeight);
+        // full quality is needed only for the compressed image
+        options.inPreferredConfig = compressed != null ?
+            Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+
+        int bytesPerPixel = compressed != null ? 4 : 2;
+        long decodedPixels = (long) (width / options.inSampleSize) * (height / options.inSampleSize);
+        long estimate = (decodedPixels + (long) targetWidth * targetHeight) * bytesPerPixel;
+        int permits = (int) Math.min(DECODE_BUDGET, Math.max(1, estimate / 1024));
+
+        int orientation = MediaStorage.getOrientation(context, uri);
+
+        sDecodeBudget.acquireUninterruptibly(permits);
+        Bitmap decoded = null;
+        Bitmap scaled = null;
+        try {
+            decoded = decode(context, uri, options);
+            if (decoded == null)
+                throw new IOException("unable to decode image: " + uri);
+
+            Log.v(TAG, "decoded {}x{} image with sample size {}",
+                width, height, options.inSampleSize);
+
+            Bitmap source = decoded;
+            int sourceOrientation = orientation;
+
+            if (compressed != null) {
+                // scale and rotate in one go
+                scaled = transform(decoded, targetWidth, targetHeight, orientation);
+                write(scaled, Bitmap.CompressFormat.JPEG, quality, compressed);
+                source = scaled;
+                sourceOrientation = 0;
+            }
+
+            if (thumbnail != null) {
+                Bitmap thumb = ThumbnailUtils.extractThumbnail(source,
+                    MediaStorage.THUMBNAIL_WIDTH, MediaStorage.THUMBNAIL_HEIGHT);
+                if (sourceOrientation != 0) {
+                    Bitmap rotated = transform(thumb, thumb.getWidth(), thumb.getHeight(), sourceOrientation);
+                    if (thumb != source && rotated != thumb)
+                        thumb.recycle();
+                    thumb = rotated;
+                }
+                write(thumb, Bitmap.CompressFormat.JPEG,
+                    MediaStorage.THUMBNAIL_MIME_COMPRESSION, thumbnail);
+                if (thumb != source)
+                    thumb.recycle();
+            }
+        }
+        finally {
+            if (scaled != null && scaled != decoded)
+                scaled.recycle();
+            if (decoded != null)
+                decoded.recycle();
+            sDecodeBudget.release(permits);
+        }
+    }
+
+    /**
+     * Returns the largest power of two sample size which keeps the decoded
+     * image at least as large as requested.
+     */
+    static int getSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        while ((width / (sampleSize * 2)) >= reqWidth &&
+                (height / (sampleSize * 2)) >= reqHeight)
+            sampleSize *= 2;
+        return sampleSize;
+    }
+
+    private static Bitmap transform(Bitmap bitmap, int width, int height, int orientation) {
+        float scale = Math.min((float) width / bitmap.getWidth(),
+            (float) height / bitmap.getHeight());
+        if (scale >= 1f && orientation == 0)
+            return bitmap;
+
+        Matrix m = new Matrix();
+        if (scale < 1f)
+            m.postScale(scale, scale);
+        if (orientation != 0)
+            m.postRotate(orientation);
+
+        return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), m, true);
+    }
+
+    private static Bitmap decode(Context context, Uri uri, BitmapFactory.Options options)
+            throws IOException {
+        InputStream in = context.getContentResolver().openInputStream(uri);
+        if (in == null)
+            throw new IOException("unable to open " + uri);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        }
+        finally {
+            try {
+                in.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void write(Bitmap bitmap, Bitmap.CompressFormat format, int quality, File file)
+            throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            if (!bitmap.compress(format, quality, out))
+                throw new IOException("unable to compress image to " + file);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+}
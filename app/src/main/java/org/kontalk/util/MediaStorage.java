@@ -19,7 +19,6 @@
 package org.kontalk.util;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -75,8 +74,8 @@ public abstract class MediaStorage {
     private static final DateFormat sDateFormat =
         new SimpleDateFormat("yyyyMMdd_HHmmssSSS", Locale.US);
 
-    private static final int THUMBNAIL_WIDTH = 256;
-    private static final int THUMBNAIL_HEIGHT = 256;
+    static final int THUMBNAIL_WIDTH = 256;
+    static final int THUMBNAIL_HEIGHT = 256;
     public static final String THUMBNAIL_MIME = "image/png";
     public static final String THUMBNAIL_MIME_NETWORK = "image/jpeg";
     public static final int THUMBNAIL_MIME_COMPRESSION = 60;
@@ -146,13 +145,13 @@ public abstract class MediaStorage {
         in.close();
 
         // open again
-        in = cr.openInputStream(media);
-        Bitmap bitmap = BitmapFactory.decodeStream(in, null, options);
-        in.close();
+        BitmapPool pool = BitmapPool.getInstance();
+        Bitmap bitmap = pool.decodeUri(context, media, options);
 
         Bitmap thumbnail = ThumbnailUtils
             .extractThumbnail(bitmap, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT);
-        bitmap.recycle();
+        if (thumbnail != bitmap)
+            pool.put(bitmap);
 
         thumbnail = bitmapOrientation(context, media, thumbnail);
 
@@ -160,30 +159,22 @@ public abstract class MediaStorage {
         thumbnail.compress(forNetwork ? Bitmap.CompressFormat.JPEG :
             Bitmap.CompressFormat.PNG,
             forNetwork ? THUMBNAIL_MIME_COMPRESSION : 0, fout);
-        thumbnail.recycle();
+        pool.put(thumbnail);
     }
 
-    public static Bitmap bitmapOrientation(Context context, Uri media, Bitmap bitmap) {
-        // check if we have to (and can) rotate the thumbnail
+    /** Returns the rotation of an image in degrees, as recorded by the media store. */
+    public static int getOrientation(Context context, Uri media) {
         try {
             Cursor cursor = context.getContentResolver().query(media,
                 new String[] { MediaStore.Images.ImageColumns.ORIENTATION }, null, null, null);
 
             if (cursor != null) {
-                cursor.moveToFirst();
-                int orientation = cursor.getInt(0);
-                cursor.close();
-
-                if (orientation != 0) {
-                    Matrix m = new Matrix();
-                    m.postRotate(orientation);
-
-                    Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), m, true);
-                    // createBitmap might return the input bitmap which we don't want to recycle
-                    if (rotated != bitmap)
-                        bitmap.recycle();
-                    bitmap = rotated;
-
+                try {
+                    if (cursor.moveToFirst())
+                        return cursor.getInt(0);
+                }
+                finally {
+                    cursor.close();
                 }
             }
         }
@@ -191,6 +182,23 @@ public abstract class MediaStorage {
             Log.w(TAG, "unable to check for rotation data", e);
         }
 
+        return 0;
+    }
+
+    public static Bitmap bitmapOrientation(Context context, Uri media, Bitmap bitmap) {
+        // check if we have to (and can) rotate the thumbnail
+        int orientation = getOrientation(context, media);
+        if (orientation != 0) {
+            Matrix m = new Matrix();
+            m.postRotate(orientation);
+
+            Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), m, true);
+            // createBitmap might return the input bitmap which we don't want to recycle
+            if (rotated != bitmap)
+                bitmap.recycle();
+            bitmap = rotated;
+        }
+
         return bitmap;
     }
 
@@ -311,114 +319,32 @@ public abstract class MediaStorage {
         return mime;
     }
 
-    public static File resizeImage(Context context, Uri uri, long msgId, int maxSize)
-        throws FileNotFoundException {
-        return resizeImage(context, uri, msgId, maxSize, maxSize, COMPRESSION_QUALITY);
+    /** Returns the file used for the compressed image of the given message. */
+    public static File getCompressedImageFile(Context context, long msgId) {
+        return new File(context.getCacheDir(), String.format(COMPRESS_FILENAME_FORMAT, msgId));
     }
 
-    public static File resizeImage(Context context, Uri uri, long msgId, int maxWidth, int maxHeight, int quality)
-        throws FileNotFoundException {
-
-        final int MAX_IMAGE_SIZE = 1200000; // 1.2MP
-
-        ContentResolver cr = context.getContentResolver();
-
-        // compute optimal image scale size
-        int scale = 1;
-        InputStream in = cr.openInputStream(uri);
-
-        try {
-            // decode image size
-            BitmapFactory.Options o = new BitmapFactory.Options();
-            o.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(in, null, o);
-            in.close();
-
-            // calculate optimal image scale size
-            while ((o.outWidth * o.outHeight) * (1 / Math.pow(scale, 2)) > MAX_IMAGE_SIZE)
-                scale++;
-
-            Log.d(TAG, "scale = " + scale + ", orig-width: " + o.outWidth + ", orig-height: " + o.outHeight);
-        }
-        catch (IOException e) {
-            Log.d(TAG, "unable to calculate optimal scale size, using original image");
-        }
-        finally {
-            try {
-                in.close();
-            }
-            catch (Exception e) {
-                // ignored
-            }
-        }
-
-        // open image again for the actual scaling
-        Bitmap bitmap = null;
-
-        try {
-            in = cr.openInputStream(uri);
-            BitmapFactory.Options o = new BitmapFactory.Options();
-
-            if (scale > 1) {
-                o.inSampleSize = scale - 1;
-            }
-
-            bitmap = BitmapFactory.decodeStream(in, null, o);
-        }
-        finally {
-            try {
-                in.close();
-            }
-            catch (Exception e) {
-                // ignored
-            }
-        }
-
-        if (bitmap == null) {
-            return null;
-        }
-        float photoW = bitmap.getWidth();
-        float photoH = bitmap.getHeight();
-        if (photoW == 0 || photoH == 0) {
-            return null;
-        }
-        float scaleFactor = Math.max(photoW / maxWidth, photoH / maxHeight);
-        int w = (int) (photoW / scaleFactor);
-        int h = (int) (photoH / scaleFactor);
-        if (h == 0 || w == 0) {
-            return null;
-        }
-
-        Bitmap scaledBitmap;
-        try {
-            scaledBitmap = Bitmap.createScaledBitmap(bitmap, w, h, true);
-        }
-        finally {
-            bitmap.recycle();
-        }
-
-        // check for rotation data
-        scaledBitmap = bitmapOrientation(context, uri, scaledBitmap);
-
-        String filename = String.format(COMPRESS_FILENAME_FORMAT, msgId);
-        final File compressedFile = new File(context.getCacheDir(), filename);
-
-        FileOutputStream stream = null;
+    public static File resizeImage(Context context, Uri uri, long msgId, int maxSize)
+        throws IOException {
+        return resizeImage(context, uri, msgId, maxSize, COMPRESSION_QUALITY);
+    }
 
-        try {
-            stream = new FileOutputStream(compressedFile);
-            scaledBitmap.compress(Bitmap.CompressFormat.JPEG, quality, stream);
+    public static File resizeImage(Context context, Uri uri, long msgId, int maxSize, int quality)
+        throws IOException {
+        final File compressedFile = getCompressedImageFile(context, msgId);
+        ImagePreprocessor.process(context, uri, null, compressedFile, maxSize, quality);
+        return compressedFile;
+    }
 
-            return compressedFile;
-        }
-        finally {
-            try {
-                stream.close();
-            }
-            catch (Exception e) {
-                // ignored
-            }
-        }
+    /**
+     * Prepares an outgoing image in a single pass: the network thumbnail is
+     * written to the given file and, if maxSize is greater than zero, the
+     * compressed image is written to the given compressed file.
+     */
+    public static void prepareImage(Context context, Uri uri, File thumbnail,
+            File compressed, int maxSize) throws IOException {
+        ImagePreprocessor.process(context, uri, thumbnail,
+            maxSize > 0 ? compressed : null, maxSize, COMPRESSION_QUALITY);
     }
 
     /**
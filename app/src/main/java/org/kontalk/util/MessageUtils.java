@@ -58,6 +58,7 @@ import org.kontalk.message.TextComponent;
 import org.kontalk.message.VCardComponent;
 import org.kontalk.provider.MyMessages.Messages;
 import org.kontalk.provider.UsersProvider;
+import org.kontalk.util.metrics.Metrics;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -576,7 +577,9 @@ public final class MessageUtils {
             Coder coder = UsersProvider.getDecryptCoder(context, server, key, msg.getSender(true));
 
             // decrypt
+            long start = System.nanoTime();
             Coder.DecryptOutput result = coder.decryptText(encryptedData, true);
+            Metrics.MESSAGE_DECRYPT.recordSince(start);
 
             String contentText;
 
@@ -646,6 +649,7 @@ public final class MessageUtils {
             // pass over the message even if encrypted
             // UI will warn the user about that and wait
             // for user decisions
+            Metrics.DECRYPT_ERRORS.inc();
             int securityFlags = msg.getSecurityFlags();
 
             if (exc instanceof DecryptException) {
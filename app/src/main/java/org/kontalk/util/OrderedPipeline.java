@@ -0,0 +1,158 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.util;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+
+/**
+ * A producer/consumer pipeline: items added by the producer are processed
+ * in slices on an executor, and results are delivered to a single sink in
+ * the same order the items were added. The sink is always called on the
+ * producer thread (i.e. the thread calling {@link #add} and
+ * {@link #finish}), so it can safely use non thread-safe resources such
+ * as database statements.
+ * This class is not thread safe.
+ * @author Daniele Ricci
+ */
+public class OrderedPipeline<I, O> {
+
+    /** The processing stage. Must be thread safe. */
+    public interface Stage<I, O> {
+        O process(I input);
+    }
+
+    /** The consumer of processed items. */
+    public interface Sink<I, O> {
+        void accept(I input, O output);
+    }
+
+    private static final class Slice<I, O> {
+        final List<I> inputs;
+        final FutureTask<List<O>> task;
+
+        Slice(List<I> inputs, FutureTask<List<O>> task) {
+            this.inputs = inputs;
+            this.task = task;
+        }
+    }
+
+    private final Executor mExecutor;
+    private final Stage<I, O> mStage;
+    private final Sink<I, O> mSink;
+    private final int mSliceSize;
+    private final int mMaxPending;
+
+    private final LinkedList<Slice<I, O>> mPending = new LinkedList<>();
+    private List<I> mCurrent;
+
+    /**
+     * @param executor the executor processing slices
+     * @param sliceSize number of items processed by a single task
+     * @param maxPending maximum number of slices waiting to be consumed;
+     * the producer will block when this limit is reached
+     */
+    public OrderedPipeline(Executor executor, int sliceSize, int maxPending,
+            Stage<I, O> stage, Sink<I, O> sink) {
+        mExecutor = executor;
+        mStage = stage;
+        mSink = sink;
+        mSliceSize = sliceSize;
+        mMaxPending = maxPending;
+        mCurrent = new ArrayList<>(sliceSize);
+    }
+
+    /** Adds an item to the pipeline. */
+    public void add(I input) {
+        mCurrent.add(input);
+        if (mCurrent.size() >= mSliceSize)
+            submit();
+
+        // consume whatever is ready without blocking
+        while (!mPending.isEmpty() && mPending.getFirst().task.isDone())
+            consume();
+    }
+
+    /** Processes all remaining items and waits for them to be consumed. */
+    public void finish() {
+        if (mCurrent.size() > 0)
+            submit();
+        while (!mPending.isEmpty())
+            consume();
+    }
+
+    /** Cancels all pending slices. Their results will never be consumed. */
+    public void cancel() {
+        for (Slice<I, O> slice : mPending)
+            slice.task.cancel(false);
+        mPending.clear();
+        mCurrent.clear();
+    }
+
+    private void submit() {
+        final List<I> inputs = mCurrent;
+        mCurrent = new ArrayList<>(mSliceSize);
+
+        FutureTask<List<O>> task = new FutureTask<>(new Callable<List<O>>() {
+            @Override
+            public List<O> call() {
+                List<O> outputs = new ArrayList<>(inputs.size());
+                for (I input : inputs)
+                    outputs.add(mStage.process(input));
+                return outputs;
+            }
+        });
+        mPending.add(new Slice<>(inputs, task));
+        mExecutor.execute(task);
+
+        while (mPending.size() > mMaxPending)
+            consume();
+    }
+
+    private void consume() {
+        Slice<I, O> slice = mPending.removeFirst();
+        List<O> outputs;
+        try {
+            outputs = slice.task.get();
+        }
+        catch (InterruptedException e) {
+            cancel();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted", e);
+        }
+        catch (ExecutionException e) {
+            cancel();
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        }
+
+        for (int i = 0; i < outputs.size(); i++)
+            mSink.accept(slice.inputs.get(i), outputs.get(i));
+    }
+
+}
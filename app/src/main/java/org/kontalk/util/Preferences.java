@@ -23,14 +23,22 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.kontalk.R;
 import org.kontalk.authenticator.Authenticator;
 import org.kontalk.client.EndpointServer;
 import org.kontalk.client.ServerList;
+import org.kontalk.client.ServerStats;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.service.ServerListUpdater;
 import org.kontalk.service.msgcenter.MessageCenterService;
+import org.kontalk.service.msgcenter.PingIntervalLearner;
 
 import android.content.ContentValues;
 import android.content.Context;
@@ -62,6 +70,7 @@ public final class Preferences {
     private static SharedPreferences sPreferences;
     private static Drawable sCustomBackground;
     private static String sBalloonTheme;
+    private static ServerStats sServerStats;
 
     public static void init(Context context) {
         sPreferences = PreferenceManager.getDefaultSharedPreferences(context);
@@ -171,10 +180,47 @@ public final class Preferences {
         }
         else {
             ServerList list = ServerListUpdater.getCurrentList(context);
-            return new ServerList.ServerListProvider(list);
+            return new ServerList.ServerListProvider(list, getServerStats(context));
         }
     }
 
+    /**
+     * Returns the servers we can connect to in place of the given one, i.e.
+     * servers of the same network from the current list. The given server
+     * is always included.
+     */
+    public static List<EndpointServer> getEndpointServerCandidates(Context context, EndpointServer server) {
+        List<EndpointServer> candidates = new ArrayList<>();
+        if (server == null)
+            return candidates;
+        candidates.add(server);
+
+        if (TextUtils.isEmpty(getServerURI(context))) {
+            ServerList list = ServerListUpdater.getCurrentList(context);
+            if (list != null) {
+                for (EndpointServer s : list) {
+                    if (server.getNetwork().equalsIgnoreCase(s.getNetwork()) && !s.equals(server))
+                        candidates.add(s);
+                }
+            }
+        }
+
+        return candidates;
+    }
+
+    /** Returns the (cached) connection statistics for all servers. */
+    public static synchronized ServerStats getServerStats(Context context) {
+        if (sServerStats == null)
+            sServerStats = ServerStats.fromString(getString(context, "server_stats", null));
+        return sServerStats;
+    }
+
+    public static synchronized boolean saveServerStats(Context context) {
+        return sServerStats != null && sPreferences.edit()
+            .putString("server_stats", sServerStats.toString())
+            .commit();
+    }
+
     public static boolean getEncryptionEnabled(Context context) {
         return getBoolean(context, "pref_encrypt", context
             .getResources().getBoolean(R.bool.pref_default_encrypt));
@@ -244,6 +290,17 @@ public final class Preferences {
             .commit();
     }
 
+    /** Returns the settings the contacts were last resynced with. */
+    public static String getContactsSyncState(Context context) {
+        return getString(context, "pref_contacts_sync_state", null);
+    }
+
+    public static boolean setContactsSyncState(Context context, String state) {
+        return sPreferences.edit()
+            .putString("pref_contacts_sync_state", state)
+            .commit();
+    }
+
     public static boolean setLastPushNotification(Context context, long timestamp) {
         return sPreferences.edit()
             .putLong("pref_last_push_notification", timestamp)
@@ -473,40 +530,100 @@ public final class Preferences {
         return getString(context, "roster_version", "");
     }
 
-    public static boolean setRosterVersion(String version) {
-        return sPreferences.edit()
-            .putString("roster_version", version)
-            .commit();
-    }
+    private static final String PING_LEARNED_PREFIX = "ping_learned_";
+    /** Maximum number of networks to remember a ping interval for. */
+    private static final int PING_LEARNED_MAX = 20;
+    /** Ping intervals of networks not used for this long are forgotten. */
+    private static final long PING_LEARNED_EXPIRY = 60L * 24 * 60 * 60 * 1000;
 
-    public static long getPingAlarmInterval(Context context, long defaultValue) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return (networkType != null) ?
-            getLong(context, "ping_alarm_interval_" + networkType, defaultValue) :
-            defaultValue;
+    /** Returns the ping interval learned for the given network or null. */
+    public static PingIntervalLearner.NetworkState getPingLearnedState(Context context, String network) {
+        return parsePingLearnedState(getString(context, PING_LEARNED_PREFIX + network, null));
     }
 
-    public static boolean setPingAlarmInterval(Context context, long intervalMillis) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return networkType != null && sPreferences.edit()
-            .putLong("ping_alarm_interval_" + networkType, intervalMillis)
-            .commit();
-    }
+    /**
+     * Stores the ping interval learned for the given network, marking it as
+     * recently used. Networks not used for a long time are pruned, as well
+     * as the least recently used ones when too many have been stored.
+     */
+    public static boolean setPingLearnedState(Context context, String network, PingIntervalLearner.NetworkState state) {
+        final String current = PING_LEARNED_PREFIX + network;
+        final long now = System.currentTimeMillis();
+        SharedPreferences.Editor editor = sPreferences.edit();
+
+        final Map<String, Long> used = new HashMap<>();
+        for (Map.Entry<String, ?> e : sPreferences.getAll().entrySet()) {
+            String key = e.getKey();
+            if (key.startsWith(PING_LEARNED_PREFIX) && !key.equals(current)) {
+                long[] value = (e.getValue() instanceof String) ?
+                    parsePingLearnedValue((String) e.getValue()) : null;
+                if (value == null || now - value[2] > PING_LEARNED_EXPIRY)
+                    editor.remove(key);
+                else
+                    used.put(key, value[2]);
+            }
+        }
 
-    public static long getPingAlarmBackoff(Context context, long defaultValue) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return (networkType != null) ?
-            getLong(context, "ping_alarm_backoff_" + networkType, defaultValue) :
-            defaultValue;
-    }
+        if (used.size() >= PING_LEARNED_MAX) {
+            // keep the most recently used networks
+            List<String> keys = new ArrayList<>(used.keySet());
+            Collections.sort(keys, new Comparator<String>() {
+                @Override
+                public int compare(String lhs, String rhs) {
+                    long l = used.get(lhs);
+                    long r = used.get(rhs);
+                    return l < r ? 1 : (l == r ? 0 : -1);
+                }
+            });
+            for (String key : keys.subList(PING_LEARNED_MAX - 1, keys.size()))
+                editor.remove(key);
+        }
 
-    public static boolean setPingAlarmBackoff(Context context, long intervalMillis) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return networkType != null && sPreferences.edit()
-            .putLong("ping_alarm_backoff_" + networkType, intervalMillis)
+        return editor
+            .putString(current, state.safe + ":" + state.unsafe + ":" + now)
             .commit();
     }
 
+    /** Returns all learned ping intervals, by network identity. */
+    public static Map<String, PingIntervalLearner.NetworkState> getPingLearnedStates(Context context) {
+        Map<String, PingIntervalLearner.NetworkState> states = new HashMap<>();
+        for (Map.Entry<String, ?> e : sPreferences.getAll().entrySet()) {
+            String key = e.getKey();
+            if (key.startsWith(PING_LEARNED_PREFIX) && e.getValue() instanceof String) {
+                PingIntervalLearner.NetworkState state =
+                    parsePingLearnedState((String) e.getValue());
+                if (state != null)
+                    states.put(key.substring(PING_LEARNED_PREFIX.length()), state);
+            }
+        }
+        return states;
+    }
+
+    private static PingIntervalLearner.NetworkState parsePingLearnedState(String value) {
+        long[] parsed = parsePingLearnedValue(value);
+        return parsed != null ?
+            new PingIntervalLearner.NetworkState(parsed[0], parsed[1]) : null;
+    }
+
+    /** Parses a safe:unsafe:timestamp value (timestamp is 0 for old values). */
+    private static long[] parsePingLearnedValue(String value) {
+        if (value != null) {
+            String[] parts = value.split(":");
+            if (parts.length == 2 || parts.length == 3) {
+                try {
+                    return new long[] {
+                        Long.parseLong(parts[0]),
+                        Long.parseLong(parts[1]),
+                        parts.length == 3 ? Long.parseLong(parts[2]) : 0,
+                    };
+                }
+                catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return null;
+    }
+
     /**
      * Saves the current registration progress data. Used for recoverying a
      * registration after a restart or in very low memory situations.
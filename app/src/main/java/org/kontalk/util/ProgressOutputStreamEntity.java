@@ -35,12 +35,20 @@ public class ProgressOutputStreamEntity {
     private final String mUrl;
     private final File mFile;
     private final DownloadListener mListener;
+    /** Bytes already downloaded by a previous request. */
+    private final long mOffset;
 
     public ProgressOutputStreamEntity(HttpURLConnection parent,
             String url, File file, final DownloadListener listener) {
+        this(parent, url, file, 0, listener);
+    }
+
+    public ProgressOutputStreamEntity(HttpURLConnection parent,
+            String url, File file, long offset, final DownloadListener listener) {
         mParent = parent;
         mUrl = url;
         mFile = file;
+        mOffset = offset;
         mListener = listener;
     }
 
@@ -65,12 +73,18 @@ public class ProgressOutputStreamEntity {
     }
 
     public void writeTo(OutputStream outstream) throws IOException {
-        mListener.start(mUrl, mFile, mParent.getContentLength());
-        _writeTo(new CountingOutputStream(outstream, mUrl, mFile, mListener));
+        transfer(outstream);
         String mime = mParent.getContentType();
         mListener.completed(mUrl, mime, mFile);
     }
 
+    /** Writes the response body without notifying completion. */
+    public void transfer(OutputStream outstream) throws IOException {
+        int length = mParent.getContentLength();
+        mListener.start(mUrl, mFile, length >= 0 ? mOffset + length : -1);
+        _writeTo(new CountingOutputStream(outstream, mUrl, mFile, mOffset, mListener));
+    }
+
     private static final class CountingOutputStream extends FilterOutputStream {
         private final DownloadListener listener;
         private final String url;
@@ -78,12 +92,12 @@ public class ProgressOutputStreamEntity {
         private long transferred;
 
         public CountingOutputStream(final OutputStream out,
-                final String url, final File file, final DownloadListener listener) {
+                final String url, final File file, long offset, final DownloadListener listener) {
             super(out);
             this.url = url;
             this.file = file;
             this.listener = listener;
-            this.transferred = 0;
+            this.transferred = offset;
         }
 
         @Override
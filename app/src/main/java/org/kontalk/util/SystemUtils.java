@@ -37,6 +37,7 @@ import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Build;
 import android.provider.ContactsContract;
+import android.text.TextUtils;
 import android.util.SparseBooleanArray;
 import android.view.Display;
 import android.view.Surface;
@@ -175,6 +176,24 @@ public final class SystemUtils {
         return info != null ? info.getTypeName() : null;
     }
 
+    /**
+     * Returns a string identifying the current network: the network type
+     * name followed by the extra info reported by the system (usually the
+     * SSID for Wi-Fi or the APN for mobile networks), if any.
+     */
+    public static String getCurrentNetworkIdentity(Context context) {
+        ConnectivityManager connMgr = (ConnectivityManager) context
+            .getSystemService(Context.CONNECTIVITY_SERVICE);
+
+        NetworkInfo info = connMgr.getActiveNetworkInfo();
+        if (info == null)
+            return null;
+
+        String extra = info.getExtraInfo();
+        return TextUtils.isEmpty(extra) ? info.getTypeName() :
+            info.getTypeName() + "/" + extra;
+    }
+
     public static int getCurrentNetworkType(Context context) {
         ConnectivityManager connMgr = (ConnectivityManager) context
             .getSystemService(Context.CONNECTIVITY_SERVICE);
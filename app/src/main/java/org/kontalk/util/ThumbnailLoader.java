@@ -0,0 +1,260 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import org.kontalk.Kontalk;
+
+
+/**
+ * Loads message thumbnails off the UI thread.
+ * Decoded bitmaps are kept in a memory cache with a byte budget, keyed by
+ * preview file path. Decoding happens on a small pool of background
+ * threads; results are delivered on the main thread unless the request
+ * was cancelled in the meantime.
+ *
+ * Bitmaps are decoded from and returned to the {@link BitmapPool}.
+ * Every bitmap handed out by this class is retained for the receiver,
+ * which must call {@link BitmapPool#release(Bitmap)} when done with it.
+ * @author Daniele Ricci
+ */
+public class ThumbnailLoader {
+    private static final String TAG = Kontalk.TAG;
+
+    /** Number of decoding threads. */
+    private static final int POOL_SIZE = 2;
+
+    /** Fraction of the heap used by the memory cache. */
+    private static final int CACHE_HEAP_FRACTION = 8;
+    /** Maximum size of the memory cache in bytes. */
+    private static final int MAX_CACHE_SIZE = 16 * 1024 * 1024;
+
+    private static ThumbnailLoader sInstance;
+
+    private final Context mContext;
+    private final MemoryCache mCache;
+    private final ExecutorService mExecutor;
+    private final Handler mHandler;
+
+    /** Receives a loaded thumbnail on the main thread. */
+    public interface Callback {
+        /**
+         * @param bitmap the decoded bitmap (retained for the receiver), or
+         *               null if not available
+         */
+        void onThumbnailLoaded(File previewFile, Bitmap bitmap);
+    }
+
+    /** A pending load, can be cancelled. */
+    public static final class Request {
+        private volatile boolean mCancelled;
+        private Future<?> mFuture;
+
+        /** Cancels the request: the callback will not be called. */
+        public void cancel() {
+            mCancelled = true;
+            Future<?> f = mFuture;
+            if (f != null)
+                f.cancel(false);
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    /** Bitmap cache with a byte budget. */
+    private static final class MemoryCache extends LruCache<String, Bitmap> {
+        public MemoryCache(int maxBytes) {
+            super(maxBytes);
+        }
+
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getRowBytes() * value.getHeight();
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+            // views might still be using it, the pool will know
+            BitmapPool.getInstance().release(oldValue);
+        }
+    }
+
+    private ThumbnailLoader(Context context) {
+        mContext = context.getApplicationContext();
+        int budget = (int) Math.min(Runtime.getRuntime().maxMemory() / CACHE_HEAP_FRACTION,
+            MAX_CACHE_SIZE);
+        mCache = new MemoryCache(budget);
+        mHandler = new Handler(Looper.getMainLooper());
+        mExecutor = Executors.newFixedThreadPool(POOL_SIZE, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "ThumbnailLoader-" + mCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public static synchronized ThumbnailLoader getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new ThumbnailLoader(context);
+        return sInstance;
+    }
+
+    /** Returns the thumbnail (retained) from the memory cache, or null. */
+    public Bitmap getCached(File previewFile) {
+        if (previewFile == null)
+            return null;
+
+        synchronized (mCache) {
+            Bitmap bitmap = mCache.get(previewFile.getPath());
+            BitmapPool.getInstance().retain(bitmap);
+            return bitmap;
+        }
+    }
+
+    /**
+     * Loads a thumbnail asynchronously.
+     * @param previewFile the preview file
+     * @param localUri the original media, used for generating a missing
+     *                 thumbnail (may be null)
+     * @param callback called on the main thread with the result
+     * @return a request which can be used to cancel the load
+     */
+    public Request load(final File previewFile, final Uri localUri, final Callback callback) {
+        final Request request = new Request();
+        request.mFuture = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (request.isCancelled())
+                    return;
+
+                final Bitmap bitmap = loadSync(previewFile, localUri);
+
+                if (!request.isCancelled()) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!request.isCancelled())
+                                callback.onThumbnailLoaded(previewFile, bitmap);
+                            else
+                                BitmapPool.getInstance().release(bitmap);
+                        }
+                    });
+                }
+                else {
+                    BitmapPool.getInstance().release(bitmap);
+                }
+            }
+        });
+        return request;
+    }
+
+    /**
+     * Loads a thumbnail (retained) synchronously, using the cache if possible.
+     * Do not call from the UI thread.
+     */
+    public Bitmap loadSync(File previewFile, Uri localUri) {
+        if (previewFile == null)
+            return null;
+
+        Bitmap bitmap = getCached(previewFile);
+        if (bitmap == null) {
+            bitmap = decode(previewFile, localUri);
+            if (bitmap != null) {
+                BitmapPool pool = BitmapPool.getInstance();
+                // one reference for the cache, one for the caller
+                pool.retain(bitmap);
+                pool.retain(bitmap);
+                mCache.put(previewFile.getPath(), bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    /** Removes a thumbnail from the memory cache, e.g. after regenerating it. */
+    public void invalidate(File previewFile) {
+        if (previewFile != null)
+            mCache.remove(previewFile.getPath());
+    }
+
+    /**
+     * Decodes the preview file. If not available, a thumbnail is generated
+     * from the original media, if it has already been downloaded.
+     */
+    private Bitmap decode(File previewFile, Uri localUri) {
+        try {
+            return decodePreview(previewFile);
+        }
+        catch (Exception e) {
+            Log.w(TAG, "unable to load thumbnail, generating one");
+
+            try {
+                if (localUri != null) {
+                    // FIXME using a false file extension
+                    MediaStorage.cacheThumbnail(mContext, localUri, previewFile, false);
+                    return decodePreview(previewFile);
+                }
+            }
+            catch (Exception e1) {
+                Log.e(TAG, "unable to generate thumbnail", e1);
+            }
+        }
+
+        return null;
+    }
+
+    private static Bitmap decodePreview(File previewFile) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap bitmap = BitmapPool.getInstance().decodeFile(previewFile, options);
+        if (bitmap == null)
+            throw new IOException("unable to decode " + previewFile);
+        return bitmap;
+    }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.util.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A monotonically increasing counter.
+ * @author Daniele Ricci
+ */
+public final class Counter {
+
+    private final AtomicLong mValue = new AtomicLong();
+
+    Counter() {
+    }
+
+    public void inc() {
+        mValue.incrementAndGet();
+    }
+
+    public void add(long delta) {
+        mValue.addAndGet(delta);
+    }
+
+    public long get() {
+        return mValue.get();
+    }
+
+    void reset() {
+        mValue.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(get());
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.util.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Histogram with log-linear buckets, in the style of HdrHistogram: every
+ * power of two is split into {@link #SUB_BUCKET_HALF_COUNT} linear buckets,
+ * so recorded values are kept with about 3% precision over the whole range.
+ * Recording a value doesn't allocate nor lock.
+ * @author Daniele Ricci
+ */
+public final class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    /** Values below this are recorded exactly. */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    /** Buckets for every power of two above {@link #SUB_BUCKET_COUNT}. */
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT >> 1;
+
+    private final String mUnit;
+    private final long mMaxValue;
+
+    private final AtomicLongArray mBuckets;
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * @param unit unit of recorded values, for display
+     * @param maxValue values greater than this are recorded as this
+     */
+    Histogram(String unit, long maxValue) {
+        mUnit = unit;
+        mMaxValue = maxValue;
+        mBuckets = new AtomicLongArray(indexOf(maxValue) + 1);
+    }
+
+    public String getUnit() {
+        return mUnit;
+    }
+
+    /** Records a value. Negative values are recorded as zero. */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        else if (value > mMaxValue)
+            value = mMaxValue;
+
+        mBuckets.incrementAndGet(indexOf(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+
+        long min;
+        while (value < (min = mMin.get()) && !mMin.compareAndSet(min, value));
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value));
+    }
+
+    /** Records the time elapsed since the given {@link System#nanoTime()}, in microseconds. */
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    void reset() {
+        for (int i = 0; i < mBuckets.length(); i++)
+            mBuckets.set(i, 0);
+        mCount.set(0);
+        mSum.set(0);
+        mMin.set(Long.MAX_VALUE);
+        mMax.set(Long.MIN_VALUE);
+    }
+
+    /** Returns a consistent enough copy of the histogram. */
+    public Snapshot getSnapshot() {
+        long[] counts = new long[mBuckets.length()];
+        long count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = mBuckets.get(i);
+            count += counts[i];
+        }
+        return new Snapshot(counts, count, mSum.get(), mMin.get(), mMax.get());
+    }
+
+    @Override
+    public String toString() {
+        return getSnapshot().toString() + " " + mUnit;
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT)
+            return (int) value;
+
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift << (SUB_BUCKET_BITS - 1)) + (int) (value >>> shift);
+    }
+
+    /** Returns the lowest value recorded in the given bucket. */
+    static long lowestValue(int index) {
+        if (index < SUB_BUCKET_COUNT)
+            return index;
+
+        int shift = (index >> (SUB_BUCKET_BITS - 1)) - 1;
+        long subBucket = index - (shift << (SUB_BUCKET_BITS - 1));
+        return subBucket << shift;
+    }
+
+    /** Returns the highest value recorded in the given bucket. */
+    static long highestValue(int index) {
+        return lowestValue(index + 1) - 1;
+    }
+
+    /** Immutable copy of a histogram. */
+    public static final class Snapshot {
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mSum;
+        private final long mMin;
+        private final long mMax;
+
+        Snapshot(long[] counts, long count, long sum, long min, long max) {
+            mCounts = counts;
+            mCount = count;
+            mSum = sum;
+            mMin = min;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMin() {
+            return mCount > 0 ? mMin : 0;
+        }
+
+        public long getMax() {
+            return mCount > 0 ? mMax : 0;
+        }
+
+        public long getMean() {
+            return mCount > 0 ? mSum / mCount : 0;
+        }
+
+        /**
+         * Returns the value below which the given percentage of recorded
+         * values falls, within bucket precision.
+         */
+        public long getPercentile(double percentile) {
+            if (mCount == 0)
+                return 0;
+
+            long rank = (long) Math.ceil(percentile / 100 * mCount);
+            if (rank < 1)
+                rank = 1;
+
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank)
+                    return Math.min(highestValue(i), getMax());
+            }
+            return getMax();
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount + " min=" + getMin() +
+                " p50=" + getPercentile(50) + " p90=" + getPercentile(90) +
+                " p99=" + getPercentile(99) + " max=" + getMax() +
+                " mean=" + getMean();
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.util.metrics;
+
+
+/**
+ * Measures the latency between two events sharing a key (e.g. a stanza
+ * sent and its ack) into a {@link Histogram}. Pending keys are kept in a
+ * fixed size ring, so the oldest ones are dropped if their end event never
+ * comes.
+ * @author Daniele Ricci
+ */
+public final class LatencyTracker {
+
+    private final Histogram mHistogram;
+
+    private final String[] mKeys;
+    private final long[] mStarts;
+    private int mNext;
+
+    LatencyTracker(Histogram histogram, int capacity) {
+        mHistogram = histogram;
+        mKeys = new String[capacity];
+        mStarts = new long[capacity];
+    }
+
+    public Histogram getHistogram() {
+        return mHistogram;
+    }
+
+    /** Marks the start event for the given key. */
+    public synchronized void start(String key) {
+        if (key == null)
+            return;
+
+        mKeys[mNext] = key;
+        mStarts[mNext] = System.nanoTime();
+        mNext = (mNext + 1) % mKeys.length;
+    }
+
+    /**
+     * Marks the end event for the given key, recording the elapsed time in
+     * milliseconds.
+     * @return true if the key was being tracked
+     */
+    public synchronized boolean stop(String key) {
+        if (key == null)
+            return false;
+
+        for (int i = 0; i < mKeys.length; i++) {
+            if (key.equals(mKeys[i])) {
+                mHistogram.record((System.nanoTime() - mStarts[i]) / 1000000);
+                mKeys[i] = null;
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.util.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Per-message latency traces, keyed by stanza id. A trace is started when
+ * a message is created (outgoing) or its stanza is received (incoming);
+ * each stage is then marked with the time elapsed since the start, the
+ * first time it's reached. Only the last {@link #MAX_TRACES} traces are
+ * kept; marks for unknown ids (e.g. messages resent after a restart) are
+ * ignored.
+ * @author Daniele Ricci
+ */
+public final class MessageTracer {
+
+    /** Message stored in the local database. */
+    public static final int STAGE_STORED = 0;
+    /** Outgoing message picked up by the message center. */
+    public static final int STAGE_DEQUEUED = 1;
+    /** Media uploaded. */
+    public static final int STAGE_UPLOADED = 2;
+    /** Outgoing message encrypted. */
+    public static final int STAGE_ENCRYPTED = 3;
+    /** Outgoing stanza written to the connection. */
+    public static final int STAGE_SENT = 4;
+    /** Outgoing stanza acknowledged by the server. */
+    public static final int STAGE_ACKED = 5;
+    /** Delivery receipt received. */
+    public static final int STAGE_DELIVERED = 6;
+    /** Incoming message decrypted. */
+    public static final int STAGE_DECRYPTED = 7;
+    /** Notification update requested for an incoming message. */
+    public static final int STAGE_NOTIFIED = 8;
+    /** Message first bound to a view in a conversation. */
+    public static final int STAGE_DISPLAYED = 9;
+
+    private static final String[] STAGE_NAMES = {
+        "stored",
+        "dequeued",
+        "uploaded",
+        "encrypted",
+        "sent",
+        "acked",
+        "delivered",
+        "decrypted",
+        "notified",
+        "displayed",
+    };
+
+    /** Max number of traces kept in memory. */
+    public static final int MAX_TRACES = 200;
+
+    private static final Map<String, Trace> sTraces =
+        new LinkedHashMap<String, Trace>(MAX_TRACES, 0.75f) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Trace> eldest) {
+                if (size() > MAX_TRACES) {
+                    if (!eldest.getValue().isDisplayed())
+                        sUndisplayed--;
+                    return true;
+                }
+                return false;
+            }
+        };
+
+    /**
+     * Number of traces not displayed yet. Written with the lock held, read
+     * without it so that binding a message needs no lock once every traced
+     * message has been displayed (or if nothing is traced at all).
+     */
+    private static volatile int sUndisplayed;
+
+    private MessageTracer() {
+    }
+
+    /** Starts tracing a message. */
+    public static void begin(String id, boolean incoming) {
+        if (id == null)
+            return;
+
+        Trace trace = new Trace(id, incoming);
+        synchronized (sTraces) {
+            Trace old = sTraces.put(id, trace);
+            if (old == null || old.isDisplayed())
+                sUndisplayed++;
+        }
+    }
+
+    /** Marks a stage for the given message, if it's being traced. */
+    public static void mark(String id, int stage) {
+        if (id == null || (stage == STAGE_DISPLAYED && sUndisplayed == 0))
+            return;
+
+        long now = System.nanoTime();
+        synchronized (sTraces) {
+            Trace trace = sTraces.get(id);
+            if (trace != null && trace.marks[stage] < 0) {
+                trace.marks[stage] = (now - trace.start) / 1000;
+                if (stage == STAGE_DISPLAYED)
+                    sUndisplayed--;
+            }
+        }
+    }
+
+    public static void clear() {
+        synchronized (sTraces) {
+            sTraces.clear();
+            sUndisplayed = 0;
+        }
+    }
+
+    /**
+     * Exports the traces in CSV format, oldest first. Stage columns are in
+     * microseconds since the start of the trace, empty if not reached.
+     */
+    public static void export(Writer out) throws IOException {
+        List<Trace> traces;
+        synchronized (sTraces) {
+            traces = new ArrayList<>(sTraces.size());
+            for (Trace t : sTraces.values())
+                traces.add(t.copy());
+        }
+
+        out.write("id,direction,start");
+        for (String name : STAGE_NAMES) {
+            out.write(',');
+            out.write(name);
+            out.write("_us");
+        }
+        out.write('\n');
+
+        for (Trace t : traces) {
+            out.write(t.id);
+            out.write(t.incoming ? ",in," : ",out,");
+            out.write(String.valueOf(t.startTime));
+            for (long mark : t.marks) {
+                out.write(',');
+                if (mark >= 0)
+                    out.write(String.valueOf(mark));
+            }
+            out.write('\n');
+        }
+    }
+
+    private static final class Trace {
+        final String id;
+        final boolean incoming;
+        /** Wall clock start time, for correlation with other logs. */
+        final long startTime;
+        final long start;
+        final long[] marks;
+
+        Trace(String id, boolean incoming) {
+            this(id, incoming, System.currentTimeMillis(), System.nanoTime(),
+                new long[STAGE_NAMES.length]);
+            Arrays.fill(marks, -1);
+        }
+
+        private Trace(String id, boolean incoming, long startTime, long start, long[] marks) {
+            this.id = id;
+            this.incoming = incoming;
+            this.startTime = startTime;
+            this.start = start;
+            this.marks = marks;
+        }
+
+        boolean isDisplayed() {
+            return marks[STAGE_DISPLAYED] >= 0;
+        }
+
+        Trace copy() {
+            return new Trace(id, incoming, startTime, start, marks.clone());
+        }
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.util.metrics;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.SystemClock;
+
+import org.kontalk.util.BitmapPool;
+
+
+/**
+ * Registry of the application metrics. Metrics are created once and kept
+ * in static fields, so hot paths only pay for an atomic update.
+ * Snapshots can be seen through {@link #dump}, which is available with
+ * <code>adb shell dumpsys activity service MessageCenterService</code>
+ * and from the metrics screen in debug builds.
+ * @author Daniele Ricci
+ */
+public final class Metrics {
+
+    public static final String UNIT_MICROS = "us";
+    public static final String UNIT_MILLIS = "ms";
+    public static final String UNIT_KBPS = "KiB/s";
+
+    private static final long MAX_MICROS = 60L * 1000 * 1000;
+    private static final long MAX_MILLIS = 10L * 60 * 1000;
+    private static final long MAX_KBPS = 1024L * 1024;
+
+    /** Max number of sent messages waiting for ack being tracked. */
+    private static final int MAX_PENDING_ACKS = 64;
+
+    private static final Map<String, Object> sMetrics = new LinkedHashMap<>();
+    private static long sResetTime = SystemClock.elapsedRealtime();
+
+    /** Incoming messages. */
+    public static final Counter MESSAGES_RECEIVED = counter("message.received");
+    /** Incoming message processing, from stanza to stored message. */
+    public static final Histogram MESSAGE_INGEST = histogram("message.ingest", UNIT_MICROS, MAX_MICROS);
+    /** Message decryption. */
+    public static final Histogram MESSAGE_DECRYPT = histogram("message.decrypt", UNIT_MICROS, MAX_MICROS);
+    public static final Counter DECRYPT_ERRORS = counter("message.decrypt.errors");
+    /** Messages provider insert. */
+    public static final Histogram PROVIDER_INSERT = histogram("provider.insert", UNIT_MICROS, MAX_MICROS);
+
+    /** Outgoing messages. */
+    public static final Counter MESSAGES_SENT = counter("message.sent");
+    /** Round trip time from sending a message to the server ack. */
+    public static final LatencyTracker ACK_RTT = tracker("message.ack.rtt", MAX_PENDING_ACKS);
+
+    public static final Counter UPLOAD_BYTES = counter("upload.bytes");
+    public static final Histogram UPLOAD_THROUGHPUT = histogram("upload.throughput", UNIT_KBPS, MAX_KBPS);
+    public static final Counter DOWNLOAD_BYTES = counter("download.bytes");
+    public static final Histogram DOWNLOAD_THROUGHPUT = histogram("download.throughput", UNIT_KBPS, MAX_KBPS);
+
+    /** 1 while authenticated to the server. */
+    public static final Gauge CONNECTED = gauge("connection.connected");
+    /** Time from connection start to authentication. */
+    public static final Histogram CONNECT_TIME = histogram("connection.connect", UNIT_MILLIS, MAX_MILLIS);
+    public static final Counter RECONNECTS = counter("connection.reconnects");
+
+    private Metrics() {
+    }
+
+    public static synchronized Counter counter(String name) {
+        Counter c = (Counter) sMetrics.get(name);
+        if (c == null) {
+            c = new Counter();
+            sMetrics.put(name, c);
+        }
+        return c;
+    }
+
+    public static synchronized Gauge gauge(String name) {
+        Gauge g = (Gauge) sMetrics.get(name);
+        if (g == null) {
+            g = new Gauge();
+            sMetrics.put(name, g);
+        }
+        return g;
+    }
+
+    public static synchronized Histogram histogram(String name, String unit, long maxValue) {
+        Histogram h = (Histogram) sMetrics.get(name);
+        if (h == null) {
+            h = new Histogram(unit, maxValue);
+            sMetrics.put(name, h);
+        }
+        return h;
+    }
+
+    /** Creates a meter for a single upload. */
+    public static TransferMeter uploadMeter() {
+        return new TransferMeter(UPLOAD_BYTES, UPLOAD_THROUGHPUT);
+    }
+
+    /** Creates a meter for a single download. */
+    public static TransferMeter downloadMeter() {
+        return new TransferMeter(DOWNLOAD_BYTES, DOWNLOAD_THROUGHPUT);
+    }
+
+    private static LatencyTracker tracker(String name, int capacity) {
+        return new LatencyTracker(histogram(name, UNIT_MILLIS, MAX_MILLIS), capacity);
+    }
+
+    /** Converts a transfer to KiB/s. */
+    public static long throughput(long bytes, long elapsedMillis) {
+        return elapsedMillis > 0 ? (bytes * 1000 / 1024) / elapsedMillis : 0;
+    }
+
+    /** Resets all counters and histograms. */
+    public static synchronized void reset() {
+        for (Object metric : sMetrics.values()) {
+            if (metric instanceof Counter)
+                ((Counter) metric).reset();
+            else if (metric instanceof Histogram)
+                ((Histogram) metric).reset();
+        }
+        sResetTime = SystemClock.elapsedRealtime();
+    }
+
+    /** Writes a text snapshot of all metrics. */
+    public static void dump(PrintWriter out) {
+        Map<String, Object> metrics;
+        long since;
+        synchronized (Metrics.class) {
+            metrics = new LinkedHashMap<>(sMetrics);
+            since = sResetTime;
+        }
+
+        out.println("Metrics (last " + ((SystemClock.elapsedRealtime() - since) / 1000) + " s):");
+        for (Map.Entry<String, Object> e : metrics.entrySet()) {
+            out.print("  ");
+            out.print(e.getKey());
+            out.print(": ");
+            out.println(e.getValue());
+        }
+
+        out.print("  bitmap.pool: ");
+        out.println(BitmapPool.getInstance().getStats());
+    }
+
+}
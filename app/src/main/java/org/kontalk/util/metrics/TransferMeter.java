@@ -0,0 +1,70 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.util.metrics;
+
+import android.os.SystemClock;
+
+
+/**
+ * Measures a single file transfer from its progress reports. Transfers can
+ * be resumed, so progress is reported as an absolute position: the first
+ * report is used as the baseline and only the bytes moved from then on are
+ * counted. One instance per concurrent transfer.
+ * @author Daniele Ricci
+ */
+public final class TransferMeter {
+
+    private final Counter mBytes;
+    private final Histogram mThroughput;
+
+    private long mStart;
+    private long mBase = -1;
+    private long mPosition;
+
+    TransferMeter(Counter bytes, Histogram throughput) {
+        mBytes = bytes;
+        mThroughput = throughput;
+    }
+
+    /** Prepares for a new transfer. */
+    public void start() {
+        mBase = -1;
+    }
+
+    public void progress(long position) {
+        if (mBase < 0) {
+            mBase = position;
+            mStart = SystemClock.elapsedRealtime();
+        }
+        mPosition = position;
+    }
+
+    /** Records the transfer, if any progress was reported. */
+    public void completed() {
+        if (mBase >= 0) {
+            long bytes = mPosition - mBase;
+            mBytes.add(bytes);
+            mThroughput.record(Metrics.throughput(bytes,
+                SystemClock.elapsedRealtime() - mStart));
+            mBase = -1;
+        }
+    }
+
+}
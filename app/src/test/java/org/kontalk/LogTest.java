@@ -0,0 +1,44 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class LogTest {
+
+    @Test
+    public void testFormat() {
+        assertEquals("no arguments", Log.format("no arguments", 1, "x", null, null));
+        assertEquals("message 12", Log.format("message {}", 1, 12L, null, null));
+        assertEquals("12x34 image", Log.format("{}x{} image", 2, 12, 34, null));
+        assertEquals("a, b and c", Log.format("{}, {} and {}", 3, "a", "b", "c"));
+        assertEquals("value null", Log.format("value {}", 1, null, null, null));
+    }
+
+    @Test
+    public void testMissingArguments() {
+        assertEquals("only 1 of {}", Log.format("only {} of {}", 1, 1, null, null));
+        assertEquals("extra", Log.format("extra", 2, "a", "b", null));
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.text.Collator;
+import java.util.Locale;
+
+import org.junit.Test;
+
+import com.google.i18n.phonenumbers.PhoneNumberUtil;
+
+import static org.junit.Assert.*;
+
+
+public class CountryCodesTest {
+
+    @Test
+    public void testLookup() {
+        assertTrue(CountryCodes.getCount() > 200);
+        assertEquals(39, CountryCodes.getCountryCode("IT"));
+        assertEquals(1, CountryCodes.getCountryCode("US"));
+        assertEquals(44, CountryCodes.getCountryCode("GB"));
+        assertEquals(0, CountryCodes.getCountryCode("XX"));
+        assertEquals(-1, CountryCodes.indexOf(null));
+        assertEquals(-1, CountryCodes.indexOf("ITA"));
+
+        for (int i = 0; i < CountryCodes.getCount(); i++) {
+            String regionCode = CountryCodes.getRegionCode(i);
+            assertEquals(i, CountryCodes.indexOf(regionCode));
+            if (i > 0)
+                assertTrue(CountryCodes.getRegionCode(i - 1).compareTo(regionCode) < 0);
+        }
+    }
+
+    @Test
+    public void testMatchesMetadata() {
+        PhoneNumberUtil util = PhoneNumberUtil.getInstance();
+        assertEquals(util.getSupportedRegions().size(), CountryCodes.getCount());
+        for (String regionCode : util.getSupportedRegions())
+            assertEquals(util.getCountryCodeForRegion(regionCode), CountryCodes.getCountryCode(regionCode));
+    }
+
+    @Test
+    public void testSorted() {
+        Locale locale = Locale.ITALIAN;
+        Collator collator = Collator.getInstance(locale);
+        int[] sorted = CountryCodes.getSortedIndexes(locale);
+        assertEquals(CountryCodes.getCount(), sorted.length);
+
+        boolean[] seen = new boolean[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            assertFalse(seen[sorted[i]]);
+            seen[sorted[i]] = true;
+            if (i > 0)
+                assertTrue(collator.compare(CountryCodes.getRegionName(sorted[i - 1], locale),
+                    CountryCodes.getRegionName(sorted[i], locale)) <= 0);
+        }
+        assertEquals("Italia", CountryCodes.getRegionName(CountryCodes.indexOf("IT"), locale));
+    }
+
+    @Test
+    public void testSortedCached() {
+        Locale locale = Locale.FRENCH;
+        int[] sorted = CountryCodes.getSortedIndexes(locale);
+        int[] cached = CountryCodes.getSortedIndexes(locale);
+        assertNotSame(sorted, cached);
+        assertArrayEquals(sorted, cached);
+
+        // callers can't alter the cached order
+        int first = sorted[0];
+        sorted[0] = sorted[1];
+        assertEquals(first, CountryCodes.getSortedIndexes(locale)[0]);
+
+        for (int i = 0; i < CountryCodes.getCount(); i++)
+            assertEquals(NumberValidator.getRegionDisplayName(CountryCodes.getRegionCode(i), locale),
+                CountryCodes.getRegionName(i, locale));
+    }
+
+}
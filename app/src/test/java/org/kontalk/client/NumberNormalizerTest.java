@@ -0,0 +1,115 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.i18n.phonenumbers.NumberParseException;
+
+import static org.junit.Assert.*;
+
+
+public class NumberNormalizerTest {
+
+    private static final int COUNT = 10000;
+    /** Percentage of numbers appearing more than once. */
+    private static final int DUPLICATES = 30;
+
+    private static final String MY_NUMBER = "+393351234567";
+
+    private static List<String> createNumbers(int count) {
+        List<String> numbers = new ArrayList<>(count);
+        int unique = count * (100 - DUPLICATES) / 100;
+        for (int i = 0; i < unique; i++) {
+            String subscriber = String.format("%07d", i);
+            switch (i % 4) {
+                case 0:
+                    numbers.add("333 " + subscriber);
+                    break;
+                case 1:
+                    numbers.add("+39 347 " + subscriber.substring(0, 3) + " " + subscriber.substring(3));
+                    break;
+                case 2:
+                    numbers.add("0039320" + subscriber);
+                    break;
+                default:
+                    numbers.add("(349) " + subscriber.substring(0, 3) + "-" + subscriber.substring(3));
+            }
+        }
+        // same numbers in more than one contact
+        for (int i = unique; i < count; i++)
+            numbers.add(numbers.get((i * 7) % unique));
+        return numbers;
+    }
+
+    @Test
+    public void testNormalize() throws Exception {
+        NumberNormalizer normalizer = new NumberNormalizer("us", MY_NUMBER, 0);
+        // region taken from own number
+        assertEquals("IT", normalizer.getRegionCode());
+        assertEquals("+393331234567", normalizer.normalize("333 1234567"));
+        assertEquals("+14155552671", normalizer.normalize("+1 415-555-2671"));
+        // cached
+        assertEquals("+393331234567", normalizer.normalize("333 1234567"));
+
+        NumberNormalizer.Result result = normalizer.get("333 1234567");
+        assertEquals("+393331234567", result.number);
+        assertEquals(40, result.hash.length());
+        assertSame(result, normalizer.get("333 1234567"));
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        NumberNormalizer normalizer = new NumberNormalizer(null, null, 0);
+        assertNull(normalizer.get("333 1234567"));
+        try {
+            normalizer.normalize("333 1234567");
+            fail("number without region was normalized");
+        }
+        catch (NumberParseException expected) {
+        }
+
+        // last resort country code
+        normalizer = new NumberNormalizer(null, null, 39);
+        assertEquals("+393331234567", normalizer.normalize("333 1234567"));
+    }
+
+    @Test
+    public void testSession() throws Exception {
+        List<String> numbers = createNumbers(COUNT);
+
+        // region resolved again for every number
+        String[] expected = new String[COUNT];
+        for (int i = 0; i < COUNT; i++)
+            expected[i] = new NumberNormalizer("IT", MY_NUMBER, 0).get(numbers.get(i)).hash;
+
+        // a single session must give the same results
+        NumberNormalizer.Result[] results = new NumberNormalizer("IT", MY_NUMBER, 0)
+            .getAll(numbers);
+
+        assertEquals(COUNT, results.length);
+        for (int i = 0; i < COUNT; i++)
+            assertEquals(expected[i], results[i].hash);
+    }
+
+}
@@ -0,0 +1,286 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Races connections against local socket stand-ins. The handshake is a
+ * single byte sent by the server after an optional delay.
+ */
+public class ServerRacerTest {
+
+    /** A local server answering the handshake after a delay (or never). */
+    private static class StandInServer extends Thread {
+        final ServerSocket socket;
+        final long delay;
+        final List<Socket> clients = Collections.synchronizedList(new ArrayList<Socket>());
+
+        /** @param delay handshake delay, negative to never answer */
+        StandInServer(long delay) throws IOException {
+            this.socket = new ServerSocket(0);
+            this.delay = delay;
+            setDaemon(true);
+            start();
+        }
+
+        EndpointServer getServer() {
+            return new EndpointServer("test.kontalk.net", "127.0.0.1", socket.getLocalPort());
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket client = socket.accept();
+                    clients.add(client);
+                    if (delay >= 0) {
+                        new Thread() {
+                            public void run() {
+                                try {
+                                    Thread.sleep(delay);
+                                    OutputStream out = client.getOutputStream();
+                                    out.write(1);
+                                    out.flush();
+                                }
+                                catch (Exception ignored) {
+                                }
+                            }
+                        }.start();
+                    }
+                }
+            }
+            catch (IOException ignored) {
+            }
+        }
+
+        void close() throws IOException {
+            socket.close();
+            for (Socket s : clients)
+                s.close();
+        }
+    }
+
+    /** A plain socket connection to a stand-in server. */
+    private static class Connection {
+        final EndpointServer server;
+        final Socket socket = new Socket();
+
+        Connection(EndpointServer server) {
+            this.server = server;
+        }
+    }
+
+    /** Connector using plain sockets; reads the handshake byte. */
+    private static class SocketConnector implements ServerRacer.Connector<Connection> {
+        final AtomicInteger attempts = new AtomicInteger();
+        final List<Connection> closed = Collections.synchronizedList(new ArrayList<Connection>());
+
+        @Override
+        public Connection create(EndpointServer server) {
+            return new Connection(server);
+        }
+
+        @Override
+        public void connect(Connection conn) throws Exception {
+            attempts.incrementAndGet();
+            conn.socket.connect(new InetSocketAddress(conn.server.getHost(), conn.server.getPort()), 5000);
+            InputStream in = conn.socket.getInputStream();
+            if (in.read() != 1)
+                throw new IOException("handshake failed");
+        }
+
+        @Override
+        public void close(Connection conn) {
+            closed.add(conn);
+            try {
+                conn.socket.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+
+    private List<StandInServer> mServers;
+    private SocketConnector mConnector;
+    private ServerStats mStats;
+
+    @Before
+    public void setUp() {
+        mServers = new ArrayList<>();
+        mConnector = new SocketConnector();
+        mStats = new ServerStats();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (StandInServer s : mServers)
+            s.close();
+    }
+
+    private StandInServer server(long delay) throws IOException {
+        StandInServer s = new StandInServer(delay);
+        mServers.add(s);
+        return s;
+    }
+
+    /** Returns a server address where nobody is listening. */
+    private static EndpointServer deadServer() throws IOException {
+        ServerSocket s = new ServerSocket(0);
+        int port = s.getLocalPort();
+        s.close();
+        return new EndpointServer("test.kontalk.net", "127.0.0.1", port);
+    }
+
+    @Test
+    public void testFastestWins() throws Exception {
+        StandInServer hung = server(-1);
+        StandInServer slow = server(1500);
+        StandInServer fast = server(0);
+
+        ServerRacer<Connection> racer = new ServerRacer<>(mConnector, mStats, 3, 100);
+        ServerRacer.Result<Connection> result = racer.race(Arrays.asList(
+            hung.getServer(), slow.getServer(), fast.getServer()));
+
+        assertEquals(fast.getServer(), result.server);
+        assertTrue(result.connection.socket.isConnected());
+        assertFalse(result.connection.socket.isClosed());
+        assertFalse(mConnector.closed.contains(result.connection));
+        // losers were aborted
+        assertEquals(2, mConnector.closed.size());
+        for (Connection c : mConnector.closed)
+            assertTrue(c.socket.isClosed());
+
+        // only the winner is recorded, losers were cancelled
+        assertEquals(1, mStats.get(fast.getServer()).successes);
+        assertNull(mStats.get(hung.getServer()));
+
+        result.connection.socket.close();
+    }
+
+    @Test
+    public void testStaggered() throws Exception {
+        StandInServer first = server(0);
+        StandInServer second = server(0);
+
+        // first server answers well before the stagger delay
+        ServerRacer<Connection> racer = new ServerRacer<>(mConnector, null, 3, 2000);
+        ServerRacer.Result<Connection> result = racer.race(Arrays.asList(
+            first.getServer(), second.getServer()));
+
+        assertEquals(first.getServer(), result.server);
+        assertEquals(1, mConnector.attempts.get());
+        result.connection.socket.close();
+    }
+
+    @Test
+    public void testDeadServerSkipped() throws Exception {
+        EndpointServer dead = deadServer();
+        StandInServer alive = server(0);
+
+        // a refused connection starts the next attempt without waiting
+        ServerRacer<Connection> racer = new ServerRacer<>(mConnector, mStats, 3, 10000);
+        long start = System.currentTimeMillis();
+        ServerRacer.Result<Connection> result = racer.race(Arrays.asList(dead, alive.getServer()));
+
+        assertEquals(alive.getServer(), result.server);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(1, mStats.get(dead).failures);
+        assertEquals(1, mStats.get(alive.getServer()).successes);
+        result.connection.socket.close();
+    }
+
+    @Test
+    public void testAllFailed() throws Exception {
+        ServerRacer<Connection> racer = new ServerRacer<>(mConnector, mStats, 3, 100);
+        try {
+            racer.race(Arrays.asList(deadServer(), deadServer()));
+            fail("race should have failed");
+        }
+        catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        final StandInServer hung = server(-1);
+        final ServerRacer<Connection> racer = new ServerRacer<>(mConnector, mStats, 3, 100);
+
+        new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(300);
+                }
+                catch (InterruptedException ignored) {
+                }
+                racer.cancel();
+            }
+        }.start();
+
+        try {
+            racer.race(Collections.singletonList(hung.getServer()));
+            fail("race should have been cancelled");
+        }
+        catch (InterruptedException expected) {
+        }
+        assertNull(mStats.get(hung.getServer()));
+    }
+
+    @Test
+    public void testRanking() {
+        EndpointServer a = new EndpointServer("test.kontalk.net", "a", 5222);
+        EndpointServer b = new EndpointServer("test.kontalk.net", "b", 5222);
+        EndpointServer c = new EndpointServer("test.kontalk.net", "c", 5222);
+
+        mStats.recordSuccess(a, 800);
+        mStats.recordSuccess(b, 1500);
+        mStats.recordFailure(b);
+        mStats.recordFailure(b);
+        mStats.recordFailure(b);
+        mStats.recordFailure(b);
+        mStats.recordFailure(b);
+        // c unknown, b is fast but unreliable
+
+        assertEquals(Arrays.asList(a, c, b), mStats.rank(Arrays.asList(c, b, a)));
+
+        ServerStats copy = ServerStats.fromString(mStats.toString());
+        assertEquals(Arrays.asList(a, c, b), copy.rank(Arrays.asList(c, b, a)));
+        assertEquals(5, copy.get(b).failures);
+        assertEquals(800, copy.get(a).rtt);
+    }
+
+}
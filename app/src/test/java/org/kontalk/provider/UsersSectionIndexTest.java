@@ -0,0 +1,147 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+
+import static org.junit.Assert.*;
+
+
+public class UsersSectionIndexTest {
+
+    /** Index over an in-memory table of registered users. */
+    private static final class TestIndex extends UsersSectionIndex {
+        final Map<Long, String> table = new HashMap<>();
+        /** Run once after the next full load has read the table. */
+        Runnable afterLoad;
+
+        String[] labels;
+        int[] counts;
+
+        TestIndex() {
+            super(null);
+        }
+
+        @Override
+        Map<Long, String> query(SQLiteDatabase db, long[] ids) {
+            Map<Long, String> names = new LinkedHashMap<>();
+            if (ids == null) {
+                names.putAll(table);
+                if (afterLoad != null) {
+                    Runnable r = afterLoad;
+                    afterLoad = null;
+                    r.run();
+                }
+            }
+            else {
+                for (long id : ids) {
+                    if (table.containsKey(id))
+                        names.put(id, table.get(id));
+                }
+            }
+            return names;
+        }
+
+        @Override
+        String getLabel(String displayName) {
+            return displayName.substring(0, 1);
+        }
+
+        @Override
+        Bundle buildExtras(String[] labels, int[] counts) {
+            this.labels = labels;
+            this.counts = counts;
+            return null;
+        }
+
+        void assertIndex(String[] labels, int[] counts) {
+            getExtras(null);
+            assertArrayEquals(labels, this.labels);
+            assertArrayEquals(counts, this.counts);
+        }
+    }
+
+    private TestIndex mIndex;
+
+    @Before
+    public void setUp() {
+        mIndex = new TestIndex();
+        mIndex.table.put(1L, "alice");
+        mIndex.table.put(2L, "Bob");
+        mIndex.table.put(3L, "anna");
+    }
+
+    @Test
+    public void testLoad() {
+        mIndex.assertIndex(new String[] { "A", "B" }, new int[] { 2, 1 });
+    }
+
+    @Test
+    public void testUpdate() {
+        mIndex.assertIndex(new String[] { "A", "B" }, new int[] { 2, 1 });
+
+        mIndex.table.put(2L, "carl");
+        mIndex.update(null, new long[] { 2 });
+        mIndex.assertIndex(new String[] { "A", "C" }, new int[] { 2, 1 });
+
+        // no longer registered
+        mIndex.table.remove(1L);
+        mIndex.table.remove(3L);
+        mIndex.update(null, new long[] { 1, 3 });
+        mIndex.assertIndex(new String[] { "C" }, new int[] { 1 });
+    }
+
+    @Test
+    public void testUpdateDuringLoad() {
+        // a write committed after the load read the table
+        mIndex.afterLoad = new Runnable() {
+            @Override
+            public void run() {
+                mIndex.table.put(2L, "carl");
+                mIndex.update(null, new long[] { 2 });
+            }
+        };
+        mIndex.assertIndex(new String[] { "A", "B" }, new int[] { 2, 1 });
+
+        // outdated load must not have been kept
+        mIndex.assertIndex(new String[] { "A", "C" }, new int[] { 2, 1 });
+    }
+
+    @Test
+    public void testInvalidateDuringLoad() {
+        mIndex.afterLoad = new Runnable() {
+            @Override
+            public void run() {
+                mIndex.table.remove(2L);
+                mIndex.invalidate();
+            }
+        };
+        mIndex.assertIndex(new String[] { "A", "B" }, new int[] { 2, 1 });
+        mIndex.assertIndex(new String[] { "A" }, new int[] { 2 });
+    }
+
+}
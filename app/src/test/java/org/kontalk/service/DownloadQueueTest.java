@@ -0,0 +1,146 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class DownloadQueueTest {
+
+    private static final String HOST1 = "https://host1.kontalk.net/download/";
+    private static final String HOST2 = "https://host2.kontalk.net/download/";
+
+    private DownloadQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mQueue = new DownloadQueue(3, 2);
+    }
+
+    private DownloadQueue.Task add(String url, int priority) {
+        return mQueue.add(url, 1, "peer", false, 0, priority);
+    }
+
+    @Test
+    public void testDuplicate() {
+        assertNotNull(add(HOST1 + "a", DownloadQueue.PRIORITY_NORMAL));
+        assertNull(add(HOST1 + "a", DownloadQueue.PRIORITY_NORMAL));
+        assertTrue(mQueue.contains(HOST1 + "a"));
+    }
+
+    @Test
+    public void testLimits() {
+        add(HOST1 + "a", DownloadQueue.PRIORITY_NORMAL);
+        add(HOST1 + "b", DownloadQueue.PRIORITY_NORMAL);
+        add(HOST1 + "c", DownloadQueue.PRIORITY_NORMAL);
+        add(HOST2 + "a", DownloadQueue.PRIORITY_NORMAL);
+        add(HOST2 + "b", DownloadQueue.PRIORITY_NORMAL);
+
+        DownloadQueue.Task t1 = mQueue.next();
+        DownloadQueue.Task t2 = mQueue.next();
+        DownloadQueue.Task t3 = mQueue.next();
+        assertEquals(HOST1 + "a", t1.url);
+        assertEquals(HOST1 + "b", t2.url);
+        // per-host limit reached, next host is picked
+        assertEquals(HOST2 + "a", t3.url);
+        // global limit reached
+        assertNull(mQueue.next());
+
+        mQueue.release(t1);
+        assertFalse(mQueue.contains(t1.url));
+        assertEquals(HOST1 + "c", mQueue.next().url);
+        assertNull(mQueue.next());
+    }
+
+    @Test
+    public void testPriority() {
+        add(HOST1 + "a", DownloadQueue.PRIORITY_NORMAL);
+        add(HOST1 + "b", DownloadQueue.PRIORITY_NORMAL);
+        add(HOST1 + "c", DownloadQueue.PRIORITY_NORMAL);
+        mQueue.setPriority(HOST1 + "c", DownloadQueue.PRIORITY_VISIBLE);
+
+        assertEquals(HOST1 + "c", mQueue.next().url);
+        assertEquals(HOST1 + "a", mQueue.next().url);
+    }
+
+    @Test
+    public void testPauseResume() {
+        add(HOST1 + "a", DownloadQueue.PRIORITY_NORMAL);
+        add(HOST1 + "b", DownloadQueue.PRIORITY_NORMAL);
+
+        // pausing a queued task doesn't need any interruption
+        assertNull(mQueue.pause(HOST1 + "b"));
+        DownloadQueue.Task running = mQueue.next();
+        assertEquals(HOST1 + "a", running.url);
+        assertNull(mQueue.next());
+
+        // pausing a running task keeps its slot until released
+        assertSame(running, mQueue.pause(HOST1 + "a"));
+        assertTrue(mQueue.resume(HOST1 + "b"));
+        assertEquals(HOST1 + "b", mQueue.next().url);
+        mQueue.release(running);
+        assertTrue(mQueue.isPaused(HOST1 + "a"));
+        assertNull(mQueue.next());
+
+        assertTrue(mQueue.resume(HOST1 + "a"));
+        assertEquals(HOST1 + "a", mQueue.next().url);
+    }
+
+    @Test
+    public void testCancel() {
+        add(HOST1 + "a", DownloadQueue.PRIORITY_NORMAL);
+        add(HOST1 + "b", DownloadQueue.PRIORITY_NORMAL);
+
+        DownloadQueue.Task running = mQueue.next();
+        assertNull(mQueue.cancel(HOST1 + "b"));
+        assertSame(running, mQueue.cancel(HOST1 + "a"));
+        assertFalse(mQueue.contains(HOST1 + "a"));
+        assertTrue(mQueue.hasPending());
+
+        mQueue.release(running);
+        assertFalse(mQueue.hasPending());
+    }
+
+    @Test
+    public void testProgress() {
+        add(HOST1 + "a", DownloadQueue.PRIORITY_NORMAL);
+        add(HOST2 + "a", DownloadQueue.PRIORITY_NORMAL);
+        add(HOST2 + "b", DownloadQueue.PRIORITY_NORMAL);
+
+        DownloadQueue.Task t1 = mQueue.next();
+        DownloadQueue.Task t2 = mQueue.next();
+        t1.length = 1000;
+        t1.bytes = 500;
+        t2.length = 3000;
+        t2.bytes = 500;
+
+        DownloadQueue.Progress p = mQueue.getProgress();
+        assertEquals(3, p.count);
+        assertEquals(2, p.running);
+        assertEquals(25, p.getPercent());
+
+        t2.length = -1;
+        assertEquals(-1, mQueue.getProgress().getPercent());
+    }
+
+}
@@ -0,0 +1,250 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Simulation harness for {@link PingIntervalLearner}: replays NAT timeout
+ * scenarios against the learner. A ping succeeds if the interval is shorter
+ * than the simulated NAT timeout of the current network.
+ */
+public class PingIntervalLearnerTest {
+
+    private static final long SECOND = 1000;
+    private static final long MINUTE = 60 * SECOND;
+
+    private static final long MIN = 90 * SECOND;
+    private static final long MAX = 30 * MINUTE;
+    private static final long RESOLUTION = 30 * SECOND;
+    private static final int REPROBE = 50;
+
+    /** In-memory storage, survives learner instances. */
+    private static class MemoryStorage implements PingIntervalLearner.Storage {
+        final Map<String, PingIntervalLearner.NetworkState> states = new HashMap<>();
+
+        @Override
+        public PingIntervalLearner.NetworkState load(String network) {
+            return states.get(network);
+        }
+
+        @Override
+        public void save(String network, PingIntervalLearner.NetworkState state) {
+            states.put(network, state);
+        }
+    }
+
+    /** Simulated network with a NAT that drops idle connections. */
+    private static class Simulator {
+        final PingIntervalLearner learner;
+        final Map<String, Long> timeouts = new HashMap<>();
+        int failures;
+        int pings;
+
+        Simulator(PingIntervalLearner learner) {
+            this.learner = learner;
+        }
+
+        void switchTo(String network) {
+            learner.setNetwork(network);
+        }
+
+        /** Runs the given number of ping cycles on the current network. */
+        void run(int count) {
+            long timeout = timeouts.get(learner.getNetwork());
+            for (int i = 0; i < count; i++) {
+                pings++;
+                long idle = learner.getInterval();
+                if (idle < timeout) {
+                    learner.onSuccess(idle);
+                }
+                else {
+                    failures++;
+                    learner.onFailure(idle);
+                }
+            }
+        }
+    }
+
+    private MemoryStorage mStorage;
+    private Simulator mSim;
+
+    @Before
+    public void setUp() {
+        mStorage = new MemoryStorage();
+        mSim = new Simulator(newLearner());
+        mSim.timeouts.put("WIFI/home", 10 * MINUTE);
+        mSim.timeouts.put("WIFI/office", 4 * MINUTE);
+        mSim.timeouts.put("MOBILE/internet", 28 * MINUTE);
+    }
+
+    private PingIntervalLearner newLearner() {
+        return new PingIntervalLearner(MIN, MAX, RESOLUTION, REPROBE, mStorage);
+    }
+
+    private void assertConvergedTo(long timeout) {
+        PingIntervalLearner learner = mSim.learner;
+        assertTrue(learner.isConverged());
+        assertTrue(learner.getInterval() < timeout);
+        assertTrue(timeout - learner.getInterval() <= RESOLUTION);
+    }
+
+    @Test
+    public void testConverges() {
+        mSim.switchTo("WIFI/home");
+        mSim.run(20);
+
+        assertConvergedTo(10 * MINUTE);
+        // binary search: about log2((MAX - MIN) / RESOLUTION) failures
+        assertTrue("too many failures: " + mSim.failures, mSim.failures <= 7);
+    }
+
+    @Test
+    public void testNoLimit() {
+        mSim.timeouts.put("WIFI/open", Long.MAX_VALUE);
+        mSim.switchTo("WIFI/open");
+        mSim.run(10);
+
+        assertTrue(mSim.learner.isConverged());
+        assertEquals(MAX, mSim.learner.getInterval());
+        assertEquals(0, mSim.failures);
+    }
+
+    @Test
+    public void testShortTimeout() {
+        // NAT timeout below our minimum: stay at the minimum
+        mSim.timeouts.put("MOBILE/strict", 60 * SECOND);
+        mSim.switchTo("MOBILE/strict");
+        mSim.run(20);
+
+        assertEquals(MIN, mSim.learner.getInterval());
+    }
+
+    @Test
+    public void testNetworkSwitchRemembers() {
+        mSim.switchTo("WIFI/home");
+        mSim.run(20);
+        mSim.switchTo("WIFI/office");
+        mSim.run(20);
+        mSim.switchTo("MOBILE/internet");
+        mSim.run(20);
+
+        int failures = mSim.failures;
+
+        // going back to known networks must not cause any failure
+        mSim.switchTo("WIFI/home");
+        assertConvergedTo(10 * MINUTE);
+        mSim.run(REPROBE - 1);
+        mSim.switchTo("WIFI/office");
+        assertConvergedTo(4 * MINUTE);
+        mSim.run(REPROBE - 1);
+
+        assertEquals(failures, mSim.failures);
+    }
+
+    @Test
+    public void testPersistence() {
+        mSim.switchTo("WIFI/office");
+        mSim.run(20);
+        long learned = mSim.learner.getInterval();
+
+        // simulate a restart
+        Simulator sim = new Simulator(newLearner());
+        sim.timeouts.putAll(mSim.timeouts);
+        sim.switchTo("WIFI/office");
+        assertEquals(learned, sim.learner.getInterval());
+        sim.run(REPROBE - 1);
+        assertEquals(0, sim.failures);
+
+        assertTrue(mStorage.states.containsKey("WIFI/office"));
+        assertEquals(learned, mStorage.states.get("WIFI/office").safe);
+    }
+
+    @Test
+    public void testTimeoutShrinks() {
+        mSim.switchTo("WIFI/home");
+        mSim.run(20);
+
+        // router replaced, timeout is much shorter now
+        mSim.timeouts.put("WIFI/home", 3 * MINUTE);
+        int failures = mSim.failures;
+        mSim.run(20);
+
+        assertConvergedTo(3 * MINUTE);
+        assertTrue(mSim.failures - failures <= 7);
+    }
+
+    @Test
+    public void testTimeoutGrows() {
+        mSim.switchTo("WIFI/office");
+        mSim.run(20);
+
+        mSim.timeouts.put("WIFI/office", 20 * MINUTE);
+        // enough cycles for a reprobe and a new search
+        mSim.run(REPROBE + 40);
+
+        assertConvergedTo(20 * MINUTE);
+    }
+
+    @Test
+    public void testReprobeCost() {
+        mSim.switchTo("WIFI/home");
+        mSim.run(20);
+        int failures = mSim.failures;
+
+        // unchanged timeout: one failed probe every REPROBE successful pings
+        mSim.run(REPROBE * 10);
+        assertTrue(mSim.failures - failures <= 10);
+        assertConvergedTo(10 * MINUTE);
+    }
+
+    @Test
+    public void testActualIdleTime() {
+        PingIntervalLearner learner = newLearner();
+        learner.setNetwork("WIFI/home");
+        assertEquals(MAX, learner.getInterval());
+        learner.onFailure(0);
+        assertEquals(MAX, learner.getUnsafeInterval());
+
+        // delayed alarm: the connection was idle longer than scheduled
+        long scheduled = learner.getInterval();
+        learner.onFailure(scheduled + 3 * MINUTE);
+        assertEquals(scheduled + 3 * MINUTE, learner.getUnsafeInterval());
+
+        // other traffic: the connection was idle less than scheduled
+        scheduled = learner.getInterval();
+        learner.onSuccess(scheduled - 2 * MINUTE);
+        assertEquals(scheduled - 2 * MINUTE, learner.getSafeInterval());
+
+        // failing below the minimum interval is not an idle timeout
+        long unsafe = learner.getUnsafeInterval();
+        learner.onFailure(MIN / 2);
+        assertEquals(scheduled - 2 * MINUTE, learner.getSafeInterval());
+        assertEquals(unsafe, learner.getUnsafeInterval());
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+import java.util.List;
+import java.util.Map;
+
+import org.jivesoftware.smack.packet.Presence;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class PresenceCoalescerTest {
+
+    private static Presence presence(String from, Presence.Type type) {
+        Presence p = new Presence(type);
+        p.setFrom(from);
+        return p;
+    }
+
+    @Test
+    public void testResources() {
+        PresenceCoalescer coalescer = new PresenceCoalescer();
+        assertTrue(coalescer.offer(presence("user@server/A", Presence.Type.unavailable)));
+        assertFalse(coalescer.offer(presence("user@server/B", Presence.Type.unavailable)));
+        assertFalse(coalescer.offer(presence("user@server/A", Presence.Type.available)));
+        assertFalse(coalescer.offer(presence("other@server/A", Presence.Type.available)));
+
+        Map<String, List<Presence>> pending = coalescer.drain();
+        assertEquals(2, pending.size());
+
+        // latest stanza of each resource, oldest first
+        List<Presence> user = pending.get("user@server");
+        assertEquals(2, user.size());
+        assertEquals("user@server/B", user.get(0).getFrom());
+        assertFalse(user.get(0).isAvailable());
+        assertEquals("user@server/A", user.get(1).getFrom());
+        assertTrue(user.get(1).isAvailable());
+
+        assertEquals(1, pending.get("other@server").size());
+
+        // new window
+        assertTrue(coalescer.drain().isEmpty());
+        assertTrue(coalescer.offer(presence("user@server/A", Presence.Type.available)));
+    }
+
+}
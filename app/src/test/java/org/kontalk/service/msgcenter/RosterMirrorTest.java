@@ -0,0 +1,110 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jivesoftware.smack.roster.packet.RosterPacket;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class RosterMirrorTest {
+
+    private static final int ROSTER_SIZE = 2000;
+
+    private RosterMirror mMirror;
+
+    @Before
+    public void setUp() {
+        mMirror = new RosterMirror();
+        mMirror.load(createRoster(ROSTER_SIZE), "1");
+    }
+
+    private static RosterPacket.Item createItem(int i, String name) {
+        RosterPacket.Item item = new RosterPacket.Item("user" + i + "@example.com", name);
+        item.setItemType(RosterPacket.ItemType.both);
+        item.addGroupName("kontalk");
+        return item;
+    }
+
+    private static List<RosterPacket.Item> createRoster(int count) {
+        List<RosterPacket.Item> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            items.add(createItem(i, null));
+        return items;
+    }
+
+    @Test
+    public void testUnchangedReconnect() {
+        RosterMirror.Changes changes = mMirror.diff(createRoster(ROSTER_SIZE));
+
+        // nothing to write on an unchanged roster
+        assertTrue(changes.isEmpty());
+        assertEquals(0, changes.size());
+    }
+
+    @Test
+    public void testLightlyChangedReconnect() {
+        List<RosterPacket.Item> items = createRoster(ROSTER_SIZE);
+        // 10 renamed
+        for (int i = 0; i < 10; i++)
+            items.set(i * 100, createItem(i * 100, "Renamed " + i));
+        // 5 removed
+        for (int i = 0; i < 5; i++)
+            items.remove(items.size() - 1);
+        // 5 added
+        for (int i = 0; i < 5; i++)
+            items.add(createItem(ROSTER_SIZE + i, null));
+
+        RosterMirror.Changes changes = mMirror.diff(items);
+
+        // only the changed rows are written, not the whole roster
+        assertEquals(15, changes.upserts.size());
+        assertEquals(5, changes.deletes.size());
+        assertEquals(20, changes.size());
+
+        mMirror.apply(changes, "2");
+        assertEquals(ROSTER_SIZE, mMirror.size());
+        assertEquals("2", mMirror.getVersion());
+        assertEquals("Renamed 1", mMirror.get("user100@example.com").getName());
+        assertNull(mMirror.get("user" + (ROSTER_SIZE - 1) + "@example.com"));
+        assertTrue(mMirror.diff(items).isEmpty());
+    }
+
+    @Test
+    public void testSameItem() {
+        RosterPacket.Item a = createItem(1, null);
+        RosterPacket.Item b = createItem(1, "");
+        // empty name is stored as null
+        assertTrue(RosterMirror.sameItem(a, b));
+
+        b.setItemType(RosterPacket.ItemType.to);
+        assertFalse(RosterMirror.sameItem(a, b));
+
+        b = createItem(1, null);
+        b.addGroupName("friends");
+        assertFalse(RosterMirror.sameItem(a, b));
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter.event;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class EventBusTest {
+
+    private EventBus mBus;
+
+    private static final class Collector<T extends MessageCenterEvent> implements EventSubscriber<T> {
+        final List<T> events = new ArrayList<>();
+
+        @Override
+        public void onEvent(T event) {
+            events.add(event);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mBus = new EventBus();
+    }
+
+    @Test
+    public void testTopicRouting() throws Exception {
+        Collector<VersionEvent> alice = new Collector<>();
+        Collector<VersionEvent> all = new Collector<>();
+        mBus.subscribe(VersionEvent.class, "alice@kontalk.net", EventBus.POSTING, alice, false);
+        mBus.subscribe(VersionEvent.class, null, EventBus.POSTING, all, false);
+
+        mBus.publish(new VersionEvent("alice@kontalk.net/phone", null, "1", "Kontalk", "3.1"));
+        mBus.publish(new VersionEvent("bob@kontalk.net/phone", null, "2", "Kontalk", "3.0"));
+
+        assertEquals(1, alice.events.size());
+        assertEquals("1", alice.events.get(0).getId());
+        assertEquals(2, all.events.size());
+    }
+
+    @Test
+    public void testTypeFilter() throws Exception {
+        Collector<PublicKeyEvent> keys = new Collector<>();
+        Collector<MessageCenterEvent> any = new Collector<>();
+        mBus.subscribe(PublicKeyEvent.class, "alice@kontalk.net", EventBus.POSTING, keys, false);
+        mBus.subscribe(MessageCenterEvent.class, "alice@kontalk.net", EventBus.POSTING, any, false);
+
+        mBus.publish(new VersionEvent("alice@kontalk.net", null, "1", "Kontalk", "3.1"));
+        mBus.publish(new PublicKeyEvent("alice@kontalk.net", null, "2", new byte[] { 1 }));
+
+        assertEquals(1, keys.events.size());
+        assertEquals(2, any.events.size());
+    }
+
+    @Test
+    public void testSticky() throws Exception {
+        mBus.publish(new VersionEvent("alice@kontalk.net/phone", null, "1", "Kontalk", "3.0"));
+        mBus.publish(new VersionEvent("Alice@kontalk.net/tablet", null, "2", "Kontalk", "3.1"));
+
+        VersionEvent last = mBus.getSticky(VersionEvent.class, "alice@kontalk.net");
+        assertNotNull(last);
+        assertEquals("3.1", last.getVersion());
+
+        Collector<VersionEvent> late = new Collector<>();
+        mBus.subscribe(VersionEvent.class, "alice@kontalk.net", EventBus.POSTING, late, true);
+        assertEquals(1, late.events.size());
+        assertSame(last, late.events.get(0));
+
+        mBus.clearSticky(VersionEvent.class);
+        assertNull(mBus.getSticky(VersionEvent.class, "alice@kontalk.net"));
+    }
+
+    @Test
+    public void testStickyOrder() throws Exception {
+        final List<Runnable> tasks = new ArrayList<>();
+        Executor queue = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+
+        VersionEvent old = new VersionEvent("alice@kontalk.net", null, "1", "Kontalk", "3.0");
+        mBus.publish(old);
+
+        Collector<VersionEvent> late = new Collector<>();
+        mBus.subscribe(VersionEvent.class, "alice@kontalk.net", queue, late, true);
+        VersionEvent newer = new VersionEvent("alice@kontalk.net", null, "2", "Kontalk", "3.1");
+        mBus.publish(newer);
+
+        // run the delivery of the new event before the sticky one
+        assertEquals(2, tasks.size());
+        tasks.get(1).run();
+        tasks.get(0).run();
+
+        assertEquals(2, late.events.size());
+        assertSame(old, late.events.get(0));
+        assertSame(newer, late.events.get(1));
+    }
+
+    @Test
+    public void testBatchDelivery() throws Exception {
+        final List<Runnable> tasks = new ArrayList<>();
+        Executor queue = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+
+        Collector<VersionEvent> all = new Collector<>();
+        mBus.subscribe(VersionEvent.class, null, queue, all, false);
+
+        mBus.publish(Arrays.asList(
+            new VersionEvent("alice@kontalk.net", null, "1", "Kontalk", "3.1"),
+            new VersionEvent("bob@kontalk.net", null, "2", "Kontalk", "3.1"),
+            new VersionEvent("carol@kontalk.net", null, "3", "Kontalk", "3.1")));
+
+        // one task for the whole batch
+        assertEquals(1, tasks.size());
+        tasks.get(0).run();
+        assertEquals(3, all.events.size());
+    }
+
+    @Test
+    public void testUnsubscribe() throws Exception {
+        Collector<VersionEvent> alice = new Collector<>();
+        Object handle = mBus.subscribe(VersionEvent.class, "alice@kontalk.net", EventBus.POSTING, alice, false);
+        mBus.unsubscribe(handle);
+
+        mBus.publish(new VersionEvent("alice@kontalk.net", null, "1", "Kontalk", "3.1"));
+        assertEquals(0, alice.events.size());
+    }
+
+}
@@ -0,0 +1,317 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.upload;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ResumableUploadTest {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private StandInServer mServer;
+    private ResumableUpload mUpload;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StandInServer();
+        mUpload = new ResumableUpload(new ResumableUpload.ConnectionFactory() {
+            @Override
+            public HttpURLConnection open(URL url) throws IOException {
+                return (HttpURLConnection) url.openConnection();
+            }
+        }, CHUNK_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    private static byte[] randomData(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void testSupported() throws IOException {
+        assertTrue(mUpload.isSupported(mServer.getUrl()));
+        mServer.resumable = false;
+        assertFalse(mUpload.isSupported(mServer.getUrl()));
+    }
+
+    @Test
+    public void testUpload() throws IOException {
+        byte[] data = randomData(CHUNK_SIZE * 5 + 123);
+        String location = mUpload.create(mServer.getUrl(), data.length, null);
+        assertTrue(location.startsWith("http://127.0.0.1:"));
+        assertEquals(0, mUpload.getOffset(location));
+
+        Checkpoints checkpoints = new Checkpoints();
+        String result = mUpload.upload(location, new ByteArrayInputStream(data),
+            0, data.length, checkpoints);
+
+        assertEquals(mServer.getMediaUrl(location), result);
+        assertArrayEquals(data, mServer.getData(location));
+        assertEquals(6, checkpoints.count);
+        assertEquals(data.length, checkpoints.offset);
+    }
+
+    @Test
+    public void testResume() throws IOException {
+        byte[] data = randomData(CHUNK_SIZE * 4);
+        String location = mUpload.create(mServer.getUrl(), data.length, null);
+
+        // connection drops in the middle of the third chunk
+        long failAt = CHUNK_SIZE * 2 + CHUNK_SIZE / 2;
+        mServer.failAt = failAt;
+        Checkpoints checkpoints = new Checkpoints();
+        try {
+            mUpload.upload(location, new ByteArrayInputStream(data), 0, data.length, checkpoints);
+            fail("upload should have been interrupted");
+        }
+        catch (IOException expected) {
+        }
+        assertEquals(CHUNK_SIZE * 2, checkpoints.offset);
+
+        // server kept what it received
+        long offset = mUpload.getOffset(location);
+        assertEquals(failAt, offset);
+
+        InputStream in = new ByteArrayInputStream(data);
+        assertEquals(offset, in.skip(offset));
+        String result = mUpload.upload(location, in, offset, data.length, checkpoints);
+
+        assertEquals(mServer.getMediaUrl(location), result);
+        assertArrayEquals(data, mServer.getData(location));
+        assertEquals(data.length, checkpoints.offset);
+    }
+
+    @Test
+    public void testWrongOffset() throws IOException {
+        byte[] data = randomData(CHUNK_SIZE * 2);
+        String location = mUpload.create(mServer.getUrl(), data.length, null);
+        try {
+            // pretend we had already sent the first chunk
+            InputStream in = new ByteArrayInputStream(data, CHUNK_SIZE, CHUNK_SIZE);
+            mUpload.upload(location, in, CHUNK_SIZE, data.length, new Checkpoints());
+            fail("server should have refused the chunk");
+        }
+        catch (IOException expected) {
+            // offset conflicts can be resolved by resuming
+            assertFalse(expected instanceof UploadRejectedException);
+        }
+        assertEquals(0, mUpload.getOffset(location));
+    }
+
+    @Test
+    public void testRejected() throws IOException {
+        mServer.rejectCode = HttpURLConnection.HTTP_ENTITY_TOO_LARGE;
+        try {
+            mUpload.create(mServer.getUrl(), CHUNK_SIZE, null);
+            fail("server should have rejected the upload");
+        }
+        catch (UploadRejectedException expected) {
+            assertEquals(HttpURLConnection.HTTP_ENTITY_TOO_LARGE, expected.getCode());
+        }
+
+        // temporary errors can be retried
+        assertFalse(UploadRejectedException.isRejected(HttpURLConnection.HTTP_CLIENT_TIMEOUT));
+        assertFalse(UploadRejectedException.isRejected(HttpURLConnection.HTTP_UNAVAILABLE));
+    }
+
+    @Test
+    public void testExpired() throws IOException {
+        assertEquals(-1, mUpload.getOffset(mServer.getUrl() + "/files/1000"));
+    }
+
+    private static final class Checkpoints implements ResumableUpload.UploadListener {
+        int count;
+        long offset;
+
+        @Override
+        public void progress(long bytes) {
+        }
+
+        @Override
+        public void checkpoint(String location, long offset) {
+            this.count++;
+            this.offset = offset;
+        }
+    }
+
+    /** A minimal resumable upload server. */
+    private static final class StandInServer implements HttpHandler {
+        private final HttpServer mServer;
+        private final Map<String, ByteArrayOutputStream> mUploads = new HashMap<>();
+        private final Map<String, Long> mLengths = new HashMap<>();
+        private int mNextId = 1;
+
+        volatile boolean resumable = true;
+        /** Total upload offset at which the connection will be dropped. */
+        volatile long failAt = -1;
+        /** Status code to refuse new uploads with. */
+        volatile int rejectCode = -1;
+
+        StandInServer() throws IOException {
+            mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            mServer.createContext("/", this);
+            mServer.start();
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + mServer.getAddress().getPort() + "/upload";
+        }
+
+        String getMediaUrl(String location) {
+            return "https://kontalk.example/download" +
+                location.substring(location.lastIndexOf('/'));
+        }
+
+        synchronized byte[] getData(String location) {
+            return mUploads.get(location.substring(location.indexOf("/files/"))).toByteArray();
+        }
+
+        void stop() {
+            mServer.stop(0);
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String method = exchange.getRequestMethod();
+            String override = exchange.getRequestHeaders().getFirst(ResumableUpload.HEADER_METHOD_OVERRIDE);
+            if (override != null)
+                method = override;
+            String path = exchange.getRequestURI().getPath();
+
+            if (resumable)
+                exchange.getResponseHeaders().set(ResumableUpload.HEADER_RESUMABLE,
+                    ResumableUpload.PROTOCOL_VERSION);
+
+            if ("OPTIONS".equals(method)) {
+                if (resumable)
+                    exchange.getResponseHeaders().set(ResumableUpload.HEADER_VERSION,
+                        ResumableUpload.PROTOCOL_VERSION);
+                exchange.sendResponseHeaders(resumable ? 204 : 405, -1);
+            }
+            else if ("POST".equals(method) && rejectCode > 0) {
+                exchange.sendResponseHeaders(rejectCode, -1);
+            }
+            else if ("POST".equals(method)) {
+                long length = Long.parseLong(exchange.getRequestHeaders()
+                    .getFirst(ResumableUpload.HEADER_LENGTH));
+                String id;
+                synchronized (this) {
+                    id = "/files/" + mNextId++;
+                    mUploads.put(id, new ByteArrayOutputStream());
+                    mLengths.put(id, length);
+                }
+                exchange.getResponseHeaders().set("Location", id);
+                exchange.sendResponseHeaders(201, -1);
+            }
+            else if ("HEAD".equals(method)) {
+                ByteArrayOutputStream data;
+                synchronized (this) {
+                    data = mUploads.get(path);
+                }
+                if (data == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                }
+                else {
+                    exchange.getResponseHeaders().set(ResumableUpload.HEADER_OFFSET,
+                        String.valueOf(data.size()));
+                    exchange.sendResponseHeaders(200, -1);
+                }
+            }
+            else if ("PATCH".equals(method)) {
+                patch(exchange, path);
+            }
+            else {
+                exchange.sendResponseHeaders(405, -1);
+            }
+            exchange.close();
+        }
+
+        private void patch(HttpExchange exchange, String path) throws IOException {
+            long offset = Long.parseLong(exchange.getRequestHeaders()
+                .getFirst(ResumableUpload.HEADER_OFFSET));
+
+            synchronized (this) {
+                ByteArrayOutputStream data = mUploads.get(path);
+                if (data == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
+                }
+                if (data.size() != offset) {
+                    exchange.sendResponseHeaders(409, -1);
+                    return;
+                }
+
+                InputStream in = exchange.getRequestBody();
+                byte[] buffer = new byte[4096];
+                int l;
+                while ((l = in.read(buffer)) != -1) {
+                    if (failAt >= 0 && data.size() + l > failAt) {
+                        // keep what we got and drop the connection
+                        data.write(buffer, 0, (int) (failAt - data.size()));
+                        failAt = -1;
+                        throw new IOException("connection dropped");
+                    }
+                    data.write(buffer, 0, l);
+                }
+
+                exchange.getResponseHeaders().set(ResumableUpload.HEADER_OFFSET,
+                    String.valueOf(data.size()));
+                if (data.size() == mLengths.get(path)) {
+                    byte[] response = getMediaUrl(path).getBytes("UTF-8");
+                    exchange.sendResponseHeaders(200, response.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(response);
+                    out.close();
+                }
+                else {
+                    exchange.sendResponseHeaders(204, -1);
+                }
+            }
+        }
+    }
+
+}
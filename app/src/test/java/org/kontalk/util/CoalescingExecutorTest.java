@@ -0,0 +1,86 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class CoalescingExecutorTest {
+
+    private AtomicInteger mRuns;
+    private CoalescingExecutor mExecutor;
+
+    @Before
+    public void setUp() {
+        mRuns = new AtomicInteger();
+        mExecutor = new CoalescingExecutor("test", 100, 1000, new Runnable() {
+            @Override
+            public void run() {
+                mRuns.incrementAndGet();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdown();
+    }
+
+    @Test
+    public void testBurst() throws Exception {
+        // simulate an offline messages flush
+        for (int i = 0; i < 300; i++)
+            mExecutor.request();
+
+        Thread.sleep(300);
+        assertEquals(1, mRuns.get());
+        assertEquals(1, mExecutor.getRunCount());
+    }
+
+    @Test
+    public void testMaxDelay() throws Exception {
+        // requests keep coming, but the task must run anyway
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 1500) {
+            mExecutor.request();
+            Thread.sleep(20);
+        }
+
+        assertTrue(mRuns.get() >= 1);
+        Thread.sleep(300);
+        assertTrue(mRuns.get() <= 3);
+    }
+
+    @Test
+    public void testSeparateRequests() throws Exception {
+        mExecutor.request();
+        Thread.sleep(300);
+        mExecutor.request();
+        Thread.sleep(300);
+        assertEquals(2, mRuns.get());
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class OrderedPipelineTest {
+
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testOrder() {
+        final Random random = new Random(42);
+        final Thread producer = Thread.currentThread();
+        final List<Integer> consumed = new ArrayList<>();
+
+        OrderedPipeline<Integer, String> pipeline = new OrderedPipeline<>(mExecutor, 7, 4,
+            new OrderedPipeline.Stage<Integer, String>() {
+                @Override
+                public String process(Integer input) {
+                    if (input % 13 == 0) {
+                        try {
+                            Thread.sleep(random.nextInt(3));
+                        }
+                        catch (InterruptedException ignored) {
+                        }
+                    }
+                    return "n" + input;
+                }
+            },
+            new OrderedPipeline.Sink<Integer, String>() {
+                @Override
+                public void accept(Integer input, String output) {
+                    assertSame(producer, Thread.currentThread());
+                    assertEquals("n" + input, output);
+                    consumed.add(input);
+                }
+            });
+
+        for (int i = 0; i < 1000; i++)
+            pipeline.add(i);
+        pipeline.finish();
+
+        assertEquals(1000, consumed.size());
+        for (int i = 0; i < consumed.size(); i++)
+            assertEquals(i, consumed.get(i).intValue());
+    }
+
+    @Test
+    public void testBackpressure() {
+        final AtomicInteger processed = new AtomicInteger();
+        final AtomicInteger consumed = new AtomicInteger();
+        final int sliceSize = 10;
+        final int maxPending = 3;
+
+        OrderedPipeline<Integer, Integer> pipeline = new OrderedPipeline<>(mExecutor, sliceSize, maxPending,
+            new OrderedPipeline.Stage<Integer, Integer>() {
+                @Override
+                public Integer process(Integer input) {
+                    processed.incrementAndGet();
+                    return input;
+                }
+            },
+            new OrderedPipeline.Sink<Integer, Integer>() {
+                @Override
+                public void accept(Integer input, Integer output) {
+                    consumed.incrementAndGet();
+                }
+            });
+
+        for (int i = 0; i < 500; i++) {
+            pipeline.add(i);
+            // items not consumed yet are bounded
+            assertTrue(i + 1 - consumed.get() <= (maxPending + 1) * sliceSize);
+        }
+        pipeline.finish();
+
+        assertEquals(500, processed.get());
+        assertEquals(500, consumed.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFailure() {
+        OrderedPipeline<Integer, Integer> pipeline = new OrderedPipeline<>(mExecutor, 5, 2,
+            new OrderedPipeline.Stage<Integer, Integer>() {
+                @Override
+                public Integer process(Integer input) {
+                    if (input == 42)
+                        throw new IllegalArgumentException("bad input");
+                    return input;
+                }
+            },
+            new OrderedPipeline.Sink<Integer, Integer>() {
+                @Override
+                public void accept(Integer input, Integer output) {
+                }
+            });
+
+        for (int i = 0; i < 100; i++)
+            pipeline.add(i);
+        pipeline.finish();
+    }
+
+}
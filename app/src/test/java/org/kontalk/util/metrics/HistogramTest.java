@@ -0,0 +1,82 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.util.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class HistogramTest {
+
+    @Test
+    public void testBuckets() {
+        // exact values below the first sub-bucket range
+        for (long v = 0; v < 64; v++) {
+            int index = Histogram.indexOf(v);
+            assertEquals(v, Histogram.lowestValue(index));
+            assertEquals(v, Histogram.highestValue(index));
+        }
+
+        // buckets are contiguous and precise within about 3%
+        long prev = -1;
+        for (int i = 0; i < Histogram.indexOf(60L * 1000 * 1000); i++) {
+            long low = Histogram.lowestValue(i);
+            long high = Histogram.highestValue(i);
+            assertEquals(prev + 1, low);
+            assertEquals(i, Histogram.indexOf(low));
+            assertEquals(i, Histogram.indexOf(high));
+            assertTrue((high - low) <= low / 32);
+            prev = high;
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram h = new Histogram("ms", 10000);
+        for (long v = 1; v <= 1000; v++)
+            h.record(v);
+
+        Histogram.Snapshot s = h.getSnapshot();
+        assertEquals(1000, s.getCount());
+        assertEquals(1, s.getMin());
+        assertEquals(1000, s.getMax());
+        assertEquals(500, s.getMean());
+        assertEquals(500, s.getPercentile(50), 500 / 32);
+        assertEquals(990, s.getPercentile(99), 990 / 32);
+        assertEquals(1000, s.getPercentile(100));
+    }
+
+    @Test
+    public void testClamp() {
+        Histogram h = new Histogram("ms", 1000);
+        h.record(-5);
+        h.record(50000);
+
+        Histogram.Snapshot s = h.getSnapshot();
+        assertEquals(0, s.getMin());
+        assertEquals(1000, s.getMax());
+
+        h.reset();
+        assertEquals(0, h.getSnapshot().getCount());
+        assertEquals(0, h.getSnapshot().getMax());
+    }
+
+}
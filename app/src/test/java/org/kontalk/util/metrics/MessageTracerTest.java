@@ -0,0 +1,96 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.util.metrics;
+
+import java.io.StringWriter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class MessageTracerTest {
+
+    @Before
+    public void setUp() {
+        MessageTracer.clear();
+    }
+
+    private static String[] export() throws Exception {
+        StringWriter out = new StringWriter();
+        MessageTracer.export(out);
+        return out.toString().split("\n");
+    }
+
+    @Test
+    public void testTrace() throws Exception {
+        MessageTracer.begin("abc", false);
+        MessageTracer.mark("abc", MessageTracer.STAGE_STORED);
+        Thread.sleep(5);
+        MessageTracer.mark("abc", MessageTracer.STAGE_SENT);
+        // only the first mark counts
+        Thread.sleep(5);
+        MessageTracer.mark("abc", MessageTracer.STAGE_STORED);
+        // unknown message
+        MessageTracer.mark("xyz", MessageTracer.STAGE_SENT);
+
+        String[] lines = export();
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].startsWith("id,direction,start,stored_us,"));
+
+        String[] fields = lines[1].split(",", -1);
+        assertEquals("abc", fields[0]);
+        assertEquals("out", fields[1]);
+        long stored = Long.parseLong(fields[3 + MessageTracer.STAGE_STORED]);
+        long sent = Long.parseLong(fields[3 + MessageTracer.STAGE_SENT]);
+        assertTrue(sent >= stored + 5000);
+        assertEquals("", fields[3 + MessageTracer.STAGE_ACKED]);
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        for (int i = 0; i < MessageTracer.MAX_TRACES + 10; i++)
+            MessageTracer.begin("msg" + i, true);
+
+        String[] lines = export();
+        assertEquals(MessageTracer.MAX_TRACES + 1, lines.length);
+        assertTrue(lines[1].startsWith("msg10,in,"));
+    }
+
+    @Test
+    public void testDisplayed() throws Exception {
+        for (int i = 0; i < MessageTracer.MAX_TRACES + 10; i++)
+            MessageTracer.begin("msg" + i, true);
+        for (int i = 0; i < MessageTracer.MAX_TRACES + 10; i++)
+            MessageTracer.mark("msg" + i, MessageTracer.STAGE_DISPLAYED);
+        // a new trace after every other one has been displayed
+        MessageTracer.begin("last", false);
+        MessageTracer.mark("last", MessageTracer.STAGE_DISPLAYED);
+
+        String[] lines = export();
+        String[] fields = lines[lines.length - 1].split(",", -1);
+        assertEquals("last", fields[0]);
+        assertFalse(fields[3 + MessageTracer.STAGE_DISPLAYED].isEmpty());
+        fields = lines[1].split(",", -1);
+        assertFalse(fields[3 + MessageTracer.STAGE_DISPLAYED].isEmpty());
+    }
+
+}